@@ -1182,6 +1182,7 @@ public class FitBitTSUpdater extends AbstractUpdater implements Autonomous {
         }
         if (remainingAPICalls!=null&&remainingAPICalls<1)
             throw new RateLimitReachedException();
+        acquireApiPermit(updateInfo);
 
         try {
             long then = System.currentTimeMillis();
@@ -1275,10 +1276,12 @@ public class FitBitTSUpdater extends AbstractUpdater implements Autonomous {
             final long resetTime = System.currentTimeMillis() + millisUntilReset + DateTimeConstants.MILLIS_PER_MINUTE;
             guestService.setApiKeyAttribute(updateInfo.apiKey, "resetTime", String.valueOf(resetTime));
             updateInfo.setResetTime("fitbit", resetTime);
+            rateLimiterService.setRateLimitedUntil(updateInfo.apiKey, resetTime);
         } else {
             final long resetTime = System.currentTimeMillis() + 60 * DateTimeConstants.MILLIS_PER_HOUR;
             guestService.setApiKeyAttribute(updateInfo.apiKey, "resetTime", String.valueOf(resetTime));
             updateInfo.setResetTime("fitbit", resetTime);
+            rateLimiterService.setRateLimitedUntil(updateInfo.apiKey, resetTime);
         }
     }
 
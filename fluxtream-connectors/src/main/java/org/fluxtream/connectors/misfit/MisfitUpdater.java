@@ -385,6 +385,7 @@ public class MisfitUpdater extends AbstractUpdater implements Autonomous {
         }
         if (remainingAPICalls!=null&&remainingAPICalls<1)
             throw new RateLimitReachedException();
+        acquireApiPermit(updateInfo);
 
         try {
             long then = System.currentTimeMillis();
@@ -455,10 +456,12 @@ public class MisfitUpdater extends AbstractUpdater implements Autonomous {
             final long resetTime = Long.valueOf(rateLimitResetSeconds)*1000;
             guestService.setApiKeyAttribute(updateInfo.apiKey, "resetTime", String.valueOf(resetTime));
             updateInfo.setResetTime("misfit", resetTime);
+            rateLimiterService.setRateLimitedUntil(updateInfo.apiKey, resetTime);
         } else {
             final long resetTime = System.currentTimeMillis() + 60 * DateTimeConstants.MILLIS_PER_HOUR;
             guestService.setApiKeyAttribute(updateInfo.apiKey, "resetTime", String.valueOf(resetTime));
             updateInfo.setResetTime("misfit", resetTime);
+            rateLimiterService.setRateLimitedUntil(updateInfo.apiKey, resetTime);
         }
     }
 
@@ -668,6 +668,7 @@ public class MovesUpdater extends AbstractUpdater {
         }
 
         // By the time we get to here, we should likely have quota available
+        acquireApiPermit(updateInfo);
         try {
             HttpGet get = new HttpGet(url);
 
@@ -683,6 +684,8 @@ public class MovesUpdater extends AbstractUpdater {
             long now = System.currentTimeMillis();
 
             if(firstToUpdate && nextQuotaAvailableTime>now) {
+                // The quota is global, let other Moves updaters know without calling the API
+                rateLimiterService.setRateLimitedUntil(connector(), nextQuotaAvailableTime);
                 // We're the first to find out that quota is gone.  We may or may not have succeeded on this call,
                 // depending on the status code.  Regardless of the status code, fix the scheduling of moves updates
                 // that would otherwise happen before the next quota window opens up.
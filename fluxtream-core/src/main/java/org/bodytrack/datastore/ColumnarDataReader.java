@@ -0,0 +1,214 @@
+package org.bodytrack.datastore;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>ColumnarDataReader</code> reads channel data uploaded in the BodyTrack binary columnar format, validates it
+ * and transcodes it, as it is read, into the "<code>channel_names</code>"/"<code>data</code>" JSON document expected
+ * by {@link DatastoreEngine#importJson}.  Samples are never boxed: each block is read into primitive arrays and written
+ * out before the next one is read.
+ * </p>
+ * <p>
+ * The format is big-endian:
+ * <pre>
+ *   "BTC1"                         magic
+ *   u16 channelCount               at most MAX_CHANNELS
+ *   channelCount x {
+ *     UTF name                     as written by DataOutput.writeUTF()
+ *     u8 type                      1 = float64, 2 = float32
+ *   }
+ *   blocks, each {
+ *     varint rowCount              unsigned LEB128, 0 ends the stream; rowCount x channelCount is at most MAX_BLOCK_CELLS
+ *     i64 firstTimestamp           microseconds since the epoch
+ *     (rowCount - 1) x varint      difference with the previous timestamp, in microseconds
+ *     channelCount x {
+ *       rowCount values            of the channel's type, NaN meaning that the channel has no value at that time
+ *     }
+ *   }
+ * </pre>
+ * Timestamps must not decrease, including across blocks.
+ * </p>
+ */
+public final class ColumnarDataReader {
+
+    public static final String MEDIA_TYPE = "application/x-bodytrack-columnar";
+
+    public static final int TYPE_FLOAT64 = 1;
+    public static final int TYPE_FLOAT32 = 2;
+
+    /** Upper bound on the number of rows of a block, so that the memory needed to transcode a block stays bounded */
+    public static final int MAX_BLOCK_ROWS = 65536;
+
+    public static final int MAX_CHANNELS = 1024;
+
+    /** Upper bound on the number of values of a block, i.e. on its rows times the number of channels (8 MB of samples) */
+    public static final int MAX_BLOCK_CELLS = 1 << 20;
+
+    private static final byte[] MAGIC = {'B', 'T', 'C', '1'};
+
+    public static final class InvalidDataException extends IOException {
+        public InvalidDataException(final String message) {
+            super(message);
+        }
+    }
+
+    @NotNull
+    private final DataInputStream in;
+
+    @NotNull
+    private final List<String> channelNames;
+
+    @NotNull
+    private final int[] channelTypes;
+
+    /**
+     * Reads and validates the header of the given stream.
+     *
+     * @throws InvalidDataException if the header is invalid
+     * @throws IOException if the stream can't be read
+     */
+    public ColumnarDataReader(@NotNull final InputStream inputStream) throws IOException {
+        in = new DataInputStream(inputStream);
+        try {
+            for (final byte b : MAGIC) {
+                if (in.readByte() != b) {
+                    throw new InvalidDataException("Not a BodyTrack columnar upload");
+                }
+            }
+            final int channelCount = in.readUnsignedShort();
+            if (channelCount == 0) {
+                throw new InvalidDataException("No channels");
+            }
+            if (channelCount > MAX_CHANNELS) {
+                throw new InvalidDataException("There can't be more than " + MAX_CHANNELS + " channels");
+            }
+            final List<String> names = new ArrayList<String>(channelCount);
+            channelTypes = new int[channelCount];
+            for (int i = 0; i < channelCount; i++) {
+                final String name = in.readUTF();
+                if (name.length() == 0 || names.contains(name)) {
+                    throw new InvalidDataException("Empty or duplicate channel name [" + name + "]");
+                }
+                names.add(name);
+                channelTypes[i] = in.readUnsignedByte();
+                if (channelTypes[i] != TYPE_FLOAT64 && channelTypes[i] != TYPE_FLOAT32) {
+                    throw new InvalidDataException("Unknown type [" + channelTypes[i] + "] for channel [" + name + "]");
+                }
+            }
+            channelNames = Collections.unmodifiableList(names);
+        }
+        catch (EOFException e) {
+            throw new InvalidDataException("Truncated header");
+        }
+    }
+
+    @NotNull
+    public List<String> getChannelNames() {
+        return channelNames;
+    }
+
+    /**
+     * Reads the rest of the stream and writes it to <code>out</code> as a datastore import document.  The stream is
+     * validated as it is read, so if an {@link InvalidDataException} is thrown, what has been written so far must be
+     * discarded.  Returns the number of rows written.
+     *
+     * @throws InvalidDataException if the data is invalid
+     * @throws IOException if the stream can't be read or <code>out</code> can't be written
+     */
+    public long writeImportJson(@NotNull final OutputStream out) throws IOException {
+        final ImportJsonWriter writer = new ImportJsonWriter(out, channelNames);
+
+        final int channelCount = channelNames.size();
+        long[] timestamps = new long[0];
+        double[][] values = new double[channelCount][];
+        long previousTimestamp = Long.MIN_VALUE;
+        long rows = 0;
+        try {
+            int rowCount;
+            while ((rowCount = readRowCount()) > 0) {
+                if (timestamps.length < rowCount) {
+                    timestamps = new long[rowCount];
+                    values = new double[channelCount][rowCount];
+                }
+
+                timestamps[0] = in.readLong();
+                if (timestamps[0] < previousTimestamp) {
+                    throw new InvalidDataException("Timestamps must not decrease");
+                }
+                for (int row = 1; row < rowCount; row++) {
+                    // differences are never negative, so a timestamp lower than the previous one is an overflow
+                    timestamps[row] = timestamps[row - 1] + readVarint();
+                    if (timestamps[row] < timestamps[row - 1]) {
+                        throw new InvalidDataException("Timestamps must not decrease");
+                    }
+                }
+                previousTimestamp = timestamps[rowCount - 1];
+
+                for (int channel = 0; channel < channelCount; channel++) {
+                    final double[] column = values[channel];
+                    final boolean float32 = channelTypes[channel] == TYPE_FLOAT32;
+                    for (int row = 0; row < rowCount; row++) {
+                        column[row] = float32 ? in.readFloat() : in.readDouble();
+                        if (Double.isInfinite(column[row])) {
+                            throw new InvalidDataException("Infinite value in channel [" + channelNames.get(channel) + "]");
+                        }
+                    }
+                }
+
+                for (int row = 0; row < rowCount; row++) {
+                    writer.startRow(timestamps[row] / 1000000d);
+                    for (int channel = 0; channel < channelCount; channel++) {
+                        if (channelTypes[channel] == TYPE_FLOAT32) {
+                            writer.writeValue((float)values[channel][row]);
+                        }
+                        else {
+                            writer.writeValue(values[channel][row]);
+                        }
+                    }
+                }
+                rows += rowCount;
+            }
+        }
+        catch (EOFException e) {
+            throw new InvalidDataException("Truncated data after " + rows + " rows");
+        }
+        if (rows == 0) {
+            throw new InvalidDataException("No data");
+        }
+
+        writer.finish();
+        return rows;
+    }
+
+    private int readRowCount() throws IOException {
+        final long rowCount = readVarint();
+        if (rowCount > MAX_BLOCK_ROWS) {
+            throw new InvalidDataException("Blocks can't have more than " + MAX_BLOCK_ROWS + " rows");
+        }
+        if (rowCount * channelTypes.length > MAX_BLOCK_CELLS) {
+            throw new InvalidDataException("Blocks can't have more than " + MAX_BLOCK_CELLS + " values");
+        }
+        return (int)rowCount;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new InvalidDataException("Varint too long");
+    }
+}
@@ -0,0 +1,54 @@
+package org.bodytrack.datastore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>DatastoreEngine</code> is the interface through which Fluxtream talks to the BodyTrack datastore, whatever the
+ * implementation backing it.
+ * </p>
+ * <p>
+ * Every operation writes the datastore's (JSON or CSV) output to the given <code>out</code> stream and returns a status
+ * code following the convention of the datastore executables: <code>0</code> means success, anything else is a
+ * failure.  Channels are addressed by their full name, i.e. "<code>DeviceName.ChannelName</code>".
+ * </p>
+ */
+public interface DatastoreEngine {
+
+    /**
+     * Returns <code>true</code> if the datastore holds any data for the given user and device, <code>false</code>
+     * otherwise.  Implementations are expected to answer this without running a datastore operation.
+     */
+    boolean hasDevice(final long uid, @NotNull final String deviceName);
+
+    /**
+     * Writes the JSON tile at the given <code>level</code> and <code>offset</code> (see {@link DatastoreTile}) for
+     * the given channel.
+     */
+    int getTile(final long uid, @NotNull final String channelFullName, final int level, final long offset,
+                @NotNull final OutputStream out) throws IOException;
+
+    /**
+     * Imports the JSON file <code>jsonFile</code> (a "<code>channel_names</code>"/"<code>data</code>" document) for
+     * the given device and writes the JSON import report.
+     */
+    int importJson(final long uid, @NotNull final String deviceName, @NotNull final File jsonFile,
+                   @NotNull final OutputStream out) throws IOException;
+
+    /**
+     * Exports the given channels as CSV, optionally bounded by <code>start</code> and <code>end</code> (unix time, in
+     * seconds).
+     */
+    int exportCSV(final long uid, @NotNull final Collection<String> channelFullNames, @Nullable final Long start,
+                  @Nullable final Long end, @NotNull final OutputStream out) throws IOException;
+
+    /**
+     * Writes the JSON description (channel specs and bounds) of all of the user's channels.
+     */
+    int info(final long uid, @NotNull final OutputStream out) throws IOException;
+}
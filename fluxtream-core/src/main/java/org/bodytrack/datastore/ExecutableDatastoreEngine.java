@@ -0,0 +1,174 @@
+package org.bodytrack.datastore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.fluxtream.core.aspects.FlxLogger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>ExecutableDatastoreEngine</code> is a {@link DatastoreEngine} which runs the BodyTrack datastore executables
+ * (<code>gettile</code>, <code>import</code>, <code>export</code> and <code>info</code>) found in
+ * <code>btdatastore.exec.location</code> against the key-value store in <code>btdatastore.db.location</code>.
+ * </p>
+ * <p>
+ * One process is spawned per operation; see {@link PooledDatastoreEngine} for long-lived worker processes.
+ * </p>
+ */
+public final class ExecutableDatastoreEngine implements DatastoreEngine {
+
+    private static final FlxLogger LOG = FlxLogger.getLogger(ExecutableDatastoreEngine.class);
+
+    private static final byte[] NEWLINE = "\n".getBytes();
+
+    // the standard error of every process must be drained; idle drainer threads are reused instead of starting a new
+    // thread per operation
+    private static final ExecutorService ERROR_STREAM_DRAINERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "BTDataStore-stderr");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String execLocation;
+    private final String dbLocation;
+
+    /**
+     * @throws IllegalArgumentException If <code>execLocation</code> and/or <code>dbLocation</code> is null
+     */
+    public ExecutableDatastoreEngine(@NotNull final String execLocation, @NotNull final String dbLocation) throws IllegalArgumentException {
+        //noinspection ConstantConditions
+        if (execLocation == null || dbLocation == null) {
+            throw new IllegalArgumentException("The execLocation and dbLocation must both be non-null.");
+        }
+        this.execLocation = execLocation;
+        this.dbLocation = dbLocation;
+    }
+
+    @Override
+    public boolean hasDevice(final long uid, @NotNull final String deviceName) {
+        return new File(dbLocation + File.separator + uid + File.separator + deviceName).isDirectory();
+    }
+
+    @Override
+    public int getTile(final long uid, @NotNull final String channelFullName, final int level, final long offset,
+                       @NotNull final OutputStream out) throws IOException {
+        return execute("gettile", new Object[]{uid, channelFullName, level, offset}, out);
+    }
+
+    @Override
+    public int importJson(final long uid, @NotNull final String deviceName, @NotNull final File jsonFile,
+                          @NotNull final OutputStream out) throws IOException {
+        return execute("import", new Object[]{uid, deviceName, jsonFile.getAbsolutePath()}, out);
+    }
+
+    @Override
+    public int exportCSV(final long uid, @NotNull final Collection<String> channelFullNames, @Nullable final Long start,
+                         @Nullable final Long end, @NotNull final OutputStream out) throws IOException {
+        final List<Object> params = new ArrayList<Object>();
+        params.add("--csv");
+        params.add(uid);
+        params.addAll(channelFullNames);
+        if (start != null) {
+            params.add("--start");
+            params.add(start);
+        }
+        if (end != null) {
+            params.add("--end");
+            params.add(end);
+        }
+        return execute("export", params.toArray(), out);
+    }
+
+    @Override
+    public int info(final long uid, @NotNull final OutputStream out) throws IOException {
+        return execute("info", new Object[]{"-r", uid}, out);
+    }
+
+    /**
+     * Runs the given datastore command and copies its standard output, line by line, to <code>out</code>.  The
+     * trailing newline is dropped.  Returns the process' exit value.
+     */
+    int execute(@NotNull final String commandName, @NotNull final Object[] parameters, @NotNull final OutputStream out) throws IOException {
+        final String launchCommand = buildLaunchCommand(commandName, parameters);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("BTDataStore: running with command: " + launchCommand);
+        }
+
+        final Process pr = Runtime.getRuntime().exec(launchCommand);
+        try {
+            drainErrorStream(pr);
+
+            final BufferedReader input = new BufferedReader(new InputStreamReader(pr.getInputStream()));
+            String line;
+            boolean first = true;
+            while ((line = input.readLine()) != null) {
+                if (first) {
+                    first = false;
+                }
+                else {
+                    out.write(NEWLINE);
+                }
+                out.write(line.getBytes());
+            }
+            final int exitValue = pr.waitFor();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("BTDataStore: exited with code " + exitValue);
+            }
+            return exitValue;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the datastore to complete [" + launchCommand + "]");
+        }
+        finally {
+            pr.destroy();
+        }
+    }
+
+    private String buildLaunchCommand(final String commandName, final Object[] parameters) {
+        final StringBuilder launchCommand = new StringBuilder(execLocation).append("/").append(commandName)
+                .append(" ").append(dbLocation);
+        for (Object param : parameters) {
+            launchCommand.append(' ');
+            final String part = param.toString();
+            if (part.indexOf(' ') == -1) {
+                launchCommand.append(part);
+            }
+            else {
+                launchCommand.append('"').append(part).append('"');
+            }
+        }
+        return launchCommand.toString();
+    }
+
+    private static void drainErrorStream(final Process pr) {
+        ERROR_STREAM_DRAINERS.execute(new Runnable() {
+            public void run() {
+                final BufferedReader error = new BufferedReader(new InputStreamReader(pr.getErrorStream()));
+                try {
+                    String line;
+                    while ((line = error.readLine()) != null) {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("BTDataStore-error: " + line);
+                        }
+                    }
+                }
+                catch (Exception ignored) {
+                }
+            }
+        });
+    }
+}
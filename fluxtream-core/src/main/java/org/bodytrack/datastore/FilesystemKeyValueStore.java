@@ -1,5 +1,6 @@
 package org.bodytrack.datastore;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -106,12 +107,20 @@ public final class FilesystemKeyValueStore implements KeyValueStore<byte[]> {
     public byte[] get(@Nullable final String key) {
         final File valueFile = getValueFile(key);
         if (valueFile != null) {
+            FileInputStream inputStream = null;
             try {
-                return IOUtils.toByteArray(new FileInputStream(valueFile));
+                inputStream = new FileInputStream(valueFile);
+                // read the value straight into an array of its size, rather than through a growing buffer
+                final byte[] value = new byte[(int)inputStream.getChannel().size()];
+                new DataInputStream(inputStream).readFully(value);
+                return value;
             }
             catch (IOException e) {
                 LOG.error("IOException while trying to read file [" + valueFile + "]", e);
             }
+            finally {
+                IOUtils.closeQuietly(inputStream);
+            }
         }
         return null;
     }
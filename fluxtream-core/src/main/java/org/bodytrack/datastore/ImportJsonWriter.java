@@ -0,0 +1,94 @@
+package org.bodytrack.datastore;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>ImportJsonWriter</code> writes the "<code>channel_names</code>"/"<code>data</code>" JSON document expected by
+ * {@link DatastoreEngine#importJson} one row at a time, from primitive values, so that large imports neither box their
+ * samples nor build the document in memory.  <code>NaN</code> values are written as <code>null</code>, meaning that
+ * the channel has no value at that time.
+ * </p>
+ * <p>
+ * Rows are started with {@link #startRow(double)}, followed by one <code>writeValue</code> call per channel, and the
+ * document is completed with {@link #finish()}.
+ * </p>
+ */
+public final class ImportJsonWriter {
+
+    @NotNull
+    private final Writer writer;
+
+    private long rowCount = 0;
+
+    public ImportJsonWriter(@NotNull final OutputStream out, @NotNull final Collection<String> channelNames) throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        writer.write("{\"channel_names\":[");
+        boolean first = true;
+        for (final String channelName : channelNames) {
+            if (!first) {
+                writer.write(',');
+            }
+            writeJsonString(channelName);
+            first = false;
+        }
+        writer.write("],\"data\":[");
+    }
+
+    /** Starts a row for the given time, in seconds since the epoch */
+    public void startRow(final double time) throws IOException {
+        if (rowCount > 0) {
+            writer.write("],");
+        }
+        writer.write('[');
+        writer.write(Double.toString(time));
+        rowCount++;
+    }
+
+    public void writeValue(final double value) throws IOException {
+        writer.write(',');
+        writer.write(Double.isNaN(value) ? "null" : Double.toString(value));
+    }
+
+    public void writeValue(final float value) throws IOException {
+        writer.write(',');
+        writer.write(Float.isNaN(value) ? "null" : Float.toString(value));
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /** Completes the document and flushes it, without closing the underlying stream */
+    public void finish() throws IOException {
+        if (rowCount > 0) {
+            writer.write(']');
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private void writeJsonString(@NotNull final String s) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            }
+            else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int)c));
+            }
+            else {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,292 @@
+package org.bodytrack.datastore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.apache.commons.io.IOUtils;
+import org.fluxtream.core.aspects.FlxLogger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>InProcessDatastoreEngine</code> is a {@link DatastoreEngine} which reads tiles from a {@link TileStore}
+ * instead of running a datastore operation, and delegates everything else to another engine.
+ * </p>
+ * <p>
+ * Imports go to the delegate first, then the numeric samples they hold are imported into the tile store.  A channel's
+ * tiles are read from the tile store only if all of its samples went through this engine, i.e. if the datastore held
+ * no data for the channel when it was first imported here; the tiles of older channels, of channels with non-numeric
+ * values and of levels the tile store doesn't serve are still read through the delegate.  Channels removed from the
+ * datastore (by deleting their directory in <code>dbLocation</code>) are no longer read from the tile store, and
+ * start over when they are imported again.
+ * </p>
+ * <p>
+ * Imports of the same user are serialized.
+ * </p>
+ */
+public final class InProcessDatastoreEngine implements DatastoreEngine {
+
+    private static final FlxLogger LOG = FlxLogger.getLogger(InProcessDatastoreEngine.class);
+
+    private static final int IMPORT_LOCK_COUNT = 64;
+
+    private final DatastoreEngine delegate;
+    private final File dbLocation;
+    private final TileStore tileStore;
+    private final Object[] importLocks = new Object[IMPORT_LOCK_COUNT];
+
+    /**
+     * @throws IllegalArgumentException If any argument is null, or if <code>tilesLocation</code> cannot be created
+     */
+    public InProcessDatastoreEngine(@NotNull final DatastoreEngine delegate, @NotNull final String dbLocation,
+                                    @NotNull final File tilesLocation) throws IllegalArgumentException {
+        //noinspection ConstantConditions
+        if (delegate == null || dbLocation == null) {
+            throw new IllegalArgumentException("The delegate and dbLocation must both be non-null.");
+        }
+        this.delegate = delegate;
+        this.dbLocation = new File(dbLocation);
+        this.tileStore = new TileStore(tilesLocation);
+        for (int i = 0; i < IMPORT_LOCK_COUNT; i++) {
+            importLocks[i] = new Object();
+        }
+    }
+
+    @NotNull
+    public DatastoreEngine getDelegate() {
+        return delegate;
+    }
+
+    /** Removes whatever the tile store holds for the given device, e.g. once its connector is erased */
+    public void deleteDevice(final long uid, @Nullable final String deviceName) {
+        synchronized (importLocks[(int)(Math.abs(uid % IMPORT_LOCK_COUNT))]) {
+            tileStore.deleteDevice(uid, deviceName);
+        }
+    }
+
+    @Override
+    public boolean hasDevice(final long uid, @NotNull final String deviceName) {
+        return delegate.hasDevice(uid, deviceName);
+    }
+
+    @Override
+    public int getTile(final long uid, @NotNull final String channelFullName, final int level, final long offset,
+                       @NotNull final OutputStream out) throws IOException {
+        final String[] names = splitChannelFullName(channelFullName);
+        if (names == null || !TileStore.isServedLevel(level) || !isInTileStore(uid, names[0], names[1])) {
+            return delegate.getTile(uid, channelFullName, level, offset, out);
+        }
+        tileStore.writeTile(uid, names[0], names[1], level, offset, out);
+        return 0;
+    }
+
+    @Override
+    public int importJson(final long uid, @NotNull final String deviceName, @NotNull final File jsonFile,
+                          @NotNull final OutputStream out) throws IOException {
+        if (!TileStore.isValidName(deviceName)) {
+            return delegate.importJson(uid, deviceName, jsonFile, out);
+        }
+        synchronized (importLocks[(int)(Math.abs(uid % IMPORT_LOCK_COUNT))]) {
+            Map<String, ChannelSamples> channels = null;
+            try {
+                channels = readSamples(jsonFile);
+            }
+            catch (Exception e) {
+                LOG.warn("InProcessDatastoreEngine: couldn't read the samples of [" + jsonFile + "]: " + e);
+            }
+
+            // whether the datastore already had data for each channel must be known before it imports the new data
+            final List<String> newChannels = new ArrayList<String>();
+            if (channels != null) {
+                for (final String channelName : channels.keySet()) {
+                    if (!getDatastoreChannelDirectory(uid, deviceName, channelName).exists()) {
+                        newChannels.add(channelName);
+                    }
+                }
+            }
+
+            final int statusCode = delegate.importJson(uid, deviceName, jsonFile, out);
+            if (statusCode != 0) {
+                return statusCode;
+            }
+            if (channels == null) {
+                // the channels of this device may have changed without the tile store knowing it
+                tileStore.disownDevice(uid, deviceName);
+                return statusCode;
+            }
+            for (final Map.Entry<String, ChannelSamples> channel : channels.entrySet()) {
+                if (!TileStore.isValidName(channel.getKey())) {
+                    continue;
+                }
+                importIntoTileStore(uid, deviceName, channel.getKey(), newChannels.contains(channel.getKey()), channel.getValue());
+            }
+            return statusCode;
+        }
+    }
+
+    private void importIntoTileStore(final long uid, @NotNull final String deviceName, @NotNull final String channelName,
+                                     final boolean isNewChannel, @Nullable final ChannelSamples samples) {
+        try {
+            if (samples == null || !getDatastoreChannelDirectory(uid, deviceName, channelName).isDirectory()) {
+                // either the channel has non-numeric values, or the datastore keeps it somewhere we don't know of
+                tileStore.disown(uid, deviceName, channelName);
+                return;
+            }
+            if (isNewChannel) {
+                tileStore.reset(uid, deviceName, channelName);
+            }
+            else if (!tileStore.isOwned(uid, deviceName, channelName)) {
+                // the channel was imported before this engine was used: its tiles keep being read through the delegate
+                return;
+            }
+            tileStore.importSamples(uid, deviceName, channelName, samples.times, samples.values, samples.count);
+        }
+        catch (Exception e) {
+            LOG.warn("InProcessDatastoreEngine: couldn't import channel " + uid + "." + deviceName + "." + channelName
+                     + " into the tile store, its tiles will be read through the datastore: " + e);
+            tileStore.disown(uid, deviceName, channelName);
+        }
+    }
+
+    @Override
+    public int exportCSV(final long uid, @NotNull final Collection<String> channelFullNames, @Nullable final Long start,
+                         @Nullable final Long end, @NotNull final OutputStream out) throws IOException {
+        return delegate.exportCSV(uid, channelFullNames, start, end, out);
+    }
+
+    @Override
+    public int info(final long uid, @NotNull final OutputStream out) throws IOException {
+        return delegate.info(uid, out);
+    }
+
+    private boolean isInTileStore(final long uid, @NotNull final String deviceName, @NotNull final String channelName) {
+        return getDatastoreChannelDirectory(uid, deviceName, channelName).isDirectory()
+               && tileStore.isOwned(uid, deviceName, channelName);
+    }
+
+    private File getDatastoreChannelDirectory(final long uid, @NotNull final String deviceName, @NotNull final String channelName) {
+        return new File(new File(new File(dbLocation, Long.toString(uid)), deviceName), channelName);
+    }
+
+    /**
+     * Returns the {device, channel} names of a "<code>DeviceName.ChannelName</code>" channel name, or
+     * <code>null</code> if they can't be used in the tile store
+     */
+    @Nullable
+    private static String[] splitChannelFullName(@NotNull final String channelFullName) {
+        final int dot = channelFullName.indexOf('.');
+        if (dot == -1) {
+            return null;
+        }
+        final String deviceName = channelFullName.substring(0, dot);
+        final String channelName = channelFullName.substring(dot + 1);
+        if (!TileStore.isValidName(deviceName) || !TileStore.isValidName(channelName)) {
+            return null;
+        }
+        return new String[]{deviceName, channelName};
+    }
+
+    /**
+     * Samples of one channel, in the order of the import
+     */
+    private static final class ChannelSamples {
+        double[] times = new double[64];
+        double[] values = new double[64];
+        int count = 0;
+
+        void add(final double time, final double value) {
+            if (count == times.length) {
+                final double[] newTimes = new double[count * 2];
+                final double[] newValues = new double[count * 2];
+                System.arraycopy(times, 0, newTimes, 0, count);
+                System.arraycopy(values, 0, newValues, 0, count);
+                times = newTimes;
+                values = newValues;
+            }
+            times[count] = time;
+            values[count] = value;
+            count++;
+        }
+    }
+
+    /**
+     * Reads the samples of a "<code>channel_names</code>"/"<code>data</code>" document, keyed by channel name.
+     * Channels with a non-numeric value are mapped to <code>null</code>, as are channels whose name can't be used in
+     * the tile store.
+     */
+    private static Map<String, ChannelSamples> readSamples(@NotNull final File jsonFile) throws IOException {
+        final JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(jsonFile), "UTF-8"));
+        try {
+            List<String> channelNames = null;
+            final List<ChannelSamples> samples = new ArrayList<ChannelSamples>();
+            final Map<String, ChannelSamples> channels = new LinkedHashMap<String, ChannelSamples>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if ("channel_names".equals(name)) {
+                    channelNames = new ArrayList<String>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        final String channelName = reader.nextString();
+                        channelNames.add(channelName);
+                        final ChannelSamples channelSamples = TileStore.isValidName(channelName) ? new ChannelSamples() : null;
+                        samples.add(channelSamples);
+                        channels.put(channelName, channelSamples);
+                    }
+                    reader.endArray();
+                }
+                else if ("data".equals(name)) {
+                    if (channelNames == null) {
+                        throw new IOException("channel_names must come before data");
+                    }
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        reader.beginArray();
+                        final double time = reader.nextDouble();
+                        for (int i = 0; reader.hasNext(); i++) {
+                            if (i >= channelNames.size()) {
+                                throw new IOException("A row has more values than there are channels");
+                            }
+                            final JsonToken token = reader.peek();
+                            if (token == JsonToken.NUMBER) {
+                                final double value = reader.nextDouble();
+                                final ChannelSamples channelSamples = samples.get(i);
+                                if (channelSamples != null) {
+                                    channelSamples.add(time, value);
+                                }
+                            }
+                            else if (token == JsonToken.NULL) {
+                                reader.nextNull();
+                            }
+                            else {
+                                reader.skipValue();
+                                samples.set(i, null);
+                                channels.put(channelNames.get(i), null);
+                            }
+                        }
+                        reader.endArray();
+                    }
+                    reader.endArray();
+                }
+                else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return channels;
+        }
+        finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package org.bodytrack.datastore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.fluxtream.core.aspects.FlxLogger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>PooledDatastoreEngine</code> is a {@link DatastoreEngine} which hands operations to a fixed pool of long-lived
+ * datastore worker processes (the <code>worker</code> executable found in <code>btdatastore.exec.location</code>,
+ * started with <code>btdatastore.db.location</code> as its only argument), instead of spawning one process per
+ * operation like {@link ExecutableDatastoreEngine} does.
+ * </p>
+ * <p>
+ * Workers speak a framed protocol over their standard input and output, all integers being big-endian 32-bit:
+ * <pre>
+ *   request:  argument count, then for each argument its UTF-8 length and bytes; the first argument is the name of
+ *             the datastore command (gettile, import, export, info or ping) and the others are that command's
+ *             arguments, without the key-value store location
+ *   response: any number of chunks of the command's standard output, each one being its length and bytes, then a
+ *             zero length, then the command's exit value
+ * </pre>
+ * As with the executables, the trailing newline of the output is dropped.
+ * </p>
+ * <p>
+ * Each worker handles one operation at a time.  When all workers are busy, callers wait for one to be released, up to
+ * the acquire timeout, after which the operation fails.  A worker is started on first use and restarted whenever it
+ * exits or an operation fails in a way that leaves its pipes in an unknown state.  A worker which has been idle for
+ * longer than the health check interval is pinged before it is used.  A worker which doesn't complete an operation
+ * within the operation timeout is killed, which fails the operation, and restarted on next use.
+ * </p>
+ */
+public final class PooledDatastoreEngine implements DatastoreEngine {
+
+    private static final FlxLogger LOG = FlxLogger.getLogger(PooledDatastoreEngine.class);
+
+    public static final String WORKER_COMMAND = "worker";
+
+    private static final String PING_COMMAND = "ping";
+
+    /** Activity statistics of a worker */
+    public static final class WorkerStats {
+        public int worker;
+        public boolean running;
+        public boolean busy;
+        public long requests;
+        public long failures;
+        public int restarts;
+        public long lastUsed;
+    }
+
+    private final String execLocation;
+    private final String dbLocation;
+    private final long acquireTimeoutMillis;
+    private final long healthCheckIntervalMillis;
+    private final long operationTimeoutMillis;
+
+    private final List<Worker> workers;
+    private final BlockingQueue<Worker> idleWorkers;
+    private final ScheduledExecutorService watchdog;
+
+    /**
+     * @param operationTimeoutMillis time after which a worker still running an operation is killed; zero or negative
+     * for no timeout
+     * @throws IllegalArgumentException If <code>execLocation</code> and/or <code>dbLocation</code> is null, or if
+     * <code>poolSize</code> isn't positive
+     */
+    public PooledDatastoreEngine(@NotNull final String execLocation, @NotNull final String dbLocation, final int poolSize,
+                                 final long acquireTimeoutMillis, final long healthCheckIntervalMillis,
+                                 final long operationTimeoutMillis) throws IllegalArgumentException {
+        //noinspection ConstantConditions
+        if (execLocation == null || dbLocation == null) {
+            throw new IllegalArgumentException("The execLocation and dbLocation must both be non-null.");
+        }
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("The pool size must be positive.");
+        }
+        this.execLocation = execLocation;
+        this.dbLocation = dbLocation;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+        this.operationTimeoutMillis = operationTimeoutMillis;
+        workers = new ArrayList<Worker>(poolSize);
+        idleWorkers = new ArrayBlockingQueue<Worker>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            final Worker worker = new Worker(i);
+            workers.add(worker);
+            idleWorkers.add(worker);
+        }
+        watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "BTDataStore-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public boolean hasDevice(final long uid, @NotNull final String deviceName) {
+        return new File(dbLocation + File.separator + uid + File.separator + deviceName).isDirectory();
+    }
+
+    @Override
+    public int getTile(final long uid, @NotNull final String channelFullName, final int level, final long offset,
+                       @NotNull final OutputStream out) throws IOException {
+        return execute("gettile", new Object[]{uid, channelFullName, level, offset}, out);
+    }
+
+    @Override
+    public int importJson(final long uid, @NotNull final String deviceName, @NotNull final File jsonFile,
+                          @NotNull final OutputStream out) throws IOException {
+        return execute("import", new Object[]{uid, deviceName, jsonFile.getAbsolutePath()}, out);
+    }
+
+    @Override
+    public int exportCSV(final long uid, @NotNull final Collection<String> channelFullNames, @Nullable final Long start,
+                         @Nullable final Long end, @NotNull final OutputStream out) throws IOException {
+        final List<Object> params = new ArrayList<Object>();
+        params.add("--csv");
+        params.add(uid);
+        params.addAll(channelFullNames);
+        if (start != null) {
+            params.add("--start");
+            params.add(start);
+        }
+        if (end != null) {
+            params.add("--end");
+            params.add(end);
+        }
+        return execute("export", params.toArray(), out);
+    }
+
+    @Override
+    public int info(final long uid, @NotNull final OutputStream out) throws IOException {
+        return execute("info", new Object[]{"-r", uid}, out);
+    }
+
+    @NotNull
+    public List<WorkerStats> getWorkerStats() {
+        final List<WorkerStats> stats = new ArrayList<WorkerStats>(workers.size());
+        for (final Worker worker : workers) {
+            stats.add(worker.getStats());
+        }
+        return stats;
+    }
+
+    /** Stops all the workers; operations still running fail */
+    public void shutdown() {
+        watchdog.shutdownNow();
+        for (final Worker worker : workers) {
+            worker.stop();
+        }
+    }
+
+    private int execute(@NotNull final String commandName, @NotNull final Object[] parameters, @NotNull final OutputStream out) throws IOException {
+        final Worker worker = acquire();
+        boolean clean = false;
+        try {
+            final int exitValue = worker.execute(commandName, parameters, out);
+            clean = true;
+            return exitValue;
+        }
+        finally {
+            worker.release(clean);
+            idleWorkers.add(worker);
+        }
+    }
+
+    @NotNull
+    private Worker acquire() throws IOException {
+        final Worker worker;
+        try {
+            worker = idleWorkers.poll(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a datastore worker");
+        }
+        if (worker == null) {
+            LOG.warn("BTDataStore: all " + workers.size() + " workers have been busy for " + acquireTimeoutMillis + " ms");
+            throw new IOException("All datastore workers are busy");
+        }
+        try {
+            worker.ensureHealthy();
+            return worker;
+        }
+        catch (IOException e) {
+            worker.release(false);
+            idleWorkers.add(worker);
+            throw e;
+        }
+    }
+
+    private final class Worker {
+
+        private final int id;
+
+        // only accessed by the thread which acquired the worker, except for the statistics
+        private volatile Process process;
+        private DataOutputStream requests;
+        private DataInputStream responses;
+
+        private volatile boolean busy;
+        private volatile long requestCount;
+        private volatile long failureCount;
+        private volatile int restartCount;
+        private volatile long lastUsed;
+
+        Worker(final int id) {
+            this.id = id;
+        }
+
+        void ensureHealthy() throws IOException {
+            busy = true;
+            if (isRunning() && System.currentTimeMillis() - lastUsed > healthCheckIntervalMillis) {
+                try {
+                    if (execute(PING_COMMAND, new Object[0], null) != 0) {
+                        throw new IOException("ping failed");
+                    }
+                }
+                catch (IOException e) {
+                    LOG.warn("BTDataStore: worker " + id + " failed its health check (" + e.getMessage() + "), restarting it");
+                    stop();
+                }
+            }
+            if (!isRunning()) {
+                start();
+            }
+        }
+
+        int execute(@NotNull final String commandName, @NotNull final Object[] parameters, @Nullable final OutputStream out) throws IOException {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("BTDataStore: worker " + id + " running " + commandName);
+            }
+            // the watchdog may stop this worker, which clears its streams, while it runs the operation
+            final DataOutputStream requests = this.requests;
+            final DataInputStream responses = this.responses;
+            final OperationTimeout timeout = startTimeout(commandName);
+            try {
+                requests.writeInt(parameters.length + 1);
+                writeArgument(requests, commandName);
+                for (final Object parameter : parameters) {
+                    writeArgument(requests, parameter.toString());
+                }
+                requests.flush();
+
+                boolean pendingNewline = false;
+                byte[] buffer = new byte[8192];
+                int length;
+                while ((length = responses.readInt()) != 0) {
+                    if (length < 0) {
+                        throw new IOException("Invalid chunk length " + length + " from datastore worker " + id);
+                    }
+                    if (buffer.length < length) {
+                        buffer = new byte[length];
+                    }
+                    responses.readFully(buffer, 0, length);
+                    if (out != null) {
+                        if (pendingNewline) {
+                            out.write('\n');
+                        }
+                        pendingNewline = buffer[length - 1] == '\n';
+                        out.write(buffer, 0, pendingNewline ? length - 1 : length);
+                    }
+                }
+                final int exitValue = responses.readInt();
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("BTDataStore: worker " + id + " exited " + commandName + " with code " + exitValue);
+                }
+                lastUsed = System.currentTimeMillis();
+                return exitValue;
+            }
+            catch (IOException e) {
+                if (timeout != null && timeout.hasExpired()) {
+                    throw new IOException("Datastore worker " + id + " didn't complete " + commandName + " within "
+                                          + operationTimeoutMillis + " ms");
+                }
+                throw e;
+            }
+            finally {
+                if (timeout != null) {
+                    timeout.cancel();
+                }
+            }
+        }
+
+        /**
+         * Makes the worker available again; unless the last operation completed cleanly, the worker is stopped since
+         * its pipes may still hold part of a request or response, and restarted on next use.
+         */
+        void release(final boolean clean) {
+            if (clean) {
+                requestCount++;
+            }
+            else {
+                failureCount++;
+                stop();
+            }
+            busy = false;
+        }
+
+        @Nullable
+        private OperationTimeout startTimeout(@NotNull final String commandName) {
+            if (operationTimeoutMillis <= 0) {
+                return null;
+            }
+            final OperationTimeout timeout = new OperationTimeout(commandName);
+            timeout.future = watchdog.schedule(timeout, operationTimeoutMillis, TimeUnit.MILLISECONDS);
+            return timeout;
+        }
+
+        private void writeArgument(@NotNull final DataOutputStream requests, @NotNull final String argument) throws IOException {
+            final byte[] bytes = argument.getBytes("UTF-8");
+            requests.writeInt(bytes.length);
+            requests.write(bytes);
+        }
+
+        private boolean isRunning() {
+            if (process == null) {
+                return false;
+            }
+            try {
+                process.exitValue();
+                LOG.warn("BTDataStore: worker " + id + " has exited");
+                return false;
+            }
+            catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+
+        private void start() throws IOException {
+            stop();
+            final String command = execLocation + File.separator + WORKER_COMMAND;
+            LOG.info("BTDataStore: starting worker " + id + " [" + command + " " + dbLocation + "]");
+            final Process newProcess = new ProcessBuilder(command, dbLocation).start();
+            drainErrorStream(newProcess);
+            process = newProcess;
+            requests = new DataOutputStream(new BufferedOutputStream(newProcess.getOutputStream()));
+            responses = new DataInputStream(new BufferedInputStream(newProcess.getInputStream()));
+            if (lastUsed != 0) {
+                restartCount++;
+            }
+            lastUsed = System.currentTimeMillis();
+        }
+
+        synchronized void stop() {
+            if (process != null) {
+                process.destroy();
+                process = null;
+                requests = null;
+                responses = null;
+            }
+        }
+
+        private void drainErrorStream(final Process workerProcess) {
+            final Thread drainer = new Thread("BTDataStore-worker-" + id + "-stderr") {
+                public void run() {
+                    final BufferedReader error = new BufferedReader(new InputStreamReader(workerProcess.getErrorStream()));
+                    try {
+                        String line;
+                        while ((line = error.readLine()) != null) {
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("BTDataStore-error: worker " + id + ": " + line);
+                            }
+                        }
+                    }
+                    catch (Exception ignored) {
+                    }
+                }
+            };
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+
+        /**
+         * Stops the worker if it is still running an operation when the operation timeout expires; the killed process
+         * closes its end of the pipes, which unblocks the thread running the operation.
+         */
+        private final class OperationTimeout implements Runnable {
+
+            private final String commandName;
+            private ScheduledFuture<?> future;
+            private boolean done;
+            private boolean expired;
+
+            OperationTimeout(@NotNull final String commandName) {
+                this.commandName = commandName;
+            }
+
+            public synchronized void run() {
+                if (!done) {
+                    expired = true;
+                    LOG.warn("BTDataStore: worker " + id + " didn't complete " + commandName + " within "
+                             + operationTimeoutMillis + " ms, killing it");
+                    stop();
+                }
+            }
+
+            synchronized void cancel() {
+                done = true;
+                future.cancel(false);
+            }
+
+            synchronized boolean hasExpired() {
+                return expired;
+            }
+        }
+
+        WorkerStats getStats() {
+            final WorkerStats stats = new WorkerStats();
+            stats.worker = id;
+            stats.running = process != null;
+            stats.busy = busy;
+            stats.requests = requestCount;
+            stats.failures = failureCount;
+            stats.restarts = restartCount;
+            stats.lastUsed = lastUsed;
+            return stats;
+        }
+    }
+}
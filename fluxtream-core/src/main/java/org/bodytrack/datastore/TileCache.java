@@ -0,0 +1,212 @@
+package org.bodytrack.datastore;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>TileCache</code> is a bounded, least-recently-used cache of serialized datastore tiles.
+ * </p>
+ * <p>
+ * Tiles are looked up by the (user, device, channel, level, offset) tuple they were requested with, and remember the
+ * name of the datastore device they were read from so that an import into that device only evicts the tiles whose
+ * time span (see {@link DatastoreTile}) overlaps the imported time range.
+ * </p>
+ * <p>
+ * The cache is bounded both by its number of entries and by the total number of characters held.  All methods are
+ * thread-safe.
+ * </p>
+ */
+public final class TileCache {
+
+    private final int maxEntries;
+    private final long maxChars;
+
+    private final LinkedHashMap<TileKey, CachedTile> tiles = new LinkedHashMap<TileKey, CachedTile>(256, 0.75f, true);
+    private long chars = 0;
+
+    // incremented by every invalidation; lets callers avoid caching a tile that was read before an import completed
+    private long generation = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @throws IllegalArgumentException If <code>maxEntries</code> or <code>maxChars</code> is not positive
+     */
+    public TileCache(final int maxEntries, final long maxChars) throws IllegalArgumentException {
+        if (maxEntries <= 0 || maxChars <= 0) {
+            throw new IllegalArgumentException("The maxEntries and maxChars must both be positive.");
+        }
+        this.maxEntries = maxEntries;
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Returns the current generation of the cache, to be passed back to
+     * {@link #put(long, String, String, int, long, String, String, long)}.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returns the cached tile, or <code>null</code> if it isn't cached.
+     */
+    @Nullable
+    public synchronized String get(final long uid, @NotNull final String deviceName, @NotNull final String channelName,
+                                   final int level, final long offset) {
+        final CachedTile cachedTile = tiles.get(new TileKey(uid, deviceName, channelName, level, offset));
+        if (cachedTile == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return cachedTile.json;
+    }
+
+    /**
+     * Caches the given tile, unless the cache was invalidated since <code>generation</code> was obtained through
+     * {@link #getGeneration()}, in which case the tile may already be stale and is dropped.  Returns <code>true</code>
+     * if the tile was cached.
+     */
+    public synchronized boolean put(final long uid, @NotNull final String deviceName, @NotNull final String channelName,
+                                    final int level, final long offset, @NotNull final String datastoreDeviceName,
+                                    @NotNull final String json, final long generation) {
+        if (generation != this.generation || json.length() > maxChars) {
+            return false;
+        }
+        final CachedTile previous = tiles.put(new TileKey(uid, deviceName, channelName, level, offset),
+                                              new CachedTile(datastoreDeviceName, json));
+        if (previous != null) {
+            chars -= previous.json.length();
+        }
+        chars += json.length();
+        evict();
+        return true;
+    }
+
+    /**
+     * Evicts the given user's tiles read from <code>datastoreDeviceName</code> whose time span intersects
+     * [<code>minTime</code>, <code>maxTime</code>] (unix time, in seconds).  Returns the number of evicted tiles.
+     */
+    public synchronized int invalidate(final long uid, @NotNull final String datastoreDeviceName,
+                                       final double minTime, final double maxTime) {
+        generation++;
+        int evicted = 0;
+        for (final Iterator<Map.Entry<TileKey, CachedTile>> iterator = tiles.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry<TileKey, CachedTile> entry = iterator.next();
+            final TileKey key = entry.getKey();
+            if (key.uid == uid && entry.getValue().datastoreDeviceName.equalsIgnoreCase(datastoreDeviceName) &&
+                key.overlaps(minTime, maxTime)) {
+                chars -= entry.getValue().json.length();
+                iterator.remove();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Evicts all of the given user's tiles read from <code>datastoreDeviceName</code>.  Returns the number of evicted
+     * tiles.
+     */
+    public int invalidate(final long uid, @NotNull final String datastoreDeviceName) {
+        return invalidate(uid, datastoreDeviceName, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Evicts all of the given user's tiles.  Returns the number of evicted tiles.
+     */
+    public synchronized int invalidate(final long uid) {
+        generation++;
+        int evicted = 0;
+        for (final Iterator<Map.Entry<TileKey, CachedTile>> iterator = tiles.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry<TileKey, CachedTile> entry = iterator.next();
+            if (entry.getKey().uid == uid) {
+                chars -= entry.getValue().json.length();
+                iterator.remove();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    public synchronized int size() {
+        return tiles.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private void evict() {
+        final Iterator<CachedTile> iterator = tiles.values().iterator();
+        while ((tiles.size() > maxEntries || chars > maxChars) && iterator.hasNext()) {
+            chars -= iterator.next().json.length();
+            iterator.remove();
+        }
+    }
+
+    private static final class CachedTile {
+        private final String datastoreDeviceName;
+        private final String json;
+
+        private CachedTile(final String datastoreDeviceName, final String json) {
+            this.datastoreDeviceName = datastoreDeviceName;
+            this.json = json;
+        }
+    }
+
+    private static final class TileKey {
+        private final long uid;
+        private final String deviceName;
+        private final String channelName;
+        private final int level;
+        private final long offset;
+
+        private TileKey(final long uid, final String deviceName, final String channelName, final int level, final long offset) {
+            this.uid = uid;
+            this.deviceName = deviceName;
+            this.channelName = channelName;
+            this.level = level;
+            this.offset = offset;
+        }
+
+        private boolean overlaps(final double minTime, final double maxTime) {
+            final double tileStart = DatastoreTile.offset_at_level_to_unixtime(offset, level);
+            final double tileEnd = DatastoreTile.offset_at_level_to_unixtime(offset + 1, level);
+            return tileStart <= maxTime && minTime < tileEnd;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            final TileKey that = (TileKey)o;
+            return uid == that.uid && level == that.level && offset == that.offset &&
+                   deviceName.equals(that.deviceName) && channelName.equals(that.channelName);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int)(uid ^ (uid >>> 32));
+            result = 31 * result + deviceName.hashCode();
+            result = 31 * result + channelName.hashCode();
+            result = 31 * result + level;
+            result = 31 * result + (int)(offset ^ (offset >>> 32));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,650 @@
+package org.bodytrack.datastore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>TileStore</code> keeps the samples of numeric channels, and the tiles summarizing them, in a directory of its
+ * own so that tiles can be read without running the datastore (see {@link InProcessDatastoreEngine}).
+ * </p>
+ * <p>
+ * A channel's samples are kept sorted by time, in one file per tile at {@link #CHUNK_LEVEL}.  Tiles at finer levels are
+ * binned from the one sample file covering them when they are read.  Tiles at every other level from
+ * {@link #CHUNK_LEVEL} up to {@link #MAX_STORED_LEVEL} are stored with the count, mean time, mean value and sum of
+ * squared deviations of each of their {@link DatastoreTile#TILE_BIN_NUM} bins, and are recomputed from their four
+ * children whenever an import changes them.  The other tiles are merged from the stored tiles of the level below
+ * them when they are read: two tiles in between stored levels, and the few tiles holding any samples above
+ * {@link #MAX_STORED_LEVEL}.
+ * </p>
+ * <p>
+ * The files of a channel are <code>root/uid/device/channel/samples/offset</code> and
+ * <code>root/uid/device/channel/level/offset</code>, along with an <code>owned</code> marker telling that the store
+ * holds all of the channel's samples.  Files are replaced atomically, so tiles can be read while an import runs.
+ * </p>
+ */
+public final class TileStore {
+
+    /** Level of the tiles whose time span each sample file covers (about 2 hours) */
+    public static final int CHUNK_LEVEL = 4;
+
+    /** Coarsest level whose tiles are stored: tiles of about a year */
+    public static final int MAX_STORED_LEVEL = 16;
+
+    /** Finest level served: bins of about a microsecond */
+    public static final int MIN_LEVEL = -20;
+
+    /** Coarsest level served: tiles of about 17 thousand years */
+    public static final int MAX_LEVEL = 30;
+
+    private static final int BIN_COUNT = (int)DatastoreTile.TILE_BIN_NUM;
+
+    /** Tiles are stored at every other level, each stored tile covering four stored tiles of the level below */
+    private static final int STORED_LEVEL_STEP = 2;
+
+    private static final int SAMPLES_MAGIC = 0x464c5853; // "FLXS"
+    private static final int TILE_MAGIC = 0x464c5854;    // "FLXT"
+
+    private static final String SAMPLES_DIRECTORY = "samples";
+    private static final String OWNED_MARKER = "owned";
+
+    private static final Pattern VALID_NAME_PATTERN = Pattern.compile("[a-zA-Z0-9_\\-]+");
+
+    /**
+     * Returns <code>true</code> if the given name can be used as a device or channel name in the store, i.e. if it is
+     * a {@link KeyValueStoreHelper#isValidKey(String) valid key} without any dot.
+     */
+    public static boolean isValidName(@Nullable final String name) {
+        return name != null && VALID_NAME_PATTERN.matcher(name).matches();
+    }
+
+    /** Returns <code>true</code> if tiles at the given level can be read from the store */
+    public static boolean isServedLevel(final int level) {
+        return level >= MIN_LEVEL && level <= MAX_LEVEL;
+    }
+
+    private final File rootDirectory;
+
+    /**
+     * Creates a new <code>TileStore</code> in the given directory, which is created if necessary.
+     *
+     * @throws IllegalArgumentException If <code>rootDirectory</code> is null or cannot be created
+     */
+    public TileStore(@NotNull final File rootDirectory) throws IllegalArgumentException {
+        //noinspection ConstantConditions
+        if (rootDirectory == null) {
+            throw new IllegalArgumentException("The rootDirectory cannot be null.");
+        }
+        //noinspection ResultOfMethodCallIgnored
+        rootDirectory.mkdirs();
+        if (!rootDirectory.isDirectory()) {
+            throw new IllegalArgumentException("The rootDirectory must be a directory [" + rootDirectory + "].");
+        }
+        this.rootDirectory = rootDirectory;
+    }
+
+    /** Returns <code>true</code> if the store holds all of the given channel's samples */
+    public boolean isOwned(final long uid, @NotNull final String deviceName, @NotNull final String channelName) {
+        return new File(getChannelDirectory(uid, deviceName, channelName), OWNED_MARKER).isFile();
+    }
+
+    /**
+     * Drops whatever the store holds for the given channel, and marks it as owned: from then on, all the channel's
+     * samples are expected to be imported into the store.
+     */
+    public void reset(final long uid, @NotNull final String deviceName, @NotNull final String channelName) throws IOException {
+        final File channelDirectory = getChannelDirectory(uid, deviceName, channelName);
+        disown(channelDirectory);
+        if (!channelDirectory.mkdirs()) {
+            throw new IOException("Failed to create the channel directory [" + channelDirectory + "]");
+        }
+        new FileOutputStream(new File(channelDirectory, OWNED_MARKER)).close();
+    }
+
+    /** Drops whatever the store holds for the given channel, whose tiles are no longer read from the store */
+    public void disown(final long uid, @NotNull final String deviceName, @NotNull final String channelName) {
+        disown(getChannelDirectory(uid, deviceName, channelName));
+    }
+
+    /** Drops whatever the store holds for all of the given device's channels */
+    public void disownDevice(final long uid, @NotNull final String deviceName) {
+        checkName(deviceName);
+        final File[] channelDirectories = new File(new File(rootDirectory, Long.toString(uid)), deviceName).listFiles();
+        if (channelDirectories != null) {
+            for (final File channelDirectory : channelDirectories) {
+                disown(channelDirectory);
+            }
+        }
+    }
+
+    /**
+     * Removes the given device's directory from the store, after dropping its channels.  Names the store cannot hold
+     * are ignored, as no directory was ever created for them.
+     */
+    public void deleteDevice(final long uid, @Nullable final String deviceName) {
+        if (!isValidName(deviceName)) {
+            return;
+        }
+        disownDevice(uid, deviceName);
+        FileUtils.deleteQuietly(new File(new File(rootDirectory, Long.toString(uid)), deviceName));
+    }
+
+    private static void disown(final File channelDirectory) {
+        // the marker goes first, so that the channel's tiles stop being read while its files are deleted
+        //noinspection ResultOfMethodCallIgnored
+        new File(channelDirectory, OWNED_MARKER).delete();
+        FileUtils.deleteQuietly(channelDirectory);
+    }
+
+    /**
+     * Imports the first <code>count</code> given samples into the channel.  The channel's previous samples within the
+     * time range spanned by the new ones are replaced, and the tiles covering them are recomputed.  The arrays may be
+     * reordered.
+     */
+    public void importSamples(final long uid, @NotNull final String deviceName, @NotNull final String channelName,
+                              @NotNull final double[] times, @NotNull final double[] values, final int count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        sortByTime(times, values, count);
+        final double minTime = times[0];
+        final double maxTime = times[count - 1];
+
+        final File channelDirectory = getChannelDirectory(uid, deviceName, channelName);
+        final File samplesDirectory = new File(channelDirectory, SAMPLES_DIRECTORY);
+
+        // the sample files to rewrite: those receiving new samples, and those holding samples in the replaced range
+        final SortedSet<Long> chunkOffsets = new TreeSet<Long>();
+        final long firstChunkOffset = DatastoreTile.unixtime_at_level_to_offset(minTime, CHUNK_LEVEL);
+        final long lastChunkOffset = DatastoreTile.unixtime_at_level_to_offset(maxTime, CHUNK_LEVEL);
+        final String[] sampleFileNames = samplesDirectory.list();
+        if (sampleFileNames != null) {
+            for (final String sampleFileName : sampleFileNames) {
+                final Long chunkOffset = parseOffset(sampleFileName);
+                if (chunkOffset != null && chunkOffset >= firstChunkOffset && chunkOffset <= lastChunkOffset) {
+                    chunkOffsets.add(chunkOffset);
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            chunkOffsets.add(DatastoreTile.unixtime_at_level_to_offset(times[i], CHUNK_LEVEL));
+        }
+
+        // only the tiles covering the sample files that actually change are recomputed, so that importing samples
+        // which are already in the store writes nothing
+        Set<Long> offsets = new TreeSet<Long>();
+        int start = 0;
+        for (final Long chunkOffset : chunkOffsets) {
+            int end = start;
+            while (end < count && DatastoreTile.unixtime_at_level_to_offset(times[end], CHUNK_LEVEL) == chunkOffset) {
+                end++;
+            }
+            final File samplesFile = new File(samplesDirectory, Long.toString(chunkOffset));
+            final Samples existing = readSamples(samplesFile);
+            final Samples samples = replace(existing, minTime, maxTime, times, values, start, end);
+            if (!samples.equals(existing)) {
+                writeSamples(samplesFile, samples);
+                writeBins(getTileFile(channelDirectory, CHUNK_LEVEL, chunkOffset), bin(samples, CHUNK_LEVEL, chunkOffset));
+                offsets.add(chunkOffset);
+            }
+            start = end;
+        }
+
+        for (int level = CHUNK_LEVEL + STORED_LEVEL_STEP; level <= MAX_STORED_LEVEL; level += STORED_LEVEL_STEP) {
+            final Set<Long> parentOffsets = new TreeSet<Long>();
+            for (final Long offset : offsets) {
+                parentOffsets.add(offset >> STORED_LEVEL_STEP);
+            }
+            for (final Long parentOffset : parentOffsets) {
+                writeBins(getTileFile(channelDirectory, level, parentOffset),
+                          mergeStoredBins(channelDirectory, level - STORED_LEVEL_STEP, level, parentOffset));
+            }
+            offsets = parentOffsets;
+        }
+    }
+
+    /**
+     * Writes the JSON tile at the given level and offset, which must be a {@link #isServedLevel(int) served level}.
+     * Bins without samples are left out, and the tile is empty if the store holds no samples in its time range.
+     */
+    public void writeTile(final long uid, @NotNull final String deviceName, @NotNull final String channelName,
+                          final int level, final long offset, @NotNull final OutputStream out) throws IOException {
+        if (!isServedLevel(level)) {
+            throw new IllegalArgumentException("Tiles at level " + level + " are not served from the tile store");
+        }
+        final File channelDirectory = getChannelDirectory(uid, deviceName, channelName);
+        final Bins bins;
+        if (level < CHUNK_LEVEL) {
+            final long chunkOffset = offset >> (CHUNK_LEVEL - level);
+            bins = bin(readSamples(new File(new File(channelDirectory, SAMPLES_DIRECTORY), Long.toString(chunkOffset))), level, offset);
+        }
+        else if (isStoredLevel(level)) {
+            bins = readBins(getTileFile(channelDirectory, level, offset));
+        }
+        else {
+            bins = mergeStoredBins(channelDirectory, Math.min(level - 1, MAX_STORED_LEVEL), level, offset);
+        }
+
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        writer.write("{\"level\":");
+        writer.write(Integer.toString(level));
+        writer.write(",\"offset\":");
+        writer.write(Long.toString(offset));
+        writer.write(",\"fields\":[\"time\",\"mean\",\"stddev\",\"count\"],\"data\":[");
+        boolean first = true;
+        for (int bin = 0; bin < BIN_COUNT; bin++) {
+            final long binCount = bins.counts[bin];
+            if (binCount > 0) {
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                writer.write('[');
+                writer.write(Double.toString(bins.meanTimes[bin]));
+                writer.write(',');
+                writer.write(Double.toString(bins.means[bin]));
+                writer.write(',');
+                writer.write(Double.toString(Math.sqrt(bins.squaredDeviations[bin] / binCount)));
+                writer.write(',');
+                writer.write(Long.toString(binCount));
+                writer.write(']');
+            }
+        }
+        writer.write("],\"type\":\"value\"}");
+        writer.flush();
+    }
+
+    private static boolean isStoredLevel(final int level) {
+        return level >= CHUNK_LEVEL && level <= MAX_STORED_LEVEL && (level - CHUNK_LEVEL) % STORED_LEVEL_STEP == 0;
+    }
+
+    /**
+     * Merges the bins of the tile at the given level and offset from the stored tiles it covers at
+     * <code>storedLevel</code>.  These are probed one by one when there are a few of them, and found by listing their
+     * directory otherwise.
+     */
+    private static Bins mergeStoredBins(final File channelDirectory, final int storedLevel, final int level, final long offset) throws IOException {
+        final int shift = level - storedLevel;
+        final long firstOffset = offset << shift;
+        final long lastOffset = firstOffset + (1L << shift) - 1;
+        final SortedSet<Long> storedOffsets = new TreeSet<Long>();
+        if (shift <= STORED_LEVEL_STEP) {
+            for (long storedOffset = firstOffset; storedOffset <= lastOffset; storedOffset++) {
+                storedOffsets.add(storedOffset);
+            }
+        }
+        else {
+            final String[] tileFileNames = new File(channelDirectory, Integer.toString(storedLevel)).list();
+            if (tileFileNames != null) {
+                for (final String tileFileName : tileFileNames) {
+                    final Long storedOffset = parseOffset(tileFileName);
+                    if (storedOffset != null && storedOffset >= firstOffset && storedOffset <= lastOffset) {
+                        storedOffsets.add(storedOffset);
+                    }
+                }
+            }
+        }
+        final Bins bins = new Bins();
+        for (final Long storedOffset : storedOffsets) {
+            bins.mergeChild(readBins(getTileFile(channelDirectory, storedLevel, storedOffset)), storedOffset - firstOffset, shift);
+        }
+        return bins;
+    }
+
+    private File getChannelDirectory(final long uid, @NotNull final String deviceName, @NotNull final String channelName) {
+        checkName(deviceName);
+        checkName(channelName);
+        return new File(new File(new File(rootDirectory, Long.toString(uid)), deviceName), channelName);
+    }
+
+    private static void checkName(final String name) {
+        if (!isValidName(name)) {
+            throw new IllegalArgumentException("Invalid device or channel name [" + name + "]");
+        }
+    }
+
+    private static File getTileFile(final File channelDirectory, final int level, final long offset) {
+        return new File(new File(channelDirectory, Integer.toString(level)), Long.toString(offset));
+    }
+
+    @Nullable
+    private static Long parseOffset(final String fileName) {
+        try {
+            return Long.valueOf(fileName);
+        }
+        catch (NumberFormatException e) {
+            // a file being written
+            return null;
+        }
+    }
+
+    /**
+     * Sorted samples of one sample file
+     */
+    static final class Samples {
+        final double[] times;
+        final double[] values;
+        final int count;
+
+        Samples(final double[] times, final double[] values, final int count) {
+            this.times = times;
+            this.values = values;
+            this.count = count;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Samples)) {
+                return false;
+            }
+            final Samples that = (Samples)o;
+            if (count != that.count) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (Double.compare(times[i], that.times[i]) != 0 || Double.compare(values[i], that.values[i]) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = count;
+            for (int i = 0; i < count; i++) {
+                final long bits = Double.doubleToLongBits(times[i]) ^ Double.doubleToLongBits(values[i]);
+                result = 31 * result + (int)(bits ^ (bits >>> 32));
+            }
+            return result;
+        }
+    }
+
+    private static final Samples NO_SAMPLES = new Samples(new double[0], new double[0], 0);
+
+    /**
+     * Returns the <code>existing</code> samples outside of [<code>minTime</code>, <code>maxTime</code>], along with the
+     * new samples from <code>start</code> (inclusive) to <code>end</code> (exclusive), which all lie in that range
+     */
+    private static Samples replace(final Samples existing, final double minTime, final double maxTime,
+                                   final double[] times, final double[] values, final int start, final int end) {
+        final int before = firstIndexAtOrAfter(existing, minTime);
+        int after = before;
+        while (after < existing.count && existing.times[after] <= maxTime) {
+            after++;
+        }
+        final int count = before + (end - start) + (existing.count - after);
+        final double[] mergedTimes = new double[count];
+        final double[] mergedValues = new double[count];
+        System.arraycopy(existing.times, 0, mergedTimes, 0, before);
+        System.arraycopy(existing.values, 0, mergedValues, 0, before);
+        System.arraycopy(times, start, mergedTimes, before, end - start);
+        System.arraycopy(values, start, mergedValues, before, end - start);
+        System.arraycopy(existing.times, after, mergedTimes, before + end - start, existing.count - after);
+        System.arraycopy(existing.values, after, mergedValues, before + end - start, existing.count - after);
+        return new Samples(mergedTimes, mergedValues, count);
+    }
+
+    private static int firstIndexAtOrAfter(final Samples samples, final double time) {
+        int low = 0;
+        int high = samples.count;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (samples.times[middle] < time) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static Samples readSamples(final File samplesFile) throws IOException {
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(samplesFile)));
+        }
+        catch (FileNotFoundException e) {
+            return NO_SAMPLES;
+        }
+        try {
+            if (in.readInt() != SAMPLES_MAGIC) {
+                throw new IOException("Not a sample file [" + samplesFile + "]");
+            }
+            final int count = in.readInt();
+            if (count < 0 || count > (samplesFile.length() - 8) / 16) {
+                throw new IOException("Invalid sample count " + count + " in [" + samplesFile + "]");
+            }
+            final byte[] bytes = new byte[count * 16];
+            in.readFully(bytes);
+            final DoubleBuffer doubles = ByteBuffer.wrap(bytes).asDoubleBuffer();
+            final double[] times = new double[count];
+            final double[] values = new double[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = doubles.get();
+                values[i] = doubles.get();
+            }
+            return new Samples(times, values, count);
+        }
+        finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static void writeSamples(final File samplesFile, final Samples samples) throws IOException {
+        if (samples.count == 0) {
+            //noinspection ResultOfMethodCallIgnored
+            samplesFile.delete();
+            return;
+        }
+        final File tempFile = createTempFile(samplesFile);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(SAMPLES_MAGIC);
+            out.writeInt(samples.count);
+            for (int i = 0; i < samples.count; i++) {
+                out.writeDouble(samples.times[i]);
+                out.writeDouble(samples.values[i]);
+            }
+        }
+        finally {
+            IOUtils.closeQuietly(out);
+        }
+        replaceFile(tempFile, samplesFile);
+    }
+
+    /**
+     * Running statistics of the samples falling in each bin of a tile
+     */
+    static final class Bins {
+        final long[] counts = new long[BIN_COUNT];
+        final double[] meanTimes = new double[BIN_COUNT];
+        final double[] means = new double[BIN_COUNT];
+        final double[] squaredDeviations = new double[BIN_COUNT];
+
+        void add(final int bin, final double time, final double value) {
+            final long count = ++counts[bin];
+            meanTimes[bin] += (time - meanTimes[bin]) / count;
+            final double delta = value - means[bin];
+            means[bin] += delta / count;
+            squaredDeviations[bin] += delta * (value - means[bin]);
+        }
+
+        void merge(final int bin, final Bins other, final int otherBin) {
+            final long otherCount = other.counts[otherBin];
+            if (otherCount == 0) {
+                return;
+            }
+            final long count = counts[bin] + otherCount;
+            final double delta = other.means[otherBin] - means[bin];
+            final double otherWeight = (double)otherCount / count;
+            meanTimes[bin] += (other.meanTimes[otherBin] - meanTimes[bin]) * otherWeight;
+            means[bin] += delta * otherWeight;
+            squaredDeviations[bin] += other.squaredDeviations[otherBin] + delta * delta * counts[bin] * otherWeight;
+            counts[bin] = count;
+        }
+
+        boolean isEmpty() {
+            for (final long count : counts) {
+                if (count > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Merges the bins of a descendant tile <code>shift</code> levels below, the <code>index</code>th of the
+         * descendants at its level; each bin of this tile covers <code>2^shift</code> bins of the descendants.
+         */
+        void mergeChild(final Bins child, final long index, final int shift) {
+            for (int childBin = 0; childBin < BIN_COUNT; childBin++) {
+                merge((int)((index * BIN_COUNT + childBin) >> shift), child, childBin);
+            }
+        }
+    }
+
+    private static Bins bin(final Samples samples, final int level, final long offset) {
+        final Bins bins = new Bins();
+        final double start = DatastoreTile.offset_at_level_to_unixtime(offset, level);
+        final double end = start + DatastoreTile.level_to_duration(level);
+        final double binDuration = DatastoreTile.level_to_bin_secs(level);
+        for (int i = firstIndexAtOrAfter(samples, start); i < samples.count && samples.times[i] < end; i++) {
+            final int bin = (int)Math.floor((samples.times[i] - start) / binDuration);
+            bins.add(Math.max(0, Math.min(BIN_COUNT - 1, bin)), samples.times[i], samples.values[i]);
+        }
+        return bins;
+    }
+
+    private static Bins readBins(final File tileFile) throws IOException {
+        final Bins bins = new Bins();
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(tileFile)));
+        }
+        catch (FileNotFoundException e) {
+            return bins;
+        }
+        try {
+            if (in.readInt() != TILE_MAGIC) {
+                throw new IOException("Not a tile file [" + tileFile + "]");
+            }
+            final int binCount = in.readInt();
+            for (int i = 0; i < binCount; i++) {
+                final int bin = in.readShort();
+                bins.counts[bin] = in.readLong();
+                bins.meanTimes[bin] = in.readDouble();
+                bins.means[bin] = in.readDouble();
+                bins.squaredDeviations[bin] = in.readDouble();
+            }
+            return bins;
+        }
+        finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static void writeBins(final File tileFile, final Bins bins) throws IOException {
+        if (bins.isEmpty()) {
+            //noinspection ResultOfMethodCallIgnored
+            tileFile.delete();
+            return;
+        }
+        int binCount = 0;
+        for (final long count : bins.counts) {
+            if (count > 0) {
+                binCount++;
+            }
+        }
+        final File tempFile = createTempFile(tileFile);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(TILE_MAGIC);
+            out.writeInt(binCount);
+            for (int bin = 0; bin < BIN_COUNT; bin++) {
+                if (bins.counts[bin] > 0) {
+                    out.writeShort(bin);
+                    out.writeLong(bins.counts[bin]);
+                    out.writeDouble(bins.meanTimes[bin]);
+                    out.writeDouble(bins.means[bin]);
+                    out.writeDouble(bins.squaredDeviations[bin]);
+                }
+            }
+        }
+        finally {
+            IOUtils.closeQuietly(out);
+        }
+        replaceFile(tempFile, tileFile);
+    }
+
+    private static File createTempFile(final File file) throws IOException {
+        final File directory = file.getParentFile();
+        //noinspection ResultOfMethodCallIgnored
+        directory.mkdirs();
+        return File.createTempFile("tmp", ".part", directory);
+    }
+
+    private static void replaceFile(final File tempFile, final File file) throws IOException {
+        // renaming over an existing file is atomic on POSIX filesystems, but fails elsewhere
+        if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("Failed to replace [" + file + "]");
+        }
+    }
+
+    private static void sortByTime(final double[] times, final double[] values, final int count) {
+        boolean sorted = true;
+        for (int i = 1; i < count && sorted; i++) {
+            sorted = times[i - 1] <= times[i];
+        }
+        if (sorted) {
+            return;
+        }
+        final Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b) {
+                return Double.compare(times[a], times[b]);
+            }
+        });
+        final double[] sortedTimes = new double[count];
+        final double[] sortedValues = new double[count];
+        for (int i = 0; i < count; i++) {
+            sortedTimes[i] = times[order[i]];
+            sortedValues[i] = values[order[i]];
+        }
+        System.arraycopy(sortedTimes, 0, times, 0, count);
+        System.arraycopy(sortedValues, 0, values, 0, count);
+    }
+}
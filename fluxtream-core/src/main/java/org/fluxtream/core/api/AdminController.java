@@ -18,10 +18,15 @@ import org.fluxtream.core.connectors.Connector;
 import org.fluxtream.core.connectors.ObjectType;
 import org.fluxtream.core.connectors.updaters.*;
 import org.fluxtream.core.domain.*;
+import org.fluxtream.core.metrics.MetricsRegistry;
 import org.fluxtream.core.mvc.models.StatusModel;
 import org.fluxtream.core.services.*;
+import org.fluxtream.core.services.impl.AdaptiveConcurrencyLimit;
 import org.fluxtream.core.services.impl.ApiDataCleanupService;
+import org.fluxtream.core.services.impl.BodyTrackHelper;
+import org.fluxtream.core.services.impl.ConnectorConcurrencyLimiter;
 import org.fluxtream.core.services.impl.ExistingEmailException;
+import org.fluxtream.core.services.impl.FacetTagIndex;
 import org.fluxtream.core.services.impl.UsernameAlreadyTakenException;
 import org.fluxtream.core.utils.RequestUtils;
 import org.joda.time.format.ISODateTimeFormat;
@@ -85,6 +90,21 @@ public class AdminController {
     @Autowired
     ApiDataCleanupService apiDataCleanupService;
 
+    @Autowired
+    EventListenerService eventListenerService;
+
+    @Autowired
+    BodyTrackHelper bodyTrackHelper;
+
+    @Autowired
+    ConnectorConcurrencyLimiter connectorConcurrencyLimiter;
+
+    @Autowired
+    FacetTagIndex facetTagIndex;
+
+    @Autowired
+    SearchService searchService;
+
     public static final String SUBSCRIBE_TO_FITBIT_NOTIFICATIONS_CALL = "SUBSCRIBE_TO_FITBIT_NOTIFICATIONS_CALL";
 
     static {
@@ -129,6 +149,80 @@ public class AdminController {
         }
     }
 
+    @POST
+    @Secured({ "ROLE_ADMIN" })
+    @Path("/{username}/tagIndex/rebuild")
+    @Produces({ MediaType.APPLICATION_JSON })
+    public String rebuildTagIndex(@PathParam("username") String username) {
+        try {
+            final Guest guest = guestService.getGuest(username);
+            if (guest==null)
+                return gson.toJson(new StatusModel(false, "No such user: " + username));
+            int indexed = 0;
+            for (ApiKey apiKey : guestService.getApiKeys(guest.getId()))
+                indexed += facetTagIndex.rebuild(apiKey);
+            return gson.toJson(new StatusModel(true, "indexed the tags of " + indexed + " facets"));
+        } catch (Throwable t) {
+            StatusModel failure = new StatusModel(false, ExceptionUtils.getStackTrace(t));
+            return gson.toJson(failure);
+        }
+    }
+
+    @POST
+    @Secured({ "ROLE_ADMIN" })
+    @Path("/searchIndex/rebuild")
+    @Produces({ MediaType.APPLICATION_JSON })
+    public String rebuildSearchIndexes() {
+        if (!searchService.isEnabled())
+            return gson.toJson(new StatusModel(false, "Search is not enabled"));
+        final List<Guest> guests = guestService.getAllGuests();
+        for (Guest guest : guests)
+            searchService.scheduleRebuild(guest.getId());
+        return gson.toJson(new StatusModel(true, "rebuilding the search indexes of " + guests.size() + " users"));
+    }
+
+    @GET
+    @Secured({ "ROLE_ADMIN" })
+    @Path("/erasures")
+    @Produces({ MediaType.APPLICATION_JSON })
+    public String getErasures() {
+        return gson.toJson(apiDataCleanupService.getErasures());
+    }
+
+    @POST
+    @Secured({ "ROLE_ADMIN" })
+    @Path("/erasures/resume")
+    @Produces({ MediaType.APPLICATION_JSON })
+    public String resumeErasures() {
+        final int scheduled = apiDataCleanupService.resumeErasures();
+        return gson.toJson(new StatusModel(true, "resumed the erasure of " + scheduled + " connectors"));
+    }
+
+    @GET
+    @Secured({ "ROLE_ADMIN" })
+    @Path("/eventListeners")
+    @Produces({ MediaType.APPLICATION_JSON })
+    public String getEventListenerStats() {
+        return gson.toJson(eventListenerService.getListenerStats());
+    }
+
+    @GET
+    @Secured({ "ROLE_ADMIN" })
+    @Path("/datastoreWorkers")
+    @Produces({ MediaType.APPLICATION_JSON })
+    public String getDatastoreWorkerStats() {
+        return gson.toJson(bodyTrackHelper.getDatastoreWorkerStats());
+    }
+
+    @GET
+    @Secured({ "ROLE_ADMIN" })
+    @Path("/metrics")
+    @Produces({ MediaType.TEXT_PLAIN })
+    public Response getMetrics() {
+        // Prometheus text exposition format
+        return Response.ok(MetricsRegistry.getDefault().scrape(), "text/plain; version=0.0.4; charset=utf-8").build();
+    }
+
     @POST
     @Secured({ "ROLE_ADMIN" })
     @Path("/timebounds/fixup")
@@ -278,6 +372,29 @@ public class AdminController {
         return jsonArray.toString();
     }
 
+    @GET
+    @Path("/updateQueue/concurrency")
+    @Secured({ "ROLE_ADMIN" })
+    @Produces({MediaType.APPLICATION_JSON})
+    public String getConnectorConcurrencyLimits() {
+        JSONObject result = new JSONObject();
+        result.put("enabled", connectorConcurrencyLimiter.isEnabled());
+        JSONArray connectors = new JSONArray();
+        for (Map.Entry<String, AdaptiveConcurrencyLimit> entry : connectorConcurrencyLimiter.getLimits().entrySet()) {
+            final AdaptiveConcurrencyLimit limit = entry.getValue();
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put("connectorName", entry.getKey());
+            jsonObject.put("limit", limit.getLimit());
+            jsonObject.put("inFlight", limit.getInFlight());
+            jsonObject.put("averageLatency", limit.getAverageLatency());
+            jsonObject.put("completed", limit.getCompleted());
+            jsonObject.put("throttled", limit.getThrottled());
+            connectors.add(jsonObject);
+        }
+        result.put("connectors", connectors);
+        return result.toString();
+    }
+
     @GET
     @Path("/{username}/{connectorName}/apiKeys")
     @Secured({ "ROLE_ADMIN" })
@@ -10,6 +10,7 @@ import com.sun.jersey.multipart.MultiPart;
 import com.wordnik.swagger.annotations.*;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
+import org.bodytrack.datastore.ColumnarDataReader;
 import org.fluxtream.core.Configuration;
 import org.fluxtream.core.SimpleTimeInterval;
 import org.fluxtream.core.TimeInterval;
@@ -32,6 +33,7 @@ import org.fluxtream.core.services.*;
 import org.fluxtream.core.services.impl.BodyTrackHelper;
 import org.fluxtream.core.utils.ConnectorUtils;
 import org.fluxtream.core.utils.HashUtils;
+import org.fluxtream.core.utils.RequestUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.joda.time.DateTime;
@@ -43,13 +45,18 @@ import org.springframework.context.annotation.Scope;
 import org.springframework.security.access.annotation.Secured;
 import org.springframework.stereotype.Component;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 @Path("/v1/bodytrack")
 @Component("RESTBodytrackController")
@@ -110,6 +117,7 @@ public class BodyTrackController {
                           @ApiParam(value="Start time (epoch seconds)", required=true) @PathParam("start") Long start,
                           @ApiParam(value="End time (epoch seconds)", required=true) @PathParam("end") Long end,
                           @ApiParam(value="User ID (must be ID of loggedIn user)", required=true) @PathParam("UID") Long uid,
+                          @Context HttpServletRequest request,
                           @Context HttpServletResponse response){
         try{
             long loggedInUserId = AuthHelper.getGuestId();
@@ -128,7 +136,18 @@ public class BodyTrackController {
 
             String[] channelArray = gson.fromJson(channels,String[].class);
 
-            bodyTrackHelper.exportToCSV(uid,Arrays.asList(channelArray),start,end,response.getOutputStream());
+            // the export is streamed as it comes out of the datastore: without a Content-Length, the
+            // container falls back to chunked transfer encoding
+            OutputStream out = response.getOutputStream();
+            GZIPOutputStream gzipOut = null;
+            if (RequestUtils.acceptsGzip(request)) {
+                response.setHeader("Content-Encoding", "gzip");
+                response.setHeader("Vary", "Accept-Encoding");
+                out = gzipOut = new GZIPOutputStream(out, 8192);
+            }
+            bodyTrackHelper.exportToCSV(uid,Arrays.asList(channelArray),start,end,out);
+            if (gzipOut!=null)
+                gzipOut.finish();
             response.flushBuffer();
 
         }
@@ -151,8 +170,9 @@ public class BodyTrackController {
     public void exportCSVStartOnly(@ApiParam(value="Channels", required=true) @QueryParam("channels") String channels,
                                    @ApiParam(value="Start time (epoch seconds)", required=true) @PathParam("start") Long start,
                                    @ApiParam(value="User ID (must be ID of loggedIn user)", required=true) @PathParam("UID") Long uid,
+                                   @Context HttpServletRequest request,
                                    @Context HttpServletResponse response){
-        exportCSV(channels,start,null,uid,response);
+        exportCSV(channels,start,null,uid,request,response);
     }
 
     @GET
@@ -164,8 +184,9 @@ public class BodyTrackController {
     public void exportCSVEndOnly(@ApiParam(value="Channels", required=true) @QueryParam("channels") String channels,
                                  @ApiParam(value="End time (epoch seconds)", required=true) @PathParam("end") Long end,
                                  @ApiParam(value="User ID (must be ID of loggedIn user)", required=true) @PathParam("UID") Long uid,
+                                 @Context HttpServletRequest request,
                                  @Context HttpServletResponse response){
-        exportCSV(channels,null,end,uid,response);
+        exportCSV(channels,null,end,uid,request,response);
     }
 
     @GET
@@ -176,8 +197,9 @@ public class BodyTrackController {
     })
     public void exportCSVNoParams(@ApiParam(value="Channels", required=true) @QueryParam("channels") String channels,
                                   @ApiParam(value="User ID (must be ID of loggedIn user)", required=true) @PathParam("UID") Long uid,
+                                  @Context HttpServletRequest request,
                                   @Context HttpServletResponse response){
-        exportCSV(channels,null,null,uid,response);
+        exportCSV(channels,null,null,uid,request,response);
     }
 
 
@@ -327,6 +349,40 @@ public class BodyTrackController {
         return response;
     }
 
+    @POST
+    @Path("/bupload")
+    @ApiOperation(value = "Upload data in the binary columnar format (see ColumnarDataReader) for the current logged in user", response = BodyTrackUploadResponse.class)
+    @Consumes({ColumnarDataReader.MEDIA_TYPE, MediaType.APPLICATION_OCTET_STREAM})
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response uploadColumnarToBodytrack(@ApiParam(value="The device to upload the data for", required=true) @QueryParam("dev_nickname") String deviceNickname,
+                                              @ApiParam(value="The data to upload", required=true) InputStream body){
+        Response response;
+        try{
+            final ColumnarDataReader reader = new ColumnarDataReader(new BufferedInputStream(body));
+            final List<String> channelNames = reader.getChannelNames();
+            String illegalName = checkDeviceAndChannelNamesAreAlphanumericAndUnderscore(deviceNickname, channelNames);
+            if (illegalName!=null) {
+                return Response.status(Response.Status.BAD_REQUEST).entity(String.format("Illegal device nickname or channel name: %s; only alphanumeric and underscore are allowed", illegalName)).build();
+            }
+            long guestId = AuthHelper.getGuestId();
+            ApiKey fluxtreamCaptureApiKey = ensureFluxtreamCaptureApiKey(guestId);
+            final BodyTrackHelper.BodyTrackUploadResult uploadResult = bodyTrackHelper.uploadColumnarToBodyTrack(fluxtreamCaptureApiKey, deviceNickname, reader);
+            if (uploadResult instanceof BodyTrackHelper.ParsedBodyTrackUploadResult){
+                BodyTrackHelper.ParsedBodyTrackUploadResult parsedResult = (BodyTrackHelper.ParsedBodyTrackUploadResult) uploadResult;
+                bodytrackStorageService.ensureDataChannelMappingsExist(fluxtreamCaptureApiKey, channelNames, deviceNickname);
+                dataUpdateService.logBodyTrackDataUpdate(guestId,fluxtreamCaptureApiKey.getId(),null,parsedResult);
+            }
+            response = createResponseFromBodyTrackUploadResult(uploadResult);
+        }
+        catch (ColumnarDataReader.InvalidDataException e){
+            response = Response.status(Response.Status.BAD_REQUEST).entity("Invalid data: " + e.getMessage()).build();
+        }
+        catch (Exception e){
+            response = Response.serverError().entity("Upload failed!").build();
+        }
+        return response;
+    }
+
     private Response createResponseFromBodyTrackUploadResult(final BodyTrackHelper.BodyTrackUploadResult uploadResult) {
 
         // check the uploadResult for success, and create a new Response accordingly
@@ -580,7 +636,9 @@ public class BodyTrackController {
 
             EntityTag etag;
             try {
-                etag = new EntityTag(HashUtils.computeMd5Hash(photo.getPhotoBytes()));
+                // use the precomputed hash when there is one, so that conditional requests don't read the photo
+                final String hash = photo.getHash();
+                etag = new EntityTag(hash != null ? hash : HashUtils.computeMd5Hash(photo.getPhotoBytes()));
 
                 final Response.ResponseBuilder responseBuilder = request.evaluatePreconditions(etag);
                 if (responseBuilder != null) {
@@ -1107,9 +1165,8 @@ public class BodyTrackController {
             @NotNull
             public Response executeOperation(@NotNull final AbstractFacet facet) {
                 FluxtreamCapturePhotoFacet photoFacet = (FluxtreamCapturePhotoFacet) facet;
-                final String photoStoreKey = FluxtreamCapturePhoto.createPhotoStoreKey(photoFacet.guestId, photoFacet.getCaptureYYYYDDD(), photoFacet.start, photoFacet.getHash());
                 try {
-                    fluxtreamCapturePhotoStore.deletePhoto(photoStoreKey);
+                    fluxtreamCapturePhotoStore.deletePhoto(photoFacet);
                     facetDao.delete(facet);
                 } catch (FluxtreamCapturePhotoStore.StorageException e) {
                     return Response.serverError().build();
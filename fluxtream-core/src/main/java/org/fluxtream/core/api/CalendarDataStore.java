@@ -25,8 +25,11 @@ import org.fluxtream.core.domain.metadata.City;
 import org.fluxtream.core.domain.metadata.VisitedCity;
 import org.fluxtream.core.domain.metadata.WeatherInfo;
 import org.fluxtream.core.metadata.*;
+import org.fluxtream.core.metrics.Histogram;
+import org.fluxtream.core.metrics.MetricsRegistry;
 import org.fluxtream.core.mvc.models.*;
 import org.fluxtream.core.services.*;
+import org.fluxtream.core.services.impl.DigestCache;
 import org.fluxtream.core.utils.TimeUtils;
 import org.fluxtream.core.utils.Utils;
 import org.joda.time.DateTime;
@@ -34,7 +37,11 @@ import org.joda.time.DateTimeConstants;
 import org.joda.time.DateTimeZone;
 import org.joda.time.format.ISODateTimeFormat;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Scope;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Nullable;
@@ -43,6 +50,9 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 @Path("/v1/calendar")
 @Api(value = "/calendar", description = "Main devices and service API facets consumption operations")
@@ -52,6 +62,9 @@ public class CalendarDataStore {
 
     FlxLogger logger = FlxLogger.getLogger(CalendarDataStore.class);
 
+    private static final Histogram FACET_COLLECTION_DURATION = MetricsRegistry.getDefault().histogram("flx_calendar_facet_collection_duration_ms",
+            "Time spent collecting the facets of a connector object type for the calendar, in milliseconds", "connector");
+
 	@Autowired
 	GuestService guestService;
 
@@ -73,6 +86,13 @@ public class CalendarDataStore {
     @Autowired
     Configuration env;
 
+    @Autowired
+    @Qualifier("CalendarWorker")
+    ThreadPoolTaskExecutor calendarWorker;
+
+    @Autowired
+    DigestCache digestCache;
+
 	Gson gson = new Gson();
 
     @GET
@@ -308,7 +328,7 @@ public class CalendarDataStore {
 
             Map<Long,Object> connectorSettings = new HashMap<Long,Object>();
 
-            setCachedData(digest, allApiKeys, settings, connectorSettings, apiKeySelection, weekMetadata, locationDataOnly, guestId, updatedSince);
+            final String connectorTimes = setCachedData(digest, allApiKeys, settings, connectorSettings, apiKeySelection, weekMetadata, locationDataOnly, guestId, updatedSince);
 
             setNotifications(digest, AuthHelper.getGuestId());
             setCurrentAddress(digest, guestId, weekMetadata.start);
@@ -318,6 +338,7 @@ public class CalendarDataStore {
                     .append(" year=").append(year)
                     .append(" week=").append(week)
                     .append(" timeTaken=").append(System.currentTimeMillis()-then)
+                    .append(" connectorTimes=").append(connectorTimes)
                     .append(" guestId=").append(guestId);
             logger.info(sb.toString());
 
@@ -399,7 +420,7 @@ public class CalendarDataStore {
             GuestSettings settings = settingsService.getSettings(AuthHelper.getGuestId());
 
             Map<Long,Object> connectorSettings = new HashMap<Long,Object>();
-            setCachedData(digest, allApiKeys, settings, connectorSettings, apiKeySelection, monthMetadata, locationDataOnly, guestId, updatedSince);
+            final String connectorTimes = setCachedData(digest, allApiKeys, settings, connectorSettings, apiKeySelection, monthMetadata, locationDataOnly, guestId, updatedSince);
 
             setNotifications(digest, AuthHelper.getGuestId());
             setCurrentAddress(digest, guestId, monthMetadata.start);
@@ -409,6 +430,7 @@ public class CalendarDataStore {
                     .append(" year=").append(year)
                     .append(" month=").append(month)
                     .append(" timeTaken=").append(System.currentTimeMillis()-then)
+                    .append(" connectorTimes=").append(connectorTimes)
                     .append(" guestId=").append(guestId);
             logger.info(sb.toString());
 
@@ -555,7 +577,7 @@ public class CalendarDataStore {
         GuestSettings settings = settingsService.getSettings(AuthHelper.getGuestId());
 
         Map<Long,Object> connectorSettings = new HashMap<Long,Object>();
-        setCachedData(digest, allApiKeys, settings, connectorSettings, apiKeySelection, dayMetadata, locationDataOnly, guestId, updatedSince);
+        final String connectorTimes = setCachedData(digest, allApiKeys, settings, connectorSettings, apiKeySelection, dayMetadata, locationDataOnly, guestId, updatedSince);
 
         setNotifications(digest, AuthHelper.getGuestId());
         setCurrentAddress(digest, guestId, dayMetadata.start);
@@ -564,6 +586,7 @@ public class CalendarDataStore {
         StringBuilder sb = new StringBuilder("module=API component=calendarDataStore action=getAllConnectorsDayData")
                 .append(" date=").append(date)
                 .append(" timeTaken=").append(System.currentTimeMillis()-then)
+                .append(" connectorTimes=").append(connectorTimes)
                 .append(" guestId=").append(guestId);
         logger.info(sb.toString());
 
@@ -992,18 +1015,19 @@ public class CalendarDataStore {
 	}
 
 	@SuppressWarnings("rawtypes")
-	private void setCachedData(DigestModel digest,
-                               List<ApiKey> userKeys,
-                               GuestSettings settings,
-                               final Map<Long, Object> connectorSettings,
-                               List<ApiKey> apiKeySelection,
-                               AbstractTimespanMetadata timespanMetadata,
-                               boolean locationDataOnly,
-                               long guestId,
-                               @Nullable String updatedSince)
+	private String setCachedData(DigestModel digest,
+                                 List<ApiKey> userKeys,
+                                 final GuestSettings settings,
+                                 final Map<Long, Object> connectorSettings,
+                                 List<ApiKey> apiKeySelection,
+                                 final AbstractTimespanMetadata timespanMetadata,
+                                 boolean locationDataOnly,
+                                 final long guestId,
+                                 @Nullable String updatedSince)
             throws InstantiationException, IllegalAccessException, ClassNotFoundException, OutsideTimeBoundariesException, UpdateFailedException
     {
-        Long updatedSinceMillis = updatedSince == null ? null : ISODateTimeFormat.dateTime().parseMillis(updatedSince);
+        final Long updatedSinceMillis = updatedSince == null ? null : ISODateTimeFormat.dateTime().parseMillis(updatedSince);
+        final List<FacetCollectionTask> tasks = new ArrayList<FacetCollectionTask>();
 		for (ApiKey apiKey : userKeys) {
 			Connector connector = apiKey.getConnector();
             final Object apiKeySettings = settingsService.getConnectorSettings(apiKey.getId());
@@ -1023,20 +1047,106 @@ public class CalendarDataStore {
                             continue;
                         }
                     }
-                    Collection<AbstractFacetVO<AbstractFacet>> facetCollection = getFacetCollection(timespanMetadata, settings, connector, objectType, guestId, updatedSinceMillis);
-                    setFilterInfo(digest, apiKeySelection, apiKey,
-                                  connector, objectType, facetCollection);
+                    tasks.add(new FacetCollectionTask(apiKey, objectType));
                 }
             }
             else {
-                Collection<AbstractFacetVO<AbstractFacet>> facetCollection = getFacetCollection(timespanMetadata, settings,
-                                                                                         connector, null, guestId, updatedSinceMillis);
-                setFilterInfo(digest, apiKeySelection, apiKey,
-                              connector, null, facetCollection);
+                tasks.add(new FacetCollectionTask(apiKey, null));
             }
 		}
+
+        // fetch every (apiKey, objectType) facet collection concurrently; the workers need the caller's security
+        // context for the buddy access checks, unless the executor is saturated and makes us run the task ourselves
+        final SecurityContext securityContext = SecurityContextHolder.getContext();
+        // buddies and incremental (updatedSince) requests get a filtered view of the data that we don't cache
+        final boolean cacheable = updatedSinceMillis==null && guestId==AuthHelper.getGuestId();
+        final String period = new StringBuilder(timespanMetadata.getTimeInterval().getTimeUnit().toString())
+                .append("/").append(timespanMetadata.start).append("/").append(timespanMetadata.end).toString();
+        final String units = new StringBuilder().append(settings.temperatureUnit).append("/").append(settings.weightMeasureUnit)
+                .append("/").append(settings.lengthMeasureUnit).append("/").append(settings.distanceMeasureUnit).toString();
+        final Thread requestThread = Thread.currentThread();
+        final List<Future<Collection<AbstractFacetVO<AbstractFacet>>>> futures = new ArrayList<Future<Collection<AbstractFacetVO<AbstractFacet>>>>(tasks.size());
+        for (final FacetCollectionTask task : tasks) {
+            futures.add(calendarWorker.submit(new Callable<Collection<AbstractFacetVO<AbstractFacet>>>() {
+                @Override
+                public Collection<AbstractFacetVO<AbstractFacet>> call() throws Exception {
+                    final boolean pooledThread = Thread.currentThread()!=requestThread;
+                    if (pooledThread)
+                        SecurityContextHolder.setContext(securityContext);
+                    final long then = System.currentTimeMillis();
+                    try {
+                        final int api = task.apiKey.getConnector().value();
+                        final String objectTypeName = task.objectType!=null ? task.objectType.getName() : null;
+                        Collection<AbstractFacetVO<AbstractFacet>> facetCollection = cacheable
+                                ? digestCache.get(guestId, period, api, objectTypeName, units)
+                                : null;
+                        if (facetCollection==null) {
+                            final long generation = digestCache.getGeneration(guestId);
+                            facetCollection = getFacetCollection(timespanMetadata, settings, task.apiKey.getConnector(),
+                                                                 task.objectType, guestId, updatedSinceMillis);
+                            if (cacheable)
+                                digestCache.put(guestId, period, api, objectTypeName, units, timespanMetadata.start,
+                                                timespanMetadata.end, facetCollection, generation);
+                        }
+                        return facetCollection;
+                    }
+                    finally {
+                        task.timeTaken = System.currentTimeMillis()-then;
+                        if (pooledThread)
+                            SecurityContextHolder.clearContext();
+                    }
+                }
+            }));
+        }
+
+        // merge in submission order so that the digest doesn't depend on which task finished first
+        final Map<String,Long> connectorTimes = new TreeMap<String,Long>();
+        for (int i=0; i<tasks.size(); i++) {
+            final FacetCollectionTask task = tasks.get(i);
+            Collection<AbstractFacetVO<AbstractFacet>> facetCollection;
+            try {
+                facetCollection = futures.get(i).get();
+            }
+            catch (InterruptedException e) {
+                for (Future<Collection<AbstractFacetVO<AbstractFacet>>> future : futures)
+                    future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while collecting facets for guest " + guestId);
+            }
+            catch (ExecutionException e) {
+                logger.warn("module=API component=calendarDataStore action=setCachedData guestId=" + guestId +
+                            " connector=" + task.apiKey.getConnector().getName() +
+                            " stackTrace=<![CDATA[" + Utils.stackTrace(e.getCause()) + "]]>");
+                facetCollection = new ArrayList<AbstractFacetVO<AbstractFacet>>();
+            }
+            setFilterInfo(digest, apiKeySelection, task.apiKey,
+                          task.apiKey.getConnector(), task.objectType, facetCollection);
+            final String connectorName = task.apiKey.getConnector().getName();
+            FACET_COLLECTION_DURATION.labels(connectorName).observe(task.timeTaken);
+            final Long connectorTime = connectorTimes.get(connectorName);
+            connectorTimes.put(connectorName, connectorTime==null ? task.timeTaken : connectorTime + task.timeTaken);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> connectorTime : connectorTimes.entrySet()) {
+            if (sb.length()>0) sb.append(",");
+            sb.append(connectorTime.getKey()).append(":").append(connectorTime.getValue());
+        }
+        return sb.toString();
 	}
 
+    private static class FacetCollectionTask {
+        final ApiKey apiKey;
+        final ObjectType objectType;
+        // written by the worker, read after Future.get()
+        long timeTaken;
+
+        FacetCollectionTask(ApiKey apiKey, ObjectType objectType) {
+            this.apiKey = apiKey;
+            this.objectType = objectType;
+        }
+    }
+
     private String firstDate(final AbstractTimespanMetadata timespanMetadata) {
         return(timespanMetadata.getDateList().get(0));
     }
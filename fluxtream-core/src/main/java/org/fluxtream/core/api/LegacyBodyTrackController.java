@@ -32,6 +32,7 @@ import org.fluxtream.core.services.*;
 import org.fluxtream.core.services.impl.BodyTrackHelper;
 import org.fluxtream.core.utils.ConnectorUtils;
 import org.fluxtream.core.utils.HashUtils;
+import org.fluxtream.core.utils.RequestUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.joda.time.DateTime;
@@ -43,13 +44,16 @@ import org.springframework.context.annotation.Scope;
 import org.springframework.security.access.annotation.Secured;
 import org.springframework.stereotype.Component;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
+import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 @Path("/bodytrack")
 @Component("RESTLegacyBodytrackController")
@@ -106,6 +110,7 @@ public class LegacyBodyTrackController {
                           @ApiParam(value="Start time (epoch seconds)", required=true) @PathParam("start") Long start,
                           @ApiParam(value="End time (epoch seconds)", required=true) @PathParam("end") Long end,
                           @ApiParam(value="User ID (must be ID of loggedIn user)", required=true) @PathParam("UID") Long uid,
+                          @Context HttpServletRequest request,
                           @Context HttpServletResponse response){
         try{
             long loggedInUserId = AuthHelper.getGuestId();
@@ -124,7 +129,18 @@ public class LegacyBodyTrackController {
 
             String[] channelArray = gson.fromJson(channels,String[].class);
 
-            bodyTrackHelper.exportToCSV(uid,Arrays.asList(channelArray),start,end,response.getOutputStream());
+            // the export is streamed as it comes out of the datastore: without a Content-Length, the
+            // container falls back to chunked transfer encoding
+            OutputStream out = response.getOutputStream();
+            GZIPOutputStream gzipOut = null;
+            if (RequestUtils.acceptsGzip(request)) {
+                response.setHeader("Content-Encoding", "gzip");
+                response.setHeader("Vary", "Accept-Encoding");
+                out = gzipOut = new GZIPOutputStream(out, 8192);
+            }
+            bodyTrackHelper.exportToCSV(uid,Arrays.asList(channelArray),start,end,out);
+            if (gzipOut!=null)
+                gzipOut.finish();
             response.flushBuffer();
 
         }
@@ -145,8 +161,9 @@ public class LegacyBodyTrackController {
     public void exportCSVStartOnly(@ApiParam(value="Channels", required=true) @QueryParam("channels") String channels,
                                    @ApiParam(value="Start time (epoch seconds)", required=true) @PathParam("start") Long start,
                                    @ApiParam(value="User ID (must be ID of loggedIn user)", required=true) @PathParam("UID") Long uid,
+                                   @Context HttpServletRequest request,
                                    @Context HttpServletResponse response){
-        exportCSV(channels,start,null,uid,response);
+        exportCSV(channels,start,null,uid,request,response);
     }
 
     @GET
@@ -156,8 +173,9 @@ public class LegacyBodyTrackController {
     public void exportCSVEndOnly(@ApiParam(value="Channels", required=true) @QueryParam("channels") String channels,
                                  @ApiParam(value="End time (epoch seconds)", required=true) @PathParam("end") Long end,
                                  @ApiParam(value="User ID (must be ID of loggedIn user)", required=true) @PathParam("UID") Long uid,
+                                 @Context HttpServletRequest request,
                                  @Context HttpServletResponse response){
-        exportCSV(channels,null,end,uid,response);
+        exportCSV(channels,null,end,uid,request,response);
     }
 
     @GET
@@ -166,8 +184,9 @@ public class LegacyBodyTrackController {
     @Deprecated
     public void exportCSVNoParams(@ApiParam(value="Channels", required=true) @QueryParam("channels") String channels,
                                   @ApiParam(value="User ID (must be ID of loggedIn user)", required=true) @PathParam("UID") Long uid,
+                                  @Context HttpServletRequest request,
                                   @Context HttpServletResponse response){
-        exportCSV(channels,null,null,uid,response);
+        exportCSV(channels,null,null,uid,request,response);
     }
 
 
@@ -563,7 +582,9 @@ public class LegacyBodyTrackController {
 
             EntityTag etag;
             try {
-                etag = new EntityTag(HashUtils.computeMd5Hash(photo.getPhotoBytes()));
+                // use the precomputed hash when there is one, so that conditional requests don't read the photo
+                final String hash = photo.getHash();
+                etag = new EntityTag(hash != null ? hash : HashUtils.computeMd5Hash(photo.getPhotoBytes()));
 
                 final Response.ResponseBuilder responseBuilder = request.evaluatePreconditions(etag);
                 if (responseBuilder != null) {
@@ -0,0 +1,123 @@
+package org.fluxtream.core.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import com.wordnik.swagger.annotations.*;
+import org.apache.commons.lang.StringUtils;
+import org.codehaus.jackson.annotate.JsonAutoDetect;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+import org.fluxtream.core.aspects.FlxLogger;
+import org.fluxtream.core.auth.AuthHelper;
+import org.fluxtream.core.connectors.Connector;
+import org.fluxtream.core.connectors.ObjectType;
+import org.fluxtream.core.connectors.vos.AbstractFacetVO;
+import org.fluxtream.core.domain.AbstractFacet;
+import org.fluxtream.core.domain.Tag;
+import org.fluxtream.core.domain.TagFilter;
+import org.fluxtream.core.mvc.models.SearchResultsModel;
+import org.fluxtream.core.services.ApiDataService;
+import org.fluxtream.core.services.SearchService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Full-text search over the facets of the logged in guest
+ */
+@Path("/v1/search")
+@Component("RESTSearchController")
+@Api(value = "/search", description = "Full-text search over the facets of all connectors")
+@Scope("request")
+public class SearchController {
+
+    private static final FlxLogger logger = FlxLogger.getLogger(SearchController.class);
+
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    private static final int MAX_PAGE_SIZE = 100;
+
+    @Autowired
+    SearchService searchService;
+
+    @Autowired
+    ApiDataService apiDataService;
+
+    @GET
+    @Produces({MediaType.APPLICATION_JSON})
+    @ApiOperation(value = "Search the facets of the logged in user", response = SearchResultsModel.class)
+    @ApiResponses({
+            @ApiResponse(code=400, message = "The query or cursor is invalid"),
+            @ApiResponse(code=503, message = "Search is not enabled on this server")
+    })
+    public Response search(@ApiParam(value="Search terms (Lucene query syntax is supported)", required=true) @QueryParam("q") String query,
+                           @ApiParam(value="Only return facets ending after this time (epoch milliseconds)") @QueryParam("start") @DefaultValue("0") long start,
+                           @ApiParam(value="Only return facets starting before this time (epoch milliseconds)") @QueryParam("end") @DefaultValue("0") long end,
+                           @ApiParam(value="Comma-separated names of the connectors to search") @QueryParam("connectors") String connectorNames,
+                           @ApiParam(value="Comma-separated tags to filter the facets by") @QueryParam("tags") String tags,
+                           @ApiParam(value="Tag matching strategy (all, any, none or untagged)") @QueryParam("tag-match") String tagMatchingStrategyName,
+                           @ApiParam(value="Cursor returned with the previous page") @QueryParam("cursor") String cursor,
+                           @ApiParam(value="Number of hits per page (at most " + MAX_PAGE_SIZE + ")") @QueryParam("limit") @DefaultValue("20") int limit)
+            throws IOException {
+        if (!searchService.isEnabled())
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity("Search is not enabled").build();
+        if (StringUtils.isBlank(query))
+            return Response.status(Response.Status.BAD_REQUEST).entity("Missing query").build();
+        final long guestId = AuthHelper.getGuestId();
+        List<Connector> connectors = null;
+        if (StringUtils.isNotBlank(connectorNames)) {
+            connectors = new ArrayList<Connector>();
+            for (String connectorName : StringUtils.split(connectorNames, ",")) {
+                final Connector connector = Connector.getConnector(connectorName.trim());
+                if (connector==null)
+                    return Response.status(Response.Status.BAD_REQUEST).entity("Unknown connector: " + connectorName).build();
+                connectors.add(connector);
+            }
+        }
+        final TagFilter tagFilter = TagFilter.create(Tag.parseTagsIntoStrings(tags, Tag.COMMA_DELIMITER),
+                                                     TagFilter.FilteringStrategy.findByName(tagMatchingStrategyName));
+        final int pageSize = limit>0 ? Math.min(limit, MAX_PAGE_SIZE) : DEFAULT_PAGE_SIZE;
+        final long then = System.currentTimeMillis();
+        final SearchService.SearchResults results;
+        try {
+            results = searchService.search(guestId, query, start, end, connectors, tagFilter, cursor, pageSize);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+        }
+
+        final SearchResultsModel model = new SearchResultsModel();
+        model.totalHits = results.totalHits;
+        model.cursor = results.cursor;
+        for (SearchService.SearchHit hit : results.hits) {
+            // the facet may have been deleted since it was indexed
+            final AbstractFacetVO<AbstractFacet> facet = apiDataService.getFacet(hit.api, hit.objectType, hit.facetId);
+            if (facet==null)
+                continue;
+            final Connector connector = Connector.fromValue(hit.api);
+            final ObjectType objectType = ObjectType.getObjectType(connector, hit.objectType);
+            final String type = objectType!=null ? connector.getName() + "-" + objectType.getName() : connector.getName();
+            model.hits.add(new SearchResultsModel.SearchHitModel(type, hit.score, facet));
+        }
+
+        StringBuilder sb = new StringBuilder("module=API component=searchController action=search")
+                .append(" guestId=").append(guestId)
+                .append(" totalHits=").append(results.totalHits)
+                .append(" timeTaken=").append(System.currentTimeMillis()-then);
+        logger.info(sb.toString());
+
+        return Response.ok(toJacksonJson(model)).build();
+    }
+
+    private String toJacksonJson(final SearchResultsModel model) throws IOException {
+        final ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.setSerializationInclusion(JsonSerialize.Inclusion.NON_NULL);
+        objectMapper.setVisibilityChecker(
+                objectMapper.getSerializationConfig().getDefaultVisibilityChecker().
+                        withFieldVisibility(JsonAutoDetect.Visibility.NON_PRIVATE));
+        return objectMapper.writeValueAsString(model);
+    }
+}
@@ -51,6 +51,10 @@ public class FlxLogger {
         logger.warn(message);
     }
 
+    public void warn(final String message, final Exception e) {
+        logger.warn(message, e);
+    }
+
     public boolean isInfoEnabled() {
         return logger.isInfoEnabled();
     }
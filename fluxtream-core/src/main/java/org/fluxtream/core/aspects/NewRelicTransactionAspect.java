@@ -1,6 +1,8 @@
 package org.fluxtream.core.aspects;
 
 import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -10,6 +12,9 @@ import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.reflect.MethodSignature;
+import org.fluxtream.core.metrics.Counter;
+import org.fluxtream.core.metrics.Histogram;
+import org.fluxtream.core.metrics.MetricsRegistry;
 
 /**
  * User: candide
@@ -21,6 +26,14 @@ public class NewRelicTransactionAspect {
 
     FlxLogger logger = FlxLogger.getLogger(NewRelicTransactionAspect.class);
 
+    private static final Histogram REQUEST_DURATION = MetricsRegistry.getDefault().histogram("flx_rest_request_duration_ms",
+            "Time spent serving REST calls, in milliseconds", "method", "path");
+    private static final Counter REQUEST_ERRORS = MetricsRegistry.getDefault().counter("flx_rest_request_errors_total",
+            "REST calls that threw an exception", "method", "path");
+
+    // the transaction name ("METHOD /class/path/method/path") and path of the resource methods, computed once per method
+    private final Map<Method, String[]> transactionNames = new ConcurrentHashMap<Method, String[]>();
+
     @Around("@annotation(get)")
     public Object logGETRESTCall(ProceedingJoinPoint pjp, final GET get) throws Throwable {
         return logRESTCall(pjp, "GET");
@@ -38,30 +51,44 @@ public class NewRelicTransactionAspect {
 
     private Object logRESTCall(ProceedingJoinPoint pjp, String httpMethod) throws Throwable {
         Object obj;
-        logArguments(pjp, httpMethod);
+        final String path = logArguments(pjp, httpMethod);
+        final long then = System.currentTimeMillis();
         try {
             obj = pjp.proceed();
         } catch (Exception e) {
             NewRelic.noticeError(e);
+            REQUEST_ERRORS.labels(httpMethod, path).inc();
             throw e;
+        } finally {
+            REQUEST_DURATION.labels(httpMethod, path).observeSince(then);
         }
         return obj;
     }
 
-    private void logArguments(ProceedingJoinPoint pjp, String httpMethod) {
+    /**
+     * Names the New Relic transaction after the resource method and returns its path
+     */
+    private String logArguments(ProceedingJoinPoint pjp, String httpMethod) {
         try {
-            StringBuilder sb = new StringBuilder(httpMethod).append(" ");
-            final Path classPathAnnotation = pjp.getTarget().getClass().getAnnotation(Path.class);
-            if (classPathAnnotation!=null)
-                sb.append(classPathAnnotation.value());
             MethodSignature signature = (MethodSignature) pjp.getSignature();
             Method method = signature.getMethod();
-            final Path methodPathAnnotation = method.getAnnotation(Path.class);
-            if (methodPathAnnotation!=null)
-                sb.append(methodPathAnnotation.value());
-            NewRelic.setTransactionName(null, sb.toString());
+            String[] transactionName = transactionNames.get(method);
+            if (transactionName==null) {
+                StringBuilder sb = new StringBuilder();
+                final Path classPathAnnotation = pjp.getTarget().getClass().getAnnotation(Path.class);
+                if (classPathAnnotation!=null)
+                    sb.append(classPathAnnotation.value());
+                final Path methodPathAnnotation = method.getAnnotation(Path.class);
+                if (methodPathAnnotation!=null)
+                    sb.append(methodPathAnnotation.value());
+                transactionName = new String[]{httpMethod + " " + sb, sb.toString()};
+                transactionNames.put(method, transactionName);
+            }
+            NewRelic.setTransactionName(null, transactionName[0]);
+            return transactionName[1];
         } catch (Throwable t) {
             logger.warn("Could not log arguments for join point: " + pjp);
+            return "unknown";
         }
     }
 
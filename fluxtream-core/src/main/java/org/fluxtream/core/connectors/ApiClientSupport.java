@@ -1,5 +1,9 @@
 package org.fluxtream.core.connectors;
 
+import org.fluxtream.core.connectors.updaters.RateLimitReachedException;
+import org.fluxtream.core.connectors.updaters.UpdateInfo;
+import org.fluxtream.core.domain.ApiKey;
+import org.fluxtream.core.services.RateLimiterService;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import org.fluxtream.core.Configuration;
@@ -15,23 +19,28 @@ public class ApiClientSupport {
     @Autowired
 	protected ConnectorUpdateService connectorUpdateService;
 
-	protected final boolean hasReachedRateLimit(Connector connector, long guestId) {
-		String rateLimitString = (String) env.connectors.getProperty(connector.getName()
-				+ ".rateLimit");
-		if (rateLimitString == null)
-			rateLimitString = (String) env.connectors.getProperty("rateLimit");
-		int count = Integer.valueOf(rateLimitString.split("/")[0]);
-		int millis = Integer.valueOf(rateLimitString.split("/")[1]);
-		long then = System.currentTimeMillis() - millis;
-        long numberOfUpdates;
-		if (rateLimitString.endsWith("/user")) {
-			numberOfUpdates = connectorUpdateService
-					.getNumberOfUpdatesSince(guestId, connector.value(), then);
-        } else {
-			numberOfUpdates = connectorUpdateService
-					.getTotalNumberOfUpdatesSince(connector, then);
-        }
-        return numberOfUpdates >= count;
+    @Autowired
+    protected RateLimiterService rateLimiterService;
+
+    /**
+     * Takes a permit to call the api of the given key's connector
+     * @return <code>true</code> if no permit is currently available
+     */
+	protected final boolean hasReachedRateLimit(ApiKey apiKey) {
+        return !rateLimiterService.tryAcquire(apiKey);
 	}
-	
+
+    /**
+     * Takes a permit to call the api, to be called before each api call
+     * @throws RateLimitReachedException if no permit is currently available, in which case the update will be
+     * rescheduled for when one should be
+     */
+    protected final void acquireApiPermit(UpdateInfo updateInfo) throws RateLimitReachedException {
+        if (!rateLimiterService.tryAcquire(updateInfo.apiKey)) {
+            updateInfo.setResetTime(updateInfo.apiKey.getConnector().getName(),
+                                    rateLimiterService.getNextPermitTime(updateInfo.apiKey));
+            throw new RateLimitReachedException();
+        }
+    }
+
 }
@@ -30,6 +30,11 @@ public class Connector {
     private static Map<String, Connector> connectorsByPrettyName = new ConcurrentHashMap<String, Connector>();
     private static Map<String, Connector> connectorsByDeviceNickname = new ConcurrentHashMap<String, Connector>();
 
+    // connectors indexed by value, for the (small, positive) values of the scanned connectors; fromValue is called
+    // for every facet in some loops and doesn't need to box its argument for them
+    private static final int MAX_INDEXED_VALUE = 4096;
+    private static Connector[] connectorsByValueIndex = new Connector[0];
+
     private Class<? extends AbstractFacetExtractor> extractorClass;
     private Map<Integer, Class<? extends AbstractFacetExtractor>> objectTypeExtractorClasses;
     private Class<? extends AbstractUserProfile> userProfileClass;
@@ -42,6 +47,7 @@ public class Connector {
     private boolean hasFacets;
     private String[] defaultChannels;
     private Class<? extends AbstractUpdater> updaterClass;
+    private Class<?> settingsClass;
     private Class<? extends AbstractBodytrackResponder> bodytrackResponder;
     private String deviceNickname;
 
@@ -117,6 +123,7 @@ public class Connector {
             for (BeanDefinition bd : scanner
                     .findCandidateComponents("org.fluxtream.connectors"))
                 extractConnectorMetadata(bd);
+            indexConnectorsByValue();
             initialized = true;
             for (Connector connector : connectors.values()) {
                 System.out.println(connector);
@@ -124,6 +131,20 @@ public class Connector {
         }
     }
 
+    private static void indexConnectorsByValue() {
+        int maxValue = -1;
+        for (Integer value : connectorsByValue.keySet()) {
+            if (value>=0 && value<MAX_INDEXED_VALUE)
+                maxValue = Math.max(maxValue, value);
+        }
+        final Connector[] index = new Connector[maxValue+1];
+        for (Map.Entry<Integer, Connector> entry : connectorsByValue.entrySet()) {
+            if (entry.getKey()>=0 && entry.getKey()<index.length)
+                index[entry.getKey()] = entry.getValue();
+        }
+        connectorsByValueIndex = index;
+    }
+
     private static void extractConnectorMetadata(final BeanDefinition bd) {
         String beanClassName = bd.getBeanClassName();
         String connectorName = getConnectorName(beanClassName);
@@ -140,6 +161,7 @@ public class Connector {
         connector.updateStrategyType = updaterAnnotation
                 .updateStrategyType();
         connector.hasFacets = updaterAnnotation.hasFacets();
+        connector.settingsClass = updaterAnnotation.settings();
         connector.name = connectorName;
         connector.sharedConnectorFilterClass = updaterAnnotation.sharedConnectorFilter();
         connector.deleteOrder = updaterAnnotation.deleteOrder();
@@ -318,6 +340,14 @@ public class Connector {
         return facetClass;
     }
 
+    /**
+     * Returns the connector's settings class, as specified in its Updater (annotation); that's
+     * <code>Updater.EmptySettings</code> if it has no settings
+     */
+    public Class<?> settingsClass() {
+        return settingsClass;
+    }
+
     public String getName() {
         return name;
     }
@@ -403,6 +433,9 @@ public class Connector {
     }
 
     public static Connector fromValue(int api) {
+        final Connector[] index = connectorsByValueIndex;
+        if (api>=0 && api<index.length)
+            return index[api];
         return connectorsByValue.get(api);
     }
 
@@ -13,7 +13,7 @@ public class RESTHelper extends ApiClientSupport {
 	public final String makeRestCall(final ApiKey apiKey,
 			int objectTypes, String urlString) throws Exception {
 		
-		if (hasReachedRateLimit(apiKey.getConnector(), apiKey.getGuestId()))
+		if (hasReachedRateLimit(apiKey))
 			throw new RateLimitReachedException();
 		
 		long then = System.currentTimeMillis();
@@ -23,7 +23,7 @@ public class SignpostOAuthHelper extends ApiClientSupport {
 	public final String makeRestCall(ApiKey apiKey,
 			int objectTypes, String urlString) throws UnexpectedResponseCodeException, RateLimitReachedException {
 
-        if (hasReachedRateLimit(apiKey.getConnector(), apiKey.getGuestId()))
+        if (hasReachedRateLimit(apiKey))
             throw new RateLimitReachedException();
 
         try {
@@ -21,7 +21,7 @@ public class TwoLeggedOAuthHelper extends ApiClientSupport {
     public final String makeRestCall(ApiKey apiKey,
                                      String accessToken, String tokenSecret, Map<String, String> additionalParameters,
                                      int objectTypes, String urlString) throws RateLimitReachedException {
-		if (hasReachedRateLimit(apiKey.getConnector(), apiKey.getGuestId()))
+		if (hasReachedRateLimit(apiKey))
 			throw new RateLimitReachedException();
 		try {
 			long then = System.currentTimeMillis();
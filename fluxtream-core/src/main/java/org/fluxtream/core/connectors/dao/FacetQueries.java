@@ -0,0 +1,322 @@
+package org.fluxtream.core.connectors.dao;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.persistence.CollectionTable;
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToMany;
+import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
+import javax.persistence.Query;
+import org.fluxtream.core.connectors.Connector;
+import org.fluxtream.core.connectors.ObjectType;
+import org.fluxtream.core.domain.AbstractFacet;
+import org.fluxtream.core.domain.ApiKey;
+import org.fluxtream.core.domain.TagFilter;
+import org.fluxtream.core.utils.JPAUtils;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The entity name of a facet class and the queries that look up its oldest, latest and neighboring facets, and that
+ * delete the facets of an api key or of a guest in chunks, built once per facet class (see {@link #registerAll()})
+ * rather than on every call.
+ */
+public final class FacetQueries {
+
+    private static final ConcurrentMap<Class<? extends AbstractFacet>, FacetQueries> registry =
+            new ConcurrentHashMap<Class<? extends AbstractFacet>, FacetQueries>();
+
+    private final Class<? extends AbstractFacet> facetClass;
+    private final String entityName;
+    private final String oldestFacetQuery;
+    private final String latestFacetQuery;
+    private final String facetsBeforeQuery;
+    private final String facetsAfterQuery;
+    private final ChunkStatements apiKeyChunkStatements;
+    private final ChunkStatements guestChunkStatements;
+
+    private FacetQueries(final Class<? extends AbstractFacet> facetClass) {
+        this.facetClass = facetClass;
+        this.entityName = JPAUtils.getEntityName(facetClass);
+        // this is a temporary hack before we bite the bullet and add the index on all tables - for now only
+        // the location table is problematic
+        final String endIndex = entityName.equals("Facet_Location") ? "apiKeyIdEnd" : "apiKey";
+        this.oldestFacetQuery = String.format("SELECT * FROM %s USE INDEX (%s) WHERE apiKeyId=? ORDER BY end ASC", entityName, endIndex);
+        this.latestFacetQuery = String.format("SELECT * FROM %s USE INDEX (%s) WHERE apiKeyId=? ORDER BY end DESC", entityName, endIndex);
+        this.facetsBeforeQuery = String.format("SELECT * FROM %s facet USE INDEX (apiKey) WHERE apiKeyId=? AND start <=? %%s ORDER BY start DESC", entityName);
+        this.facetsAfterQuery = String.format("SELECT * FROM %s facet USE INDEX (apiKey) WHERE apiKeyId=? AND start >=? %%s ORDER BY start ASC", entityName);
+        this.apiKeyChunkStatements = new ChunkStatements(facetClass, entityName, "apiKeyId");
+        this.guestChunkStatements = new ChunkStatements(facetClass, entityName, "guestId");
+    }
+
+    /**
+     * Statements that delete a chunk of facets, i.e. the facets of an owner (an api key or a guest) up to a given id
+     */
+    private static final class ChunkStatements {
+        private final String idsQuery;
+        private final String facetsQuery;
+        private final String deleteStatement;
+        /**
+         * Statements that delete the rows referencing a chunk of facets in the tables of its relations, or
+         * <code>null</code> if some relation can't be deleted in bulk and the facets have to be removed one by one
+         */
+        private final List<String> deleteRelationsStatements;
+
+        private ChunkStatements(final Class<? extends AbstractFacet> facetClass, final String entityName, final String ownerColumn) {
+            this.idsQuery = String.format("SELECT id FROM %s WHERE %s=? ORDER BY id", entityName, ownerColumn);
+            this.facetsQuery = String.format("SELECT facet FROM %s facet WHERE facet.%s=? AND facet.id<=?", entityName, ownerColumn);
+            this.deleteStatement = String.format("DELETE FROM %s WHERE %s=? AND id<=?", entityName, ownerColumn);
+            this.deleteRelationsStatements = getDeleteRelationsStatements(facetClass, String.format("SELECT id FROM %s WHERE %s=? AND id<=?",
+                                                                                                    entityName, ownerColumn));
+        }
+    }
+
+    /**
+     * Returns the queries of the given facet class, building them if this is the first time they're needed
+     */
+    public static FacetQueries get(final Class<? extends AbstractFacet> facetClass) {
+        FacetQueries facetQueries = registry.get(facetClass);
+        if (facetQueries==null) {
+            final FacetQueries newFacetQueries = new FacetQueries(facetClass);
+            facetQueries = registry.putIfAbsent(facetClass, newFacetQueries);
+            if (facetQueries==null)
+                facetQueries = newFacetQueries;
+        }
+        return facetQueries;
+    }
+
+    /**
+     * Returns the queries of the facet class of the given object type, or of the api key's connector if
+     * <code>objectType</code> is <code>null</code>; <code>null</code> if there is no such facet class
+     */
+    @Nullable
+    public static FacetQueries get(final ApiKey apiKey, @Nullable final ObjectType objectType) {
+        final Class<? extends AbstractFacet> facetClass = objectType!=null
+                                                          ? objectType.facetClass()
+                                                          : apiKey.getConnector().facetClass();
+        return facetClass!=null ? get(facetClass) : null;
+    }
+
+    /**
+     * Builds the queries of the facet classes of all the registered connectors
+     * @return the number of facet classes
+     */
+    public static int registerAll() {
+        for (Connector connector : Connector.getAllConnectors()) {
+            if (connector.facetClass()!=null)
+                get(connector.facetClass());
+            if (connector.objectTypes()==null)
+                continue;
+            for (ObjectType objectType : connector.objectTypes()) {
+                if (objectType.facetClass()!=null)
+                    get(objectType.facetClass());
+            }
+        }
+        return registry.size();
+    }
+
+    public Class<? extends AbstractFacet> getFacetClass() {
+        return facetClass;
+    }
+
+    public String getEntityName() {
+        return entityName;
+    }
+
+    public AbstractFacet getOldestFacet(final EntityManager em, final ApiKey apiKey) {
+        return getFirstFacet(em, oldestFacetQuery, apiKey);
+    }
+
+    public AbstractFacet getLatestFacet(final EntityManager em, final ApiKey apiKey) {
+        return getFirstFacet(em, latestFacetQuery, apiKey);
+    }
+
+    public List<AbstractFacet> getFacetsBefore(final EntityManager em, final ApiKey apiKey, final long timeInMillis,
+                                               final int desiredCount, @Nullable final TagFilter tagFilter) {
+        return getFacets(em, getFacetsBeforeQuery(tagFilter), apiKey, timeInMillis, desiredCount);
+    }
+
+    public List<AbstractFacet> getFacetsAfter(final EntityManager em, final ApiKey apiKey, final long timeInMillis,
+                                              final int desiredCount, @Nullable final TagFilter tagFilter) {
+        return getFacets(em, getFacetsAfterQuery(tagFilter), apiKey, timeInMillis, desiredCount);
+    }
+
+    /**
+     * Deletes the <code>chunkSize</code> facets of an api key with the lowest ids, along with the rows of their
+     * relations; this should be called in a transaction of its own, until it returns 0
+     * @return the number of facets that were deleted
+     */
+    public int deleteChunk(final EntityManager em, final ApiKey apiKey, final int chunkSize) {
+        return deleteChunk(em, apiKeyChunkStatements, apiKey.getId(), chunkSize);
+    }
+
+    /**
+     * Deletes the <code>chunkSize</code> facets of a guest with the lowest ids, whatever their api key, along with
+     * the rows of their relations; this should be called in a transaction of its own, until it returns 0
+     * @return the number of facets that were deleted
+     */
+    public int deleteGuestChunk(final EntityManager em, final long guestId, final int chunkSize) {
+        return deleteChunk(em, guestChunkStatements, guestId, chunkSize);
+    }
+
+    private static int deleteChunk(final EntityManager em, final ChunkStatements statements, final long ownerId, final int chunkSize) {
+        final Query idsQuery = em.createNativeQuery(statements.idsQuery);
+        idsQuery.setParameter(1, ownerId);
+        idsQuery.setMaxResults(chunkSize);
+        final List<?> ids = idsQuery.getResultList();
+        if (ids.isEmpty())
+            return 0;
+        final long maxId = ((Number)ids.get(ids.size()-1)).longValue();
+        if (statements.deleteRelationsStatements==null) {
+            final Query query = em.createQuery(statements.facetsQuery);
+            query.setParameter(1, ownerId);
+            query.setParameter(2, maxId);
+            @SuppressWarnings("unchecked")
+            final List<AbstractFacet> facets = query.getResultList();
+            for (AbstractFacet facet : facets)
+                em.remove(facet);
+            return facets.size();
+        }
+        for (String statement : statements.deleteRelationsStatements)
+            executeChunkStatement(em, statement, ownerId, maxId);
+        return executeChunkStatement(em, statements.deleteStatement, ownerId, maxId);
+    }
+
+    private static int executeChunkStatement(final EntityManager em, final String statement, final long ownerId, final long maxId) {
+        final Query query = em.createNativeQuery(statement);
+        query.setParameter(1, ownerId);
+        query.setParameter(2, maxId);
+        return query.executeUpdate();
+    }
+
+    @Nullable
+    private static List<String> getDeleteRelationsStatements(final Class<?> entityClass, final String idsQuery) {
+        final List<String> statements = new ArrayList<String>();
+        for (Class<?> c = entityClass; c!=null && c!=Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (field.getAnnotation(OneToOne.class)!=null || field.getAnnotation(ManyToMany.class)!=null)
+                    return null;
+                if (field.getAnnotation(ElementCollection.class)!=null) {
+                    final CollectionTable collectionTable = field.getAnnotation(CollectionTable.class);
+                    if (collectionTable==null || collectionTable.name().equals("") ||
+                        collectionTable.joinColumns().length!=1 || collectionTable.joinColumns()[0].name().equals(""))
+                        return null;
+                    statements.add(String.format("DELETE FROM %s WHERE %s IN (%s)", collectionTable.name(),
+                                                 collectionTable.joinColumns()[0].name(), idsQuery));
+                }
+                final OneToMany oneToMany = field.getAnnotation(OneToMany.class);
+                if (oneToMany!=null) {
+                    final String foreignKey = getForeignKey(field, oneToMany);
+                    if (foreignKey==null)
+                        return null;
+                    statements.add(String.format("DELETE FROM %s WHERE %s IN (%s)",
+                                                 getTargetEntity(field, oneToMany).getAnnotation(Entity.class).name(),
+                                                 foreignKey, idsQuery));
+                }
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * Returns the column of the target entity of a one-to-many relation that references its owner, or
+     * <code>null</code> if the relation isn't mapped by a many-to-one on a target entity without relations of its own
+     */
+    @Nullable
+    private static String getForeignKey(final Field field, final OneToMany oneToMany) {
+        final Class<?> targetEntity = getTargetEntity(field, oneToMany);
+        if (oneToMany.mappedBy().equals("") || targetEntity==null || targetEntity.getAnnotation(Entity.class)==null)
+            return null;
+        final List<String> targetRelationsStatements = getDeleteRelationsStatements(targetEntity, "");
+        if (targetRelationsStatements==null || !targetRelationsStatements.isEmpty())
+            return null;
+        for (Class<?> c = targetEntity; c!=null && c!=Object.class; c = c.getSuperclass()) {
+            try {
+                final JoinColumn joinColumn = c.getDeclaredField(oneToMany.mappedBy()).getAnnotation(JoinColumn.class);
+                return joinColumn!=null && !joinColumn.name().equals("")
+                       ? joinColumn.name()
+                       : oneToMany.mappedBy() + "_id";
+            }
+            catch (NoSuchFieldException e) {
+                // look it up in the superclass
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private static Class<?> getTargetEntity(final Field field, final OneToMany oneToMany) {
+        if (oneToMany.targetEntity()!=void.class)
+            return oneToMany.targetEntity();
+        final Type type = field.getGenericType();
+        if (type instanceof ParameterizedType) {
+            final Type[] typeArguments = ((ParameterizedType)type).getActualTypeArguments();
+            if (typeArguments.length==1 && typeArguments[0] instanceof Class)
+                return (Class<?>)typeArguments[0];
+        }
+        return null;
+    }
+
+    String getOldestFacetQuery() {
+        return oldestFacetQuery;
+    }
+
+    String getLatestFacetQuery() {
+        return latestFacetQuery;
+    }
+
+    @Nullable
+    List<String> getDeleteChunkRelationsStatements() {
+        final List<String> statements = apiKeyChunkStatements.deleteRelationsStatements;
+        return statements==null ? null : Collections.unmodifiableList(statements);
+    }
+
+    @Nullable
+    List<String> getDeleteGuestChunkRelationsStatements() {
+        final List<String> statements = guestChunkStatements.deleteRelationsStatements;
+        return statements==null ? null : Collections.unmodifiableList(statements);
+    }
+
+    String getFacetsBeforeQuery(@Nullable final TagFilter tagFilter) {
+        return String.format(facetsBeforeQuery, getAdditionalWhereClause(tagFilter));
+    }
+
+    String getFacetsAfterQuery(@Nullable final TagFilter tagFilter) {
+        return String.format(facetsAfterQuery, getAdditionalWhereClause(tagFilter));
+    }
+
+    private static String getAdditionalWhereClause(@Nullable final TagFilter tagFilter) {
+        return (tagFilter == null) ? "" : " AND (" + tagFilter.getWhereClause() + ")";
+    }
+
+    private AbstractFacet getFirstFacet(final EntityManager em, final String queryString, final ApiKey apiKey) {
+        final Query query = em.createNativeQuery(queryString, facetClass);
+        query.setParameter(1, apiKey.getId());
+        query.setMaxResults(1);
+        @SuppressWarnings("unchecked")
+        final List<? extends AbstractFacet> resultList = query.getResultList();
+        if (resultList != null && resultList.size() > 0) {
+            return resultList.get(0);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<AbstractFacet> getFacets(final EntityManager em, final String queryString, final ApiKey apiKey,
+                                          final long timeInMillis, final int desiredCount) {
+        final Query query = em.createNativeQuery(queryString, facetClass);
+        query.setParameter(1, apiKey.getId());
+        query.setParameter(2, timeInMillis);
+        query.setMaxResults(desiredCount);
+        return (List<AbstractFacet>)query.getResultList();
+    }
+}
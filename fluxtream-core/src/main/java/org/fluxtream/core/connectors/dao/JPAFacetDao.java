@@ -17,21 +17,20 @@ import org.fluxtream.core.utils.JPAUtils;
 import org.fluxtream.core.utils.TimeUtils;
 import org.jetbrains.annotations.Nullable;
 import org.joda.time.DateTime;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.persistence.*;
-import java.lang.reflect.Method;
 import java.sql.Date;
 import java.util.ArrayList;
 import java.util.List;
 
 @Repository
 @Component
-public class JPAFacetDao implements FacetDao {
+public class JPAFacetDao implements FacetDao, InitializingBean {
 
     private static final FlxLogger logger = FlxLogger.getLogger(JPAFacetDao.class);
 
@@ -46,6 +45,12 @@ public class JPAFacetDao implements FacetDao {
 
 	public JPAFacetDao() {}
 
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        final int facetClasses = FacetQueries.registerAll();
+        logger.info("module=facetDao component=facetDao action=afterPropertiesSet registeredFacetClasses=" + facetClasses);
+    }
+
     @Override
     public List<AbstractFacet> getFacetsByDates(final ApiKey apiKey, ObjectType objectType, List<String> dates, Long updatedSince) {
         if (!objectType.isClientFacet())
@@ -108,15 +113,8 @@ public class JPAFacetDao implements FacetDao {
         return facets;
     }
 
-    @Cacheable("facetClasses")
     private String getEntityName(Class<? extends AbstractFacet> facetClass) {
-        try {
-            return facetClass.getAnnotation(Entity.class).name();
-        } catch (Throwable t) {
-            final String message = "Could not get Facet class for connector for " + facetClass.getName();
-            logger.error(message);
-            throw new RuntimeException(message);
-        }
+        return FacetQueries.get(facetClass).getEntityName();
     }
 
     private Class<? extends AbstractFacet> getFacetClass(final Connector connector, final ObjectType objectType) {
@@ -187,12 +185,12 @@ public class JPAFacetDao implements FacetDao {
 
     @Override
     public AbstractFacet getOldestFacet(final ApiKey apiKey, final ObjectType objectType) {
-        return getFacet(apiKey, objectType, "getOldestFacet");
+        return getFacet(apiKey, objectType, false);
     }
 
     @Override
     public AbstractFacet getLatestFacet(final ApiKey apiKey, final ObjectType objectType) {
-        return getFacet(apiKey, objectType, "getLatestFacet");
+        return getFacet(apiKey, objectType, true);
     }
 
     @Override
@@ -211,7 +209,7 @@ public class JPAFacetDao implements FacetDao {
                                                final long timeInMillis,
                                                final int desiredCount,
                                                @Nullable final TagFilter tagFilter) {
-        return getFacets(apiKey, objectType, timeInMillis, desiredCount, "getFacetsBefore", tagFilter);
+        return getFacets(apiKey, objectType, timeInMillis, desiredCount, false, tagFilter);
     }
 
     @Override
@@ -220,14 +218,13 @@ public class JPAFacetDao implements FacetDao {
                                               final long timeInMillis,
                                               final int desiredCount,
                                               @Nullable final TagFilter tagFilter) {
-        return getFacets(apiKey, objectType, timeInMillis, desiredCount, "getFacetsAfter", tagFilter);
+        return getFacets(apiKey, objectType, timeInMillis, desiredCount, true, tagFilter);
     }
 
     @Override
     public AbstractFacet getFacetById(ApiKey apiKey, final ObjectType objectType, final long facetId) {
         final Class<? extends AbstractFacet> facetClass = objectType.facetClass();
-        final Entity entity = facetClass.getAnnotation(Entity.class);
-        final TypedQuery<? extends AbstractFacet> query = em.createQuery("SELECT facet FROM " + entity.name() + " facet WHERE facet.id = " + facetId + " AND facet.guestId = " + apiKey.getGuestId(), facetClass);
+        final TypedQuery<? extends AbstractFacet> query = em.createQuery("SELECT facet FROM " + getEntityName(facetClass) + " facet WHERE facet.id = " + facetId + " AND facet.guestId = " + apiKey.getGuestId(), facetClass);
         query.setMaxResults(1);
 
         final List resultList = query.getResultList();
@@ -237,113 +234,78 @@ public class JPAFacetDao implements FacetDao {
         return null;
     }
 
-    private AbstractFacet getFacet(final ApiKey apiKey, final ObjectType objectType, final String methodName) {
+    private AbstractFacet getFacet(final ApiKey apiKey, final ObjectType objectType, final boolean latest) {
         if (!apiKey.getConnector().hasFacets()) {
             return null;
         }
 
         AbstractFacet facet = null;
-        if (objectType != null) {
-            try {
-                Class c = objectType.facetClass();
-                Method m = c.getMethod(methodName, EntityManager.class, ApiKey.class, ObjectType.class);
-                facet = (AbstractFacet)m.invoke(null, em, apiKey, objectType);
-            }
-            catch (Exception ignored) {
-                if (logger.isInfoEnabled()) {
-                    logger.info("JPAFacetDao.getFacet(): ignoring exception '" + ignored.getClass() + "' while trying to invoke method '" + methodName + "'");
+        if (objectType == null && apiKey.getConnector().objectTypes() != null) {
+            for (ObjectType type : apiKey.getConnector().objectTypes()) {
+                AbstractFacet fac = getFacet(apiKey, FacetQueries.get(apiKey, type), latest);
+                if (facet == null || (fac != null && fac.end > facet.end)) {
+                    facet = fac;
                 }
             }
         }
         else {
-            if (apiKey.getConnector().objectTypes() != null) {
-                for (ObjectType type : apiKey.getConnector().objectTypes()) {
-                    AbstractFacet fac = null;
-                    try {
-                        Class c = type.facetClass();
-                        Method m = c.getMethod(methodName, EntityManager.class, ApiKey.class, ObjectType.class);
-                        fac = (AbstractFacet)m.invoke(null, em, apiKey, type);
-                    }
-                    catch (Exception ignored) {
-                        if (logger.isInfoEnabled()) {
-                            logger.info("JPAFacetDao.getFacet(): ignoring exception '" + ignored.getClass() + "' while trying to invoke method '" + methodName + "'");
-                        }
-                    }
-                    if (facet == null || (fac != null && fac.end > facet.end)) {
-                        facet = fac;
-                    }
-                }
-            }
-            else {
-                try {
-                    Class c = apiKey.getConnector().facetClass();
-                    Method m = c.getMethod(methodName, EntityManager.class, ApiKey.class, ObjectType.class);
-                    facet = (AbstractFacet)m.invoke(null, em, apiKey, null);
-                }
-                catch (Exception ignored) {
-                    if (logger.isInfoEnabled()) {
-                        logger.info("JPAFacetDao.getFacet(): ignoring exception '" + ignored.getClass() + "' while trying to invoke method '" + methodName + "'");
-                    }
-                }
-            }
+            facet = getFacet(apiKey, FacetQueries.get(apiKey, objectType), latest);
         }
         return facet;
     }
 
+    private AbstractFacet getFacet(final ApiKey apiKey, final FacetQueries facetQueries, final boolean latest) {
+        try {
+            return latest ? facetQueries.getLatestFacet(em, apiKey) : facetQueries.getOldestFacet(em, apiKey);
+        }
+        catch (Exception ignored) {
+            if (logger.isInfoEnabled()) {
+                logger.info("JPAFacetDao.getFacet(): ignoring exception '" + ignored.getClass() + "' while trying to get the " + (latest ? "latest" : "oldest") + " facet");
+            }
+            return null;
+        }
+    }
+
     private List<AbstractFacet> getFacets(final ApiKey apiKey,
                                           final ObjectType objectType,
                                           final long timeInMillis,
                                           final int desiredCount,
-                                          final String methodName,
+                                          final boolean after,
                                           @Nullable final TagFilter tagFilter) {
         if (!apiKey.getConnector().hasFacets()) {
             return null;
         }
 
         List<AbstractFacet> facets = null;
-        if (objectType != null) {
-            try {
-                Class c = objectType.facetClass();
-                Method m = c.getMethod(methodName, EntityManager.class, ApiKey.class, ObjectType.class, Long.class, Integer.class, TagFilter.class);
-                facets = (List<AbstractFacet>)m.invoke(null, em, apiKey, objectType, timeInMillis, desiredCount, tagFilter);
-            }
-            catch (Exception ignored) {
-                if (logger.isInfoEnabled()) {
-                    logger.info("JPAFacetDao.getFacets(): ignoring exception '" + ignored.getClass() + "' while trying to invoke method '" + methodName + "'");
-                }
+        if (objectType == null && apiKey.getConnector().objectTypes() != null) {
+            for (ObjectType type : apiKey.getConnector().objectTypes()) {
+                facets = getFacets(apiKey, FacetQueries.get(apiKey, type), timeInMillis, desiredCount, after, tagFilter);
             }
         }
         else {
-            if (apiKey.getConnector().objectTypes() != null) {
-                for (ObjectType type : apiKey.getConnector().objectTypes()) {
-                    try {
-                        Class c = type.facetClass();
-                        Method m = c.getMethod(methodName, EntityManager.class, ApiKey.class, ObjectType.class, Long.class, Integer.class, TagFilter.class);
-                        facets = (List<AbstractFacet>)m.invoke(null, em, apiKey, type, timeInMillis, desiredCount, tagFilter);
-                    }
-                    catch (Exception ignored) {
-                        if (logger.isInfoEnabled()) {
-                            logger.info("JPAFacetDao.getFacets(): ignoring exception '" + ignored.getClass() + "' while trying to invoke method '" + methodName + "'");
-                        }
-                    }
-                }
-            }
-            else {
-                try {
-                    Class c = apiKey.getConnector().facetClass();
-                    Method m = c.getMethod(methodName, EntityManager.class, ApiKey.class, ObjectType.class, Long.class, Integer.class, TagFilter.class);
-                    facets = (List<AbstractFacet>)m.invoke(null, em, apiKey, null, timeInMillis, desiredCount, tagFilter);
-                }
-                catch (Exception ignored) {
-                    if (logger.isInfoEnabled()) {
-                        logger.info("JPAFacetDao.getFacets(): ignoring exception '" + ignored.getClass() + "' while trying to invoke method '" + methodName + "'");
-                    }
-                }
-            }
+            facets = getFacets(apiKey, FacetQueries.get(apiKey, objectType), timeInMillis, desiredCount, after, tagFilter);
         }
         return facets;
     }
 
+    private List<AbstractFacet> getFacets(final ApiKey apiKey,
+                                          final FacetQueries facetQueries,
+                                          final long timeInMillis,
+                                          final int desiredCount,
+                                          final boolean after,
+                                          @Nullable final TagFilter tagFilter) {
+        try {
+            return after ? facetQueries.getFacetsAfter(em, apiKey, timeInMillis, desiredCount, tagFilter)
+                         : facetQueries.getFacetsBefore(em, apiKey, timeInMillis, desiredCount, tagFilter);
+        }
+        catch (Exception ignored) {
+            if (logger.isInfoEnabled()) {
+                logger.info("JPAFacetDao.getFacets(): ignoring exception '" + ignored.getClass() + "' while trying to get the facets " + (after ? "after" : "before") + " " + timeInMillis);
+            }
+            return null;
+        }
+    }
+
     @Override
 	public void deleteAllFacets(ApiKey apiKey) {
         final Connector connector = apiKey.getConnector();
@@ -1,12 +1,10 @@
 package org.fluxtream.core.connectors.fluxtream_capture;
 
-import java.awt.Dimension;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import com.drew.imaging.ImageProcessingException;
 import org.fluxtream.core.connectors.Connector;
 import org.fluxtream.core.domain.Geolocation;
-import org.fluxtream.core.images.Image;
 import org.fluxtream.core.images.ImageOrientation;
 import org.fluxtream.core.images.ImageType;
 import org.fluxtream.core.utils.HashUtils;
@@ -55,13 +53,11 @@ public final class FluxtreamCapturePhoto {
         }
     }
 
-    private static final int THUMBNAIL_0_MAX_SIDE_LENGTH_IN_PIXELS = 150;
-    private static final int THUMBNAIL_1_MAX_SIDE_LENGTH_IN_PIXELS = 300;
-    private static final int THUMBNAIL_2_MAX_SIDE_LENGTH_IN_PIXELS = 500;
     private static final String KEY_VALUE_STORE_KEY_PART_DELIMITER = ".";
     private static final String KEY_VALUE_STORE_FILENAME_PART_DELIMITER = "_";
     private static final String CONNECTOR_PRETTY_NAME = Connector.getConnector("fluxtream_capture").prettyName();
     private static final String OBJECT_TYPE_NAME = "photo";
+    private static final String THUMBNAIL_KEY_PART = "thumbnail";
 
     @NotNull
     public static String createPhotoStoreKey(final long guestId, @NotNull final String captureYYYYDDD, final long captureTimeMillisUtc, @NotNull final String photoHash) {
@@ -73,6 +69,18 @@ public final class FluxtreamCapturePhoto {
                photoHash;
     }
 
+    /**
+     * Returns the key of a thumbnail in the key-value store.  Thumbnails are addressed by the hash of their content,
+     * so identical thumbnails of a user are only stored once.
+     */
+    @NotNull
+    public static String createThumbnailStoreKey(final long guestId, @NotNull final String thumbnailHash) {
+        return guestId + KEY_VALUE_STORE_KEY_PART_DELIMITER +
+               CONNECTOR_PRETTY_NAME + KEY_VALUE_STORE_KEY_PART_DELIMITER +
+               THUMBNAIL_KEY_PART + KEY_VALUE_STORE_KEY_PART_DELIMITER +
+               thumbnailHash;
+    }
+
     private final long guestId;
 
     @NotNull
@@ -89,24 +97,6 @@ public final class FluxtreamCapturePhoto {
     @NotNull
     private final String photoStoreKey;
 
-    @NotNull
-    private final byte[] thumbnail0;
-
-    @NotNull
-    private final byte[] thumbnail1;
-
-    @NotNull
-    private final byte[] thumbnail2;
-
-    @NotNull
-    private final Dimension thumbnail0Size;
-
-    @NotNull
-    private final Dimension thumbnail1Size;
-
-    @NotNull
-    private final Dimension thumbnail2Size;
-
     @NotNull
     private final ImageOrientation orientation;
 
@@ -148,31 +138,6 @@ public final class FluxtreamCapturePhoto {
         this.photoHash = HashUtils.computeSha256Hash(photoBytes);
         photoStoreKey = createPhotoStoreKey(guestId, captureYYYYDDD, captureTimeMillisUtc, photoHash);
 
-        // Create the thumbnails: do so by creating the largest one first, and then creating the smaller
-        // ones from the larger--this should be faster than creating each from the original image
-        final Image thumbnail2Image = ImageUtils.createJpegThumbnail(photoBytes, THUMBNAIL_2_MAX_SIDE_LENGTH_IN_PIXELS);
-        if (thumbnail2Image == null) {
-            throw new IOException("Failed to create thumbnails");
-        }
-
-        final Image thumbnail1Image = ImageUtils.createJpegThumbnail(thumbnail2Image.getBytes(), THUMBNAIL_1_MAX_SIDE_LENGTH_IN_PIXELS);
-        if (thumbnail1Image == null) {
-            throw new IOException("Failed to create thumbnails");
-        }
-
-        final Image thumbnail0Image = ImageUtils.createJpegThumbnail(thumbnail1Image.getBytes(), THUMBNAIL_0_MAX_SIDE_LENGTH_IN_PIXELS);
-        if (thumbnail0Image == null) {
-            throw new IOException("Failed to create thumbnails");
-        }
-
-        thumbnail0 = thumbnail0Image.getBytes();
-        thumbnail1 = thumbnail1Image.getBytes();
-        thumbnail2 = thumbnail2Image.getBytes();
-
-        thumbnail0Size = new Dimension(thumbnail0Image.getWidth(), thumbnail0Image.getHeight());
-        thumbnail1Size = new Dimension(thumbnail1Image.getWidth(), thumbnail1Image.getHeight());
-        thumbnail2Size = new Dimension(thumbnail2Image.getWidth(), thumbnail2Image.getHeight());
-
         // get the image orientation, and default to ORIENTATION_1 if unspecified
         ImageOrientation orientationTemp;
         try {
@@ -223,36 +188,6 @@ public final class FluxtreamCapturePhoto {
         return photoStoreKey;
     }
 
-    @NotNull
-    public byte[] getThumbnail0() {
-        return thumbnail0;
-    }
-
-    @NotNull
-    public byte[] getThumbnail1() {
-        return thumbnail1;
-    }
-
-    @NotNull
-    public byte[] getThumbnail2() {
-        return thumbnail2;
-    }
-
-    @NotNull
-    public Dimension getThumbnail0Size() {
-        return thumbnail0Size;
-    }
-
-    @NotNull
-    public Dimension getThumbnail1Size() {
-        return thumbnail1Size;
-    }
-
-    @NotNull
-    public Dimension getThumbnail2Size() {
-        return thumbnail2Size;
-    }
-
     @NotNull
     public ImageOrientation getOrientation() {
         return orientation;
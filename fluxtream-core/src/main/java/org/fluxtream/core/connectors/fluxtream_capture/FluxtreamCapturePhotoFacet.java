@@ -7,6 +7,7 @@ import org.fluxtream.core.domain.AbstractFacet;
 import org.fluxtream.core.domain.Geolocation;
 import org.fluxtream.core.domain.Tag;
 import org.fluxtream.core.images.ImageOrientation;
+import org.hibernate.annotations.Type;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -25,7 +26,10 @@ import java.io.Serializable;
 @NamedQueries({
     @NamedQuery(name = "fluxtream_capture.photo.all", query = "SELECT facet FROM Facet_FluxtreamCapturePhoto facet WHERE facet.guestId=? ORDER BY facet.start ASC"),
     @NamedQuery(name = "fluxtream_capture.photo.newest", query = "SELECT facet FROM Facet_FluxtreamCapturePhoto facet WHERE facet.guestId=? ORDER BY facet.start DESC LIMIT 1"),
-    @NamedQuery(name = "fluxtream_capture.photo.byId", query = "SELECT facet FROM Facet_FluxtreamCapturePhoto facet WHERE facet.guestId=? AND facet.id=?")
+    @NamedQuery(name = "fluxtream_capture.photo.byId", query = "SELECT facet FROM Facet_FluxtreamCapturePhoto facet WHERE facet.guestId=? AND facet.id=?"),
+    @NamedQuery(name = "fluxtream_capture.photo.thumbnailHashes.byId", query = "SELECT facet.timeUpdated, facet.thumbnail0Hash, facet.thumbnail1Hash, facet.thumbnail2Hash, facet.thumbnailsPending FROM Facet_FluxtreamCapturePhoto facet WHERE facet.guestId=? AND facet.id=?"),
+    @NamedQuery(name = "fluxtream_capture.photo.thumbnailsPending", query = "SELECT facet.id FROM Facet_FluxtreamCapturePhoto facet WHERE facet.thumbnailsPending=true"),
+    @NamedQuery(name = "fluxtream_capture.photo.countByThumbnailHash", query = "SELECT COUNT(facet) FROM Facet_FluxtreamCapturePhoto facet WHERE facet.guestId=? AND facet.id<>? AND (facet.thumbnail0Hash=? OR facet.thumbnail1Hash=? OR facet.thumbnail2Hash=?)")
 })
 public class FluxtreamCapturePhotoFacet extends AbstractFacet implements Serializable, Geolocation {
 
@@ -45,6 +49,17 @@ public class FluxtreamCapturePhotoFacet extends AbstractFacet implements Seriali
     @Lob
     private byte[] thumbnail2;
 
+    // MD5 hashes of the thumbnails, which are also their keys in the thumbnail store (null for photos uploaded
+    // before thumbnails were stored there, until they are first served, and while the thumbnails are pending)
+    private String thumbnail0Hash;
+    private String thumbnail1Hash;
+    private String thumbnail2Hash;
+
+    // true until the thumbnails have been created, which happens in the background after the photo is uploaded, or
+    // until creating them failed because the photo can't be decoded (the thumbnails then stay null)
+    @Type(type="yes_no")
+    private boolean thumbnailsPending;
+
     private int thumbnail0Width;
     private int thumbnail0Height;
     private int thumbnail1Width;
@@ -89,20 +104,8 @@ public class FluxtreamCapturePhotoFacet extends AbstractFacet implements Seriali
 
         imageType = photo.getImageType().getFileExtension();
 
-        thumbnail0 = photo.getThumbnail0();
-        thumbnail1 = photo.getThumbnail1();
-        thumbnail2 = photo.getThumbnail2();
-
-        final Dimension thumbnail0Size = photo.getThumbnail0Size();
-        final Dimension thumbnail1Size = photo.getThumbnail1Size();
-        final Dimension thumbnail2Size = photo.getThumbnail2Size();
-
-        thumbnail0Width = thumbnail0Size.width;
-        thumbnail0Height = thumbnail0Size.height;
-        thumbnail1Width =  thumbnail1Size.width;
-        thumbnail1Height = thumbnail1Size.height;
-        thumbnail2Width =  thumbnail2Size.width;
-        thumbnail2Height = thumbnail2Size.height;
+        // the thumbnails are created asynchronously, see FluxtreamCapturePhotoStore
+        thumbnailsPending = true;
 
         orientation = photo.getOrientation().getId();
 
@@ -159,6 +162,50 @@ public class FluxtreamCapturePhotoFacet extends AbstractFacet implements Seriali
         return thumbnail0;
     }
 
+    /** Returns the hash of the thumbnail associated with the given <code>thumbnailIndex</code>, or of thumbnail0 if no such index exists. */
+    @Nullable
+    public String getThumbnailHash(final int thumbnailIndex) {
+        if (thumbnailIndex == 1) {
+            return thumbnail1Hash;
+        } else if (thumbnailIndex == 2) {
+            return thumbnail2Hash;
+        }
+
+        return thumbnail0Hash;
+    }
+
+    public boolean isThumbnailsPending() {
+        return thumbnailsPending;
+    }
+
+    void setThumbnails(@NotNull final FluxtreamCapturePhotoThumbnails thumbnails) {
+        thumbnail0 = thumbnails.getThumbnail(0);
+        thumbnail1 = thumbnails.getThumbnail(1);
+        thumbnail2 = thumbnails.getThumbnail(2);
+
+        thumbnail0Hash = thumbnails.getThumbnailHash(0);
+        thumbnail1Hash = thumbnails.getThumbnailHash(1);
+        thumbnail2Hash = thumbnails.getThumbnailHash(2);
+
+        final Dimension thumbnail0Size = thumbnails.getThumbnailSize(0);
+        final Dimension thumbnail1Size = thumbnails.getThumbnailSize(1);
+        final Dimension thumbnail2Size = thumbnails.getThumbnailSize(2);
+
+        thumbnail0Width = thumbnail0Size.width;
+        thumbnail0Height = thumbnail0Size.height;
+        thumbnail1Width =  thumbnail1Size.width;
+        thumbnail1Height = thumbnail1Size.height;
+        thumbnail2Width =  thumbnail2Size.width;
+        thumbnail2Height = thumbnail2Size.height;
+
+        thumbnailsPending = false;
+    }
+
+    /** Gives up on the thumbnails of a photo that can't be decoded, so that their creation isn't retried. */
+    void setThumbnailsFailed() {
+        thumbnailsPending = false;
+    }
+
     @Nullable
     public Dimension getThumbnailSize(final int thumbnailIndex) {
         switch (thumbnailIndex) {
@@ -13,14 +13,34 @@ import org.fluxtream.core.services.ApiDataService;
 import org.fluxtream.core.services.BodyTrackStorageService;
 import org.fluxtream.core.services.GuestService;
 import org.fluxtream.core.services.JPADaoService;
+import org.fluxtream.core.utils.HashUtils;
 import org.fluxtream.core.utils.ImageUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
-
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
@@ -35,6 +55,9 @@ public final class FluxtreamCapturePhotoStore {
     private static final FlxLogger LOG = FlxLogger.getLogger(FluxtreamCapturePhotoStore.class);
     private static final FlxLogger LOG_DEBUG = FlxLogger.getLogger("Fluxtream");
 
+    /** How long a request for a thumbnail waits for it to be created before giving up */
+    private static final long THUMBNAIL_TIMEOUT_SECONDS = 30;
+
     @Autowired
     BodyTrackStorageService bodyTrackStorageService;
 
@@ -91,6 +114,13 @@ public final class FluxtreamCapturePhotoStore {
          */
         @NotNull
         ImageType getImageType();
+
+        /**
+         * Returns the MD5 hash of the photo's bytes, if it is known without having to read them.  Returns
+         * <code>null</code> otherwise.
+         */
+        @Nullable
+        String getHash();
     }
 
     @Autowired
@@ -102,14 +132,57 @@ public final class FluxtreamCapturePhotoStore {
     @Autowired
     private Configuration env;
 
+    @Autowired
+    @Qualifier("ThumbnailWorker")
+    private ThreadPoolTaskExecutor thumbnailExecutor;
+
+    @Autowired
+    @Qualifier("jpaTxTemplate")
+    private TransactionTemplate transactionTemplate;
+
+    @PersistenceContext
+    private EntityManager em;
+
     private final Gson gson = new Gson();
 
+    // thumbnail creations that are queued or in progress, by photo facet id
+    private final ConcurrentMap<Long, Future<Boolean>> thumbnailCreations = new ConcurrentHashMap<Long, Future<Boolean>>();
+
     private FluxtreamCapturePhotoStore() {
         // private to prevent instantiation
     }
 
-    public boolean deletePhoto(final String photoStoreKey) throws StorageException {
-        return getFilesystemKeyValueStore().delete(photoStoreKey);
+    /**
+     * Deletes the given photo from the key-value store, along with its thumbnails, except for those which are also
+     * thumbnails of another photo of the same guest.
+     */
+    public boolean deletePhoto(@NotNull final FluxtreamCapturePhotoFacet photoFacet) throws StorageException {
+        final FilesystemKeyValueStore keyValueStore = getFilesystemKeyValueStore();
+        final String[] thumbnailHashes = new String[FluxtreamCapturePhotoFacet.NUM_THUMBNAILS];
+        for (int i = 0; i < FluxtreamCapturePhotoFacet.NUM_THUMBNAILS; i++) {
+            thumbnailHashes[i] = photoFacet.getThumbnailHash(i);
+        }
+        deleteUnsharedThumbnails(keyValueStore, photoFacet.getGuestId(), photoFacet.getId(), thumbnailHashes);
+        final String photoStoreKey = photoFacet.getPhotoStoreKey();
+        return photoStoreKey != null && keyValueStore.delete(photoStoreKey);
+    }
+
+    /**
+     * Deletes the given thumbnails of a photo from the key-value store, unless another photo of the same guest has the
+     * same thumbnail (the thumbnails are stored by hash).
+     */
+    private void deleteUnsharedThumbnails(@NotNull final FilesystemKeyValueStore keyValueStore, final long guestId,
+                                          final long photoFacetId, @NotNull final String[] thumbnailHashes) {
+        for (final String thumbnailHash : thumbnailHashes) {
+            if (thumbnailHash == null) {
+                continue;
+            }
+            final Long otherPhotos = jpaDaoService.findOne("fluxtream_capture.photo.countByThumbnailHash", Long.class,
+                                                           guestId, photoFacetId, thumbnailHash, thumbnailHash, thumbnailHash);
+            if (otherPhotos == null || otherPhotos == 0) {
+                keyValueStore.delete(FluxtreamCapturePhoto.createThumbnailStoreKey(guestId, thumbnailHash));
+            }
+        }
     }
 
     /**
@@ -153,6 +226,11 @@ public final class FluxtreamCapturePhotoStore {
 
                         return imageType;
                     }
+
+                    @Override
+                    public String getHash() {
+                        return null;
+                    }
                 };
             }
         }
@@ -163,38 +241,105 @@ public final class FluxtreamCapturePhotoStore {
     /**
      * Returns the photo thumbnail specified by the given <code>photoId</code> or <code>null</code> if no such photo
      * exists. This method assumes that the caller has already performed authentication and authorization.
+     * Thumbnails are served from the key-value store, under the hash that was computed when the photo was saved, so
+     * the photo facet itself is never loaded and the bytes are only read if the caller asks for them.
+     * Thumbnails of photos saved before the store existed are copied there the first time they are requested.  If the
+     * thumbnails of the photo haven't been created yet, this method waits until they are.
      */
     @Nullable
     public Photo getPhotoThumbnail(final long uid, final long photoId, final int thumbnailIndex) {
-        final FluxtreamCapturePhotoFacet photoFacet = jpaDaoService.findOne("fluxtream_capture.photo.byId", FluxtreamCapturePhotoFacet.class, uid, photoId);
+        final int index = (thumbnailIndex == 1 || thumbnailIndex == 2) ? thumbnailIndex : 0;
+        Object[] thumbnailHashes = jpaDaoService.findOne("fluxtream_capture.photo.thumbnailHashes.byId", Object[].class, uid, photoId);
+        if (thumbnailHashes == null) {
+            return null;
+        }
+        if (Boolean.TRUE.equals(thumbnailHashes[4])) {
+            // the photo was just uploaded, so wait for its thumbnails (creating them now if they aren't queued)
+            if (!awaitThumbnails(photoId)) {
+                return null;
+            }
+            thumbnailHashes = jpaDaoService.findOne("fluxtream_capture.photo.thumbnailHashes.byId", Object[].class, uid, photoId);
+            if (thumbnailHashes == null) {
+                return null;
+            }
+        }
 
-        if (photoFacet != null) {
-            return new Photo() {
-                @Override
-                public byte[] getPhotoBytes() {
-                    return photoFacet.getThumbnail(thumbnailIndex);
-                }
+        final Long timeUpdated = (Long)thumbnailHashes[0];
+        final String identifier = photoId + "/" + thumbnailIndex;
+        String thumbnailHash = (String)thumbnailHashes[index + 1];
 
-                @Override
-                public Long getLastUpdatedTimestamp() {
-                    return photoFacet.timeUpdated;
-                }
+        FilesystemKeyValueStore keyValueStore = null;
+        try {
+            keyValueStore = getFilesystemKeyValueStore();
+        }
+        catch (StorageException e) {
+            // already logged, the thumbnail will be read from the database
+        }
 
-                @NotNull
-                @Override
-                public String getIdentifier() {
-                    return photoId + "/" + thumbnailIndex;
-                }
+        if (thumbnailHash != null && keyValueStore != null && keyValueStore.hasKey(FluxtreamCapturePhoto.createThumbnailStoreKey(uid, thumbnailHash))) {
+            return new Thumbnail(uid, photoId, index, identifier, timeUpdated, thumbnailHash, keyValueStore);
+        }
 
-                @NotNull
-                @Override
-                public ImageType getImageType() {
-                    return ImageType.JPEG;   // thumbnails are always JPEGs
+        // the thumbnail isn't in the key-value store yet, so read it from the photo facet and store it there
+        final FluxtreamCapturePhotoFacet photoFacet = jpaDaoService.findOne("fluxtream_capture.photo.byId", FluxtreamCapturePhotoFacet.class, uid, photoId);
+        if (photoFacet == null) {
+            return null;
+        }
+
+        final byte[] thumbnailBytes = photoFacet.getThumbnail(index);
+        if (thumbnailBytes == null) {
+            // the thumbnails couldn't be created
+            return null;
+        }
+        try {
+            thumbnailHash = HashUtils.computeMd5Hash(thumbnailBytes);
+        }
+        catch (NoSuchAlgorithmException e) {
+            LOG.error("FluxtreamCapturePhotoStore.getPhotoThumbnail(): Failed to compute the hash of thumbnail [" + identifier + "]", e);
+            thumbnailHash = null;
+        }
+
+        if (thumbnailHash != null && keyValueStore != null) {
+            try {
+                final String thumbnailStoreKey = FluxtreamCapturePhoto.createThumbnailStoreKey(uid, thumbnailHash);
+                if (keyValueStore.hasKey(thumbnailStoreKey) || keyValueStore.set(thumbnailStoreKey, thumbnailBytes)) {
+                    jpaDaoService.execute("UPDATE Facet_FluxtreamCapturePhoto facet SET facet.thumbnail" + index + "Hash=? WHERE facet.id=?", thumbnailHash, photoId);
                 }
-            };
+            }
+            catch (Exception e) {
+                LOG.warn("FluxtreamCapturePhotoStore.getPhotoThumbnail(): Failed to copy thumbnail [" + identifier + "] to the key-value store: " + e.getMessage());
+            }
         }
 
-        return null;
+        final String hash = thumbnailHash;
+        return new Photo() {
+            @Override
+            public byte[] getPhotoBytes() {
+                return thumbnailBytes;
+            }
+
+            @Override
+            public Long getLastUpdatedTimestamp() {
+                return timeUpdated;
+            }
+
+            @NotNull
+            @Override
+            public String getIdentifier() {
+                return identifier;
+            }
+
+            @NotNull
+            @Override
+            public ImageType getImageType() {
+                return ImageType.JPEG;   // thumbnails are always JPEGs
+            }
+
+            @Override
+            public String getHash() {
+                return hash;
+            }
+        };
     }
 
     /**
@@ -243,7 +388,8 @@ public final class FluxtreamCapturePhotoStore {
             throw new InvalidDataException(message);
         }
 
-        // Create the FluxtreamCapturePhoto (this validates the photo, generates the hash and thumbnails, etc.)
+        // Create the FluxtreamCapturePhoto (this validates the photo, generates the hash, etc.).  The thumbnails are
+        // created in the background once the photo has been saved.
         final FluxtreamCapturePhoto photo;
         try {
             photo = new FluxtreamCapturePhoto(guestId, photoBytes, metadata);
@@ -290,6 +436,11 @@ public final class FluxtreamCapturePhotoStore {
             throw new StorageException(message);
         }
 
+        // the photo is durably stored, so its thumbnails can be created in the background
+        if (photoFacet.isThumbnailsPending()) {
+            scheduleThumbnails(photoFacet.getId());
+        }
+
         // make sure that we have a proper ChannelMapping for photos
         try {
             final ApiKey apiKey = guestService.getApiKey(apiKeyId);
@@ -330,6 +481,173 @@ public final class FluxtreamCapturePhotoStore {
         };
     }
 
+    /**
+     * Schedules the creation of the thumbnails of all the photos whose thumbnails are still pending, e.g. because the
+     * server was stopped before they were created.
+     *
+     * @return the number of photos whose thumbnails were scheduled
+     */
+    public int resumePendingThumbnails() {
+        final List<Long> photoFacetIds = jpaDaoService.find("fluxtream_capture.photo.thumbnailsPending", Long.class);
+        for (final Long photoFacetId : photoFacetIds) {
+            submitThumbnails(photoFacetId);
+        }
+        if (!photoFacetIds.isEmpty()) {
+            LOG.info("FluxtreamCapturePhotoStore.resumePendingThumbnails(): scheduled the thumbnails of " + photoFacetIds.size() + " photo(s)");
+        }
+        return photoFacetIds.size();
+    }
+
+    /**
+     * Creates the thumbnails of the given photo in the background, once the current transaction, if any, has
+     * committed.
+     */
+    private void scheduleThumbnails(final long photoFacetId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    submitThumbnails(photoFacetId);
+                }
+            });
+        }
+        else {
+            submitThumbnails(photoFacetId);
+        }
+    }
+
+    /**
+     * Queues the creation of the thumbnails of the given photo, unless it's already queued or in progress.  The
+     * thumbnail executor runs the task in the calling thread when its queue is full.
+     */
+    @NotNull
+    private Future<Boolean> submitThumbnails(final long photoFacetId) {
+        final FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    return createThumbnails(photoFacetId);
+                }
+                finally {
+                    thumbnailCreations.remove(photoFacetId);
+                }
+            }
+        });
+        final Future<Boolean> existingTask = thumbnailCreations.putIfAbsent(photoFacetId, task);
+        if (existingTask != null) {
+            return existingTask;
+        }
+        thumbnailExecutor.execute(task);
+        return task;
+    }
+
+    private boolean awaitThumbnails(final long photoFacetId) {
+        try {
+            return submitThumbnails(photoFacetId).get(THUMBNAIL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        catch (Exception e) {
+            LOG.error("FluxtreamCapturePhotoStore.awaitThumbnails(): Exception while waiting for the thumbnails of photo [" + photoFacetId + "]", e);
+            return false;
+        }
+    }
+
+    /**
+     * Creates the thumbnails of the given photo from the original in the key-value store, stores them there under
+     * their hashes and then publishes them on the photo facet.  Returns <code>true</code> if the photo's thumbnails
+     * are available.
+     */
+    private boolean createThumbnails(final long photoFacetId) {
+        final long then = System.currentTimeMillis();
+        try {
+            final FluxtreamCapturePhotoFacet photoFacet = transactionTemplate.execute(new TransactionCallback<FluxtreamCapturePhotoFacet>() {
+                @Override
+                public FluxtreamCapturePhotoFacet doInTransaction(final TransactionStatus status) {
+                    return em.find(FluxtreamCapturePhotoFacet.class, photoFacetId);
+                }
+            });
+            if (photoFacet == null) {
+                return false;
+            }
+            if (!photoFacet.isThumbnailsPending()) {
+                return true;
+            }
+
+            final FilesystemKeyValueStore keyValueStore = getFilesystemKeyValueStore();
+            final byte[] photoBytes = keyValueStore.get(photoFacet.getPhotoStoreKey());
+            if (photoBytes == null) {
+                LOG.error("FluxtreamCapturePhotoStore.createThumbnails(): photo [" + photoFacet.getPhotoStoreKey() + "] not found in the key-value store");
+                return false;
+            }
+
+            final FluxtreamCapturePhotoThumbnails thumbnails;
+            try {
+                thumbnails = FluxtreamCapturePhotoThumbnails.create(photoBytes);
+            }
+            catch (IOException e) {
+                return giveUpOnThumbnails(photoFacetId, photoFacet.getPhotoStoreKey(), e);
+            }
+            catch (RuntimeException e) {
+                // some image decoders fail on corrupt data with runtime exceptions
+                return giveUpOnThumbnails(photoFacetId, photoFacet.getPhotoStoreKey(), e);
+            }
+            for (int i = 0; i < FluxtreamCapturePhotoFacet.NUM_THUMBNAILS; i++) {
+                final String thumbnailStoreKey = FluxtreamCapturePhoto.createThumbnailStoreKey(photoFacet.getGuestId(), thumbnails.getThumbnailHash(i));
+                if (!keyValueStore.hasKey(thumbnailStoreKey) && !keyValueStore.set(thumbnailStoreKey, thumbnails.getThumbnail(i))) {
+                    // the facet has a copy of the thumbnails too, so this isn't fatal
+                    LOG.warn("FluxtreamCapturePhotoStore.createThumbnails(): thumbnail " + i + " of photo [" + photoFacet.getPhotoStoreKey() + "] could not be saved to the key-value store");
+                }
+            }
+
+            final boolean saved = transactionTemplate.execute(new TransactionCallback<Boolean>() {
+                @Override
+                public Boolean doInTransaction(final TransactionStatus status) {
+                    final FluxtreamCapturePhotoFacet pendingFacet = em.find(FluxtreamCapturePhotoFacet.class, photoFacetId);
+                    if (pendingFacet == null) {
+                        return false;
+                    }
+                    pendingFacet.setThumbnails(thumbnails);
+                    return true;
+                }
+            });
+            if (!saved) {
+                // the photo was deleted while its thumbnails were being created
+                final String[] thumbnailHashes = new String[FluxtreamCapturePhotoFacet.NUM_THUMBNAILS];
+                for (int i = 0; i < FluxtreamCapturePhotoFacet.NUM_THUMBNAILS; i++) {
+                    thumbnailHashes[i] = thumbnails.getThumbnailHash(i);
+                }
+                deleteUnsharedThumbnails(keyValueStore, photoFacet.getGuestId(), photoFacetId, thumbnailHashes);
+                return false;
+            }
+
+            if (LOG.isInfoEnabled()) {
+                LOG.info("FluxtreamCapturePhotoStore.createThumbnails(): thumbnails of photo [" + photoFacet.getPhotoStoreKey() + "] created in " + (System.currentTimeMillis() - then) + " ms");
+            }
+            return true;
+        }
+        catch (Exception e) {
+            LOG.error("FluxtreamCapturePhotoStore.createThumbnails(): Exception while creating the thumbnails of photo [" + photoFacetId + "]", e);
+            return false;
+        }
+    }
+
+    /**
+     * Marks the thumbnails of a photo that can't be decoded as failed, since decoding the same bytes again would fail
+     * the same way, and returns <code>false</code>.
+     */
+    private boolean giveUpOnThumbnails(final long photoFacetId, final String photoStoreKey, final Exception e) {
+        LOG.error("FluxtreamCapturePhotoStore.createThumbnails(): photo [" + photoStoreKey + "] could not be decoded, it will have no thumbnails", e);
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(final TransactionStatus status) {
+                final FluxtreamCapturePhotoFacet pendingFacet = em.find(FluxtreamCapturePhotoFacet.class, photoFacetId);
+                if (pendingFacet != null) {
+                    pendingFacet.setThumbnailsFailed();
+                }
+            }
+        });
+        return false;
+    }
+
     @NotNull
     private FilesystemKeyValueStore getFilesystemKeyValueStore() throws StorageException {
         try {
@@ -343,6 +661,68 @@ public final class FluxtreamCapturePhotoStore {
         }
     }
 
+    /**
+     * A thumbnail whose bytes are read from the key-value store on demand, so that answering a conditional request
+     * only requires its hash.
+     */
+    private final class Thumbnail implements Photo {
+        private final long guestId;
+        private final long photoId;
+        private final int thumbnailIndex;
+        @NotNull
+        private final String identifier;
+        @Nullable
+        private final Long timeUpdated;
+        @NotNull
+        private final String hash;
+        @NotNull
+        private final FilesystemKeyValueStore keyValueStore;
+
+        private Thumbnail(final long guestId, final long photoId, final int thumbnailIndex, @NotNull final String identifier,
+                          @Nullable final Long timeUpdated, @NotNull final String hash, @NotNull final FilesystemKeyValueStore keyValueStore) {
+            this.guestId = guestId;
+            this.photoId = photoId;
+            this.thumbnailIndex = thumbnailIndex;
+            this.identifier = identifier;
+            this.timeUpdated = timeUpdated;
+            this.hash = hash;
+            this.keyValueStore = keyValueStore;
+        }
+
+        @Override
+        public byte[] getPhotoBytes() {
+            final byte[] bytes = keyValueStore.get(FluxtreamCapturePhoto.createThumbnailStoreKey(guestId, hash));
+            if (bytes == null) {
+                // the file disappeared since the thumbnail was looked up, so fall back to the copy in the database
+                final FluxtreamCapturePhotoFacet photoFacet = jpaDaoService.findOne("fluxtream_capture.photo.byId", FluxtreamCapturePhotoFacet.class, guestId, photoId);
+                return photoFacet == null ? new byte[0] : photoFacet.getThumbnail(thumbnailIndex);
+            }
+            return bytes;
+        }
+
+        @Override
+        public Long getLastUpdatedTimestamp() {
+            return timeUpdated;
+        }
+
+        @NotNull
+        @Override
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        @NotNull
+        @Override
+        public ImageType getImageType() {
+            return ImageType.JPEG;   // thumbnails are always JPEGs
+        }
+
+        @Override
+        public String getHash() {
+            return hash;
+        }
+    }
+
     private static final class PhotoCreatorOrModifier implements ApiDataService.FacetModifier<FluxtreamCapturePhotoFacet> {
         @NotNull
         private final ApiDataService.FacetQuery facetFinderQuery;
@@ -0,0 +1,79 @@
+package org.fluxtream.core.connectors.fluxtream_capture;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import org.fluxtream.core.images.Image;
+import org.fluxtream.core.utils.HashUtils;
+import org.fluxtream.core.utils.ImageUtils;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>FluxtreamCapturePhotoThumbnails</code> holds the JPEG thumbnails of a Fluxtream Capture photo, along with
+ * their MD5 hashes, which are used both as their keys in the key-value store and as their ETags.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class FluxtreamCapturePhotoThumbnails {
+
+    // longest side of each thumbnail, in decreasing order so that each one can be scaled from the previous one
+    private static final int[] MAX_SIDE_LENGTHS_IN_PIXELS = {500, 300, 150};
+
+    /**
+     * Creates the thumbnails of the given photo.  The photo is only decoded once.
+     *
+     * @throws IOException if the thumbnails could not be created
+     * @throws NoSuchAlgorithmException if the MD5 algorithm is not available
+     */
+    @NotNull
+    static FluxtreamCapturePhotoThumbnails create(@NotNull final byte[] photoBytes) throws IOException, NoSuchAlgorithmException {
+        final Image[] images = ImageUtils.createJpegThumbnails(photoBytes, MAX_SIDE_LENGTHS_IN_PIXELS);
+        if (images == null) {
+            throw new IOException("Failed to create thumbnails");
+        }
+        return new FluxtreamCapturePhotoThumbnails(images);
+    }
+
+    @NotNull
+    private final byte[][] thumbnails = new byte[FluxtreamCapturePhotoFacet.NUM_THUMBNAILS][];
+
+    @NotNull
+    private final String[] thumbnailHashes = new String[FluxtreamCapturePhotoFacet.NUM_THUMBNAILS];
+
+    @NotNull
+    private final Dimension[] thumbnailSizes = new Dimension[FluxtreamCapturePhotoFacet.NUM_THUMBNAILS];
+
+    private FluxtreamCapturePhotoThumbnails(@NotNull final Image[] images) throws NoSuchAlgorithmException {
+        // the images are ordered from the largest to the smallest, whereas thumbnail0 is the smallest
+        for (int i = 0; i < FluxtreamCapturePhotoFacet.NUM_THUMBNAILS; i++) {
+            final Image image = images[images.length - 1 - i];
+            thumbnails[i] = image.getBytes();
+            thumbnailHashes[i] = HashUtils.computeMd5Hash(thumbnails[i]);
+            thumbnailSizes[i] = new Dimension(image.getWidth(), image.getHeight());
+        }
+    }
+
+    /** Returns the thumbnail associated with the given <code>thumbnailIndex</code>, or thumbnail0 if no such index exists. */
+    @NotNull
+    byte[] getThumbnail(final int thumbnailIndex) {
+        return thumbnails[normalize(thumbnailIndex)];
+    }
+
+    /** Returns the MD5 hash of the thumbnail associated with the given <code>thumbnailIndex</code>, or of thumbnail0 if no such index exists. */
+    @NotNull
+    String getThumbnailHash(final int thumbnailIndex) {
+        return thumbnailHashes[normalize(thumbnailIndex)];
+    }
+
+    /** Returns the size of the thumbnail associated with the given <code>thumbnailIndex</code>, or of thumbnail0 if no such index exists. */
+    @NotNull
+    Dimension getThumbnailSize(final int thumbnailIndex) {
+        return thumbnailSizes[normalize(thumbnailIndex)];
+    }
+
+    private static int normalize(final int thumbnailIndex) {
+        return (thumbnailIndex == 1 || thumbnailIndex == 2) ? thumbnailIndex : 0;
+    }
+}
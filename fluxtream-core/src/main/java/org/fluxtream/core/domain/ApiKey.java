@@ -33,6 +33,8 @@ import org.springframework.util.SerializationUtils;
    			query="SELECT apiKey FROM ApiKey apiKey WHERE apiKey.guestId=? AND apiKey.api=? ORDER BY apiKey.id DESC"),
     @NamedQuery( name="apiKeys.all.byApi",
    			query="SELECT apiKey FROM ApiKey apiKey WHERE apiKey.api=?"),
+	@NamedQuery( name="apiKeys.erasing",
+			query="SELECT apiKey FROM ApiKey apiKey WHERE apiKey.erasing=true"),
 	@NamedQuery( name="apiKey.byAttribute",
 			query="SELECT apiKey FROM ApiKey apiKey JOIN apiKey.attributes attr WHERE attr.attributeKey=? AND attr.attributeValue=?")
 })
@@ -76,6 +78,12 @@ public class ApiKey extends AbstractEntity {
     @Type(type="yes_no")
     public boolean synching;
 
+    /**
+     * Set when the connector has been removed and its data is being erased in the background
+     */
+    @Type(type="yes_no")
+    public boolean erasing;
+
     @Expose
 	@Index(name="api_index")
 	private int api;
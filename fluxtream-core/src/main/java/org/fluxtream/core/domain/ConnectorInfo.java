@@ -87,6 +87,25 @@ public class ConnectorInfo extends AbstractEntity implements Comparable<Connecto
     public ConnectorInfo() {
 	}
 
+    public ConnectorInfo(final ConnectorInfo other) {
+        setId(other.getId());
+        this.name = other.name;
+        this.count = other.count;
+        this.connectUrl = other.connectUrl;
+        this.image = other.image;
+        this.connectorName = other.connectorName;
+        this.supportsRenewTokens = other.supportsRenewTokens;
+        this.enabled = other.enabled;
+        this.manageable = other.manageable;
+        this.text = other.text;
+        this.channels = other.channels;
+        this.api = other.api;
+        this.renewTokensUrlTemplate = other.renewTokensUrlTemplate;
+        this.apiKeyAttributeKeys = other.apiKeyAttributeKeys;
+        this.supportsFileUpload = other.supportsFileUpload;
+        this.supportsSync = other.supportsSync;
+    }
+
     public String[] getApiKeyAttributesKeys() {
         if(apiKeyAttributeKeys!=null) {
             final String[] keys = StringUtils.split(apiKeyAttributeKeys, ",");
@@ -0,0 +1,56 @@
+package org.fluxtream.core.domain;
+
+import javax.persistence.Entity;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import org.hibernate.annotations.Index;
+
+/**
+ * One row per (facet, tag) pair: a normalized index of the comma-delimited {@link AbstractFacet#tags} column, so that
+ * {@link TagFilter}s can be evaluated without scanning the tags of all of a guest's facets.
+ *
+ * Facets are identified by their <code>api</code>, <code>objectType</code> and <code>id</code>, since facet ids are
+ * only unique within a facet table.
+ */
+@Entity(name = "FacetTags")
+@NamedQueries({
+  @NamedQuery(name = "facetTags.delete.byFacet",
+              query = "DELETE FROM FacetTags ft WHERE ft.api=? AND ft.objectType=? AND ft.facetId=?"),
+  @NamedQuery(name = "facetTags.delete.byApiKey",
+              query = "DELETE FROM FacetTags ft WHERE ft.apiKeyId=?"),
+  @NamedQuery(name = "facetTags.delete.byApiKey.andObjectType",
+              query = "DELETE FROM FacetTags ft WHERE ft.apiKeyId=? AND ft.objectType=?"),
+  @NamedQuery(name = "facetTags.delete.all",
+              query = "DELETE FROM FacetTags ft WHERE ft.guestId=?")
+})
+public class FacetTag extends AbstractEntity {
+
+    @Index(name = "guestId_name")
+    public long guestId;
+
+    @Index(name = "guestId_name")
+    public String name;
+
+    @Index(name = "apiKeyId")
+    public Long apiKeyId;
+
+    @Index(name = "facet")
+    public int api;
+
+    @Index(name = "facet")
+    public int objectType;
+
+    @Index(name = "facet")
+    public long facetId;
+
+    public FacetTag() {}
+
+    public FacetTag(final AbstractFacet facet, final String name) {
+        this.guestId = facet.guestId;
+        this.apiKeyId = facet.apiKeyId;
+        this.api = facet.api;
+        this.objectType = facet.objectType;
+        this.facetId = facet.getId();
+        this.name = name;
+    }
+}
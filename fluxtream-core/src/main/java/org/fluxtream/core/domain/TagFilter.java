@@ -142,8 +142,55 @@ public final class TagFilter {
         return filteringStrategy;
     }
 
+    /**
+     * Whether {@link #getWhereClause()} looks tags up in the {@link FacetTag} index rather than in the facets'
+     * {@link AbstractFacet#tags} column; only to be enabled once the index has been built for existing facets.
+     */
+    private static volatile boolean tagIndexEnabled = false;
+
+    public static void setTagIndexEnabled(final boolean enabled) {
+        tagIndexEnabled = enabled;
+    }
+
+    public static boolean isTagIndexEnabled() {
+        return tagIndexEnabled;
+    }
+
+    /**
+     * Returns a JPQL condition on a facet aliased <code>facet</code>, using the {@link FacetTag} index if it is
+     * {@link #setTagIndexEnabled(boolean) enabled}.
+     */
     @NotNull
     public String getWhereClause() {
+        return tagIndexEnabled ? getIndexedWhereClause() : getLikeWhereClause();
+    }
+
+    /**
+     * Returns a JPQL condition on a facet aliased <code>facet</code> which evaluates the filtering strategy as a set
+     * operation on the {@link FacetTag} index: facets having any of the tags, having all of them (as many distinct
+     * matching tags as there are tags in the filter), not having any of them, or not having any tag at all.
+     */
+    @NotNull
+    public String getIndexedWhereClause() {
+        final String facetTags = "SELECT ft.facetId FROM FacetTags ft WHERE ft.guestId=facet.guestId " +
+                                 "AND ft.api=facet.api AND ft.objectType=facet.objectType";
+        if (FilteringStrategy.UNTAGGED.equals(filteringStrategy)) {
+            return "facet.id NOT IN (" + facetTags + ")";
+        }
+        final String matchingFacetTags = facetTags + " AND ft.name IN ('" + StringUtils.join(tags, "','") + "')";
+        switch (filteringStrategy) {
+            case ANY:
+                return "facet.id IN (" + matchingFacetTags + ")";
+            case ALL:
+                return "facet.id IN (" + matchingFacetTags + " GROUP BY ft.facetId HAVING COUNT(DISTINCT ft.name)=" + tags.size() + ")";
+            case NONE:
+                return "facet.id NOT IN (" + matchingFacetTags + ")";
+        }
+        return "";
+    }
+
+    @NotNull
+    private String getLikeWhereClause() {
         List<String> likeClauses = null;
         if (!FilteringStrategy.UNTAGGED.equals(filteringStrategy)) {
             likeClauses = new ArrayList<String>();
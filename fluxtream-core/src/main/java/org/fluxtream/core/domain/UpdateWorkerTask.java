@@ -43,6 +43,9 @@ import org.hibernate.annotations.Index;
 		query = "SELECT updt FROM UpdateWorkerTask updt " +
                 "WHERE updt.status=?1 " +
                 "AND updt.timeScheduled<?2"),
+    @NamedQuery( name = "updateWorkerTasks.byClaimToken",
+        query = "SELECT updt FROM UpdateWorkerTask updt " +
+                "WHERE updt.claimToken=?"),
     @NamedQuery( name = "updateWorkerTasks.byStatus.andName",
    		query = "SELECT updt FROM UpdateWorkerTask updt " +
                    "WHERE updt.status=?1 AND connectorName=?2 " +
@@ -149,6 +152,10 @@ public class UpdateWorkerTask extends AbstractEntity {
 
     public Long startTime, endTime;
     public String workerThreadName;
+
+    // set while a server reads back the tasks it has just claimed
+    @Index(name="claimToken_index")
+    public String claimToken;
 	
 	public UpdateWorkerTask() {
     }
@@ -46,6 +46,7 @@ public class VisitedCity extends AbstractLocalTimeFacet implements Comparable<Vi
 
     public VisitedCity(final VisitedCity otherCity) {
         this.setId(otherCity.getId());
+        this.guestId = otherCity.guestId;
         this.locationSource = otherCity.locationSource;
         this.timeUpdated = otherCity.timeUpdated;
         this.api = otherCity.api;
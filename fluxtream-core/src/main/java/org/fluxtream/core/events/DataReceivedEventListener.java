@@ -1,7 +1,5 @@
 package org.fluxtream.core.events;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import org.fluxtream.core.aspects.FlxLogger;
 import org.fluxtream.core.connectors.Connector;
 import org.fluxtream.core.connectors.ObjectType;
@@ -75,20 +73,14 @@ public class DataReceivedEventListener implements EventListener<DataReceivedEven
             facetCreatedEvent.start = facet.start;
             facetCreatedEvent.end = facet.end;
             facetCreatedEvent.description = facet.fullTextDescription;
-            Runnable parseLog = new Runnable() {
-                public void run() {
-                    try {
-                        logger.info(sb.append(" message=\"logging to parse...\""));
-                        parse.create("FacetCreatedEvent", facetCreatedEvent);
-                    }
-                    catch (RestCallException e) {
-                        e.printStackTrace();
-                    }
-                }
-            };
-            ExecutorService executor = Executors.newSingleThreadExecutor();
-            executor.execute(parseLog);
-            executor.shutdown();
+            // this runs on the listener's own thread, so there's no need to hand the call off to yet another one
+            try {
+                logger.info(sb.append(" message=\"logging to parse...\""));
+                parse.create("FacetCreatedEvent", facetCreatedEvent);
+            }
+            catch (RestCallException e) {
+                e.printStackTrace();
+            }
         }
     }
 
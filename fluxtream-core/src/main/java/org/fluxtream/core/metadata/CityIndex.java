@@ -0,0 +1,198 @@
+package org.fluxtream.core.metadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.fluxtream.core.domain.metadata.City;
+
+/**
+ * In-memory spatial index of the <code>cities1000</code> table.
+ *
+ * Cities are projected onto the unit sphere and stored as a static, implicit 3-d tree over primitive coordinate
+ * arrays: the median of every sub-range sits at its middle, so no node objects are allocated.  Chord length on the
+ * unit sphere is monotonic with great-circle distance, which lets lookups prune on plain euclidean distances.
+ *
+ * Instances are immutable and safe to share between threads.
+ */
+public final class CityIndex {
+
+    /**
+     * Earth radius in miles, as used by the <code>cities1000</code> haversine query
+     */
+    public static final double EARTH_RADIUS_MILES = 3956d;
+
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] zs;
+    private final City[] cities;
+
+    public CityIndex(final List<City> cities) {
+        final int n = cities.size();
+        this.xs = new double[n];
+        this.ys = new double[n];
+        this.zs = new double[n];
+        this.cities = cities.toArray(new City[n]);
+        for (int i=0; i<n; i++) {
+            final City city = this.cities[i];
+            final double lat = Math.toRadians(city.geo_latitude);
+            final double lon = Math.toRadians(city.geo_longitude);
+            xs[i] = Math.cos(lat) * Math.cos(lon);
+            ys[i] = Math.cos(lat) * Math.sin(lon);
+            zs[i] = Math.sin(lat);
+        }
+        build(0, n, 0);
+    }
+
+    public int size() {
+        return cities.length;
+    }
+
+    /**
+     * Returns the city closest to the given point, or <code>null</code> if the index is empty
+     */
+    public City getClosestCity(final double latitude, final double longitude) {
+        final List<City> closest = getClosestCities(latitude, longitude, Double.MAX_VALUE, 1);
+        return closest.isEmpty() ? null : closest.get(0);
+    }
+
+    /**
+     * Returns at most <code>count</code> cities less than <code>dist</code> miles away from the given point, closest
+     * first
+     */
+    public List<City> getClosestCities(final double latitude, final double longitude, final double dist, final int count) {
+        if (count<=0 || cities.length==0)
+            return Collections.emptyList();
+        final double lat = Math.toRadians(latitude);
+        final double lon = Math.toRadians(longitude);
+        final double[] target = {Math.cos(lat) * Math.cos(lon), Math.cos(lat) * Math.sin(lon), Math.sin(lat)};
+
+        final Neighbors neighbors = new Neighbors(Math.min(count, cities.length), toSquaredChord(dist));
+        search(0, cities.length, 0, target, neighbors);
+
+        final List<City> result = new ArrayList<City>(neighbors.size);
+        for (int i=0; i<neighbors.size; i++)
+            result.add(cities[neighbors.indexes[i]]);
+        return result;
+    }
+
+    /**
+     * Returns the great-circle distance, in miles, between two points
+     */
+    public static double distance(final double lat1, final double lon1, final double lat2, final double lon2) {
+        final double sinLat = Math.sin(Math.toRadians(lat1 - lat2) / 2);
+        final double sinLon = Math.sin(Math.toRadians(lon1 - lon2) / 2);
+        final double a = sinLat * sinLat + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
+        return EARTH_RADIUS_MILES * 2 * Math.asin(Math.min(1d, Math.sqrt(a)));
+    }
+
+    private static double toSquaredChord(final double dist) {
+        // anything further than half the circumference is as far as it gets
+        if (dist >= Math.PI * EARTH_RADIUS_MILES)
+            return Double.MAX_VALUE;
+        final double chord = 2 * Math.sin(dist / (2 * EARTH_RADIUS_MILES));
+        return chord * chord;
+    }
+
+    private double coordinate(final int i, final int axis) {
+        switch (axis) {
+            case 0: return xs[i];
+            case 1: return ys[i];
+            default: return zs[i];
+        }
+    }
+
+    private void build(final int from, final int to, final int axis) {
+        if (to - from <= 1)
+            return;
+        final int mid = (from + to) >>> 1;
+        select(from, to - 1, mid, axis);
+        final int next = (axis + 1) % 3;
+        build(from, mid, next);
+        build(mid + 1, to, next);
+    }
+
+    /**
+     * Partially orders [<code>left</code>, <code>right</code>] so that the <code>k</code>th element is in its sorted
+     * position along <code>axis</code> (Hoare's quickselect)
+     */
+    private void select(int left, int right, final int k, final int axis) {
+        while (right > left) {
+            final double pivot = coordinate((left + right) >>> 1, axis);
+            int i = left, j = right;
+            while (i <= j) {
+                while (coordinate(i, axis) < pivot) i++;
+                while (coordinate(j, axis) > pivot) j--;
+                if (i <= j)
+                    swap(i++, j--);
+            }
+            if (k <= j)
+                right = j;
+            else if (k >= i)
+                left = i;
+            else
+                return;
+        }
+    }
+
+    private void swap(final int i, final int j) {
+        final double x = xs[i]; xs[i] = xs[j]; xs[j] = x;
+        final double y = ys[i]; ys[i] = ys[j]; ys[j] = y;
+        final double z = zs[i]; zs[i] = zs[j]; zs[j] = z;
+        final City city = cities[i]; cities[i] = cities[j]; cities[j] = city;
+    }
+
+    private void search(final int from, final int to, final int axis, final double[] target, final Neighbors neighbors) {
+        if (from >= to)
+            return;
+        final int mid = (from + to) >>> 1;
+        final double dx = xs[mid] - target[0];
+        final double dy = ys[mid] - target[1];
+        final double dz = zs[mid] - target[2];
+        neighbors.offer(mid, dx * dx + dy * dy + dz * dz);
+
+        final double delta = target[axis] - coordinate(mid, axis);
+        final int next = (axis + 1) % 3;
+        if (delta < 0) {
+            search(from, mid, next, target, neighbors);
+            if (delta * delta < neighbors.bound())
+                search(mid + 1, to, next, target, neighbors);
+        } else {
+            search(mid + 1, to, next, target, neighbors);
+            if (delta * delta < neighbors.bound())
+                search(from, mid, next, target, neighbors);
+        }
+    }
+
+    /**
+     * The <code>k</code> closest points found so far, kept sorted by distance (<code>k</code> is expected to be small)
+     */
+    private static final class Neighbors {
+        private final int[] indexes;
+        private final double[] distances;
+        private final double maxDistance;
+        private int size = 0;
+
+        private Neighbors(final int k, final double maxDistance) {
+            this.indexes = new int[k];
+            this.distances = new double[k];
+            this.maxDistance = maxDistance;
+        }
+
+        private double bound() {
+            return size < indexes.length ? maxDistance : distances[size - 1];
+        }
+
+        private void offer(final int index, final double distance) {
+            if (distance >= bound())
+                return;
+            int i = size < indexes.length ? size++ : size - 1;
+            while (i > 0 && distances[i - 1] > distance) {
+                indexes[i] = indexes[i - 1];
+                distances[i] = distances[i - 1];
+                i--;
+            }
+            indexes[i] = index;
+            distances[i] = distance;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.fluxtream.core.metadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import org.fluxtream.core.connectors.location.LocationFacet;
+import org.fluxtream.core.domain.metadata.VisitedCity;
+
+/**
+ * In-memory timeline of the cities a guest has visited: the <code>Facet_VisitedCity</code> rows of the guest, grouped
+ * by date, along with the consensus city of each date.
+ *
+ * Dates are kept in a sorted array so that the cities of a date, and the closest dates with known cities before and
+ * after it, are found by binary search; dates are also indexed by the start time of their first city to find the
+ * closest known date for an instant.  Instances are immutable and safe to share between threads, changes produce new
+ * timelines (see {@link #withDates(Collection, Collection)}).  The cities they hold are detached copies and must not be
+ * modified.
+ */
+public final class VisitedCityTimeline {
+
+    public static final VisitedCityTimeline EMPTY = new VisitedCityTimeline(new TreeMap<String, List<VisitedCity>>());
+
+    private static final Comparator<VisitedCity> BY_START = new Comparator<VisitedCity>() {
+        @Override
+        public int compare(final VisitedCity a, final VisitedCity b) {
+            return a.start<b.start ? -1 : (a.start==b.start ? 0 : 1);
+        }
+    };
+
+    private final String[] dates;
+    private final VisitedCity[][] cities;
+    private final VisitedCity[] consensusCities;
+    private final int cityCount;
+
+    // indexes of the dates, in the order of the start time of their first city
+    private final int[] datesByStart;
+    private final long[] firstStarts;
+
+    /**
+     * @param visitedCities the visited cities of a guest, in any order
+     */
+    public VisitedCityTimeline(final Collection<VisitedCity> visitedCities) {
+        this(groupByDate(visitedCities));
+    }
+
+    private VisitedCityTimeline(final TreeMap<String, List<VisitedCity>> citiesByDate) {
+        final int n = citiesByDate.size();
+        dates = new String[n];
+        cities = new VisitedCity[n][];
+        consensusCities = new VisitedCity[n];
+        int i = 0, count = 0;
+        for (Map.Entry<String, List<VisitedCity>> entry : citiesByDate.entrySet()) {
+            dates[i] = entry.getKey();
+            cities[i] = entry.getValue().toArray(new VisitedCity[entry.getValue().size()]);
+            Arrays.sort(cities[i], BY_START);
+            consensusCities[i] = getConsensusVisitedCity(Arrays.asList(cities[i]));
+            count += cities[i].length;
+            i++;
+        }
+        cityCount = count;
+
+        final Integer[] order = new Integer[n];
+        for (i=0; i<n; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b) {
+                return BY_START.compare(cities[a][0], cities[b][0]);
+            }
+        });
+        datesByStart = new int[n];
+        firstStarts = new long[n];
+        for (i=0; i<n; i++) {
+            datesByStart[i] = order[i];
+            firstStarts[i] = cities[order[i]][0].start;
+        }
+    }
+
+    private static TreeMap<String, List<VisitedCity>> groupByDate(final Collection<VisitedCity> visitedCities) {
+        final TreeMap<String, List<VisitedCity>> citiesByDate = new TreeMap<String, List<VisitedCity>>();
+        for (VisitedCity visitedCity : visitedCities) {
+            List<VisitedCity> citiesForDate = citiesByDate.get(visitedCity.date);
+            if (citiesForDate==null) {
+                citiesForDate = new ArrayList<VisitedCity>();
+                citiesByDate.put(visitedCity.date, citiesForDate);
+            }
+            citiesForDate.add(new VisitedCity(visitedCity));
+        }
+        return citiesByDate;
+    }
+
+    /**
+     * Returns a copy of this timeline where the cities of <code>dates</code> are replaced by
+     * <code>visitedCities</code>, the visited cities of these dates
+     */
+    public VisitedCityTimeline withDates(final Collection<String> dates, final Collection<VisitedCity> visitedCities) {
+        final TreeMap<String, List<VisitedCity>> citiesByDate = groupByDate(visitedCities);
+        for (int i=0; i<this.dates.length; i++) {
+            if (!dates.contains(this.dates[i]))
+                citiesByDate.put(this.dates[i], Arrays.asList(cities[i]));
+        }
+        return new VisitedCityTimeline(citiesByDate);
+    }
+
+    public int getDateCount() {
+        return dates.length;
+    }
+
+    public int getCityCount() {
+        return cityCount;
+    }
+
+    /**
+     * Returns the cities visited on <code>date</code>, ordered by start time
+     */
+    public List<VisitedCity> getCities(final String date) {
+        final int i = Arrays.binarySearch(dates, date);
+        if (i<0)
+            return new ArrayList<VisitedCity>();
+        return new ArrayList<VisitedCity>(Arrays.asList(cities[i]));
+    }
+
+    /**
+     * Returns the cities visited on any of <code>dates</code>, ordered by start time
+     */
+    public List<VisitedCity> getCities(final SortedSet<String> dates) {
+        final List<VisitedCity> result = new ArrayList<VisitedCity>();
+        if (dates.isEmpty())
+            return result;
+        int i = Arrays.binarySearch(this.dates, dates.first());
+        for (i = i<0 ? -i-1 : i; i<this.dates.length && this.dates[i].compareTo(dates.last())<=0; i++) {
+            if (dates.contains(this.dates[i]))
+                result.addAll(Arrays.asList(cities[i]));
+        }
+        Collections.sort(result, BY_START);
+        return result;
+    }
+
+    /**
+     * Returns the consensus city of the closest date before <code>date</code> with visited cities, or
+     * <code>null</code> if there is none
+     */
+    public VisitedCity getConsensusCityBefore(final String date) {
+        final int i = Arrays.binarySearch(dates, date);
+        final int before = (i<0 ? -i-1 : i) - 1;
+        return before>=0 ? consensusCities[before] : null;
+    }
+
+    /**
+     * Returns the consensus city of the closest date after <code>date</code> with visited cities, or
+     * <code>null</code> if there is none
+     */
+    public VisitedCity getConsensusCityAfter(final String date) {
+        final int i = Arrays.binarySearch(dates, date);
+        final int after = i<0 ? -i-1 : i+1;
+        return after<dates.length ? consensusCities[after] : null;
+    }
+
+    /**
+     * Returns the latest date whose first city was visited before <code>time</code>, or, if there is none, the earliest
+     * date with visited cities; returns <code>null</code> if the timeline is empty
+     */
+    public String getClosestDate(final long time) {
+        if (dates.length==0)
+            return null;
+        int i = Arrays.binarySearch(firstStarts, time);
+        if (i<0)
+            i = -i-1;
+        // skip to the first date that starts at or after time
+        while (i>0 && firstStarts[i-1]==time)
+            i--;
+        return dates[datesByStart[i>0 ? i-1 : 0]];
+    }
+
+    /**
+     * Returns the city the user has chosen for the day if there is one, otherwise the city where the most time was
+     * spent, or <code>null</code> if <code>cities</code> is empty
+     */
+    public static VisitedCity getConsensusVisitedCity(final List<VisitedCity> cities) {
+        VisitedCity consensusCity = null;
+        for (VisitedCity city : cities) {
+            if (city.locationSource==LocationFacet.Source.USER)
+                return city;
+            if (consensusCity==null || city.end-city.start > consensusCity.end-consensusCity.start)
+                consensusCity = city;
+        }
+        return consensusCity;
+    }
+}
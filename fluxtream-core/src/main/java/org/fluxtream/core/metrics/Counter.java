@@ -0,0 +1,58 @@
+package org.fluxtream.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that only goes up, like the number of facets persisted.  Rates are computed by whoever scrapes it.
+ */
+public final class Counter extends Metric<Counter.Child> {
+
+    public static final class Child {
+        private final AtomicLong value = new AtomicLong();
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void inc(final long amount) {
+            if (amount<0)
+                throw new IllegalArgumentException("Counters can't be decremented");
+            value.addAndGet(amount);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    Counter(final String name, final String help, final String[] labelNames) {
+        super(name, help, labelNames);
+    }
+
+    public void inc() {
+        noLabels().inc();
+    }
+
+    public void inc(final long amount) {
+        noLabels().inc(amount);
+    }
+
+    public long get() {
+        return noLabels().get();
+    }
+
+    @Override
+    Child newChild() {
+        return new Child();
+    }
+
+    @Override
+    String type() {
+        return "counter";
+    }
+
+    @Override
+    void writeSamples(final StringBuilder out, final String labels, final Child child) {
+        MetricsRegistry.writeSample(out, name, labels, child.get());
+    }
+}
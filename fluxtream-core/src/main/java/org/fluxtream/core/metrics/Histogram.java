@@ -0,0 +1,96 @@
+package org.fluxtream.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of observed values, typically durations in milliseconds, counted in fixed buckets.
+ *
+ * Each bucket is written out with the count of the observations that were less than or equal to its upper bound
+ * (the <code>le</code> label), followed by the sum and count of all observations, from which scrapers derive
+ * averages and quantiles.
+ */
+public final class Histogram extends Metric<Histogram.Child> {
+
+    /** Bucket upper bounds suited to durations in milliseconds, from a millisecond to a minute */
+    public static final long[] MILLISECOND_BUCKETS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    private final long[] bucketBounds;
+
+    public final class Child {
+        // the last bucket counts the observations above all bounds
+        private final AtomicLongArray buckets = new AtomicLongArray(bucketBounds.length+1);
+        private final AtomicLong sum = new AtomicLong();
+
+        public void observe(final long value) {
+            int i = 0;
+            while (i<bucketBounds.length && value>bucketBounds[i])
+                i++;
+            buckets.incrementAndGet(i);
+            sum.addAndGet(value);
+        }
+
+        /**
+         * Observes the time elapsed since <code>start</code>, a value of {@link System#currentTimeMillis()}
+         */
+        public void observeSince(final long start) {
+            observe(System.currentTimeMillis()-start);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i=0; i<buckets.length(); i++)
+                count += buckets.get(i);
+            return count;
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+    }
+
+    Histogram(final String name, final String help, final long[] bucketBounds, final String[] labelNames) {
+        super(name, help, checkLabelNames(labelNames));
+        this.bucketBounds = bucketBounds.clone();
+    }
+
+    private static String[] checkLabelNames(final String[] labelNames) {
+        for (String labelName : labelNames) {
+            if ("le".equals(labelName))
+                throw new IllegalArgumentException("le is reserved for the histogram buckets");
+        }
+        return labelNames;
+    }
+
+    public void observe(final long value) {
+        noLabels().observe(value);
+    }
+
+    public void observeSince(final long start) {
+        noLabels().observeSince(start);
+    }
+
+    @Override
+    Child newChild() {
+        return new Child();
+    }
+
+    @Override
+    String type() {
+        return "histogram";
+    }
+
+    @Override
+    void writeSamples(final StringBuilder out, final String labels, final Child child) {
+        final String prefix = labels.length()==0 ? "" : labels + ",";
+        long cumulated = 0;
+        for (int i=0; i<bucketBounds.length; i++) {
+            cumulated += child.buckets.get(i);
+            MetricsRegistry.writeSample(out, name + "_bucket", prefix + "le=\"" + bucketBounds[i] + "\"", cumulated);
+        }
+        cumulated += child.buckets.get(bucketBounds.length);
+        MetricsRegistry.writeSample(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulated);
+        MetricsRegistry.writeSample(out, name + "_sum", labels, child.getSum());
+        MetricsRegistry.writeSample(out, name + "_count", labels, cumulated);
+    }
+}
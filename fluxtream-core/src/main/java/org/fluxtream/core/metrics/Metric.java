@@ -0,0 +1,71 @@
+package org.fluxtream.core.metrics;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A named metric, made of one child per combination of label values, which holds the actual measurements.
+ *
+ * Children are created on first use and live as long as the metric, so label values must come from small, fixed
+ * sets (connector names, endpoints...), never from guest ids or dates.
+ */
+public abstract class Metric<C> {
+
+    final String name;
+    final String help;
+    final String[] labelNames;
+
+    private final Map<List<String>, C> children = new ConcurrentHashMap<List<String>, C>();
+    private volatile C noLabelsChild;
+
+    Metric(final String name, final String help, final String[] labelNames) {
+        this.name = name;
+        this.help = help;
+        this.labelNames = labelNames.clone();
+    }
+
+    /**
+     * Returns the child for the given label values, in the order of the metric's label names
+     */
+    public C labels(final String... labelValues) {
+        if (labelValues.length!=labelNames.length)
+            throw new IllegalArgumentException("Metric " + name + " expects " + labelNames.length + " label values, got " + labelValues.length);
+        final List<String> key = Arrays.asList(labelValues);
+        C child = children.get(key);
+        if (child==null) {
+            synchronized (children) {
+                child = children.get(key);
+                if (child==null) {
+                    child = newChild();
+                    children.put(key, child);
+                }
+            }
+        }
+        return child;
+    }
+
+    C noLabels() {
+        C child = noLabelsChild;
+        if (child==null) {
+            if (labelNames.length>0)
+                throw new IllegalStateException("Metric " + name + " has labels " + Arrays.toString(labelNames));
+            child = labels();
+            noLabelsChild = child;
+        }
+        return child;
+    }
+
+    abstract C newChild();
+
+    abstract String type();
+
+    abstract void writeSamples(StringBuilder out, String labels, C child);
+
+    void write(final StringBuilder out) {
+        MetricsRegistry.writeHeader(out, name, help, type());
+        for (Map.Entry<List<String>, C> child : children.entrySet())
+            writeSamples(out, MetricsRegistry.formatLabels(labelNames, child.getKey()), child.getValue());
+    }
+}
@@ -0,0 +1,222 @@
+package org.fluxtream.core.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import org.fluxtream.core.aspects.FlxLogger;
+
+/**
+ * Embedded registry of the counters, histograms and gauges measuring this server, written out in the Prometheus text
+ * exposition format (version 0.0.4) by the <code>/v1/admin/metrics</code> endpoint.
+ *
+ * Metrics are meant to be created once and kept in static fields, e.g.
+ * <pre>
+ *   private static final Counter PERSISTED = MetricsRegistry.getDefault().counter("flx_facets_persisted_total",
+ *                                                                                 "Facets persisted", "connector");
+ *   ...
+ *   PERSISTED.labels(connectorName).inc();
+ * </pre>
+ * Recording a measurement only updates atomic longs, without locking.
+ */
+public final class MetricsRegistry {
+
+    private static final FlxLogger logger = FlxLogger.getLogger(MetricsRegistry.class);
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private static final Pattern NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+    private static final Pattern LABEL_NAME = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+
+    /**
+     * A value computed when the metrics are written out, e.g. the size of a queue
+     */
+    public interface Value {
+        double get();
+    }
+
+    private final Map<String, Object> metrics = new TreeMap<String, Object>();
+
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public Counter counter(final String name, final String help, final String... labelNames) {
+        return register(new Counter(name, help, labelNames), Counter.class);
+    }
+
+    public Histogram histogram(final String name, final String help, final String... labelNames) {
+        return histogram(name, help, Histogram.MILLISECOND_BUCKETS, labelNames);
+    }
+
+    public Histogram histogram(final String name, final String help, final long[] bucketBounds, final String... labelNames) {
+        return register(new Histogram(name, help, bucketBounds, labelNames), Histogram.class);
+    }
+
+    /**
+     * Registers a value that can go up and down, replacing any value previously registered under that name
+     */
+    public void gauge(final String name, final String help, final Value value) {
+        registerValue(new ValueMetric(name, help, "gauge", value));
+    }
+
+    /**
+     * Registers a count that is maintained elsewhere (e.g. the hits of a cache), replacing any value previously
+     * registered under that name
+     */
+    public void counterValue(final String name, final String help, final Value value) {
+        registerValue(new ValueMetric(name, help, "counter", value));
+    }
+
+    /**
+     * Returns all the metrics in the Prometheus text format, ordered by name
+     */
+    public String scrape() {
+        final List<Object> snapshot;
+        synchronized (metrics) {
+            snapshot = new ArrayList<Object>(metrics.values());
+        }
+        final StringBuilder out = new StringBuilder(snapshot.size()*256);
+        for (Object metric : snapshot) {
+            if (metric instanceof Metric)
+                ((Metric<?>) metric).write(out);
+            else
+                ((ValueMetric) metric).write(out);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Registering the same metric again (e.g. from the field initializer of a prototype bean) returns the existing
+     * one
+     */
+    private <M extends Metric<?>> M register(final M metric, final Class<M> type) {
+        checkNames(metric.name, metric.labelNames);
+        synchronized (metrics) {
+            final Object existing = metrics.get(metric.name);
+            if (existing==null) {
+                metrics.put(metric.name, metric);
+                // metrics without labels are written out even before their first measurement
+                if (metric.labelNames.length==0)
+                    metric.noLabels();
+                return metric;
+            }
+            if (existing.getClass()!=type)
+                throw new IllegalArgumentException("Metric " + metric.name + " is already registered as a " + existing.getClass().getSimpleName());
+            return type.cast(existing);
+        }
+    }
+
+    private void registerValue(final ValueMetric metric) {
+        checkNames(metric.name, new String[0]);
+        synchronized (metrics) {
+            final Object existing = metrics.get(metric.name);
+            if (existing!=null && !(existing instanceof ValueMetric))
+                throw new IllegalArgumentException("Metric " + metric.name + " is already registered as a " + existing.getClass().getSimpleName());
+            metrics.put(metric.name, metric);
+        }
+    }
+
+    private static void checkNames(final String name, final String[] labelNames) {
+        if (name==null || !NAME.matcher(name).matches())
+            throw new IllegalArgumentException("Invalid metric name: " + name);
+        for (String labelName : labelNames) {
+            if (labelName==null || !LABEL_NAME.matcher(labelName).matches() || labelName.startsWith("__"))
+                throw new IllegalArgumentException("Invalid label name for metric " + name + ": " + labelName);
+        }
+    }
+
+    private static final class ValueMetric {
+        final String name;
+        final String help;
+        final String type;
+        final Value value;
+
+        ValueMetric(final String name, final String help, final String type, final Value value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+
+        void write(final StringBuilder out) {
+            final double current;
+            try {
+                current = value.get();
+            }
+            catch (Throwable t) {
+                // a failing value must not prevent the others from being scraped
+                logger.warn("module=metrics component=metricsRegistry action=scrape metric=" + name + " message=\"" + t.getMessage() + "\"");
+                return;
+            }
+            writeHeader(out, name, help, type);
+            writeSample(out, name, "", current);
+        }
+    }
+
+    static void writeHeader(final StringBuilder out, final String name, final String help, final String type) {
+        out.append("# HELP ").append(name).append(' ');
+        for (int i=0; i<help.length(); i++) {
+            final char c = help.charAt(i);
+            if (c=='\\')
+                out.append("\\\\");
+            else if (c=='\n')
+                out.append("\\n");
+            else
+                out.append(c);
+        }
+        out.append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static void writeSample(final StringBuilder out, final String name, final String labels, final long value) {
+        out.append(name);
+        if (labels.length()>0)
+            out.append('{').append(labels).append('}');
+        out.append(' ').append(value).append('\n');
+    }
+
+    static void writeSample(final StringBuilder out, final String name, final String labels, final double value) {
+        out.append(name);
+        if (labels.length()>0)
+            out.append('{').append(labels).append('}');
+        out.append(' ');
+        if (Double.isNaN(value))
+            out.append("NaN");
+        else if (Double.isInfinite(value))
+            out.append(value>0 ? "+Inf" : "-Inf");
+        else if (value==Math.rint(value) && Math.abs(value)<1e15)
+            out.append((long) value);
+        else
+            out.append(value);
+        out.append('\n');
+    }
+
+    static String formatLabels(final String[] labelNames, final List<String> labelValues) {
+        if (labelNames.length==0)
+            return "";
+        final StringBuilder labels = new StringBuilder();
+        for (int i=0; i<labelNames.length; i++) {
+            if (i>0)
+                labels.append(',');
+            labels.append(labelNames[i]).append("=\"");
+            final String labelValue = labelValues.get(i);
+            if (labelValue!=null) {
+                for (int j=0; j<labelValue.length(); j++) {
+                    final char c = labelValue.charAt(j);
+                    if (c=='\\')
+                        labels.append("\\\\");
+                    else if (c=='"')
+                        labels.append("\\\"");
+                    else if (c=='\n')
+                        labels.append("\\n");
+                    else
+                        labels.append(c);
+                }
+            }
+            labels.append('"');
+        }
+        return labels.toString();
+    }
+}
@@ -0,0 +1,36 @@
+package org.fluxtream.core.mvc.models;
+
+import java.util.ArrayList;
+import java.util.List;
+import com.wordnik.swagger.annotations.ApiModelProperty;
+import org.fluxtream.core.connectors.vos.AbstractFacetVO;
+import org.fluxtream.core.domain.AbstractFacet;
+
+public class SearchResultsModel {
+
+    @ApiModelProperty(value="Total number of facets matching the query", required=true)
+    public int totalHits;
+
+    @ApiModelProperty(value="Cursor to pass to get the next page of hits, absent if this is the last page")
+    public String cursor;
+
+    @ApiModelProperty(value="Matching facets, most relevant first", required=true)
+    public List<SearchHitModel> hits = new ArrayList<SearchHitModel>();
+
+    public static class SearchHitModel {
+
+        @ApiModelProperty(value="The facet's type (<connectorName>-<objectTypeName>)", required=true)
+        public String type;
+
+        @ApiModelProperty(value="Relevance of the facet to the query", required=true)
+        public float score;
+
+        public AbstractFacetVO<AbstractFacet> facet;
+
+        public SearchHitModel(final String type, final float score, final AbstractFacetVO<AbstractFacet> facet) {
+            this.type = type;
+            this.score = score;
+            this.facet = facet;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.fluxtream.core.mvc.models.admin;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import org.apache.commons.lang.StringUtils;
 import org.fluxtream.core.Configuration;
 import org.fluxtream.core.connectors.Connector;
 import org.fluxtream.core.domain.ApiKey;
@@ -35,11 +36,12 @@ public class ConnectorInstanceModelFactory {
         final Map<String, String> attributes = guestService.getApiKeyAttributes(apiKey.getId());
         model.put("connectorName", connector.getName());
         model.put("attributes", attributes);
-        String rateLimitString = (String) env.connectors.getProperty(connector.getName()
-                                                                     + ".rateLimit");
-        if (rateLimitString == null)
-            rateLimitString = (String) env.connectors.getProperty("rateLimit");
-        model.put("rateLimitSpecs", rateLimitString);
+        String[] rateLimitSpecs = env.connectors.getStringArray(connector.getName() + ".rateLimit");
+        if (rateLimitSpecs.length == 0)
+            rateLimitSpecs = env.connectors.getStringArray("rateLimit");
+        model.put("rateLimitSpecs", StringUtils.join(rateLimitSpecs, ","));
+        // quota usage is reported against the first specification
+        final String rateLimitString = rateLimitSpecs[0];
         final String auditTrail = checkForErrors(apiKey);
         ApiKey.Status status = apiKey.getStatus();
         // Treat status=null as STATUS_UP
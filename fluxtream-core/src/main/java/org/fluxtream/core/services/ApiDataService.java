@@ -88,6 +88,12 @@ public interface ApiDataService {
 
     public AbstractFacet persistFacet(AbstractFacet facet);
 
+    /**
+     * Persists a batch of facets, skipping those that are already stored (same guest, apiKey, start and end) or
+     * duplicated within the batch.  Returns the facets that were actually persisted, in their original order.
+     */
+    public List<AbstractFacet> persistFacets(List<? extends AbstractFacet> facets);
+
     public void persistExistingFacet(final AbstractFacet facet);
 
     // addGuestLocation(s) persists the location or list of locations and adds them to the visited cities
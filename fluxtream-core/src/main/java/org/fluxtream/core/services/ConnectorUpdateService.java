@@ -46,6 +46,15 @@ public interface ConnectorUpdateService {
     public List<ScheduleResult> updateAllConnectors(long guestId, boolean force);
     public List<ScheduleResult> updateAllConnectors(final long guestId, boolean force, long updateTime);
 
+    /**
+     * Schedules the updates of all the connectors of the guests of a shard (the guests whose id modulo
+     * <code>shardCount</code> is <code>shardIndex</code>) that aren't already scheduled, with a handful of set-based
+     * queries rather than queries per guest and connector. The guests' updates are spaced evenly over
+     * <code>timespan</code> milliseconds from <code>startTime</code>.
+     * @return the number of updates that were scheduled
+     */
+    public int scheduleIncrementalUpdates(int shardIndex, int shardCount, long startTime, long timespan);
+
     public List<ApiUpdate> getUpdates(ApiKey apiKey, int pageSize, int page);
 
 	public void addUpdater(Connector connector, AbstractUpdater updater);
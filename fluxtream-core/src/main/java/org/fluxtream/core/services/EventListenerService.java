@@ -1,5 +1,6 @@
 package org.fluxtream.core.services;
 
+import java.util.List;
 import org.fluxtream.core.domain.Event;
 import org.fluxtream.core.events.EventListener;
 
@@ -9,8 +10,45 @@ import org.fluxtream.core.events.EventListener;
  */
 public interface EventListenerService {
 
+    /**
+     * When events are handed to a listener. Either way, each listener handles its events one at a time, in the order
+     * they were fired, on a thread of its own, so that firing an event never waits for its listeners.
+     */
+    enum Delivery {
+        /** as soon as the event is fired */
+        ASYNCHRONOUS,
+        /**
+         * once the transaction in which the event was fired has committed, and not at all if it rolls back; events
+         * that are fired outside of a transaction are delivered immediately
+         */
+        AFTER_COMMIT
+    }
+
+    /**
+     * Delivery statistics of a listener
+     */
+    final class ListenerStats {
+        public String listener;
+        public Delivery delivery;
+        public int queueDepth;
+        public int queueCapacity;
+        public long delivered;
+        public long failed;
+        public long dropped;
+        public double meanDelayMillis;
+        public double meanLatencyMillis;
+        public double maxLatencyMillis;
+    }
+
+    /**
+     * Registers an {@link Delivery#ASYNCHRONOUS} listener
+     */
     public <T extends Event> void addEventListener(Class<T> eventClass, EventListener<T> listener);
 
+    public <T extends Event> void addEventListener(Class<T> eventClass, EventListener<T> listener, Delivery delivery);
+
     public void fireEvent(Event event);
 
+    public List<ListenerStats> getListenerStats();
+
 }
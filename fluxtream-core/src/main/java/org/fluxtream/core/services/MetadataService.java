@@ -50,6 +50,13 @@ public interface MetadataService {
     List<City> getClosestCities(double latitude, double longitude,
                                 double dist);
 
+    /**
+     * Returns at most <code>count</code> cities less than <code>dist</code> miles away from the given point,
+     * closest first
+     */
+    List<City> getClosestCities(double latitude, double longitude,
+                                double dist, int count);
+
     List<WeatherInfo> getWeatherInfo(double latitude, double longitude,
                                      String date);
 
@@ -0,0 +1,37 @@
+package org.fluxtream.core.services;
+
+import org.fluxtream.core.connectors.Connector;
+import org.fluxtream.core.domain.ApiKey;
+
+/**
+ * Token buckets enforcing the API rate limits of connectors, as specified in <code>connectors.properties</code>
+ * (<code>&lt;connector&gt;.rateLimit</code>, falling back to <code>rateLimit</code>). A specification is a
+ * comma-separated list of <code>calls/millis</code> (for all the users of a connector) and
+ * <code>calls/millis/user</code> (for each of its api keys) limits.
+ */
+public interface RateLimiterService {
+
+    /**
+     * Takes a permit to call the api of the given key's connector, if both the connector-wide and the api key's
+     * limits allow it
+     * @return <code>false</code> if a rate limit has been reached
+     */
+    public boolean tryAcquire(ApiKey apiKey);
+
+    /**
+     * Returns the time, in milliseconds, at which {@link #tryAcquire(ApiKey)} should next succeed for the given key
+     */
+    public long getNextPermitTime(ApiKey apiKey);
+
+    /**
+     * Refuses permits for the given api key until <code>resetTime</code>, e.g. after the api reported that its quota
+     * was exhausted
+     */
+    public void setRateLimitedUntil(ApiKey apiKey, long resetTime);
+
+    /**
+     * Refuses permits for all the api keys of the given connector until <code>resetTime</code>
+     */
+    public void setRateLimitedUntil(Connector connector, long resetTime);
+
+}
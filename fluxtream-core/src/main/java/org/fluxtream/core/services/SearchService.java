@@ -0,0 +1,100 @@
+package org.fluxtream.core.services;
+
+import java.util.Collection;
+import java.util.List;
+import org.fluxtream.core.connectors.Connector;
+import org.fluxtream.core.connectors.ObjectType;
+import org.fluxtream.core.domain.AbstractFacet;
+import org.fluxtream.core.domain.ApiKey;
+import org.fluxtream.core.domain.TagFilter;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Full-text search over the {@link AbstractFacet#fullTextDescription} of a guest's facets, across all connectors.
+ *
+ * @see org.fluxtream.core.api.SearchController
+ */
+public interface SearchService {
+
+    /**
+     * A facet matching a search, in decreasing order of relevance
+     */
+    final class SearchHit {
+        public final int api;
+        public final int objectType;
+        public final long facetId;
+        public final long start;
+        public final long end;
+        public final float score;
+
+        public SearchHit(final int api, final int objectType, final long facetId,
+                         final long start, final long end, final float score) {
+            this.api = api;
+            this.objectType = objectType;
+            this.facetId = facetId;
+            this.start = start;
+            this.end = end;
+            this.score = score;
+        }
+    }
+
+    /**
+     * A page of search hits; <code>cursor</code> is <code>null</code> if there are no more hits
+     */
+    final class SearchResults {
+        public final int totalHits;
+        public final List<SearchHit> hits;
+        public final String cursor;
+
+        public SearchResults(final int totalHits, final List<SearchHit> hits, @Nullable final String cursor) {
+            this.totalHits = totalHits;
+            this.hits = hits;
+            this.cursor = cursor;
+        }
+    }
+
+    public boolean isEnabled();
+
+    /**
+     * Returns a page of the facets of a guest whose description matches <code>query</code>
+     * @param start if positive, only facets ending after this time are returned
+     * @param end if positive, only facets starting before this time are returned
+     * @param connectors if not empty, only facets of these connectors are returned
+     * @param tagFilter if not null, only facets whose tags match it are returned
+     * @param cursor the cursor of the previous page, if any
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    public SearchResults search(long guestId, String query, long start, long end, @Nullable Collection<Connector> connectors,
+                                @Nullable TagFilter tagFilter, @Nullable String cursor, int pageSize) throws IllegalArgumentException;
+
+    /**
+     * Adds (or updates) facets to the index once the current transaction, if any, has committed
+     */
+    public void index(Collection<? extends AbstractFacet> facets);
+
+    /**
+     * Removes facets from the index once the current transaction, if any, has committed
+     */
+    public void delete(Collection<? extends AbstractFacet> facets);
+
+    public void deleteAll(ApiKey apiKey);
+
+    public void deleteAll(ApiKey apiKey, ObjectType objectType);
+
+    /**
+     * Deletes a guest's index altogether
+     */
+    public void deleteIndex(long guestId);
+
+    /**
+     * Rebuilds a guest's index from the database
+     * @return the number of facets that were indexed
+     */
+    public int rebuild(long guestId);
+
+    /**
+     * Rebuilds a guest's index in the background, unless it is already being rebuilt
+     */
+    public void scheduleRebuild(long guestId);
+
+}
@@ -0,0 +1,113 @@
+package org.fluxtream.core.services.impl;
+
+/**
+ * The number of update workers a connector may use at the same time, adjusted with an AIMD
+ * (additive-increase/multiplicative-decrease) policy:
+ * <ul>
+ * <li>every task that completes in reasonable time raises the limit by <code>1/limit</code>, i.e. by about one
+ * worker per "round" of tasks;</li>
+ * <li>a task that hit the connector's rate limit halves it;</li>
+ * <li>a task that took more than {@link #LATENCY_TOLERANCE} times the connector's average time lowers it by 10%.</li>
+ * </ul>
+ * Decreases happen at most once per cooldown period, so that a burst of throttled tasks that were all started under
+ * the same limit only counts once.
+ */
+public final class AdaptiveConcurrencyLimit {
+
+    static final double THROTTLED_DECREASE_FACTOR = 0.5;
+    static final double LATENCY_DECREASE_FACTOR = 0.9;
+    static final double LATENCY_TOLERANCE = 4;
+    static final double LATENCY_SMOOTHING = 0.1;
+    static final int LATENCY_WARMUP_SAMPLES = 10;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long cooldown;
+
+    private double limit;
+    private int inFlight = 0;
+    private double averageLatency = 0;
+    private long completed = 0;
+    private long throttled = 0;
+    private long lastDecrease = Long.MIN_VALUE;
+
+    /**
+     * @throws IllegalArgumentException If the limits are not such that 1 &lt;= min &lt;= initial &lt;= max
+     */
+    public AdaptiveConcurrencyLimit(final int initialLimit, final int minLimit, final int maxLimit, final long cooldown)
+            throws IllegalArgumentException {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit)
+            throw new IllegalArgumentException("Expected 1 <= minLimit <= initialLimit <= maxLimit");
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.cooldown = cooldown;
+    }
+
+    /**
+     * Returns how many more tasks may be started right now
+     */
+    public synchronized int getAvailablePermits() {
+        return Math.max(0, getLimit() - inFlight);
+    }
+
+    public synchronized void acquire() {
+        inFlight++;
+    }
+
+    /**
+     * Gives back a permit obtained with {@link #acquire()} for a task that never ran
+     */
+    public synchronized void cancel() {
+        inFlight = Math.max(0, inFlight - 1);
+    }
+
+    /**
+     * Reports the completion of a task that was started with {@link #acquire()}
+     * @param latency how long the task took, in milliseconds
+     * @param wasThrottled whether the task hit the connector's rate limit
+     * @param now the current time, in milliseconds
+     */
+    public synchronized void release(final long latency, final boolean wasThrottled, final long now) {
+        inFlight = Math.max(0, inFlight - 1);
+        completed++;
+        if (wasThrottled) {
+            throttled++;
+            decrease(THROTTLED_DECREASE_FACTOR, now);
+            return;
+        }
+        final boolean slow = completed > LATENCY_WARMUP_SAMPLES && latency > averageLatency * LATENCY_TOLERANCE;
+        averageLatency = completed == 1 ? latency : averageLatency + LATENCY_SMOOTHING * (latency - averageLatency);
+        if (slow)
+            decrease(LATENCY_DECREASE_FACTOR, now);
+        else
+            limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+
+    private void decrease(final double factor, final long now) {
+        if (lastDecrease != Long.MIN_VALUE && now - lastDecrease < cooldown)
+            return;
+        limit = Math.max(minLimit, limit * factor);
+        lastDecrease = now;
+    }
+
+    public synchronized int getLimit() {
+        return (int) Math.floor(limit);
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getAverageLatency() {
+        return Math.round(averageLatency);
+    }
+
+    public synchronized long getCompleted() {
+        return completed;
+    }
+
+    public synchronized long getThrottled() {
+        return throttled;
+    }
+}
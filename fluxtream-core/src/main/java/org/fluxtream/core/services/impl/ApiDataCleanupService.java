@@ -1,5 +1,8 @@
 package org.fluxtream.core.services.impl;
 
+import java.util.List;
+import org.fluxtream.core.domain.ApiKey;
+
 /**
  * User: candide
  * Date: 18/08/14
@@ -7,6 +10,54 @@ package org.fluxtream.core.services.impl;
  */
 public interface ApiDataCleanupService {
 
+    /**
+     * Progress of the erasure of a removed connector's data
+     */
+    final class Erasure {
+        public final long apiKeyId;
+        public final long guestId;
+        public final String connectorName;
+        public final long startTime;
+        public volatile String entityName;
+        public volatile long facetsDeleted;
+
+        public Erasure(final ApiKey apiKey) {
+            this.apiKeyId = apiKey.getId();
+            this.guestId = apiKey.getGuestId();
+            this.connectorName = apiKey.getConnector()!=null ? apiKey.getConnector().getName() : null;
+            this.startTime = System.currentTimeMillis();
+        }
+    }
+
     void cleanupStaleData() throws Exception;
 
+    /**
+     * Erases the data of an api key that has been marked as {@link ApiKey#erasing} in the background, once the
+     * current transaction, if any, has committed
+     */
+    void scheduleErasure(ApiKey apiKey);
+
+    /**
+     * Schedules the erasure of all the api keys that are still marked as {@link ApiKey#erasing}, e.g. because the
+     * server was stopped while their data was being erased
+     * @return the number of erasures that were scheduled
+     */
+    int resumeErasures();
+
+    /**
+     * Deletes the facets of an api key in chunks, each in a transaction of its own
+     */
+    void eraseFacets(ApiKey apiKey, Erasure erasure);
+
+    /**
+     * Deletes the locations and visited cities of a guest in the background, in chunks, each in a transaction of its
+     * own, once the current transaction, if any, has committed
+     */
+    void scheduleGuestErasure(long guestId);
+
+    /**
+     * Returns the erasures that are scheduled or in progress on this server
+     */
+    List<Erasure> getErasures();
+
 }
@@ -1,19 +1,32 @@
 package org.fluxtream.core.services.impl;
 
+import org.fluxtream.core.Configuration;
 import org.fluxtream.core.aspects.FlxLogger;
+import org.fluxtream.core.connectors.Connector;
+import org.fluxtream.core.connectors.ObjectType;
+import org.fluxtream.core.connectors.annotations.ObjectTypeSpec;
 import org.fluxtream.core.connectors.annotations.Updater;
+import org.fluxtream.core.connectors.dao.FacetQueries;
+import org.fluxtream.core.connectors.location.LocationFacet;
 import org.fluxtream.core.domain.AbstractFacet;
+import org.fluxtream.core.domain.ApiKey;
+import org.fluxtream.core.domain.metadata.VisitedCity;
 import org.fluxtream.core.services.JPADaoService;
 import org.fluxtream.core.utils.JPAUtils;
+import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
 import org.springframework.core.type.filter.AnnotationTypeFilter;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.persistence.Entity;
@@ -21,8 +34,11 @@ import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * User: candide
@@ -32,10 +48,31 @@ import java.util.Set;
 @Service
 public class ApiDataCleanupServiceImpl implements ApiDataCleanupService {
 
+    private static final FlxLogger logger = FlxLogger.getLogger(ApiDataCleanupServiceImpl.class);
+
+    /**
+     * Default number of facets that are deleted per transaction when erasing an api key's data
+     */
+    private static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    @Autowired
+    Configuration env;
+
+    @Autowired
+    BeanFactory beanFactory;
+
+    @Autowired
+    @Qualifier("DataCleanupWorker")
+    ThreadPoolTaskExecutor executor;
+
     @Autowired
     @Qualifier("txTemplate")
     TransactionTemplate transactionTemplate;
 
+    @Autowired
+    @Qualifier("jpaTxTemplate")
+    TransactionTemplate jpaTransactionTemplate;
+
     @Autowired
     @Qualifier("jdbcTemplate")
     JdbcTemplate jdbcTemplate;
@@ -46,6 +83,171 @@ public class ApiDataCleanupServiceImpl implements ApiDataCleanupService {
     @Autowired
     JPADaoService jpaDaoService;
 
+    @Autowired
+    VisitedCityTimelineCache timelineCache;
+
+    private final ConcurrentMap<Long, Erasure> erasures = new ConcurrentHashMap<Long, Erasure>();
+
+    @Override
+    public void scheduleErasure(final ApiKey apiKey) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    submitErasure(apiKey);
+                }
+            });
+        }
+        else
+            submitErasure(apiKey);
+    }
+
+    @Override
+    public int resumeErasures() {
+        final List<ApiKey> apiKeys = JPAUtils.find(em, ApiKey.class, "apiKeys.erasing");
+        int scheduled = 0;
+        for (ApiKey apiKey : apiKeys) {
+            if (submitErasure(apiKey))
+                scheduled++;
+        }
+        if (scheduled>0)
+            logger.info("module=apiDataCleanup component=apiDataCleanupService action=resumeErasures scheduled=" + scheduled);
+        return scheduled;
+    }
+
+    private boolean submitErasure(final ApiKey apiKey) {
+        final Erasure erasure = new Erasure(apiKey);
+        if (erasures.putIfAbsent(apiKey.getId(), erasure)!=null)
+            return false;
+        final ApiDataCleanupWorker worker = beanFactory.getBean(ApiDataCleanupWorker.class);
+        worker.setApiKey(apiKey);
+        worker.setErasure(erasure);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    worker.run();
+                }
+                finally {
+                    erasures.remove(apiKey.getId());
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void eraseFacets(final ApiKey apiKey, final Erasure erasure) {
+        final Connector connector = apiKey.getConnector();
+        if (connector==null || !connector.hasFacets())
+            return;
+        final int chunkSize = env.targetEnvironmentProps.getInt("apiDataCleanup.chunkSize", DEFAULT_CHUNK_SIZE);
+        final List<ObjectType> objectTypes = new ArrayList<ObjectType>();
+        if (connector.hasDeleteOrder()) {
+            for (int ot : connector.getDeleteOrder())
+                objectTypes.add(ObjectType.getObjectType(connector, ot));
+        } else if (connector.objectTypes()!=null) {
+            for (ObjectType objectType : connector.objectTypes())
+                objectTypes.add(objectType);
+        }
+        boolean hasLocationData = false;
+        for (ObjectType objectType : objectTypes) {
+            if (objectType==null || objectType.facetClass()==null)
+                continue;
+            eraseFacets(apiKey, objectType.facetClass(), chunkSize, erasure);
+            final ObjectTypeSpec objectTypeSpec = objectType.facetClass().getAnnotation(ObjectTypeSpec.class);
+            if (objectTypeSpec!=null && objectTypeSpec.locationFacetSource()!=LocationFacet.Source.NONE)
+                hasLocationData = true;
+        }
+        if (hasLocationData) {
+            eraseFacets(apiKey, LocationFacet.class, chunkSize, erasure);
+            eraseFacets(apiKey, VisitedCity.class, chunkSize, erasure);
+            timelineCache.invalidate(apiKey.getGuestId());
+        }
+    }
+
+    private void eraseFacets(final ApiKey apiKey, final Class<? extends AbstractFacet> facetClass,
+                             final int chunkSize, final Erasure erasure) {
+        final FacetQueries facetQueries = FacetQueries.get(facetClass);
+        erasure.entityName = facetQueries.getEntityName();
+        final long then = System.currentTimeMillis();
+        long deleted = 0;
+        while (true) {
+            final Integer chunk = jpaTransactionTemplate.execute(new TransactionCallback<Integer>() {
+                @Override
+                public Integer doInTransaction(final TransactionStatus status) {
+                    return facetQueries.deleteChunk(em, apiKey, chunkSize);
+                }
+            });
+            if (chunk==0)
+                break;
+            deleted += chunk;
+            erasure.facetsDeleted += chunk;
+        }
+        if (deleted>0)
+            logger.info("module=apiDataCleanup component=apiDataCleanupService action=eraseFacets apiKeyId=" + apiKey.getId() +
+                        " entityName=" + erasure.entityName + " facetsDeleted=" + deleted +
+                        " timeTaken=" + (System.currentTimeMillis()-then));
+    }
+
+    @Override
+    public void scheduleGuestErasure(final long guestId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    submitGuestErasure(guestId);
+                }
+            });
+        }
+        else
+            submitGuestErasure(guestId);
+    }
+
+    private void submitGuestErasure(final long guestId) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final int chunkSize = env.targetEnvironmentProps.getInt("apiDataCleanup.chunkSize", DEFAULT_CHUNK_SIZE);
+                    eraseGuestFacets(guestId, LocationFacet.class, chunkSize);
+                    eraseGuestFacets(guestId, VisitedCity.class, chunkSize);
+                    timelineCache.invalidate(guestId);
+                }
+                catch (RuntimeException e) {
+                    logger.warn("module=apiDataCleanup component=apiDataCleanupService action=eraseGuestFacets guestId=" + guestId +
+                                " message=\"" + e.getMessage() + "\"");
+                }
+            }
+        });
+    }
+
+    private void eraseGuestFacets(final long guestId, final Class<? extends AbstractFacet> facetClass, final int chunkSize) {
+        final FacetQueries facetQueries = FacetQueries.get(facetClass);
+        final long then = System.currentTimeMillis();
+        long deleted = 0;
+        while (true) {
+            final Integer chunk = jpaTransactionTemplate.execute(new TransactionCallback<Integer>() {
+                @Override
+                public Integer doInTransaction(final TransactionStatus status) {
+                    return facetQueries.deleteGuestChunk(em, guestId, chunkSize);
+                }
+            });
+            if (chunk==0)
+                break;
+            deleted += chunk;
+        }
+        if (deleted>0)
+            logger.info("module=apiDataCleanup component=apiDataCleanupService action=eraseGuestFacets guestId=" + guestId +
+                        " entityName=" + facetQueries.getEntityName() + " facetsDeleted=" + deleted +
+                        " timeTaken=" + (System.currentTimeMillis()-then));
+    }
+
+    @Override
+    public List<Erasure> getErasures() {
+        return new ArrayList<Erasure>(erasures.values());
+    }
+
     @Override
     public void cleanupStaleData() throws Exception {
         ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(false);
@@ -2,6 +2,8 @@ package org.fluxtream.core.services.impl;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.fluxtream.core.aspects.FlxLogger;
 import org.fluxtream.core.domain.ApiKey;
 import org.fluxtream.core.services.ApiDataService;
 import org.fluxtream.core.services.ConnectorUpdateService;
@@ -10,6 +12,10 @@ import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
 /**
+ * Erases the data of a removed connector: its facets are deleted in chunks first, so that no transaction holds locks
+ * for long, then the remaining data and the api key itself. Every step can be repeated, so if the worker is
+ * interrupted the erasure is simply started over by {@link ApiDataCleanupService#resumeErasures()}.
+ *
  * User: candide
  * Date: 12/04/13
  * Time: 17:57
@@ -18,24 +24,46 @@ import org.springframework.stereotype.Component;
 @Scope("prototype")
 public class ApiDataCleanupWorker implements Runnable {
 
+    private static final FlxLogger logger = FlxLogger.getLogger(ApiDataCleanupWorker.class);
+
     @Autowired
     ApiDataService apiDataService;
 
+    @Autowired
+    ApiDataCleanupService apiDataCleanupService;
+
     @Autowired
     ConnectorUpdateService connectorUpdateService;
 
     private ApiKey apiKey;
 
+    private ApiDataCleanupService.Erasure erasure;
+
     @PersistenceContext
     EntityManager em;
 
     public void run() {
-        connectorUpdateService.flushUpdateWorkerTasks(apiKey, true);
-        apiDataService.eraseApiData(apiKey, true);
+        try {
+            connectorUpdateService.flushUpdateWorkerTasks(apiKey, true);
+            apiDataCleanupService.eraseFacets(apiKey, erasure);
+            apiDataService.eraseApiData(apiKey, true);
+            logger.info("module=apiDataCleanup component=apiDataCleanupWorker action=run apiKeyId=" + apiKey.getId() +
+                        " facetsDeleted=" + erasure.facetsDeleted +
+                        " timeTaken=" + (System.currentTimeMillis()-erasure.startTime));
+        }
+        catch (Throwable t) {
+            logger.warn("module=apiDataCleanup component=apiDataCleanupWorker action=run apiKeyId=" + apiKey.getId() +
+                        " message=\"Couldn't erase api data, the erasure will be resumed on restart\"\n" +
+                        ExceptionUtils.getStackTrace(t));
+        }
     }
 
     public void setApiKey(final ApiKey apiKey) {
         this.apiKey = apiKey;
     }
 
+    public void setErasure(final ApiDataCleanupService.Erasure erasure) {
+        this.erasure = erasure;
+    }
+
 }
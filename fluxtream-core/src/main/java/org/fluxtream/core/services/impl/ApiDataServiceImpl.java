@@ -17,6 +17,9 @@ import org.fluxtream.core.domain.*;
 import org.fluxtream.core.events.DataReceivedEvent;
 import org.fluxtream.core.facets.extractors.AbstractFacetExtractor;
 import org.fluxtream.core.metadata.DayMetadata;
+import org.fluxtream.core.metrics.Counter;
+import org.fluxtream.core.metrics.Histogram;
+import org.fluxtream.core.metrics.MetricsRegistry;
 import org.fluxtream.core.services.*;
 import org.fluxtream.core.utils.JPAUtils;
 import org.fluxtream.core.utils.TimeUtils;
@@ -31,14 +34,21 @@ import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.persistence.*;
 import javax.sql.DataSource;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -47,6 +57,13 @@ import java.util.concurrent.ConcurrentHashMap;
 public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
 
 	static FlxLogger logger = FlxLogger.getLogger(ApiDataServiceImpl.class);
+
+    private static final Counter FACETS_PERSISTED = MetricsRegistry.getDefault().counter("flx_facets_persisted_total",
+            "Facets persisted", "connector");
+    private static final Counter FACETS_DUPLICATED = MetricsRegistry.getDefault().counter("flx_facets_duplicates_total",
+            "Facets that were not persisted because they were already stored", "connector");
+    private static final Histogram PERSIST_FACETS_DURATION = MetricsRegistry.getDefault().histogram("flx_persist_facets_duration_ms",
+            "Time spent persisting batches of facets, in milliseconds");
     private static final FlxLogger LOG_DEBUG = FlxLogger.getLogger("Fluxtream");
 
 	@Autowired
@@ -89,11 +106,22 @@ public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
     @Autowired
     BuddiesService buddiesService;
 
+    @Autowired
+    DigestCache digestCache;
+
+    @Autowired
+    FacetTagIndex facetTagIndex;
+
+    @Autowired
+    SearchService searchService;
+
     @Override
     public AbstractFacetVO<AbstractFacet> getFacet(final int api, final int objectType, final long facetId) {
         Connector connector = Connector.fromValue(api);
         final ObjectType ot = ObjectType.getObjectType(connector, objectType);
         final AbstractFacet facet = em.find(ot.facetClass(), facetId);
+        if (facet==null)
+            return null;
         final GuestSettings guestSettings = settingsService.getSettings(facet.guestId);
         final TimeZone timeZone = metadataService.getTimeZone(facet.guestId, facet.start);
         final String date = TimeUtils.dateFormatter.withZone(DateTimeZone.forTimeZone(timeZone)).print(facet.start);
@@ -177,7 +205,10 @@ public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
 					apiKey.getConnector(), objectTypes);
 			for (ObjectType connectorType : connectorTypes) {
 				jpaDao.deleteAllFacets(apiKey, connectorType);
+				facetTagIndex.deleteAll(apiKey, connectorType);
+				searchService.deleteAll(apiKey, connectorType);
 			}
+            digestCache.invalidate(apiKey.getGuestId(), apiKey.getConnector().value());
 		}
 	}
 
@@ -188,9 +219,13 @@ public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
 		List<AbstractFacet> facets = getApiDataFacets(apiKey, objectType,
 				timeInterval, null);
 		if (facets != null) {
-			for (AbstractFacet facet : facets)
+			for (AbstractFacet facet : facets) {
+				facetTagIndex.delete(facet);
 				em.remove(facet);
+			}
+			searchService.delete(facets);
 		}
+        digestCache.invalidate(apiKey.getGuestId(), apiKey.getConnector().value());
 //        apiKey = guestService.getApiKey(apiKey.getId());
 //        em.remove(apiKey);
 	}
@@ -201,10 +236,13 @@ public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
                              ObjectType objectType, List<String> dates) {
         final List<AbstractFacet> facets = jpaDao.getFacetsByDates(apiKey, objectType, dates, null);
         if (facets != null) {
-            for (AbstractFacet facet : facets)
+            for (AbstractFacet facet : facets) {
+                facetTagIndex.delete(facet);
                 em.remove(facet);
+            }
+            searchService.delete(facets);
         }
-
+        digestCache.invalidate(apiKey.getGuestId(), apiKey.getConnector().value());
     }
 
 	@Override
@@ -216,9 +254,49 @@ public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
 		if (!apiKey.getConnector().hasFacets())
 			return;
 		jpaDao.deleteAllFacets(apiKey);
+        facetTagIndex.deleteAll(apiKey);
+        searchService.deleteAll(apiKey);
+        digestCache.invalidate(apiKey.getGuestId(), apiKey.getConnector().value());
         bodyTrackHelper.deleteChannelMappings(apiKey);
         guestService.deleteConnectorProfile(apiKey);
-        // remove directory <connectorData.location>/<connectorName>/<apiKeyId>
+        // remove directory <connectorData.location>/<connectorName>/<apiKeyId> once the facets are gone, without
+        // holding this transaction's locks while the files are being deleted; the cached tiles are evicted only then,
+        // or tiles requested in the meantime would cache the data being erased again
+        final ApiKey erasedApiKey = apiKey;
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    deleteConnectorDataDirectory(erasedApiKey);
+                    bodyTrackHelper.evictCachedTiles(erasedApiKey.getGuestId());
+                }
+            });
+        }
+        else {
+            deleteConnectorDataDirectory(erasedApiKey);
+            bodyTrackHelper.evictCachedTiles(erasedApiKey.getGuestId());
+        }
+        try {
+            JPAUtils.execute(em, "channelMapping.delete.byApiKeyId", apiKey.getId());
+        } catch(Exception e) {logger.warn("Couldn't delete Channel Mappings for apiKeyId="
+                                          + apiKey.getId()
+                                          + "\n" + ExceptionUtils.getStackTrace(e));}
+        if (apiKey.getConnector()!=null) {
+            bodyTrackHelper.deleteStyle(apiKey.getGuestId(), apiKey.getConnector().prettyName());
+        }
+
+        if (removeApiKey) {
+            apiKey = guestService.getApiKey(apiKey.getId());
+            em.remove(apiKey);
+        }
+    }
+
+    private void deleteConnectorDataDirectory(final ApiKey apiKey) {
+        if (apiKey.getConnector()!=null) {
+            // the device's tiles are stored under either of the names its data directory may have
+            bodyTrackHelper.deleteStoredTiles(apiKey.getGuestId(), apiKey.getConnector().getDeviceNickname());
+            bodyTrackHelper.deleteStoredTiles(apiKey.getGuestId(), apiKey.getConnector().getName());
+        }
         final String devKvsLocation = env.get("btdatastore.db.location");
         // let's not assume that everyone has set this value
         if (devKvsLocation!=null) {
@@ -254,19 +332,6 @@ public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
                 }
             }
         }
-        try {
-            JPAUtils.execute(em, "channelMapping.delete.byApiKeyId", apiKey.getId());
-        } catch(Exception e) {logger.warn("Couldn't delete Channel Mappings for apiKeyId="
-                                          + apiKey.getId()
-                                          + "\n" + ExceptionUtils.getStackTrace(e));}
-        if (apiKey.getConnector()!=null) {
-            bodyTrackHelper.deleteStyle(apiKey.getGuestId(), apiKey.getConnector().prettyName());
-        }
-
-        if (removeApiKey) {
-            apiKey = guestService.getApiKey(apiKey.getId());
-            em.remove(apiKey);
-        }
     }
 
     @Override
@@ -360,20 +425,12 @@ public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
 			for (ObjectType objectType : connectorTypes) {
 				List<AbstractFacet> facets = facetExtractor.extractFacets(updateInfo,
 						apiData, objectType);
-				for (AbstractFacet facet : facets) {
-					AbstractFacet newFacet = persistFacet(facet);
-					if (newFacet!=null)
-						newFacets.add(newFacet);
-				}
+				newFacets.addAll(persistFacets(facets));
 			}
 		} else {
 			List<AbstractFacet> facets = facetExtractor.extractFacets(updateInfo, apiData,
 					null);
-			for (AbstractFacet facet : facets) {
-				AbstractFacet newFacet = persistFacet(facet);
-				if (newFacet!=null)
-					newFacets.add(newFacet);
-			}
+			newFacets.addAll(persistFacets(facets));
 		}
 		bodyTrackStorageService.storeApiData(updateInfo.apiKey, newFacets);
         return newFacets;
@@ -403,6 +460,7 @@ public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
 
 		if (existing.size()>0) {
 			logDuplicateFacet(facet);
+            FACETS_DUPLICATED.labels(Connector.fromValue(facet.api).getName()).inc();
 			return null;
 		} else {
             if (facet.hasTags()) {
@@ -411,11 +469,13 @@ public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
             try {
                 facet.timeUpdated = DateTimeUtils.currentTimeMillis();
                 em.persist(facet);
-                StringBuilder sb = new StringBuilder("module=updateQueue component=apiDataServiceImpl action=persistFacet")
-                        .append(" connector=").append(Connector.fromValue(facet.api).getName())
-                        .append(" objectType=").append(facet.objectType)
-                        .append(" guestId=").append(facet.guestId);
-                logger.debug(sb.toString());
+                if (logger.isDebugEnabled()) {
+                    StringBuilder sb = new StringBuilder("module=updateQueue component=apiDataServiceImpl action=persistFacet")
+                            .append(" connector=").append(Connector.fromValue(facet.api).getName())
+                            .append(" objectType=").append(facet.objectType)
+                            .append(" guestId=").append(facet.guestId);
+                    logger.debug(sb.toString());
+                }
             } catch (Throwable t) {
                 StringBuilder sb = new StringBuilder("module=updateQueue component=apiDataServiceImpl action=persistFacet")
                         .append(" connector=").append(Connector.fromValue(facet.api).getName())
@@ -425,24 +485,153 @@ public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
                 logger.warn(sb.toString());
             }
             persistExistingFacet(facet);
-            StringBuilder sb = new StringBuilder("module=updateQueue component=apiDataServiceImpl action=persistFacet")
-                    .append(" connector=").append(Connector.fromValue(facet.api).getName())
-                    .append(" objectType=").append(facet.objectType)
-                    .append(" guestId=").append(facet.guestId);
-            logger.info(sb.toString());
+            FACETS_PERSISTED.labels(Connector.fromValue(facet.api).getName()).inc();
 			return facet;
 		}
 	}
 
+    /**
+     * Number of facet inserts after which the persistence context is flushed during a batch
+     */
+    private static final int PERSIST_FACETS_FLUSH_INTERVAL = 100;
+
+    @Override
+    @Transactional(readOnly = false)
+    public List<AbstractFacet> persistFacets(final List<? extends AbstractFacet> facets) {
+        List<AbstractFacet> newFacets = new ArrayList<AbstractFacet>();
+        if (facets==null || facets.isEmpty())
+            return newFacets;
+        final long then = System.currentTimeMillis();
+
+        // group facets by entity, guest and apiKey and find out the range of start times of each group
+        Map<String, FacetBatch> batches = new LinkedHashMap<String, FacetBatch>();
+        Map<AbstractFacet, FacetBatch> facetBatches = new IdentityHashMap<AbstractFacet, FacetBatch>();
+        for (AbstractFacet facet : facets) {
+            final String entityName = getTableName(facet.getClass());
+            final String batchKey = new StringBuilder(entityName).append("/").append(facet.guestId)
+                    .append("/").append(facet.apiKeyId).toString();
+            FacetBatch batch = batches.get(batchKey);
+            if (batch==null) {
+                batch = new FacetBatch(entityName, facet);
+                batches.put(batchKey, batch);
+            }
+            batch.add(facet);
+            facetBatches.put(facet, batch);
+        }
+
+        // one query per group brings back the time spans that are already stored
+        for (FacetBatch batch : batches.values())
+            batch.existingTimeSpans = getExistingFacetTimeSpans(batch);
+
+        // persist in the original order, skipping facets that are already stored or duplicated in this batch
+        Set<String> knownTags = new HashSet<String>();
+        for (AbstractFacet facet : facets) {
+            final FacetBatch batch = facetBatches.get(facet);
+            if (!batch.existingTimeSpans.add(timeSpan(facet.start, facet.end))) {
+                batch.duplicates++;
+                continue;
+            }
+            if (facet.hasTags())
+                persistTags(facet, knownTags);
+            facet.timeUpdated = DateTimeUtils.currentTimeMillis();
+            em.persist(facet);
+            if (facet.hasTags())
+                facetTagIndex.index(facet);
+            newFacets.add(facet);
+            batch.persisted++;
+            if (newFacets.size()%PERSIST_FACETS_FLUSH_INTERVAL==0)
+                em.flush();
+        }
+
+        searchService.index(newFacets);
+
+        for (FacetBatch batch : batches.values()) {
+            if (batch.persisted>0)
+                digestCache.invalidate(batch.guestId, batch.api, batch.minStart, batch.maxEnd);
+            final String connectorName = Connector.fromValue(batch.api).getName();
+            FACETS_PERSISTED.labels(connectorName).inc(batch.persisted);
+            FACETS_DUPLICATED.labels(connectorName).inc(batch.duplicates);
+            StringBuilder sb = new StringBuilder("module=updateQueue component=apiDataServiceImpl action=persistFacets")
+                    .append(" connector=").append(connectorName)
+                    .append(" objectType=").append(batch.objectType)
+                    .append(" guestId=").append(batch.guestId)
+                    .append(" persisted=").append(batch.persisted)
+                    .append(" duplicates=").append(batch.duplicates);
+            logger.info(sb.toString());
+        }
+        PERSIST_FACETS_DURATION.observeSince(then);
+        return newFacets;
+    }
+
+    private Set<String> getExistingFacetTimeSpans(final FacetBatch batch) {
+        Set<String> timeSpans = new HashSet<String>();
+        // a null apiKeyId never matches a stored facet
+        if (batch.apiKeyId==null)
+            return timeSpans;
+        Query query = em.createQuery("SELECT e.start, e.end FROM " + batch.entityName + " e WHERE e.guestId=? AND e.apiKeyId=? AND e.start>=? AND e.start<=?");
+        query.setParameter(1, batch.guestId);
+        query.setParameter(2, batch.apiKeyId);
+        query.setParameter(3, batch.minStart);
+        query.setParameter(4, batch.maxStart);
+        @SuppressWarnings("unchecked")
+        final List<Object[]> rows = query.getResultList();
+        for (Object[] row : rows)
+            timeSpans.add(timeSpan((Long)row[0], (Long)row[1]));
+        return timeSpans;
+    }
+
+    private static String timeSpan(long start, long end) {
+        return new StringBuilder().append(start).append("/").append(end).toString();
+    }
+
+    /**
+     * Facets of a same entity, guest and apiKey that are deduplicated together by {@link #persistFacets(List)}
+     */
+    private static class FacetBatch {
+        final String entityName;
+        final long guestId;
+        final Long apiKeyId;
+        final int api;
+        final int objectType;
+        long minStart = Long.MAX_VALUE;
+        long maxStart = Long.MIN_VALUE;
+        long maxEnd = Long.MIN_VALUE;
+        Set<String> existingTimeSpans;
+        int persisted;
+        int duplicates;
+
+        FacetBatch(final String entityName, final AbstractFacet facet) {
+            this.entityName = entityName;
+            this.guestId = facet.guestId;
+            this.apiKeyId = facet.apiKeyId;
+            this.api = facet.api;
+            this.objectType = facet.objectType;
+        }
+
+        void add(final AbstractFacet facet) {
+            minStart = Math.min(minStart, facet.start);
+            maxStart = Math.max(maxStart, facet.start);
+            maxEnd = Math.max(maxEnd, facet.end);
+        }
+    }
+
     public void persistExistingFacet(final AbstractFacet facet) {
         if (facet != null) {
             if (facet.hasTags()) {
                 persistTags(facet);
             }
 			em.persist(facet);
+            if (facet.hasTags())
+                facetTagIndex.index(facet);
+            searchService.index(Collections.singletonList(facet));
+            evictCachedDigests(facet);
         }
     }
 
+    private void evictCachedDigests(final AbstractFacet facet) {
+        digestCache.invalidate(facet.guestId, facet.api, facet.start, facet.end);
+    }
+
     String getTableName(Class<? extends AbstractFacet> cls) {
         String entityName = facetEntityNames.get(cls.getName());
         if (entityName==null) {
@@ -513,6 +702,10 @@ public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
             if (modified.hasTags()) {
                 persistTags(modified);
             }
+            // tags may have been removed as well as added
+            facetTagIndex.index(modified);
+            searchService.index(Collections.singletonList(modified));
+            evictCachedDigests(modified);
         }
         assert(em.contains(modified));
         //System.out.println("========================================");
@@ -523,7 +716,16 @@ public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
     // from this facet
     @Transactional(readOnly=false)
     private void persistTags(final AbstractFacet facet) {
+        persistTags(facet, new HashSet<String>());
+    }
+
+    /**
+     * @param knownTags "guestId/tagName" keys of the tags that are known to exist; updated as tags get created
+     */
+    private void persistTags(final AbstractFacet facet, final Set<String> knownTags) {
         for (Tag tag : facet.getTags()) {
+            if (!knownTags.add(facet.guestId + "/" + tag.name))
+                continue;
             Tag guestTag = JPAUtils.findUnique(em, Tag.class, "tags.byName", facet.guestId, tag.name);
             if (guestTag==null) {
                 guestTag = new Tag();
@@ -617,6 +819,7 @@ public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
 		if (existing.size()==0) {
             // This is a new location, persist it
             em.persist(locationResource);
+            evictCachedDigests(locationResource);
             return true;
        } else {
             // This is a duplicate location, ignore and print a message.
@@ -646,6 +849,8 @@ public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
             throw new RuntimeException("Facet doesn't have the expected guestId (expected: " + guestId + ", actual: " + facet.guestId + ")");
         facet.comment = comment;
         em.persist(facet);
+        searchService.index(Collections.singletonList(facet));
+        evictCachedDigests(facet);
     }
 
     private AbstractFacet getFacet(final String connectorName, final String objectTypeName, final long facetId) {
@@ -674,6 +879,8 @@ public class ApiDataServiceImpl implements ApiDataService, DisposableBean {
             throw new RuntimeException("Facet doesn't have the expected guestId (expected: " + guestId + ", actual: " + facet.guestId + ")");
         facet.comment = null;
         em.persist(facet);
+        searchService.index(Collections.singletonList(facet));
+        evictCachedDigests(facet);
     }
 
     @Override
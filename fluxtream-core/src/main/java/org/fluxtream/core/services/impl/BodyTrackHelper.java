@@ -6,6 +6,13 @@ import com.wordnik.swagger.annotations.ApiModelProperty;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
+import org.bodytrack.datastore.ColumnarDataReader;
+import org.bodytrack.datastore.DatastoreEngine;
+import org.bodytrack.datastore.ExecutableDatastoreEngine;
+import org.bodytrack.datastore.InProcessDatastoreEngine;
+import org.bodytrack.datastore.ImportJsonWriter;
+import org.bodytrack.datastore.PooledDatastoreEngine;
+import org.bodytrack.datastore.TileCache;
 import org.fluxtream.core.Configuration;
 import org.fluxtream.core.TimeInterval;
 import org.fluxtream.core.aspects.FlxLogger;
@@ -13,12 +20,16 @@ import org.fluxtream.core.auth.AuthHelper;
 import org.fluxtream.core.connectors.Connector;
 import org.fluxtream.core.connectors.ObjectType;
 import org.fluxtream.core.domain.*;
+import org.fluxtream.core.metrics.Counter;
+import org.fluxtream.core.metrics.Histogram;
+import org.fluxtream.core.metrics.MetricsRegistry;
 import org.fluxtream.core.services.*;
 import org.fluxtream.core.utils.JPAUtils;
 import org.fluxtream.core.utils.Utils;
 import org.joda.time.DateTime;
 import org.joda.time.format.ISODateTimeFormat;
 import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
@@ -39,7 +50,7 @@ import java.util.*;
  */
 @Component
 @Transactional(readOnly = true)
-public class BodyTrackHelper {
+public class BodyTrackHelper implements DisposableBean {
 
     public interface BodyTrackUploadResult {
         /**
@@ -205,9 +216,6 @@ public class BodyTrackHelper {
     @PersistenceContext
     EntityManager em;
 
-    static final boolean verboseOutput = false;
-    static final boolean showOutput = false;
-
     @Autowired
     DataUpdateService dataUpdateService;
 
@@ -233,90 +241,144 @@ public class BodyTrackHelper {
     Gson gson = new GsonBuilder().registerTypeAdapter(ChannelBounds.class, new ChannelBoundsDeserializer()).create();
     static FlxLogger logger = FlxLogger.getLogger(BodyTrackHelper.class);
 
-    private int executeDataStore(String commandName, Object[] parameters,OutputStream out){
-        try{
-            Runtime rt = Runtime.getRuntime();
-	    String launchCommand = env.targetEnvironmentProps.getString("btdatastore.exec.location") + "/" + commandName + " " +
-		                   env.targetEnvironmentProps.getString("btdatastore.db.location");
-
-	    //            Path commandPath= Paths.get(env.targetEnvironmentProps.getString("btdatastore.exec.location"));
-	    //            Path launchExecutable = commandPath.resolve(commandName);
-	    //            String launchCommand = launchExecutable.toString()+ " " + env.targetEnvironmentProps.getString("btdatastore.db.location");
-            for (Object param : parameters){
-                launchCommand += ' ';
-                String part = param.toString();
-                if (part.indexOf(' ') == -1){
-                    launchCommand += part;
-                }
-                else{
-                    launchCommand += "\"" + part + "\"";
+    private static final Histogram DATASTORE_DURATION = MetricsRegistry.getDefault().histogram("flx_datastore_operation_duration_ms",
+            "Time spent running datastore operations, in milliseconds", "operation");
+    private static final Counter DATASTORE_FAILURES = MetricsRegistry.getDefault().counter("flx_datastore_operation_failures_total",
+            "Datastore operations that failed or returned a non-zero status", "operation");
+
+    private volatile DatastoreEngine datastoreEngine;
+
+    DatastoreEngine getDatastoreEngine() {
+        if (datastoreEngine == null) {
+            synchronized (this) {
+                if (datastoreEngine == null) {
+                    final String execLocation = env.targetEnvironmentProps.getString("btdatastore.exec.location");
+                    final String dbLocation = env.targetEnvironmentProps.getString("btdatastore.db.location");
+                    final int poolSize = env.targetEnvironmentProps.getInt("btdatastore.workers.poolSize", 0);
+                    final DatastoreEngine engine;
+                    if (poolSize > 0)
+                        engine = new PooledDatastoreEngine(execLocation, dbLocation, poolSize,
+                                                           env.targetEnvironmentProps.getLong("btdatastore.workers.acquireTimeout", 30000L),
+                                                           env.targetEnvironmentProps.getLong("btdatastore.workers.healthCheckInterval", 60000L),
+                                                           env.targetEnvironmentProps.getLong("btdatastore.workers.operationTimeout", 300000L));
+                    else
+                        engine = new ExecutableDatastoreEngine(execLocation, dbLocation);
+                    final String tilesLocation = env.targetEnvironmentProps.getString("btdatastore.tiles.location");
+                    if (tilesLocation != null)
+                        datastoreEngine = new InProcessDatastoreEngine(engine, dbLocation, new File(tilesLocation));
+                    else
+                        datastoreEngine = engine;
                 }
             }
-            if (showOutput)
-                System.out.println("BTDataStore: running with command: " + launchCommand);
-
-            //create process for operation
-            final Process pr = rt.exec(launchCommand);
-
-            new Thread(){//outputs the errorstream
-                public void run(){
-                    BufferedReader error = new BufferedReader(new InputStreamReader(pr.getErrorStream()));
-                    String line=null;
-                    try{
-                        if (verboseOutput && showOutput){
-                            while((line=error.readLine()) != null) { //output all console output from the execution
-                                System.out.println("BTDataStore-error: " + line);
-                            }
-                        }
-                        else
-                            while (error.readLine() != null) {}
-                    } catch(Exception ignored){}
-                }
+        }
+        return datastoreEngine;
+    }
 
-            }.start();
+    /**
+     * Returns the statistics of the datastore worker processes, or an empty list if operations spawn a process each
+     */
+    public List<PooledDatastoreEngine.WorkerStats> getDatastoreWorkerStats() {
+        final PooledDatastoreEngine engine = getPooledDatastoreEngine(getDatastoreEngine());
+        if (engine != null)
+            return engine.getWorkerStats();
+        return new ArrayList<PooledDatastoreEngine.WorkerStats>();
+    }
 
-            BufferedReader input = new BufferedReader(new InputStreamReader(pr.getInputStream()));
+    private static PooledDatastoreEngine getPooledDatastoreEngine(DatastoreEngine engine) {
+        if (engine instanceof InProcessDatastoreEngine)
+            engine = ((InProcessDatastoreEngine) engine).getDelegate();
+        return engine instanceof PooledDatastoreEngine ? (PooledDatastoreEngine) engine : null;
+    }
 
-            String line;
+    @Override
+    public void destroy() throws Exception {
+        final PooledDatastoreEngine engine = getPooledDatastoreEngine(datastoreEngine);
+        if (engine != null)
+            engine.shutdown();
+    }
 
-            boolean first = true;
+    private volatile TileCache tileCache;
 
-            while((line=input.readLine()) != null) { //output all console output from the execution
-                if (showOutput)
-                    System.out.println("BTDataStore: " + line);
-                if (first){
-                    first = false;
-                }
-                else{
-                    out.write("\n".getBytes());
+    TileCache getTileCache() {
+        if (tileCache == null) {
+            synchronized (this) {
+                if (tileCache == null) {
+                    tileCache = new TileCache(env.targetEnvironmentProps.getInt("btdatastore.tileCache.maxEntries", 20000),
+                                              env.targetEnvironmentProps.getLong("btdatastore.tileCache.maxChars", 50000000L));
+                    registerTileCacheMetrics(tileCache);
                 }
-                out.write(line.getBytes());
             }
-            int exitValue = pr.waitFor();
-            if (showOutput)
-                System.out.println("BTDataStore: exited with code " + exitValue);
-            return exitValue;
-        }
-        catch (Exception e){
-            if (showOutput)
-                System.out.println("BTDataStore: datastore execution failed!");
-            throw new RuntimeException("Datastore execution failed");
         }
+        return tileCache;
     }
 
-    private DataStoreExecutionResult executeDataStore(String commandName, Object[] parameters){
-        final StringBuilder responseBuilder = new StringBuilder();
-        int result = executeDataStore(commandName,parameters,new OutputStream(){
-
+    private static void registerTileCacheMetrics(final TileCache cache) {
+        final MetricsRegistry metrics = MetricsRegistry.getDefault();
+        metrics.counterValue("flx_tile_cache_hits_total", "Grapher tiles served from the tile cache", new MetricsRegistry.Value() {
             @Override
-            public void write(final int b) throws IOException {
-                responseBuilder.append((char) b);
+            public double get() {
+                return cache.getHits();
             }
         });
-        return new DataStoreExecutionResult(result,responseBuilder.toString());
+        metrics.counterValue("flx_tile_cache_misses_total", "Grapher tiles that had to be read from the datastore", new MetricsRegistry.Value() {
+            @Override
+            public double get() {
+                return cache.getMisses();
+            }
+        });
+        metrics.gauge("flx_tile_cache_entries", "Grapher tiles held by the tile cache", new MetricsRegistry.Value() {
+            @Override
+            public double get() {
+                return cache.size();
+            }
+        });
+    }
+
+    private static int recordDatastoreOperation(final String operation, final long then, final int statusCode) {
+        DATASTORE_DURATION.labels(operation).observeSince(then);
+        if (statusCode != 0)
+            DATASTORE_FAILURES.labels(operation).inc();
+        return statusCode;
+    }
+
+    private DataStoreExecutionResult getTile(long guestId, String channelFullName, int level, long offset) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long then = System.currentTimeMillis();
+        try {
+            final int statusCode = recordDatastoreOperation("gettile", then, getDatastoreEngine().getTile(guestId, channelFullName, level, offset, out));
+            return new DataStoreExecutionResult(statusCode, out.toString());
+        }
+        catch (IOException e) {
+            recordDatastoreOperation("gettile", then, -1);
+            throw new RuntimeException("Datastore execution failed");
+        }
+    }
 
+    private DataStoreExecutionResult importJson(long guestId, String deviceName, File jsonFile) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long then = System.currentTimeMillis();
+        try {
+            final int statusCode = recordDatastoreOperation("import", then, getDatastoreEngine().importJson(guestId, deviceName, jsonFile, out));
+            return new DataStoreExecutionResult(statusCode, out.toString());
+        }
+        catch (IOException e) {
+            recordDatastoreOperation("import", then, -1);
+            throw new RuntimeException("Datastore execution failed");
+        }
     }
 
+    private DataStoreExecutionResult info(long guestId) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long then = System.currentTimeMillis();
+        try {
+            final int statusCode = recordDatastoreOperation("info", then, getDatastoreEngine().info(guestId, out));
+            return new DataStoreExecutionResult(statusCode, out.toString());
+        }
+        catch (IOException e) {
+            recordDatastoreOperation("info", then, -1);
+            throw new RuntimeException("Datastore execution failed");
+        }
+    }
 
     //start and end are optional
     public int exportToCSV(final Long guestId, final Collection<String> channelNames, final Long start, final Long end, final OutputStream out){
@@ -326,21 +388,22 @@ public class BodyTrackHelper {
             if (channelNames == null || channelNames.size() == 0)
                 throw new IllegalArgumentException();
 
-            ArrayList<String> params = new ArrayList<String>();
-            params.add("--csv");
-            params.add("" + guestId);
-            params.addAll(channelNames);
-            if (start != null){
-                params.add("--start");
-                params.add("" + start);
-            }
-            if (end != null){
-                params.add("--end");
-                params.add("" + end);
-            }
-            final DataStoreExecutionResult dataStoreExecutionResult = executeDataStore("export",params.toArray(new String[]{}));
-            out.write(dataStoreExecutionResult.getResponse().getBytes());
-            return dataStoreExecutionResult.getStatusCode();
+            // rows are copied to out as the datastore produces them, so memory use doesn't depend on the export size
+            final long then = System.currentTimeMillis();
+            final LineCountingOutputStream countingOut = new LineCountingOutputStream(out);
+            final int statusCode = getDatastoreEngine().exportCSV(guestId, channelNames, start, end, countingOut);
+            countingOut.flush();
+            recordDatastoreOperation("export", then, statusCode);
+            final long elapsed = System.currentTimeMillis() - then;
+            final long rows = countingOut.getLineCount();
+            logger.info(new StringBuilder("module=bodytrack component=bodyTrackHelper action=exportToCSV")
+                                .append(" guestId=").append(guestId)
+                                .append(" statusCode=").append(statusCode)
+                                .append(" rows=").append(rows)
+                                .append(" bytes=").append(countingOut.getByteCount())
+                                .append(" timeTaken=").append(elapsed)
+                                .append(" rowsPerSecond=").append(elapsed > 0 ? rows * 1000 / elapsed : rows));
+            return statusCode;
         }
         catch (Exception e){
             return -1;
@@ -361,13 +424,112 @@ public class BodyTrackHelper {
             tempFileMapping.put("data", data);
             tempFileMapping.put("channel_names", channelNames);
 
-            FileOutputStream fos = new FileOutputStream(tempFile);
-            final String bodyTrackJSONData = gson.toJson(tempFileMapping);
-            fos.write(bodyTrackJSONData.getBytes());
-            fos.close();
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+            try {
+                gson.toJson(tempFileMapping, writer);
+            }
+            finally {
+                writer.close();
+            }
+
+            return importToBodyTrack(apiKey, deviceName, channelNames, tempFile);
+        } catch (Exception e) {
+            System.err.println("Could not persist to datastore");
+            System.err.println(Utils.stackTrace(e));
+            throw new RuntimeException("Could not persist to datastore");
+        }
+    }
+
+    /**
+     * Imports <code>times.length</code> rows of data held in columns, one per channel, with <code>NaN</code> for
+     * missing values. Times are in seconds since the epoch.
+     */
+    public BodyTrackUploadResult uploadColumnsToBodyTrack(final ApiKey apiKey,
+                                                          final String deviceName,
+                                                          final List<String> channelNames,
+                                                          final double[] times,
+                                                          final double[][] columns) {
+        try{
+            if (apiKey == null || columns.length != channelNames.size())
+                throw new IllegalArgumentException();
+            final File tempFile = File.createTempFile("input",".json");
+
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+            try {
+                final ImportJsonWriter writer = new ImportJsonWriter(out, channelNames);
+                for (int row=0; row<times.length; row++) {
+                    writer.startRow(times[row]);
+                    for (double[] column : columns)
+                        writer.writeValue(column[row]);
+                }
+                writer.finish();
+            }
+            finally {
+                out.close();
+            }
+
+            return importToBodyTrack(apiKey, deviceName, channelNames, tempFile);
+        } catch (Exception e) {
+            logger.warn("Datastore: could not persist columns to the datastore, guestId: " + (apiKey != null ? apiKey.getGuestId() : null)
+                        + ", deviceName: " + deviceName, e);
+            throw new RuntimeException("Could not persist to datastore");
+        }
+    }
+
+    /**
+     * Imports data uploaded in the binary columnar format (see {@link ColumnarDataReader}), whose header has already
+     * been read by <code>reader</code>. The samples are transcoded straight into the datastore's import file, block by
+     * block, without ever being held in memory all at once.
+     *
+     * @throws ColumnarDataReader.InvalidDataException if the uploaded data is invalid, in which case nothing is imported
+     */
+    public BodyTrackUploadResult uploadColumnarToBodyTrack(final ApiKey apiKey,
+                                                           final String deviceName,
+                                                           final ColumnarDataReader reader)
+            throws ColumnarDataReader.InvalidDataException {
+        File tempFile = null;
+        try{
+            if (apiKey == null)
+                throw new IllegalArgumentException();
+            tempFile = File.createTempFile("input",".json");
 
-            final DataStoreExecutionResult dataStoreExecutionResult = executeDataStore("import", new Object[]{apiKey.getGuestId(), deviceName, tempFile.getAbsolutePath()});
+            final long then = System.currentTimeMillis();
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+            final long rows;
+            try {
+                rows = reader.writeImportJson(out);
+            }
+            finally {
+                out.close();
+            }
+            logger.info(new StringBuilder("module=bodytrack component=bodyTrackHelper action=uploadColumnarToBodyTrack")
+                                .append(" guestId=").append(apiKey.getGuestId())
+                                .append(" deviceName=").append(deviceName)
+                                .append(" channels=").append(reader.getChannelNames().size())
+                                .append(" rows=").append(rows)
+                                .append(" timeTaken=").append(System.currentTimeMillis() - then));
+
+            return importToBodyTrack(apiKey, deviceName, reader.getChannelNames(), tempFile);
+        } catch (ColumnarDataReader.InvalidDataException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.warn("Datastore: could not persist columnar data to the datastore, guestId: " + (apiKey != null ? apiKey.getGuestId() : null)
+                        + ", deviceName: " + deviceName, e);
+            throw new RuntimeException("Could not persist to datastore");
+        } finally {
+            if (tempFile != null)
+                tempFile.delete();
+        }
+    }
+
+    private BodyTrackUploadResult importToBodyTrack(final ApiKey apiKey,
+                                                    final String deviceName,
+                                                    final Collection<String> channelNames,
+                                                    final File tempFile) throws IOException {
+        try {
+            final DataStoreExecutionResult dataStoreExecutionResult = importJson(apiKey.getGuestId(), deviceName, tempFile);
             ParsedBodyTrackUploadResult parsedResult = new ParsedBodyTrackUploadResult(dataStoreExecutionResult, deviceName, gson);
+            evictCachedTiles(apiKey.getGuestId(), deviceName, parsedResult.getParsedResponse());
             if (!dataStoreExecutionResult.isSuccess()) {
                 logger.warn("Datastore: There was an error persisting data to the datastore, guestId: " + apiKey.getGuestId() + ", deviceName: " + deviceName + ", tempFile: " + tempFile.getCanonicalPath());
                 dataUpdateService.logBodyTrackDataUpdate(apiKey.getGuestId(),
@@ -386,12 +548,9 @@ public class BodyTrackHelper {
                     logger.warn(ExceptionUtils.getStackTrace(t));
                 }
             }
-            tempFile.delete();
             return parsedResult;
-        } catch (Exception e) {
-            System.err.println("Could not persist to datastore");
-            System.err.println(Utils.stackTrace(e));
-            throw new RuntimeException("Could not persist to datastore");
+        } finally {
+            tempFile.delete();
         }
     }
 
@@ -407,8 +566,9 @@ public class BodyTrackHelper {
              fos.write(json.getBytes());
              fos.close();
 
-             final ParsedBodyTrackUploadResult dataStoreExecutionResult = new ParsedBodyTrackUploadResult(executeDataStore("import", new Object[]{guestId, deviceName, tempFile.getAbsolutePath()}), deviceName, gson);
+             final ParsedBodyTrackUploadResult dataStoreExecutionResult = new ParsedBodyTrackUploadResult(importJson(guestId, deviceName, tempFile), deviceName, gson);
              tempFile.delete();
+             evictCachedTiles(guestId, deviceName, dataStoreExecutionResult.getParsedResponse());
              if (dataStoreExecutionResult.isSuccess()){//log to DataUpdate table //TODO: confirm this works
                  List<ApiKey> keys = guestService.getApiKeys(guestId,Connector.getConnector("fluxtream_capture"));
                  long apiKeyId = -1;
@@ -429,27 +589,46 @@ public class BodyTrackHelper {
         try{
             if (guestId == null)
                 throw new IllegalArgumentException();
-            ChannelMapping mapping = getChannelMapping(guestId, deviceNickname, channelName);
-            String internalDeviceName = mapping != null ? mapping.getInternalDeviceName() : deviceNickname;
-            String internalChannelName = mapping != null ? mapping.getInternalChannelName() : channelName;
-            internalDeviceName = checkDatastoreDir(guestId, internalDeviceName);
-            final DataStoreExecutionResult dataStoreExecutionResult = executeDataStore("gettile", new Object[]{guestId, internalDeviceName + "." + internalChannelName, level, offset});
-            String result = dataStoreExecutionResult.getResponse();
-
-            // TODO: check statusCode in DataStoreExecutionResult
-            GetTileResponse tileResponse = gson.fromJson(result,GetTileResponse.class);
-
-            if (tileResponse.data == null){
-                tileResponse = GetTileResponse.getEmptyTile(level,offset);
-            }//TODO:several fields are missing still and should be implemented
-
-            return tileResponse;
+            final String[] datastoreChannel = resolveDatastoreChannel(guestId, deviceNickname, channelName);
+            return readTile(guestId, datastoreChannel[0], datastoreChannel[1], level, offset);
         }
         catch(Exception e){
             return GetTileResponse.getEmptyTile(level,offset);
         }
     }
 
+    /**
+     * Maps a device/channel name pair, as displayed in the grapher, to the device and channel names used
+     * in the datastore
+     * @return a {datastoreDeviceName, datastoreChannelName} pair
+     */
+    private String[] resolveDatastoreChannel(long guestId, String deviceNickname, String channelName) throws IOException {
+        ChannelMapping mapping = getChannelMapping(guestId, deviceNickname, channelName);
+        String internalDeviceName = mapping != null ? mapping.getInternalDeviceName() : deviceNickname;
+        String internalChannelName = mapping != null ? mapping.getInternalChannelName() : channelName;
+        internalDeviceName = checkDatastoreDir(guestId, internalDeviceName);
+        return new String[]{internalDeviceName, internalChannelName};
+    }
+
+    private GetTileResponse readTile(long guestId, String datastoreDeviceName, String datastoreChannelName, int level, long offset) {
+        // nothing was ever imported for this device: answer without running the datastore
+        if (!getDatastoreEngine().hasDevice(guestId, datastoreDeviceName))
+            return GetTileResponse.getEmptyTile(level,offset);
+        final DataStoreExecutionResult dataStoreExecutionResult = getTile(guestId, datastoreDeviceName + "." + datastoreChannelName, level, offset);
+        if (!dataStoreExecutionResult.isSuccess())
+            throw new RuntimeException("Datastore couldn't read tile " + level + "." + offset + " of channel "
+                                       + datastoreDeviceName + "." + datastoreChannelName + " (statusCode: "
+                                       + dataStoreExecutionResult.getStatusCode() + ")");
+
+        GetTileResponse tileResponse = gson.fromJson(dataStoreExecutionResult.getResponse(),GetTileResponse.class);
+
+        if (tileResponse.data == null){
+            tileResponse = GetTileResponse.getEmptyTile(level,offset);
+        }//TODO:several fields are missing still and should be implemented
+
+        return tileResponse;
+    }
+
     private String checkDatastoreDir(Long guestId, String internalDeviceName) throws IOException {
         File dir = new File(env.targetEnvironmentProps.getString("btdatastore.db.location")+File.separator+guestId+File.separator+ internalDeviceName);
         if (dir.exists() && dir.getCanonicalPath().endsWith(internalDeviceName))
@@ -461,14 +640,58 @@ public class BodyTrackHelper {
         return internalDeviceName;
     }
 
+    /**
+     * Same as {@link #fetchTileObject(Long, String, String, int, long)}, serialized to JSON and served from
+     * the tile cache when possible
+     */
     public String fetchTile(Long guestId, String deviceNickname, String channelName, int level, long offset){
-        return gson.toJson(fetchTileObject(guestId,deviceNickname,channelName,level,offset));
+        if (guestId == null)
+            return gson.toJson(GetTileResponse.getEmptyTile(level,offset));
+        final TileCache tileCache = getTileCache();
+        final String cachedTile = tileCache.get(guestId, deviceNickname, channelName, level, offset);
+        if (cachedTile != null)
+            return cachedTile;
+        final long generation = tileCache.getGeneration();
+        try {
+            final String[] datastoreChannel = resolveDatastoreChannel(guestId, deviceNickname, channelName);
+            final String tile = gson.toJson(readTile(guestId, datastoreChannel[0], datastoreChannel[1], level, offset));
+            tileCache.put(guestId, deviceNickname, channelName, level, offset, datastoreChannel[0], tile, generation);
+            return tile;
+        }
+        catch (Exception e) {
+            return gson.toJson(GetTileResponse.getEmptyTile(level,offset));
+        }
+    }
+
+    /**
+     * Evicts all of a guest's cached tiles; to be called whenever datastore data is removed
+     * @param guestId
+     */
+    public void evictCachedTiles(long guestId) {
+        getTileCache().invalidate(guestId);
+    }
+
+    /**
+     * Removes the tiles of a device from the tile store, if tiles are served from one; to be called along with the
+     * removal of the device's datastore directory
+     */
+    public void deleteStoredTiles(long guestId, String deviceName) {
+        final DatastoreEngine engine = getDatastoreEngine();
+        if (engine instanceof InProcessDatastoreEngine)
+            ((InProcessDatastoreEngine) engine).deleteDevice(guestId, deviceName);
+    }
+
+    private void evictCachedTiles(long guestId, String deviceName, UploadResponse uploadResponse) {
+        if (uploadResponse!=null && uploadResponse.min_time!=null && uploadResponse.max_time!=null)
+            getTileCache().invalidate(guestId, deviceName, uploadResponse.min_time, uploadResponse.max_time);
+        else
+            getTileCache().invalidate(guestId, deviceName);
     }
 
     public String getSourcesResponse(Long guestId, TrustedBuddy trustedBuddy) {
         final SourcesResponse response = new SourcesResponse();
 
-        final DataStoreExecutionResult dataStoreExecutionResult = executeDataStore("info",new Object[]{"-r",guestId});
+        final DataStoreExecutionResult dataStoreExecutionResult = info(guestId);
         String result = dataStoreExecutionResult.getResponse();
 
         // Iterate over the various (photo) connectors (if any), manually inserting each into the ChannelSpecs
@@ -510,7 +733,7 @@ public class BodyTrackHelper {
             if (guestId == null) {
                 throw new IllegalArgumentException();
             }
-            final DataStoreExecutionResult dataStoreExecutionResult = executeDataStore("info",new Object[]{"-r",guestId});
+            final DataStoreExecutionResult dataStoreExecutionResult = info(guestId);
             String result = dataStoreExecutionResult.getResponse();
 
             // TODO: check statusCode in DataStoreExecutionResult
@@ -716,7 +939,7 @@ public class BodyTrackHelper {
             if (guestId == null)
                 throw new IllegalArgumentException();
             long then = System.currentTimeMillis();
-            final DataStoreExecutionResult dataStoreExecutionResult = executeDataStore("info",new Object[]{"-r",guestId});
+            final DataStoreExecutionResult dataStoreExecutionResult = info(guestId);
             String result = dataStoreExecutionResult.getResponse();
             long now = System.currentTimeMillis();
             System.out.println("datastore execution time = " + (now-then)); then = now;
@@ -1395,6 +1618,42 @@ public class BodyTrackHelper {
         }
     }
 
+    /**
+     * Passes bytes through to the wrapped stream, keeping track of how many bytes and lines went through
+     */
+    private static final class LineCountingOutputStream extends FilterOutputStream {
+        private long byteCount;
+        private long newlineCount;
+
+        private LineCountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            byteCount++;
+            if (b=='\n') newlineCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            byteCount += len;
+            for (int i=off; i<off+len; i++)
+                if (b[i]=='\n') newlineCount++;
+        }
+
+        long getByteCount() {
+            return byteCount;
+        }
+
+        /** the datastore doesn't terminate its last line */
+        long getLineCount() {
+            return byteCount > 0 ? newlineCount + 1 : 0;
+        }
+    }
+
     public static final class DataStoreExecutionResult implements BodyTrackUploadResult {
         private final int statusCode;
         private final String response;
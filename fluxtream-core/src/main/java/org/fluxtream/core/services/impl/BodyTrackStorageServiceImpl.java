@@ -22,8 +22,9 @@ import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
-import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 @Service
 @Component
@@ -57,6 +58,11 @@ public class BodyTrackStorageServiceImpl implements BodyTrackStorageService {
 
     private Hashtable<String, FieldHandler> fieldHandlers = new Hashtable<String, FieldHandler>();
 
+    private final ConcurrentMap<String, FacetChannels> facetChannels = new ConcurrentHashMap<String, FacetChannels>();
+
+    // looked up for every facet that is stored; the empty string stands for facet types that don't have a device nickname
+    private final ConcurrentMap<String, String> deviceNicknames = new ConcurrentHashMap<String, String>();
+
 	@Override
 	public void storeApiData(ApiKey apiKey, List<? extends AbstractFacet> facets) {
         logStoreApiData(apiKey.getGuestId(), facets);
@@ -263,12 +269,17 @@ public class BodyTrackStorageServiceImpl implements BodyTrackStorageService {
     }
 
     private BodyTrackHelper.BodyTrackUploadResult uploadDailyData(ApiKey apiKey, String deviceName, List<AbstractFacet> deviceFacets, String facetName) {
-        List<String> datastoreChannelNames = getDatastoreChannelNames(facetName);
-        List<String> facetColumnNames = getFacetColumnNames(facetName);
-        List<List<Object>> dailyDataChannelValues = getDailyDataChannelValues(deviceFacets, facetColumnNames);
+        final FacetChannels channels = getFacetChannels(facetName);
+        final double[] times = new double[deviceFacets.size()];
+        final double[][] columns = new double[channels.facetColumnNames.size()][deviceFacets.size()];
+        for (int row=0; row<times.length; row++) {
+            final AbstractFacet deviceFacet = deviceFacets.get(row);
+            times[row] = deviceFacet.start / 1000.0;
+            channels.getExtractor(deviceFacet.getClass()).extract(deviceFacet, columns, row);
+        }
 
         // TODO: check the status code in the BodyTrackUploadResult
-        final BodyTrackHelper.BodyTrackUploadResult bodyTrackUploadResult = bodyTrackHelper.uploadToBodyTrack(apiKey, deviceName, datastoreChannelNames, dailyDataChannelValues);
+        final BodyTrackHelper.BodyTrackUploadResult bodyTrackUploadResult = bodyTrackHelper.uploadColumnsToBodyTrack(apiKey, deviceName, channels.datastoreChannelNames, times, columns);
         return bodyTrackUploadResult;
     }
 
@@ -328,85 +339,66 @@ public class BodyTrackStorageServiceImpl implements BodyTrackStorageService {
     }
 
     private List<String> getDatastoreChannelNames(String facetName) {
-        String[] channelNamesMappings = env.bodytrackProperties.getString(facetName + ".channel_names").split(",");
-        // this is to account for a very strange eisenbug where bodytrackProperties.getString() would only return the first item before the comma
-        String[] stringArray = env.bodytrackProperties.getStringArray(facetName + ".channel_names");
-        if (stringArray.length>channelNamesMappings.length)
-            channelNamesMappings = stringArray;
-        List<String> channelNames = new ArrayList<String>();
-        for (String mapping : channelNamesMappings) {
-            String[] terms = StringUtils.split(mapping, ":");
-            if (terms[1].startsWith("#"))
-                continue;
-            channelNames.add(terms[0].trim());
-        }
-        return channelNames;
+        return getFacetChannels(facetName).datastoreChannelNames;
     }
 
-    private List<String> getFacetColumnNames(String facetName) {
-        String[] channelNamesMappings = env.bodytrackProperties.getString(facetName + ".channel_names").split(",");
-        // this is to account for a very strange eisenbug where bodytrackProperties.getString() would only return the first item before the comma
-        String[] stringArray = env.bodytrackProperties.getStringArray(facetName + ".channel_names");
-        if (stringArray.length>channelNamesMappings.length)
-            channelNamesMappings = stringArray;
-        List<String> channelNames = new ArrayList<String>();
-        for (String mapping : channelNamesMappings) {
-            String[] terms = StringUtils.split(mapping, ":");
-            if (terms[1].startsWith("#"))
-                continue;
-            channelNames.add(terms[1].trim());
+    private List<FieldHandler> getFieldHandlers(String facetName) {
+        List<FieldHandler> fieldHandlers = new ArrayList<FieldHandler>();
+        for (String handlerName : getFacetChannels(facetName).fieldHandlerNames)
+            fieldHandlers.add(getFieldHandler(handlerName));
+        return fieldHandlers;
+    }
+
+    private FacetChannels getFacetChannels(String facetName) {
+        FacetChannels channels = facetChannels.get(facetName);
+        if (channels==null) {
+            channels = new FacetChannels(facetName);
+            facetChannels.putIfAbsent(facetName, channels);
         }
-        return channelNames;
+        return channels;
     }
 
-    private List<FieldHandler> getFieldHandlers(String facetName) {
-        String[] channelNamesMappings = env.bodytrackProperties.getString(facetName + ".channel_names").split(",");
-        // this is to account for a very strange eisenbug where bodytrackProperties.getString() would only return the first item before the comma
-        String[] stringArray = env.bodytrackProperties.getStringArray(facetName + ".channel_names");
-        if (stringArray.length>channelNamesMappings.length)
-            channelNamesMappings = stringArray;
-        List<FieldHandler> fieldHandlers = new ArrayList<FieldHandler>();
-        for (String mapping : channelNamesMappings) {
-            String[] terms = StringUtils.split(mapping, ":");
-            if (terms[1].startsWith("#")) {
-                String handlerName = terms[1].substring(1);
-                if (handlerName.equalsIgnoreCase("NOOP")||handlerName.equalsIgnoreCase("OOP"))
+    /**
+     * The channels of a facet, as declared by its <code>channel_names</code> bodytrack property, parsed once since
+     * bodytrack properties don't change while the application runs.
+     */
+    private final class FacetChannels {
+
+        final List<String> datastoreChannelNames = new ArrayList<String>();
+        final List<String> facetColumnNames = new ArrayList<String>();
+        final List<String> fieldHandlerNames = new ArrayList<String>();
+
+        private final ConcurrentMap<Class<? extends AbstractFacet>, FacetChannelExtractor> extractors =
+                new ConcurrentHashMap<Class<? extends AbstractFacet>, FacetChannelExtractor>();
+
+        FacetChannels(String facetName) {
+            String[] channelNamesMappings = env.bodytrackProperties.getString(facetName + ".channel_names").split(",");
+            // this is to account for a very strange eisenbug where bodytrackProperties.getString() would only return the first item before the comma
+            String[] stringArray = env.bodytrackProperties.getStringArray(facetName + ".channel_names");
+            if (stringArray.length>channelNamesMappings.length)
+                channelNamesMappings = stringArray;
+            for (String mapping : channelNamesMappings) {
+                String[] terms = StringUtils.split(mapping, ":");
+                if (terms[1].startsWith("#")) {
+                    String handlerName = terms[1].substring(1);
+                    if (handlerName.equalsIgnoreCase("NOOP")||handlerName.equalsIgnoreCase("OOP"))
+                        continue;
+                    fieldHandlerNames.add(handlerName.substring(1));
                     continue;
-                FieldHandler fieldHandler = getFieldHandler(handlerName.substring(1));
-                fieldHandlers.add(fieldHandler);
+                }
+                datastoreChannelNames.add(terms[0].trim());
+                facetColumnNames.add(terms[1].trim());
             }
         }
-        return fieldHandlers;
-    }
 
-    private List<List<Object>> getDailyDataChannelValues(
-            List<AbstractFacet> deviceFacets,
-            List<String> dailyDataChannelNames) {
-        List<List<Object>> channelValues = new ArrayList<List<Object>>();
-        for (AbstractFacet deviceFacet : deviceFacets) {
-            Iterator<String> eachFieldName = dailyDataChannelNames.iterator();
-            List<Object> values = new ArrayList<Object>();
-            values.add(deviceFacet.start / 1000.0);
-            while (eachFieldName.hasNext()) {
-                String fieldName = eachFieldName.next();
-                try {
-                    Field field;
-                    field = deviceFacet.getClass().getField(fieldName);
-                    Object channelValue = field.get(deviceFacet);
-                    if (channelValue instanceof java.util.Date) {
-                        values.add(((java.util.Date)channelValue).getTime());
-                    }
-                    else {
-                        values.add(channelValue);
-                    }
-                }
-                catch (Exception e) {
-                    throw new RuntimeException("No such Field: " + fieldName);
-                }
+        FacetChannelExtractor getExtractor(Class<? extends AbstractFacet> facetClass) {
+            FacetChannelExtractor extractor = extractors.get(facetClass);
+            if (extractor==null) {
+                extractor = new FacetChannelExtractor(facetClass, facetColumnNames);
+                extractors.putIfAbsent(facetClass, extractor);
             }
-            channelValues.add(values);
+            return extractor;
         }
-        return channelValues;
     }
 
     private Map<String, List<AbstractFacet>> sortFacetsByFacetName(List<? extends AbstractFacet> facets) {
@@ -433,15 +425,22 @@ public class BodyTrackStorageServiceImpl implements BodyTrackStorageService {
 	}
 
 	private String getDeviceNickname(String connectorAndObjectType) {
-		Iterator<String> keys = env.bodytrackProperties.getKeys();
-		while (keys.hasNext()) {
-			String key = keys.next();
-			if (key.startsWith(connectorAndObjectType)) {
-				if (key.endsWith("dev_nickname"))
-					return (String) env.bodytrackProperties.getProperty(key);
+		String deviceNickname = deviceNicknames.get(connectorAndObjectType);
+		if (deviceNickname==null) {
+			deviceNickname = "";
+			Iterator<String> keys = env.bodytrackProperties.getKeys();
+			while (keys.hasNext()) {
+				String key = keys.next();
+				if (key.startsWith(connectorAndObjectType)) {
+					if (key.endsWith("dev_nickname")) {
+						deviceNickname = (String) env.bodytrackProperties.getProperty(key);
+						break;
+					}
+				}
 			}
+			deviceNicknames.put(connectorAndObjectType, deviceNickname);
 		}
-		return null;
+		return deviceNickname.length()>0 ? deviceNickname : null;
 	}
 
 	@Override
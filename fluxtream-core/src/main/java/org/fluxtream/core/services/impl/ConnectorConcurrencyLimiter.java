@@ -0,0 +1,115 @@
+package org.fluxtream.core.services.impl;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.fluxtream.core.Configuration;
+import org.fluxtream.core.aspects.FlxLogger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Per-connector {@link AdaptiveConcurrencyLimit}s on the number of update workers that may run at the same time, so
+ * that a connector whose API is throttling us or slowing down doesn't take up the whole
+ * <code>updateWorkersExecutor</code> pool.
+ *
+ * Limits start at <code>updateQueue.connectorConcurrency.initial</code> and stay between
+ * <code>updateQueue.connectorConcurrency.min</code> and <code>updateQueue.connectorConcurrency.max</code> (by default
+ * the size of the pool). Setting <code>updateQueue.connectorConcurrency.enabled</code> to <code>false</code> lets
+ * every connector use the whole pool again.
+ */
+@Component
+public class ConnectorConcurrencyLimiter implements InitializingBean {
+
+    private static final FlxLogger logger = FlxLogger.getLogger(ConnectorConcurrencyLimiter.class);
+
+    @Autowired
+    Configuration env;
+
+    @Autowired
+    @Qualifier("updateWorkersExecutor")
+    ThreadPoolTaskExecutor executor;
+
+    private final ConcurrentMap<String, AdaptiveConcurrencyLimit> limits = new ConcurrentHashMap<String, AdaptiveConcurrencyLimit>();
+
+    private boolean enabled;
+    private int initialLimit;
+    private int minLimit;
+    private int maxLimit;
+    private long cooldown;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        enabled = !"false".equals(env.get("updateQueue.connectorConcurrency.enabled"));
+        maxLimit = Math.max(1, env.targetEnvironmentProps.getInt("updateQueue.connectorConcurrency.max", executor.getMaxPoolSize()));
+        minLimit = Math.min(maxLimit, Math.max(1, env.targetEnvironmentProps.getInt("updateQueue.connectorConcurrency.min", 1)));
+        initialLimit = Math.min(maxLimit, Math.max(minLimit, env.targetEnvironmentProps.getInt("updateQueue.connectorConcurrency.initial", 5)));
+        cooldown = env.targetEnvironmentProps.getLong("updateQueue.connectorConcurrency.cooldown", 10L) * 1000L;
+        logger.info("module=updateQueue component=connectorConcurrencyLimiter action=afterPropertiesSet enabled=" + enabled +
+                    " initialLimit=" + initialLimit + " minLimit=" + minLimit + " maxLimit=" + maxLimit);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns how many more update workers may be started right now for the given connector
+     */
+    public int getAvailablePermits(final String connectorName) {
+        if (!enabled)
+            return Integer.MAX_VALUE;
+        return getLimit(connectorName).getAvailablePermits();
+    }
+
+    /**
+     * Counts an update worker as running for the given connector; every call must be matched with a call to
+     * {@link #release(String, long, boolean)} or {@link #cancel(String)}
+     */
+    public void acquire(final String connectorName) {
+        getLimit(connectorName).acquire();
+    }
+
+    /**
+     * Gives back a permit for an update worker that could not be started
+     */
+    public void cancel(final String connectorName) {
+        getLimit(connectorName).cancel();
+    }
+
+    /**
+     * @param latency how long the worker ran, in milliseconds
+     * @param throttled whether the worker hit the connector's rate limit
+     */
+    public void release(final String connectorName, final long latency, final boolean throttled) {
+        final AdaptiveConcurrencyLimit limit = getLimit(connectorName);
+        final int before = limit.getLimit();
+        limit.release(latency, throttled, System.currentTimeMillis());
+        final int after = limit.getLimit();
+        if (after!=before)
+            logger.info("module=updateQueue component=connectorConcurrencyLimiter action=release connector=" + connectorName +
+                        " latency=" + latency + " throttled=" + throttled + " limit=" + after + " previousLimit=" + before);
+    }
+
+    /**
+     * Returns the limits of all the connectors that had tasks dispatched so far, by connector name
+     */
+    public Map<String, AdaptiveConcurrencyLimit> getLimits() {
+        return new TreeMap<String, AdaptiveConcurrencyLimit>(limits);
+    }
+
+    private AdaptiveConcurrencyLimit getLimit(final String connectorName) {
+        AdaptiveConcurrencyLimit limit = limits.get(connectorName);
+        if (limit==null) {
+            final AdaptiveConcurrencyLimit newLimit = new AdaptiveConcurrencyLimit(initialLimit, minLimit, maxLimit, cooldown);
+            limit = limits.putIfAbsent(connectorName, newLimit);
+            if (limit==null)
+                limit = newLimit;
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,55 @@
+package org.fluxtream.core.services.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.fluxtream.core.domain.ConnectorInfo;
+
+/**
+ * Immutable snapshot of the <code>Connector</code> table, so that connector lookups don't hit the database.
+ *
+ * The {@link ConnectorInfo}s of a registry are detached and shared between threads: they must not be modified, and
+ * callers that need to modify them get copies (see {@link #copyConnectors()}).
+ */
+final class ConnectorRegistry {
+
+    final long version;
+    final long loaded = System.currentTimeMillis();
+
+    // in the order of the connectors.all query
+    private final ConnectorInfo[] connectors;
+    private final Map<String, ConnectorInfo> connectorsByName;
+
+    ConnectorRegistry(final long version, final List<ConnectorInfo> connectors) {
+        this.version = version;
+        this.connectors = new ConnectorInfo[connectors.size()];
+        this.connectorsByName = new HashMap<String, ConnectorInfo>(connectors.size()*2);
+        for (int i=0; i<this.connectors.length; i++) {
+            final ConnectorInfo connectorInfo = new ConnectorInfo(connectors.get(i));
+            this.connectors[i] = connectorInfo;
+            connectorsByName.put(connectorInfo.connectorName, connectorInfo);
+        }
+    }
+
+    int size() {
+        return connectors.length;
+    }
+
+    /**
+     * Returns the shared, read-only information about the given connector, or <code>null</code> if it isn't known
+     */
+    ConnectorInfo getConnectorInfo(final String connectorName) {
+        return connectorsByName.get(connectorName);
+    }
+
+    /**
+     * Returns modifiable copies of all the connectors
+     */
+    List<ConnectorInfo> copyConnectors() {
+        final List<ConnectorInfo> copies = new ArrayList<ConnectorInfo>(connectors.length);
+        for (ConnectorInfo connectorInfo : connectors)
+            copies.add(new ConnectorInfo(connectorInfo));
+        return copies;
+    }
+}
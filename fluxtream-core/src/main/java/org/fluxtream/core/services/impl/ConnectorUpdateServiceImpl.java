@@ -6,12 +6,18 @@ import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.UUID;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
 
+import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.log4j.Logger;
+import org.fluxtream.core.Configuration;
 import org.fluxtream.core.aspects.FlxLogger;
 import org.fluxtream.core.connectors.Connector;
 import org.fluxtream.core.connectors.updaters.AbstractUpdater;
@@ -23,6 +29,8 @@ import org.fluxtream.core.domain.ApiUpdate;
 import org.fluxtream.core.domain.ConnectorInfo;
 import org.fluxtream.core.domain.UpdateWorkerTask;
 import org.fluxtream.core.domain.UpdateWorkerTask.Status;
+import org.fluxtream.core.metrics.Histogram;
+import org.fluxtream.core.metrics.MetricsRegistry;
 import org.fluxtream.core.services.ApiDataService;
 import org.fluxtream.core.services.ConnectorUpdateService;
 import org.fluxtream.core.services.GuestService;
@@ -36,10 +44,18 @@ import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 @Service
 @Component
@@ -48,6 +64,9 @@ public class ConnectorUpdateServiceImpl implements ConnectorUpdateService, Initi
 
     static FlxLogger logger = FlxLogger.getLogger(ConnectorUpdateServiceImpl.class);
 
+    private static final Histogram CLAIM_DURATION = MetricsRegistry.getDefault().histogram("flx_update_queue_claim_duration_ms",
+            "Time spent claiming due update tasks for dispatch, in milliseconds");
+
     private Map<Connector, AbstractUpdater> updaters = new Hashtable<Connector, AbstractUpdater>();
 
     @Autowired
@@ -75,10 +94,60 @@ public class ConnectorUpdateServiceImpl implements ConnectorUpdateService, Initi
     @Autowired
     WorkerDispatchService workerDispatchService;
 
+    // a single thread with room for one pending poll: wakeups that come in while a poll is pending are dropped
+    @Autowired
+    @Qualifier("updateQueueDispatcher")
+    ThreadPoolTaskExecutor dispatcher;
+
+    @Autowired
+    UpdateQueueLatency queueLatency;
+
+    @Autowired
+    ConnectorConcurrencyLimiter concurrencyLimiter;
+
+    @Autowired
+    Configuration env;
+
+    @Autowired
+    @Qualifier("jdbcTemplate")
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    @Qualifier("txTemplate")
+    TransactionTemplate transactionTemplate;
+
+    private static final int DEFAULT_SCHEDULING_BATCH_SIZE = 1000;
+
+    // wakeups are ignored until the Consumer has started polling the queue
+    private volatile boolean queueConsumptionStarted = false;
+
     @Override
     public void afterPropertiesSet() throws Exception {
         executor.setThreadGroupName("UpdateWorkers");
         executor.setThreadNamePrefix("UpdateWorker-");
+
+        final MetricsRegistry metrics = MetricsRegistry.getDefault();
+        metrics.gauge("flx_update_queue_due_tasks", "Scheduled update tasks that are due, on all servers",
+                      new MetricsRegistry.Value() {
+                          @Override
+                          public double get() {
+                              return workerDispatchService.countDueTasks();
+                          }
+                      });
+        metrics.gauge("flx_update_workers_active", "Update workers running on this server",
+                      new MetricsRegistry.Value() {
+                          @Override
+                          public double get() {
+                              return executor.getActiveCount();
+                          }
+                      });
+        metrics.gauge("flx_update_workers_max", "Maximum number of update workers on this server",
+                      new MetricsRegistry.Value() {
+                          @Override
+                          public double get() {
+                              return executor.getMaxPoolSize();
+                          }
+                      });
     }
 
     /**
@@ -295,6 +364,134 @@ public class ConnectorUpdateServiceImpl implements ConnectorUpdateService, Initi
         return scheduleResults;
     }
 
+    /**
+     * Runs outside of JPA transactions: the queries and the batched inserts go through JDBC, each batch being
+     * committed on its own so that a tick doesn't hold one huge transaction.
+     */
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public int scheduleIncrementalUpdates(final int shardIndex, final int shardCount,
+                                          final long startTime, final long timespan) {
+        final long then = System.currentTimeMillis();
+
+        final Set<String> synchedConnectorNames = new HashSet<String>();
+        try {
+            for (ConnectorInfo connectorInfo : systemService.getConnectors()) {
+                if (connectorInfo.enabled && connectorInfo.supportsSync)
+                    synchedConnectorNames.add(connectorInfo.connectorName);
+            }
+        }
+        catch (Exception e) {
+            throw new RuntimeException("Could not retrieve the list of connectors", e);
+        }
+
+        final List<String> liveServerUUIDs = getLiveServerUUIDs();
+        final StringBuilder liveServerUUIDsPlaceholders = new StringBuilder();
+        for (int i=0; i<liveServerUUIDs.size(); i++)
+            liveServerUUIDsPlaceholders.append(i>0 ? ",?" : "?");
+        final List<Object> pendingParams = new ArrayList<Object>(liveServerUUIDs);
+        pendingParams.add(shardCount);
+        pendingParams.add(shardIndex);
+        final Set<Long> pendingTasks = queryTaskKeys(
+                "SELECT apiKeyId, objectTypes FROM UpdateWorkerTask " +
+                "WHERE (status=" + Status.SCHEDULED.ordinal() + " OR (status=" + Status.IN_PROGRESS.ordinal() +
+                " AND serverUUID IN (" + liveServerUUIDsPlaceholders + "))) AND MOD(guestId, ?)=?",
+                pendingParams.toArray());
+        final Set<Long> completedHistoryUpdates = queryTaskKeys(
+                "SELECT DISTINCT apiKeyId, objectTypes FROM UpdateWorkerTask " +
+                "WHERE status=" + Status.DONE.ordinal() + " AND updateType=" + UpdateType.INITIAL_HISTORY_UPDATE.ordinal() +
+                " AND MOD(guestId, ?)=?",
+                shardCount, shardIndex);
+
+        final List<Map<String, Object>> apiKeys = jdbcTemplate.queryForList(
+                "SELECT id, guestId, api FROM ApiKey " +
+                "WHERE (erasing IS NULL OR erasing<>'Y') " +
+                "AND (status IS NULL OR status<>" + ApiKey.Status.STATUS_PERMANENT_FAILURE.ordinal() + ") " +
+                "AND MOD(guestId, ?)=? ORDER BY guestId",
+                shardCount, shardIndex);
+
+        // guests are spaced by the order of their ids, all the updates of a guest being scheduled at the same time
+        int guests = 0;
+        long previousGuestId = -1;
+        for (Map<String, Object> apiKey : apiKeys) {
+            final long guestId = ((Number)apiKey.get("guestId")).longValue();
+            if (guestId!=previousGuestId) {
+                guests++;
+                previousGuestId = guestId;
+            }
+        }
+        final long guestUpdateSpacing = guests>0 ? timespan/guests : 0;
+
+        final List<Object[]> newTasks = new ArrayList<Object[]>();
+        int alreadyScheduled = 0;
+        long timeScheduled = startTime - guestUpdateSpacing;
+        previousGuestId = -1;
+        for (Map<String, Object> apiKey : apiKeys) {
+            final Connector connector = Connector.fromValue(((Number)apiKey.get("api")).intValue());
+            if (connector==null || !synchedConnectorNames.contains(connector.getName()))
+                continue;
+            final long apiKeyId = ((Number)apiKey.get("id")).longValue();
+            final long guestId = ((Number)apiKey.get("guestId")).longValue();
+            if (guestId!=previousGuestId) {
+                timeScheduled += guestUpdateSpacing;
+                previousGuestId = guestId;
+            }
+            // autonomous connectors decide what objectTypes to update by themselves
+            final int[] objectTypeValues = connector.isAutonomous() ? new int[]{0} : connector.objectTypeValues();
+            for (int objectTypes : objectTypeValues) {
+                final Long taskKey = taskKey(apiKeyId, objectTypes);
+                if (pendingTasks.contains(taskKey)) {
+                    alreadyScheduled++;
+                    continue;
+                }
+                final UpdateType updateType = completedHistoryUpdates.contains(taskKey)
+                                            ? UpdateType.INCREMENTAL_UPDATE
+                                            : UpdateType.INITIAL_HISTORY_UPDATE;
+                newTasks.add(new Object[]{guestId, connector.getName(), apiKeyId, objectTypes, updateType.ordinal(),
+                                          Status.SCHEDULED.ordinal(), timeScheduled, UNCLAIMED});
+            }
+        }
+
+        final int batchSize = env.targetEnvironmentProps.getInt("producer.batchSize", DEFAULT_SCHEDULING_BATCH_SIZE);
+        for (int from=0; from<newTasks.size(); from+=batchSize) {
+            final List<Object[]> batch = newTasks.subList(from, Math.min(from + batchSize, newTasks.size()));
+            transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(final TransactionStatus status) {
+                    jdbcTemplate.batchUpdate("INSERT INTO UpdateWorkerTask " +
+                                             "(guestId, connectorName, apiKeyId, objectTypes, updateType, status, timeScheduled, serverUUID, retries) " +
+                                             "VALUES (?, ?, ?, ?, ?, ?, ?, ?, 0)", batch);
+                }
+            });
+            if ((Long)batch.get(0)[6] <= System.currentTimeMillis())
+                wakeUpDispatcherAfterCommit();
+        }
+
+        logger.info(new StringBuilder("module=updateQueue component=connectorUpdateService action=scheduleIncrementalUpdates")
+                            .append(" shard=").append(shardIndex).append("/").append(shardCount)
+                            .append(" guests=").append(guests)
+                            .append(" apiKeys=").append(apiKeys.size())
+                            .append(" scheduled=").append(newTasks.size())
+                            .append(" alreadyScheduled=").append(alreadyScheduled)
+                            .append(" timeTaken=").append(System.currentTimeMillis() - then).toString());
+        return newTasks.size();
+    }
+
+    private Set<Long> queryTaskKeys(final String sql, final Object... params) {
+        final Set<Long> taskKeys = new HashSet<Long>();
+        jdbcTemplate.query(sql, params, new RowCallbackHandler() {
+            @Override
+            public void processRow(final ResultSet rs) throws SQLException {
+                taskKeys.add(taskKey(rs.getLong(1), rs.getInt(2)));
+            }
+        });
+        return taskKeys;
+    }
+
+    private static Long taskKey(final long apiKeyId, final int objectTypes) {
+        return (apiKeyId << 32) | (objectTypes & 0xFFFFFFFFL);
+    }
+
     @Transactional(readOnly = false)
     @Override
     public ScheduleResult reScheduleUpdateTask(long updateWorkerTaskId, long time, boolean incrementRetries,
@@ -355,7 +552,8 @@ public class ConnectorUpdateServiceImpl implements ConnectorUpdateService, Initi
     }
 
     @Override
-    public void pollScheduledUpdateWorkerTasks() {
+    public synchronized void pollScheduledUpdateWorkerTasks() {
+        queueConsumptionStarted = true;
 
         int maxThreads = executor.getMaxPoolSize();
         int activeThreads = executor.getActiveCount();
@@ -367,8 +565,30 @@ public class ConnectorUpdateServiceImpl implements ConnectorUpdateService, Initi
         // no guarantee that entities would be properly persisted when exiting such a nested method.
         // Please note that WorkerDispatchService's methods have a @Transactional annotation with a propagation=Propagation.REQUIRES_NEW attribute
 
-        final List<UpdateWorkerTask> updateWorkerTasks = workerDispatchService.claimTasksForDispatch(availableThreads, SERVER_UUID);
+        if (!concurrencyLimiter.isEnabled()) {
+            final long then = System.currentTimeMillis();
+            final List<UpdateWorkerTask> updateWorkerTasks = workerDispatchService.claimTasksForDispatch(availableThreads, SERVER_UUID);
+            CLAIM_DURATION.observeSince(then);
+            dispatch(updateWorkerTasks, false);
+            return;
+        }
 
+        // connectors are served the most overdue first, each taking no more than its current concurrency limit
+        for (String connectorName : workerDispatchService.getConnectorsWithDueTasks()) {
+            if (availableThreads<=0)
+                break;
+            final int permits = Math.min(availableThreads, concurrencyLimiter.getAvailablePermits(connectorName));
+            if (permits<=0)
+                continue;
+            final long then = System.currentTimeMillis();
+            final List<UpdateWorkerTask> updateWorkerTasks = workerDispatchService.claimTasksForDispatch(permits, SERVER_UUID, connectorName);
+            CLAIM_DURATION.observeSince(then);
+            availableThreads -= updateWorkerTasks.size();
+            dispatch(updateWorkerTasks, true);
+        }
+    }
+
+    private void dispatch(final List<UpdateWorkerTask> updateWorkerTasks, final boolean limited) {
         for (int i=0; i<updateWorkerTasks.size(); i++) {
             UpdateWorkerTask updateWorkerTask = updateWorkerTasks.get(i);
             logger.info("module=updateQueue component=connectorUpdateService action=pollScheduledUpdateWorkerTasks" +
@@ -377,15 +597,20 @@ public class ConnectorUpdateServiceImpl implements ConnectorUpdateService, Initi
 
             UpdateWorker updateWorker = beanFactory.getBean(UpdateWorker.class);
             updateWorker.task = updateWorkerTask;
+            if (limited) {
+                concurrencyLimiter.acquire(updateWorkerTask.connectorName);
+                updateWorker.connectorPermit = updateWorkerTask.connectorName;
+            }
             try {
                 executor.execute(updateWorker);
             } catch (Throwable t) {
+                if (limited)
+                    concurrencyLimiter.cancel(updateWorkerTask.connectorName);
                 workerDispatchService.unclaimTask(updateWorkerTask.getId());
                 logger.warn("executor.execute failed. activeCount=" + executor.getActiveCount() + " maxPoolSize=" + executor.getMaxPoolSize());
                 t.printStackTrace();
             }
         }
-
     }
 
     @Override
@@ -419,6 +644,8 @@ public class ConnectorUpdateServiceImpl implements ConnectorUpdateService, Initi
                 updateWorkerTask.jsonParams = jsonParams[0];
             em.persist(updateWorkerTask);
             long now = System.currentTimeMillis();
+            if (timeScheduled <= now)
+                wakeUpDispatcherAfterCommit();
             scheduleResult = new ScheduleResult(apiKey.getId(), apiKey.getConnector().getName(), objectTypes,
                                                 timeScheduled <= now
                                                 ? ScheduleResult.ResultType.SCHEDULED_UPDATE_IMMEDIATE
@@ -438,6 +665,40 @@ public class ConnectorUpdateServiceImpl implements ConnectorUpdateService, Initi
         return scheduleResult;
     }
 
+    /**
+     * Polls the queue as soon as the current transaction (which just scheduled a task that is due now) commits, rather
+     * than waiting for the Consumer's next run
+     */
+    private void wakeUpDispatcherAfterCommit() {
+        if (!queueConsumptionStarted)
+            return;
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    wakeUpDispatcher();
+                }
+            });
+        }
+        else
+            wakeUpDispatcher();
+    }
+
+    private void wakeUpDispatcher() {
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pollScheduledUpdateWorkerTasks();
+                }
+                catch (Throwable t) {
+                    logger.warn("module=updateQueue component=connectorUpdateService action=wakeUpDispatcher" +
+                                " stackTrace=<![CDATA[" + ExceptionUtils.getStackTrace(t) + "]]>");
+                }
+            }
+        });
+    }
+
     @Override
     @Transactional(readOnly = false)
     public void addApiNotification(Connector connector, long guestId, String content) {
@@ -720,10 +981,15 @@ public class ConnectorUpdateServiceImpl implements ConnectorUpdateService, Initi
             logger.info(sb);
             return null;
         } else {
-            logger.info("claiming task " + taskId + " for execution");
             task.status = Status.IN_PROGRESS;
             task.workerThreadName = workerThreadName;
             task.startTime = DateTimeUtils.currentTimeMillis();
+            queueLatency.record(task.startTime - task.timeScheduled);
+            logger.info(new StringBuilder("module=updateQueue component=connectorUpdateService action=claimForExecution")
+                                .append(" updateWorkerTaskId=").append(taskId)
+                                .append(" connector=").append(task.connectorName)
+                                .append(" queueLatency=").append(task.startTime - task.timeScheduled)
+                                .append(" meanQueueLatency=").append(Math.round(queueLatency.getMean())));
             return task;
         }
     }
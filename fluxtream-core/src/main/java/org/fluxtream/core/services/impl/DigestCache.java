@@ -0,0 +1,338 @@
+package org.fluxtream.core.services.impl;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.fluxtream.core.Configuration;
+import org.fluxtream.core.aspects.FlxLogger;
+import org.fluxtream.core.connectors.vos.AbstractFacetVO;
+import org.fluxtream.core.domain.AbstractFacet;
+import org.fluxtream.core.events.DataReceivedEvent;
+import org.fluxtream.core.events.EventListener;
+import org.fluxtream.core.services.EventListenerService;
+import org.fluxtream.core.utils.TimeUtils;
+import org.joda.time.DateTimeConstants;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Bounded, least-recently-used cache of the facet VO collections that make up calendar digests, keyed by
+ * (guestId, time period, connector, object type, measure units).
+ *
+ * Entries remember the time span of the period they were built for so that facet writes only evict the periods they
+ * may show up in, and are indexed by guest so that evicting them doesn't go through the digests of other guests. Each
+ * guest has its own generation, which changes whenever its digests are invalidated: a digest built while the guest's
+ * data was being written isn't cached. Writes made in a transaction are gathered, one time range per guest and
+ * connector, and invalidated once when the transaction completes; received data is invalidated once its transaction
+ * has committed, on the event listener thread. Entries also expire after <code>digestCache.ttl</code> seconds to catch
+ * facet writes that don't go through {@link org.fluxtream.core.services.ApiDataService}.
+ */
+@Component
+public class DigestCache implements EventListener<DataReceivedEvent>, InitializingBean {
+
+    private static final FlxLogger logger = FlxLogger.getLogger(DigestCache.class);
+
+    // local time facets may be stored up to a day away from the UTC bounds of the period they belong to
+    private static final long TIMEZONE_MARGIN = DateTimeConstants.MILLIS_PER_DAY;
+
+    @Autowired
+    Configuration env;
+
+    private int maxEntries;
+    private long maxFacets;
+    private long ttl;
+
+    private final LinkedHashMap<DigestKey, CachedDigest> digests = new LinkedHashMap<DigestKey, CachedDigest>(256, 0.75f, true);
+    private final Map<Long, GuestDigests> guests = new HashMap<Long, GuestDigests>();
+    private long facetCount = 0;
+    // generations are drawn from a single counter; guests without an entry in guests are at floorGeneration
+    private long lastGeneration = 0;
+    private long floorGeneration = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    @Autowired
+    final protected void setEventService(@Qualifier("eventListenerServiceImpl") EventListenerService evl) {
+        evl.addEventListener(DataReceivedEvent.class, this, EventListenerService.Delivery.AFTER_COMMIT);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        maxEntries = env.targetEnvironmentProps.getInt("digestCache.maxEntries", 20000);
+        maxFacets = env.targetEnvironmentProps.getLong("digestCache.maxFacets", 500000L);
+        ttl = env.targetEnvironmentProps.getLong("digestCache.ttl", 3600L) * 1000L;
+    }
+
+    @Override
+    public void handleEvent(final DataReceivedEvent event) {
+        final long guestId = event.updateInfo.getGuestId();
+        final int api = event.updateInfo.apiKey.getConnector().value();
+        if (event.start>0 && event.end>=event.start)
+            invalidate(guestId, api, event.start, event.end);
+        else if (event.date!=null) {
+            final long date = TimeUtils.dateFormatterUTC.parseMillis(event.date);
+            invalidate(guestId, api, date, date + DateTimeConstants.MILLIS_PER_DAY);
+        }
+        else
+            invalidate(guestId, api);
+    }
+
+    /**
+     * Returns the current generation of the given guest's digests, to be passed back to
+     * {@link #put(long, String, int, String, String, long, long, Collection, long)}
+     */
+    public synchronized long getGeneration(final long guestId) {
+        final GuestDigests guestDigests = guests.get(guestId);
+        return guestDigests!=null ? guestDigests.generation : floorGeneration;
+    }
+
+    public synchronized Collection<AbstractFacetVO<AbstractFacet>> get(final long guestId, final String period, final int api,
+                                                                       final String objectTypeName, final String units) {
+        final DigestKey key = new DigestKey(guestId, period, api, objectTypeName, units);
+        final CachedDigest cachedDigest = digests.get(key);
+        if (cachedDigest==null) {
+            misses++;
+            return null;
+        }
+        if (System.currentTimeMillis()-cachedDigest.created > ttl) {
+            remove(key);
+            misses++;
+            return null;
+        }
+        hits++;
+        return cachedDigest.facets;
+    }
+
+    /**
+     * Caches the facet VOs of the period [<code>start</code>, <code>end</code>], unless the guest's digests were
+     * invalidated since <code>generation</code> was obtained, in which case they may already be stale and are dropped.
+     */
+    public synchronized boolean put(final long guestId, final String period, final int api, final String objectTypeName,
+                                    final String units, final long start, final long end,
+                                    final Collection<AbstractFacetVO<AbstractFacet>> facets, final long generation) {
+        if (generation!=getGeneration(guestId) || facets.size()>maxFacets)
+            return false;
+        final DigestKey key = new DigestKey(guestId, period, api, objectTypeName, units);
+        remove(key);
+        final CachedDigest digest = new CachedDigest(start, end, facets);
+        digests.put(key, digest);
+        getGuestDigests(guestId).digests.put(key, digest);
+        facetCount += facets.size();
+        final Iterator<Map.Entry<DigestKey, CachedDigest>> eldest = digests.entrySet().iterator();
+        while ((digests.size()>maxEntries || facetCount>maxFacets) && eldest.hasNext()) {
+            final Map.Entry<DigestKey, CachedDigest> entry = eldest.next();
+            facetCount -= entry.getValue().facets.size();
+            eldest.remove();
+            guests.get(entry.getKey().guestId).digests.remove(entry.getKey());
+        }
+        return true;
+    }
+
+    /**
+     * Evicts the digests of the given guest and connector whose period may contain facets in
+     * [<code>start</code>, <code>end</code>], when the surrounding transaction completes if there is one
+     */
+    public void invalidate(final long guestId, final int api, final long start, final long end) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            evict(guestId, api, start, end);
+            return;
+        }
+        PendingInvalidations pending = null;
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            if (synchronization instanceof PendingInvalidations && ((PendingInvalidations)synchronization).cache==this) {
+                pending = (PendingInvalidations)synchronization;
+                break;
+            }
+        }
+        if (pending==null) {
+            pending = new PendingInvalidations(this);
+            TransactionSynchronizationManager.registerSynchronization(pending);
+        }
+        pending.add(guestId, api, start, end);
+    }
+
+    /**
+     * Evicts all the digests of the given guest and connector
+     */
+    public void invalidate(final long guestId, final int api) {
+        invalidate(guestId, api, Long.MIN_VALUE + TIMEZONE_MARGIN, Long.MAX_VALUE - TIMEZONE_MARGIN);
+    }
+
+    /**
+     * Evicts all the digests of the given guest
+     */
+    public void invalidate(final long guestId) {
+        invalidate(guestId, -1);
+    }
+
+    public synchronized void clear() {
+        floorGeneration = ++lastGeneration;
+        digests.clear();
+        guests.clear();
+        facetCount = 0;
+    }
+
+    public synchronized int size() {
+        return digests.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private synchronized void evict(final long guestId, final int api, final long start, final long end) {
+        final GuestDigests guestDigests = getGuestDigests(guestId);
+        guestDigests.generation = ++lastGeneration;
+        int evicted = 0;
+        for (final Iterator<Map.Entry<DigestKey, CachedDigest>> iterator = guestDigests.digests.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry<DigestKey, CachedDigest> entry = iterator.next();
+            final DigestKey key = entry.getKey();
+            final CachedDigest digest = entry.getValue();
+            if ((api==-1 || key.api==api) &&
+                digest.start-TIMEZONE_MARGIN <= end && start <= digest.end+TIMEZONE_MARGIN) {
+                facetCount -= digest.facets.size();
+                digests.remove(key);
+                iterator.remove();
+                evicted++;
+            }
+        }
+        if (evicted>0 && logger.isDebugEnabled())
+            logger.debug("module=API component=digestCache action=evict guestId=" + guestId + " api=" + api +
+                         " evicted=" + evicted);
+    }
+
+    private void remove(final DigestKey key) {
+        final CachedDigest previous = digests.remove(key);
+        if (previous!=null) {
+            facetCount -= previous.facets.size();
+            guests.get(key.guestId).digests.remove(key);
+        }
+    }
+
+    /**
+     * Returns the entry of the given guest, creating it at the guest's current generation if needed
+     */
+    private GuestDigests getGuestDigests(final long guestId) {
+        GuestDigests guestDigests = guests.get(guestId);
+        if (guestDigests==null) {
+            if (guests.size()>=2*maxEntries) {
+                // forget the guests that have no digests left, at least half of them since there are no more digests
+                // than maxEntries; they all move to a new floor generation, which drops the digests of these guests
+                // that are being built
+                for (final Iterator<GuestDigests> iterator = guests.values().iterator(); iterator.hasNext(); ) {
+                    if (iterator.next().digests.isEmpty())
+                        iterator.remove();
+                }
+                floorGeneration = lastGeneration;
+            }
+            guestDigests = new GuestDigests(floorGeneration);
+            guests.put(guestId, guestDigests);
+        }
+        return guestDigests;
+    }
+
+    private static final class GuestDigests {
+        private long generation;
+        private final Map<DigestKey, CachedDigest> digests = new HashMap<DigestKey, CachedDigest>();
+
+        private GuestDigests(final long generation) {
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * The time ranges written by a transaction, by guest and connector, which are invalidated when it completes
+     */
+    private static final class PendingInvalidations extends TransactionSynchronizationAdapter {
+        private final DigestCache cache;
+        private final Map<Long, Map<Integer, long[]>> ranges = new HashMap<Long, Map<Integer, long[]>>();
+
+        private PendingInvalidations(final DigestCache cache) {
+            this.cache = cache;
+        }
+
+        private void add(final long guestId, final int api, final long start, final long end) {
+            Map<Integer, long[]> guestRanges = ranges.get(guestId);
+            if (guestRanges==null) {
+                guestRanges = new HashMap<Integer, long[]>();
+                ranges.put(guestId, guestRanges);
+            }
+            final long[] range = guestRanges.get(api);
+            if (range==null)
+                guestRanges.put(api, new long[]{start, end});
+            else {
+                range[0] = Math.min(range[0], start);
+                range[1] = Math.max(range[1], end);
+            }
+        }
+
+        @Override
+        public void afterCompletion(final int status) {
+            for (Map.Entry<Long, Map<Integer, long[]>> guestRanges : ranges.entrySet()) {
+                for (Map.Entry<Integer, long[]> range : guestRanges.getValue().entrySet())
+                    cache.evict(guestRanges.getKey(), range.getKey(), range.getValue()[0], range.getValue()[1]);
+            }
+        }
+    }
+
+    private static final class CachedDigest {
+        private final long start, end;
+        private final long created = System.currentTimeMillis();
+        private final Collection<AbstractFacetVO<AbstractFacet>> facets;
+
+        private CachedDigest(final long start, final long end, final Collection<AbstractFacetVO<AbstractFacet>> facets) {
+            this.start = start;
+            this.end = end;
+            this.facets = facets;
+        }
+    }
+
+    private static final class DigestKey {
+        private final long guestId;
+        private final String period;
+        private final int api;
+        private final String objectTypeName;
+        private final String units;
+
+        private DigestKey(final long guestId, final String period, final int api, final String objectTypeName, final String units) {
+            this.guestId = guestId;
+            this.period = period;
+            this.api = api;
+            this.objectTypeName = objectTypeName;
+            this.units = units;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this==o)
+                return true;
+            if (!(o instanceof DigestKey))
+                return false;
+            final DigestKey that = (DigestKey)o;
+            return guestId==that.guestId && api==that.api && period.equals(that.period) && units.equals(that.units) &&
+                   (objectTypeName==null ? that.objectTypeName==null : objectTypeName.equals(that.objectTypeName));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int)(guestId ^ (guestId >>> 32));
+            result = 31 * result + period.hashCode();
+            result = 31 * result + api;
+            result = 31 * result + (objectTypeName!=null ? objectTypeName.hashCode() : 0);
+            result = 31 * result + units.hashCode();
+            return result;
+        }
+    }
+}
@@ -1,43 +1,95 @@
 package org.fluxtream.core.services.impl;
 
-import java.util.Hashtable;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.fluxtream.core.Configuration;
 import org.fluxtream.core.domain.Event;
 import org.fluxtream.core.events.EventListener;
 import org.fluxtream.core.services.EventListenerService;
 import org.fluxtream.core.aspects.FlxLogger;
 import org.codehaus.plexus.util.ExceptionUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
+ * Dispatches events to their listeners. Each listener has a single thread and a bounded queue of its own, so that a
+ * slow or failing listener neither delays the code that fires the events (typically an update worker, in the middle
+ * of its transaction) nor the other listeners. When a listener's queue is full, the events it can't keep up with are
+ * dropped and counted.
  *
  * @author Candide Kemmler (candide@fluxtream.com)
  */
 @Service
-public class EventListenerServiceImpl implements EventListenerService {
+public class EventListenerServiceImpl implements EventListenerService, InitializingBean, DisposableBean {
 
     private final FlxLogger logger = FlxLogger.getLogger(EventListenerServiceImpl.class);
 
-    Map<String, List<EventListener>> listeners =
-            new Hashtable<String,List<EventListener>>();
+    private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    @Autowired
+    Configuration env;
+
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    // copy-on-write, since listeners are registered once at startup (one at a time) and then read for every event
+    final ConcurrentMap<String, CopyOnWriteArrayList<Subscriber>> listeners =
+            new ConcurrentHashMap<String, CopyOnWriteArrayList<Subscriber>>();
+
+    private final ConcurrentMap<EventListener, Subscriber> subscribers = new ConcurrentHashMap<EventListener, Subscriber>();
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        queueCapacity = env.targetEnvironmentProps.getInt("eventListeners.queueCapacity", DEFAULT_QUEUE_CAPACITY);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        for (Subscriber subscriber : subscribers.values())
+            subscriber.executor.shutdown();
+    }
 
     @Override
     public <T extends Event> void addEventListener(final Class<T> eventClass, final EventListener<T> listener) {
+        addEventListener(eventClass, listener, Delivery.ASYNCHRONOUS);
+    }
+
+    @Override
+    public synchronized <T extends Event> void addEventListener(final Class<T> eventClass, final EventListener<T> listener,
+                                                                final Delivery delivery) {
         StringBuilder sb = new StringBuilder("module=events component=EventListenerServiceImpl action=addEventListener");
         if (eventClass!=null)
             sb.append(" eventClass=" + eventClass.toString());
         if (listener!=null)
             sb.append(" listener=" + listener.toString());
+        sb.append(" delivery=" + delivery);
         logger.info(sb.toString());
+
+        // a listener that handles several types of events gets a single thread and queue
+        Subscriber subscriber = subscribers.get(listener);
+        if (subscriber==null) {
+            subscriber = new Subscriber(listener, delivery);
+            subscribers.put(listener, subscriber);
+        }
+
         if (listeners.get(eventClass.getName())==null) {
-            listeners.put(eventClass.getName(), new Vector<EventListener>());
+            listeners.put(eventClass.getName(), new CopyOnWriteArrayList<Subscriber>());
         }
         sb = new StringBuilder("module=events component=EventListenerServiceImpl action=addEventListener");
-        if (!listeners.get(eventClass.getName()).contains(listener)) {
+        if (listeners.get(eventClass.getName()).addIfAbsent(subscriber)) {
             logger.info(sb.append(" message=\"adding listener " + listener.toString() + "\"").toString());
-            listeners.get(eventClass.getName()).add(listener);
         } else {
             logger.warn(sb.append(" message=\"preventing duplicate listener registration\"").toString());
         }
@@ -50,10 +102,24 @@ public class EventListenerServiceImpl implements EventListenerService {
             StringBuilder sb = new StringBuilder(msgAtts);
             if (event!=null) sb.append(" event=").append(event.toString());
             logger.info(sb.toString());
-            List<EventListener> eventListeners = listeners.get(event.getClass().getName());
+            List<Subscriber> eventListeners = listeners.get(event.getClass().getName());
             if (eventListeners!=null) {
-                for (EventListener eventListener : eventListeners) {
-                    eventListener.handleEvent(event);
+                final boolean inTransaction = TransactionSynchronizationManager.isSynchronizationActive();
+                final List<Subscriber> afterCommit = new ArrayList<Subscriber>();
+                for (Subscriber subscriber : eventListeners) {
+                    if (subscriber.delivery==Delivery.AFTER_COMMIT && inTransaction)
+                        afterCommit.add(subscriber);
+                    else
+                        subscriber.deliver(event);
+                }
+                if (!afterCommit.isEmpty()) {
+                    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                        @Override
+                        public void afterCommit() {
+                            for (Subscriber subscriber : afterCommit)
+                                subscriber.deliver(event);
+                        }
+                    });
                 }
             } else {
                 logger.info(new StringBuffer(msgAtts)
@@ -69,4 +135,99 @@ public class EventListenerServiceImpl implements EventListenerService {
         }
     }
 
+    @Override
+    public List<ListenerStats> getListenerStats() {
+        final List<ListenerStats> stats = new ArrayList<ListenerStats>();
+        for (Subscriber subscriber : subscribers.values())
+            stats.add(subscriber.getStats());
+        return stats;
+    }
+
+    final class Subscriber {
+
+        final EventListener listener;
+        final Delivery delivery;
+        final ThreadPoolExecutor executor;
+
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong totalDelayNanos = new AtomicLong();
+        final AtomicLong totalLatencyNanos = new AtomicLong();
+        final AtomicLong maxLatencyNanos = new AtomicLong();
+
+        Subscriber(final EventListener listener, final Delivery delivery) {
+            this.listener = listener;
+            this.delivery = delivery;
+            final String threadName = "EventListener-" + listener.getClass().getName();
+            this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                                                   new ArrayBlockingQueue<Runnable>(queueCapacity),
+                                                   new ThreadFactory() {
+                                                       @Override
+                                                       public Thread newThread(final Runnable r) {
+                                                           final Thread thread = new Thread(r, threadName);
+                                                           thread.setDaemon(true);
+                                                           return thread;
+                                                       }
+                                                   });
+        }
+
+        void deliver(final Event event) {
+            final long firedAt = System.nanoTime();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long startedAt = System.nanoTime();
+                        try {
+                            listener.handleEvent(event);
+                            delivered.incrementAndGet();
+                        }
+                        catch (Throwable t) {
+                            failed.incrementAndGet();
+                            logger.warn("module=events component=EventListenerServiceImpl action=handleEvent" +
+                                        " listener=" + listener + " event=" + event +
+                                        " stackTrace=<![CDATA[" + ExceptionUtils.getStackTrace(t) + "]]>");
+                        }
+                        finally {
+                            record(startedAt - firedAt, System.nanoTime() - startedAt);
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                dropped.incrementAndGet();
+                logger.warn("module=events component=EventListenerServiceImpl action=fireEvent" +
+                            " listener=" + listener + " event=" + event +
+                            " message=\"listener queue is full, dropping event\"");
+            }
+        }
+
+        private void record(final long delayNanos, final long latencyNanos) {
+            totalDelayNanos.addAndGet(delayNanos);
+            totalLatencyNanos.addAndGet(latencyNanos);
+            long max = maxLatencyNanos.get();
+            while (latencyNanos>max && !maxLatencyNanos.compareAndSet(max, latencyNanos))
+                max = maxLatencyNanos.get();
+        }
+
+        ListenerStats getStats() {
+            final ListenerStats stats = new ListenerStats();
+            stats.listener = listener.getClass().getName();
+            stats.delivery = delivery;
+            stats.queueDepth = executor.getQueue().size();
+            stats.queueCapacity = queueCapacity;
+            stats.delivered = delivered.get();
+            stats.failed = failed.get();
+            stats.dropped = dropped.get();
+            final long handled = stats.delivered + stats.failed;
+            if (handled>0) {
+                stats.meanDelayMillis = totalDelayNanos.get() / (handled * 1000000d);
+                stats.meanLatencyMillis = totalLatencyNanos.get() / (handled * 1000000d);
+            }
+            stats.maxLatencyMillis = maxLatencyNanos.get() / 1000000d;
+            return stats;
+        }
+    }
+
 }
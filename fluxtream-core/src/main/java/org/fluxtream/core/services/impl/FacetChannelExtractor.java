@@ -0,0 +1,77 @@
+package org.fluxtream.core.services.impl;
+
+import java.lang.reflect.Field;
+import java.util.Date;
+import java.util.List;
+import org.fluxtream.core.domain.AbstractFacet;
+
+/**
+ * Reads the daily data channels of the facets of one class. The channel fields are looked up once, when the
+ * extractor is created, and primitive fields are read without boxing their values.
+ */
+final class FacetChannelExtractor {
+
+    private static final int PRIMITIVE = 0;
+    private static final int BOOLEAN = 1;
+    private static final int NUMBER = 2;
+    private static final int DATE = 3;
+
+    private final Field[] fields;
+    private final int[] kinds;
+
+    FacetChannelExtractor(final Class<? extends AbstractFacet> facetClass, final List<String> fieldNames) {
+        fields = new Field[fieldNames.size()];
+        kinds = new int[fields.length];
+        for (int i=0; i<fields.length; i++) {
+            final String fieldName = fieldNames.get(i);
+            try {
+                fields[i] = facetClass.getField(fieldName);
+            }
+            catch (NoSuchFieldException e) {
+                throw new RuntimeException("No such Field: " + fieldName);
+            }
+            fields[i].setAccessible(true);
+            final Class<?> type = fields[i].getType();
+            if (type==boolean.class)
+                kinds[i] = BOOLEAN;
+            else if (type.isPrimitive() && type!=char.class)
+                kinds[i] = PRIMITIVE;
+            else if (Number.class.isAssignableFrom(type))
+                kinds[i] = NUMBER;
+            else if (Date.class.isAssignableFrom(type))
+                kinds[i] = DATE;
+            else
+                throw new RuntimeException("Field " + fieldName + " of " + facetClass.getName() + " is not numeric");
+        }
+    }
+
+    /**
+     * Stores the channel values of <code>facet</code> at index <code>row</code> of <code>columns</code>, one column
+     * per channel, using <code>NaN</code> for null values.
+     */
+    void extract(final AbstractFacet facet, final double[][] columns, final int row) {
+        try {
+            for (int i=0; i<fields.length; i++) {
+                switch (kinds[i]) {
+                    case PRIMITIVE:
+                        columns[i][row] = fields[i].getDouble(facet);
+                        break;
+                    case BOOLEAN:
+                        columns[i][row] = fields[i].getBoolean(facet) ? 1 : 0;
+                        break;
+                    case NUMBER:
+                        final Number number = (Number) fields[i].get(facet);
+                        columns[i][row] = number!=null ? number.doubleValue() : Double.NaN;
+                        break;
+                    default:
+                        final Date date = (Date) fields[i].get(facet);
+                        columns[i][row] = date!=null ? date.getTime() : Double.NaN;
+                }
+            }
+        }
+        catch (IllegalAccessException e) {
+            // can't happen, the fields are public and accessible
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.fluxtream.core.services.impl;
+
+import java.util.List;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import org.fluxtream.core.Configuration;
+import org.fluxtream.core.aspects.FlxLogger;
+import org.fluxtream.core.connectors.Connector;
+import org.fluxtream.core.connectors.ObjectType;
+import org.fluxtream.core.domain.AbstractFacet;
+import org.fluxtream.core.domain.ApiKey;
+import org.fluxtream.core.domain.FacetTag;
+import org.fluxtream.core.domain.TagFilter;
+import org.fluxtream.core.utils.JPAUtils;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Maintains the {@link FacetTag} index of facet tags as facets get stored, retagged and deleted.
+ *
+ * {@link TagFilter}s only query the index when <code>tagIndex.enabled</code> is set, which should only be done once
+ * the index has been {@link #rebuild(ApiKey) rebuilt} for all the existing facets; until then, the index is kept up to
+ * date but the <code>tags</code> column of the facets is scanned.
+ */
+@Component
+@Transactional(readOnly=false)
+public class FacetTagIndex implements InitializingBean {
+
+    private static final FlxLogger logger = FlxLogger.getLogger(FacetTagIndex.class);
+
+    /**
+     * Number of facets that are loaded at once when rebuilding the index
+     */
+    private static final int REBUILD_PAGE_SIZE = 500;
+
+    @Autowired
+    Configuration env;
+
+    @PersistenceContext
+    EntityManager em;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        TagFilter.setTagIndexEnabled(Boolean.valueOf(env.get("tagIndex.enabled")));
+    }
+
+    /**
+     * Replaces the indexed tags of a facet with its current tags; the facet must have been persisted already
+     */
+    public void index(final AbstractFacet facet) {
+        if (facet.getId()==null)
+            return;
+        JPAUtils.execute(em, "facetTags.delete.byFacet", facet.api, facet.objectType, facet.getId());
+        for (String tagName : facet.getTagsAsStrings())
+            em.persist(new FacetTag(facet, tagName));
+    }
+
+    public void delete(final AbstractFacet facet) {
+        if (facet.getId()!=null)
+            JPAUtils.execute(em, "facetTags.delete.byFacet", facet.api, facet.objectType, facet.getId());
+    }
+
+    public void deleteAll(final ApiKey apiKey) {
+        JPAUtils.execute(em, "facetTags.delete.byApiKey", apiKey.getId());
+    }
+
+    public void deleteAll(final ApiKey apiKey, final ObjectType objectType) {
+        JPAUtils.execute(em, "facetTags.delete.byApiKey.andObjectType", apiKey.getId(), objectType.value());
+    }
+
+    public void deleteAll(final long guestId) {
+        JPAUtils.execute(em, "facetTags.delete.all", guestId);
+    }
+
+    /**
+     * Indexes the tags of all the facets of an api key, e.g. facets that were stored before the index existed
+     * @return the number of tagged facets that were indexed
+     */
+    public int rebuild(final ApiKey apiKey) {
+        final Connector connector = apiKey.getConnector();
+        if (connector==null || !connector.hasFacets())
+            return 0;
+        deleteAll(apiKey);
+        int indexed = 0;
+        for (ObjectType objectType : connector.objectTypes()) {
+            final String entityName = objectType.facetClass().getAnnotation(Entity.class).name();
+            final Query query = em.createQuery("SELECT e FROM " + entityName + " e WHERE e.apiKeyId=? AND e.id>? " +
+                                               "AND e.tags IS NOT NULL AND e.tags<>'' ORDER BY e.id");
+            query.setParameter(1, apiKey.getId());
+            query.setMaxResults(REBUILD_PAGE_SIZE);
+            long lastId = -1L;
+            while (true) {
+                query.setParameter(2, lastId);
+                @SuppressWarnings("unchecked")
+                final List<AbstractFacet> facets = query.getResultList();
+                for (AbstractFacet facet : facets) {
+                    for (String tagName : facet.getTagsAsStrings())
+                        em.persist(new FacetTag(facet, tagName));
+                    lastId = facet.getId();
+                }
+                indexed += facets.size();
+                // don't keep the facets of the previous pages in the persistence context
+                em.flush();
+                em.clear();
+                if (facets.size()<REBUILD_PAGE_SIZE)
+                    break;
+            }
+        }
+        logger.info("module=tagIndex component=facetTagIndex action=rebuild connector=" + connector.getName() +
+                    " apiKeyId=" + apiKey.getId() + " indexed=" + indexed);
+        return indexed;
+    }
+}
@@ -26,7 +26,6 @@ import org.fluxtream.core.domain.*;
 import org.fluxtream.core.services.*;
 import org.fluxtream.core.utils.*;
 import org.json.JSONArray;
-import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -37,6 +36,7 @@ import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.persistence.EntityManager;
 import javax.persistence.LockModeType;
@@ -82,7 +82,7 @@ public class GuestServiceImpl implements GuestService, DisposableBean {
     ThreadPoolTaskExecutor executor;
 
     @Autowired
-    BeanFactory beanFactory;
+    ApiDataCleanupService apiDataCleanupService;
 
     @Autowired
     SystemService systemService;
@@ -93,6 +93,12 @@ public class GuestServiceImpl implements GuestService, DisposableBean {
     @Autowired
     BuddiesService buddiesService;
 
+    @Autowired
+    SearchService searchService;
+
+    @Autowired
+    VisitedCityTimelineCache timelineCache;
+
 	LookupService geoIpLookupService;
 
 	private final RandomString randomString = new RandomString(64);
@@ -164,6 +170,7 @@ public class GuestServiceImpl implements GuestService, DisposableBean {
     @Override
     @Transactional(readOnly=false)
     public ApiKey createApiKey(final long guestId, final Connector connector) {
+        RequestMemo.clear();
         ApiKey apiKey = new ApiKey();
         apiKey.setGuestId(guestId);
         apiKey.setConnector(connector);
@@ -268,6 +275,7 @@ public class GuestServiceImpl implements GuestService, DisposableBean {
 	@Transactional(readOnly = false)
 	public ApiKey setApiKeyAttribute(ApiKey ak, String key,
 			String value) {
+        RequestMemo.clear();
         ApiKey apiKey = em.find(ApiKey.class, ak.getId(), LockModeType.PESSIMISTIC_WRITE);
 
         // apiKey could be null, for example if the connector
@@ -298,6 +306,7 @@ public class GuestServiceImpl implements GuestService, DisposableBean {
 	@Override
     @Transactional(readOnly = false)
 	public void removeApiKey(long apiKeyId) {
+        RequestMemo.clear();
 		ApiKey apiKey = em.find(ApiKey.class, apiKeyId);
 
         // apiKey could be null, for example if the connector
@@ -315,9 +324,8 @@ public class GuestServiceImpl implements GuestService, DisposableBean {
         }
         finally {
             // cleanup the data asynchrously in order not to block the user's flow
-            ApiDataCleanupWorker worker = beanFactory.getBean(ApiDataCleanupWorker.class);
-            worker.setApiKey(apiKey);
-            executor.execute(worker);
+            apiKey.erasing = true;
+            apiDataCleanupService.scheduleErasure(apiKey);
         }
 	}
 
@@ -342,6 +350,14 @@ public class GuestServiceImpl implements GuestService, DisposableBean {
 
     @Override
 	public List<ApiKey> getApiKeys(long guestId) {
+        // only memoize the keys of read-only transactions, as read-write ones may modify them
+        final boolean memoize = TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+        final String memoKey = "apiKeys/" + guestId;
+        if (memoize) {
+            List<ApiKey> memoized = RequestMemo.get(memoKey);
+            if (memoized!=null)
+                return new ArrayList<ApiKey>(memoized);
+        }
         // rawKeys includes all the keys in the apiKeys table for a given guest.
         // However, it's potentially the case that this could include keys which
         // do not currently map to valid entries in the Connector table.
@@ -355,6 +371,8 @@ public class GuestServiceImpl implements GuestService, DisposableBean {
                 goodKeys.add(key);
             }
         }
+        if (memoize)
+            RequestMemo.put(memoKey, new ArrayList<ApiKey>(goodKeys));
         return(goodKeys);
 	}
 
@@ -382,6 +400,7 @@ public class GuestServiceImpl implements GuestService, DisposableBean {
     @Transactional(readOnly=false)
     public void setApiKeyStatus(final long apiKeyId, final ApiKey.Status status, final String stackTrace,
                                 final String reason) {
+        RequestMemo.clear();
         final ApiKey apiKey = getApiKey(apiKeyId);
         if (apiKey!=null) {
             apiKey.status = status;
@@ -401,6 +420,7 @@ public class GuestServiceImpl implements GuestService, DisposableBean {
     @Override
     @Transactional(readOnly=false)
     public void setApiKeyToSynching(final long apiKeyId, final boolean synching) {
+        RequestMemo.clear();
         final ApiKey apiKey = getApiKey(apiKeyId);
         if (apiKey!=null) {
             apiKey.synching = synching;
@@ -428,6 +448,7 @@ public class GuestServiceImpl implements GuestService, DisposableBean {
     @Override
     @Transactional(readOnly = false)
     public void eraseGuestInfo(long id) throws Exception {
+        RequestMemo.clear();
         Guest guest = getGuestById(id);
         if (guest == null)
             return;
@@ -440,16 +461,20 @@ public class GuestServiceImpl implements GuestService, DisposableBean {
         List<ApiKey> apiKeys = getApiKeys(guest.getId());
         for (ApiKey key : apiKeys) {
             if(key!=null && key.getConnector()!=null) {
-                apiDataService.eraseApiData(key, true);
+                key.erasing = true;
+                apiDataCleanupService.scheduleErasure(key);
             }
         }
         JPAUtils.execute(em, "addresses.delete.all", guest.getId());
         JPAUtils.execute(em, "notifications.delete.all", guest.getId());
         JPAUtils.execute(em, "settings.delete.all", guest.getId());
-        JPAUtils.execute(em, "location.delete.all", guest.getId());
-        JPAUtils.execute(em, "visitedCities.delete.all", guest.getId());
+        // a guest may have too many locations to delete them in a single transaction
+        apiDataCleanupService.scheduleGuestErasure(guest.getId());
+        timelineCache.invalidate(guest.getId());
         JPAUtils.execute(em, "updateWorkerTasks.delete.all", guest.getId());
         JPAUtils.execute(em, "tags.delete.all", guest.getId());
+        JPAUtils.execute(em, "facetTags.delete.all", guest.getId());
+        searchService.deleteIndex(guest.getId());
         JPAUtils.execute(em, "notifications.delete.all", guest.getId());
         buddiesService.removeAllSharedChannels(guest.getId());
         buddiesService.removeAllSharedConnectors(guest.getId());
@@ -623,6 +648,7 @@ public class GuestServiceImpl implements GuestService, DisposableBean {
     @Override
     @Transactional(readOnly=false)
     public void setApiKeySettings(final long apiKeyId, final Object settings) {
+        RequestMemo.clear();
         ApiKey apiKey = getApiKey(apiKeyId);
         apiKey.setSettings(settings);
         em.persist(apiKey);
@@ -631,6 +657,7 @@ public class GuestServiceImpl implements GuestService, DisposableBean {
     @Override
     @Transactional(readOnly=false)
     public void removeApiKeyAttribute(final long apiKeyId, final String key) {
+        RequestMemo.clear();
         ApiKey apiKey = getApiKey(apiKeyId);
         apiKey.removeAttribute(key);
         em.persist(apiKey);
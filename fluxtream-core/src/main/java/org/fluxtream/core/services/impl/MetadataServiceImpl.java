@@ -3,13 +3,19 @@ package org.fluxtream.core.services.impl;
 import java.awt.geom.Point2D;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -31,8 +37,10 @@ import org.fluxtream.core.domain.metadata.FoursquareVenue;
 import org.fluxtream.core.domain.metadata.VisitedCity;
 import org.fluxtream.core.domain.metadata.WeatherInfo;
 import org.fluxtream.core.metadata.ArbitraryTimespanMetadata;
+import org.fluxtream.core.metadata.CityIndex;
 import org.fluxtream.core.metadata.DayMetadata;
 import org.fluxtream.core.metadata.MonthMetadata;
+import org.fluxtream.core.metadata.VisitedCityTimeline;
 import org.fluxtream.core.metadata.WeekMetadata;
 import org.fluxtream.core.services.GuestService;
 import org.fluxtream.core.services.MetadataService;
@@ -51,7 +59,12 @@ import org.joda.time.DateTimeConstants;
 import org.joda.time.DateTimeZone;
 import org.joda.time.Days;
 import org.joda.time.LocalDate;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -59,7 +72,7 @@ import org.springframework.transaction.annotation.Transactional;
 @Service
 @Component
 @Transactional(readOnly=true)
-public class MetadataServiceImpl implements MetadataService {
+public class MetadataServiceImpl implements MetadataService, InitializingBean {
 
     FlxLogger logger = FlxLogger.getLogger(MetadataServiceImpl.class);
 
@@ -82,6 +95,76 @@ public class MetadataServiceImpl implements MetadataService {
     @Autowired
     WWOHelper wwoHelper;
 
+    @Autowired
+    @Qualifier("jdbcTemplate")
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    @Qualifier("AsyncWorker")
+    ThreadPoolTaskExecutor executor;
+
+    @Autowired
+    VisitedCityTimelineCache timelineCache;
+
+    // in-memory copy of the cities1000 table; closest city lookups fall back to SQL until it is loaded
+    private volatile CityIndex cityIndex;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadCityIndex();
+            }
+        });
+    }
+
+    private void loadCityIndex() {
+        final long then = System.currentTimeMillis();
+        try {
+            // many cities share the same timezone, country and admin1 codes
+            final Map<String,String> strings = new HashMap<String,String>();
+            final List<City> cities = jdbcTemplate.query("SELECT geo_id, geo_name, geo_timezone, geo_latitude, " +
+                                                         "geo_longitude, geo_country_code, geo_admin1_code, population " +
+                                                         "FROM cities1000", new RowMapper<City>() {
+                @Override
+                public City mapRow(final ResultSet rs, final int rowNum) throws SQLException {
+                    final City city = new City();
+                    city.geo_id = rs.getLong(1);
+                    city.geo_name = rs.getString(2);
+                    city.geo_timezone = canonical(strings, rs.getString(3));
+                    city.geo_latitude = rs.getDouble(4);
+                    city.geo_longitude = rs.getDouble(5);
+                    city.geo_country_code = canonical(strings, rs.getString(6));
+                    city.geo_admin1_code = canonical(strings, rs.getString(7));
+                    city.population = rs.getLong(8);
+                    return city;
+                }
+            });
+            if (cities.isEmpty()) {
+                logger.warn("module=metadata component=metadataService action=loadCityIndex message=cities1000 is empty");
+                return;
+            }
+            cityIndex = new CityIndex(cities);
+            logger.info("module=metadata component=metadataService action=loadCityIndex cities=" + cities.size() +
+                        " timeTaken=" + (System.currentTimeMillis()-then));
+        }
+        catch (Throwable t) {
+            logger.warn("module=metadata component=metadataService action=loadCityIndex message=could not load cities, " +
+                        "falling back to SQL stackTrace=" + ExceptionUtils.getStackTrace(t));
+        }
+    }
+
+    private static String canonical(final Map<String,String> strings, final String s) {
+        if (s==null)
+            return null;
+        final String existing = strings.get(s);
+        if (existing!=null)
+            return existing;
+        strings.put(s, s);
+        return s;
+    }
+
     @Override
 	public TimeZone getTimeZone(double latitude, double longitude) {
 		City closestCity = getClosestCity(latitude, longitude);
@@ -115,6 +198,7 @@ public class MetadataServiceImpl implements MetadataService {
                 em.remove(visitedCity);
         }
         em.flush();
+        timelineCache.invalidate(guestId, Arrays.asList(date));
     }
 
     @Override
@@ -133,6 +217,7 @@ public class MetadataServiceImpl implements MetadataService {
         clearMainCities(guestId, Arrays.asList(date));
         final DateTime dateTime = TimeUtils.dateFormatter.withZone(DateTimeZone.forID(closestCity.geo_timezone)).parseDateTime(date);
         setMainCity(guestId, closestCity, dateTime.getMillis(), dateTime.getMillis() + DateTimeConstants.MILLIS_PER_DAY - 1, date);
+        timelineCache.invalidate(guestId, Arrays.asList(date));
     }
 
     private void clearMainCities(final long guestId, final Collection<String> dates) {
@@ -170,18 +255,19 @@ public class MetadataServiceImpl implements MetadataService {
     @Override
     public ArbitraryTimespanMetadata getArbitraryTimespanMetadata(final long guestId, final long start, final long end) {
         final TreeSet<String> dates = getDatesBetween(start, end);
-        List<VisitedCity> cities = getVisitedCitiesForDates(guestId, dates);
+        final VisitedCityTimeline timeline = getTimeline(guestId);
+        List<VisitedCity> cities = timeline.getCities(dates);
         VisitedCity previousInferredCity = null, nextInferredCity = null;
         if (cities.size()==0) {
-            previousInferredCity = searchCityBeforeDate(guestId, dates.first());
-            nextInferredCity = searchCityAfterDate(guestId, dates.last());
+            previousInferredCity = inferCity(timeline.getConsensusCityBefore(dates.first()), dates.first());
+            nextInferredCity = inferCity(timeline.getConsensusCityAfter(dates.last()), dates.last());
             if (previousInferredCity==null&&nextInferredCity==null) {
                 ArbitraryTimespanMetadata info = new ArbitraryTimespanMetadata(start, end);
                 return info;
             }
         }
         final VisitedCity consensusVisitedCity = getConsensusVisitedCity(cities, previousInferredCity, nextInferredCity);
-        final List<DayMetadata> dayMetadataForDates = getDayMetadataForDates(guestId, dates);
+        final List<DayMetadata> dayMetadataForDates = getDayMetadataForDates(timeline, dates);
         final TreeMap<String, TimeZone> consensusTimezoneMap = getConsensusTimezoneMap(dayMetadataForDates);
         final List<VisitedCity> consensusCities = extractConsensusCities(dayMetadataForDates);
         TimezoneMap timezoneMap = TimezoneMap.fromConsensusTimezoneMap(consensusTimezoneMap);
@@ -196,10 +282,10 @@ public class MetadataServiceImpl implements MetadataService {
         return tzMap;
     }
 
-    List<DayMetadata> getDayMetadataForDates(final long guestId, final TreeSet<String> dates) {
+    List<DayMetadata> getDayMetadataForDates(final VisitedCityTimeline timeline, final TreeSet<String> dates) {
         List<DayMetadata> metadata = new ArrayList<DayMetadata>();
         for (String date : dates) {
-            final DayMetadata dayMetadata = getDayMetadata(guestId, date);
+            final DayMetadata dayMetadata = getDayMetadata(timeline, date);
             metadata.add(dayMetadata);
         }
         return metadata;
@@ -227,13 +313,17 @@ public class MetadataServiceImpl implements MetadataService {
 
     @Override
 	public DayMetadata getDayMetadata(long guestId, String date) {
+        return getDayMetadata(getTimeline(guestId), date);
+    }
+
+    private DayMetadata getDayMetadata(final VisitedCityTimeline timeline, final String date) {
         // get visited cities for a specific date . If we don't have any data for that date,
         // retrieve cities for the first date for which we do have data
-        List<VisitedCity> cities = getVisitedCitiesForDate(guestId, date);
+        List<VisitedCity> cities = timeline.getCities(date);
         VisitedCity previousInferredCity = null, nextInferredCity = null;
         if (cities.size()==0) {
-            previousInferredCity = searchCityBeforeDate(guestId, date);
-            nextInferredCity = searchCityAfterDate(guestId, date);
+            previousInferredCity = inferCity(timeline.getConsensusCityBefore(date), date);
+            nextInferredCity = inferCity(timeline.getConsensusCityAfter(date), date);
             if (previousInferredCity==null&&nextInferredCity==null) {
                 DayMetadata info = new DayMetadata(date);
                 return info;
@@ -258,18 +348,19 @@ public class MetadataServiceImpl implements MetadataService {
     @Override
     public WeekMetadata getWeekMetadata(final long guestId, final int year, final int week) {
         TreeSet<String> dates = getDatesForWeek(year, week);
-        List<VisitedCity> cities = getVisitedCitiesForDates(guestId, dates);
+        final VisitedCityTimeline timeline = getTimeline(guestId);
+        List<VisitedCity> cities = timeline.getCities(dates);
         VisitedCity previousInferredCity = null, nextInferredCity = null;
         if (cities.size()==0) {
-            previousInferredCity = searchCityBeforeDate(guestId, dates.first());
-            nextInferredCity = searchCityAfterDate(guestId, dates.last());
+            previousInferredCity = inferCity(timeline.getConsensusCityBefore(dates.first()), dates.first());
+            nextInferredCity = inferCity(timeline.getConsensusCityAfter(dates.last()), dates.last());
             if (previousInferredCity==null&&nextInferredCity==null) {
                 WeekMetadata info = new WeekMetadata(year, week);
                 return info;
             }
         }
         final VisitedCity consensusVisitedCity = getConsensusVisitedCity(cities, previousInferredCity, nextInferredCity);
-        final List<DayMetadata> dayMetadataForDates = getDayMetadataForDates(guestId, dates);
+        final List<DayMetadata> dayMetadataForDates = getDayMetadataForDates(timeline, dates);
         final TreeMap<String, TimeZone> consensusTimezoneMap = getConsensusTimezoneMap(dayMetadataForDates);
         final List<VisitedCity> consensusCities = extractConsensusCities(dayMetadataForDates);
         TimezoneMap timezoneMap = TimezoneMap.fromConsensusTimezoneMap(consensusTimezoneMap);
@@ -278,6 +369,7 @@ public class MetadataServiceImpl implements MetadataService {
     }
 
     public List<VisitedCity> getConsensusCities(final long guestId, final TreeSet<String> dates) {
+        final VisitedCityTimeline timeline = getTimeline(guestId);
         List<VisitedCity> consensusCities = new ArrayList<VisitedCity>();
         Collections.sort(consensusCities,
             new Comparator<VisitedCity>(){
@@ -287,7 +379,7 @@ public class MetadataServiceImpl implements MetadataService {
                 }
             });
         for (String date : dates) {
-            final DayMetadata dayMetadata = getDayMetadata(guestId, date);
+            final DayMetadata dayMetadata = getDayMetadata(timeline, date);
             final VisitedCity consensusVisitedCity = dayMetadata.consensusVisitedCity;
             // Explicitely set the date on this visitedCity to enable time boundaries checking
             VisitedCity copy = new VisitedCity(consensusVisitedCity);
@@ -302,18 +394,19 @@ public class MetadataServiceImpl implements MetadataService {
     @Override
     public MonthMetadata getMonthMetadata(final long guestId, final int year, final int month) {
         TreeSet<String> dates = getDatesForMonth(year, month);
-        List<VisitedCity> cities = getVisitedCitiesForDates(guestId, dates);
+        final VisitedCityTimeline timeline = getTimeline(guestId);
+        List<VisitedCity> cities = timeline.getCities(dates);
         VisitedCity previousInferredCity = null, nextInferredCity = null;
         if (cities.size()==0) {
-            previousInferredCity = searchCityBeforeDate(guestId, dates.first());
-            nextInferredCity = searchCityAfterDate(guestId, dates.last());
+            previousInferredCity = inferCity(timeline.getConsensusCityBefore(dates.first()), dates.first());
+            nextInferredCity = inferCity(timeline.getConsensusCityAfter(dates.last()), dates.last());
             if (previousInferredCity==null && nextInferredCity==null) {
                 MonthMetadata info = new MonthMetadata(year, month);
                 return info;
             }
         }
         final VisitedCity consensusVisitedCity = getConsensusVisitedCity(cities, previousInferredCity, nextInferredCity);
-        final List<DayMetadata> dayMetadataForDates = getDayMetadataForDates(guestId, dates);
+        final List<DayMetadata> dayMetadataForDates = getDayMetadataForDates(timeline, dates);
         final TreeMap<String, TimeZone> consensusTimezoneMap = getConsensusTimezoneMap(dayMetadataForDates);
         final List<VisitedCity> consensusCities = extractConsensusCities(dayMetadataForDates);
         TimezoneMap timezoneMap = TimezoneMap.fromConsensusTimezoneMap(consensusTimezoneMap);
@@ -384,86 +477,34 @@ public class MetadataServiceImpl implements MetadataService {
         else if (nextInferredCity!=null)
             return nextInferredCity;
 
-        List<VisitedCity> cityList = new ArrayList<VisitedCity>(cities);
-        Collections.sort(cityList, new Comparator<VisitedCity>() {
-            @Override
-            public int compare(final VisitedCity a, final VisitedCity b) {
-                int timeSpentInA = (int) (a.end - a.start + 1); //add one if start and end are equal
-                int timeSpentInB = (int) (b.end - b.start + 1);
-                return timeSpentInB - timeSpentInA;
-            }
-        });
-
-        if (cityList.size()>0)
-            return cityList.get(0);
-        return null;
+        return VisitedCityTimeline.getConsensusVisitedCity(cities);
     }
 
-    private String findClosestKnownDateForTime(final long guestId, final long time) {
-        VisitedCity existingCity = searchCityBefore(guestId, time);
-        if (existingCity==null)
-            existingCity = searchCityAfter(guestId, time);
-        if (existingCity!=null) {
-            return existingCity.date;
-        }
-        return TimeUtils.dateFormatterUTC.print(time);
-    }
-
-    private VisitedCity searchCityBefore(final long guestId, final long instant) {
-        return searchCity("SELECT facet FROM " + JPAUtils.getEntityName(VisitedCity.class) + " facet WHERE facet.guestId=? AND facet.start<? ORDER BY facet.start", guestId, instant);
-    }
-
-    private VisitedCity searchCityAfter(final long guestId, final long instant) {
-        return searchCity("SELECT facet FROM " + JPAUtils.getEntityName(VisitedCity.class) + " facet WHERE facet.guestId=? AND facet.start>? ORDER BY facet.start", guestId, instant);
-    }
-
-    private VisitedCity searchCity(final String queryString, final long guestId, final long instant) {
-        final TypedQuery<VisitedCity> query = em.createQuery(queryString, VisitedCity.class);
-        return getVisitedCity(guestId, instant, query);
-    }
-
-    private VisitedCity searchCity(final String queryString, final long guestId, final String date) {
-        final TypedQuery<VisitedCity> query = em.createQuery(queryString, VisitedCity.class);
-        return getVisitedCity(guestId, date, query);
-    }
-
-    private VisitedCity getVisitedCity(final long guestId, final String date, final TypedQuery<VisitedCity> query) {
-        query.setMaxResults(1);
-        query.setParameter(1, guestId);
-        query.setParameter(2, date);
-        final List<VisitedCity> cities = query.getResultList();
-        if (cities.size()>0)
-            return cities.get(0);
-        return null;
-    }
-
-    private VisitedCity getVisitedCity(final long guestId, final long instant, final TypedQuery<VisitedCity> query) {
-        query.setMaxResults(1);
-        query.setParameter(1, guestId);
-        query.setParameter(2, instant);
-        final List<VisitedCity> cities = query.getResultList();
-        if (cities.size()>0)
-            return cities.get(0);
-        return null;
-    }
-
-    private VisitedCity searchCityBeforeDate(final long guestId, final String date) {
-        VisitedCity visitedCity = searchCity("SELECT facet FROM " + JPAUtils.getEntityName(VisitedCity.class) + " facet WHERE facet.guestId=? AND facet.date<? ORDER BY facet.start DESC", guestId, date);
-        if (visitedCity!=null) {
-            final List<VisitedCity> visitedCitiesForDate = getVisitedCitiesForDate(guestId, visitedCity.date);
-            visitedCity = getConsensusVisitedCity(visitedCitiesForDate, null, null);
-            visitedCity.daysInferred = daysBetween(date, visitedCity);
+    /**
+     * Returns the timeline of a guest's visited cities, loading it or the dates that have been written to since it
+     * was cached
+     */
+    private VisitedCityTimeline getTimeline(final long guestId) {
+        final VisitedCityTimelineCache.CachedTimeline cached = timelineCache.get(guestId);
+        if (cached.timeline!=null && cached.staleDates.isEmpty())
+            return cached.timeline;
+        final VisitedCityTimeline timeline;
+        if (cached.timeline==null) {
+            TypedQuery<VisitedCity> query = em.createQuery("SELECT facet FROM " + JPAUtils.getEntityName(VisitedCity.class) + " facet WHERE facet.guestId=?", VisitedCity.class);
+            query.setParameter(1, guestId);
+            timeline = new VisitedCityTimeline(query.getResultList());
         }
-        return visitedCity;
+        else
+            timeline = cached.timeline.withDates(cached.staleDates, getVisitedCitiesForDates(guestId, new TreeSet<String>(cached.staleDates)));
+        timelineCache.put(guestId, timeline, cached.version);
+        return timeline;
     }
 
-    private VisitedCity searchCityAfterDate(final long guestId, final String date) {
-        VisitedCity visitedCity = searchCity("SELECT facet FROM " + JPAUtils.getEntityName(VisitedCity.class) + " facet WHERE facet.guestId=? AND facet.date>? ORDER BY facet.start", guestId, date);
-        if (visitedCity!=null) {
-            final List<VisitedCity> visitedCitiesForDate = getVisitedCitiesForDate(guestId, visitedCity.date);
-            visitedCity = getConsensusVisitedCity(visitedCitiesForDate, null, null);
-            visitedCity.daysInferred = daysBetween(date, visitedCity);
-        }
+    private VisitedCity inferCity(final VisitedCity consensusCity, final String date) {
+        if (consensusCity==null)
+            return null;
+        final VisitedCity visitedCity = new VisitedCity(consensusCity);
+        visitedCity.daysInferred = daysBetween(date, visitedCity);
         return visitedCity;
     }
 
@@ -487,12 +528,18 @@ public class MetadataServiceImpl implements MetadataService {
 
     @Override
 	public TimeZone getTimeZone(long guestId, long time) {
-        String date = findClosestKnownDateForTime(guestId, time);
-        return getTimeZone(guestId, date);
+        final VisitedCityTimeline timeline = getTimeline(guestId);
+        String date = timeline.getClosestDate(time);
+        if (date==null)
+            date = TimeUtils.dateFormatterUTC.print(time);
+        return getDayMetadata(timeline, date).getTimeInterval().getMainTimeZone();
 	}
 
     @Override
     public City getClosestCity(double latitude, double longitude) {
+        final CityIndex index = cityIndex;
+        if (index!=null)
+            return index.getClosestCity(latitude, longitude);
 
         List<City> cities = new ArrayList<City>();
         for (int dist = 10, i = 1; cities.size() == 0;)
@@ -505,6 +552,15 @@ public class MetadataServiceImpl implements MetadataService {
     @Override
     public List<City> getClosestCities(double latitude, double longitude,
                                        double dist) {
+        return getClosestCities(latitude, longitude, dist, 1);
+    }
+
+    @Override
+    public List<City> getClosestCities(double latitude, double longitude,
+                                       double dist, int count) {
+        final CityIndex index = cityIndex;
+        if (index!=null)
+            return index.getClosestCities(latitude, longitude, dist, count);
 
         double lon1 = longitude - dist
                                   / Math.abs(Math.cos(Math.toRadians(latitude)) * 69d);
@@ -523,7 +579,7 @@ public class MetadataServiceImpl implements MetadataService {
                         + "FROM cities1000 "
                         + "WHERE geo_longitude between :lon1 and :lon2 "
                         + "and geo_latitude between :lat1 and :lat2 "
-                        + "HAVING distance < :dist ORDER BY distance limit 1;",
+                        + "HAVING distance < :dist ORDER BY distance",
                         City.class);
 
         query.setParameter("mylat", latitude);
@@ -533,6 +589,7 @@ public class MetadataServiceImpl implements MetadataService {
         query.setParameter("lat1", lat1);
         query.setParameter("lat2", lat2);
         query.setParameter("dist", dist);
+        query.setMaxResults(count);
 
         @SuppressWarnings("unchecked")
         List<City> resultList = query.getResultList();
@@ -696,6 +753,7 @@ public class MetadataServiceImpl implements MetadataService {
         Point2D.Double anchorLocation = new Point2D.Double(locationResources.get(0).latitude, locationResources.get(0).longitude);
         City anchorCity = getClosestCity(anchorLocation.x, anchorLocation.y);
         int count = 0;
+        final Set<String> updatedDates = new HashSet<String>();
         LocationFacet lastLocationResourceMatchingAnchor=locationResources.get(0);
         long start = locationResources.get(0).start;
 
@@ -714,16 +772,20 @@ public class MetadataServiceImpl implements MetadataService {
                 final boolean dateChanged = !newDate.equals(currentDate);
                 final boolean cityChanged = newCity.geo_id!=anchorCity.geo_id;
                 if (dateChanged||cityChanged) {
-                    if (count>0)
+                    if (count>0) {
                         storeCityInfo(lastLocationResourceMatchingAnchor, currentDate, anchorCity, start, count);
+                        updatedDates.add(currentDate);
+                    }
                     anchorCity = newCity;
                     start = locationResource.start;
                     count = 0;
                 }
                 count++;
                 // update count on the last location before we finish
-                if (locationResources.indexOf(locationResource)==locationResources.size()-1)
+                if (locationResources.indexOf(locationResource)==locationResources.size()-1) {
                     storeCityInfo(locationResource, newDate, newCity, start, count);
+                    updatedDates.add(newDate);
+                }
                 currentDate = newDate;
                 lastLocationResourceMatchingAnchor = locationResource;
             }
@@ -733,6 +795,7 @@ public class MetadataServiceImpl implements MetadataService {
             }
         }
         em.flush();
+        timelineCache.invalidate(guestId, updatedDates);
     }
 
     @Override
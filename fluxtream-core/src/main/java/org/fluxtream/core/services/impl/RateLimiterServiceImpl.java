@@ -0,0 +1,189 @@
+package org.fluxtream.core.services.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.fluxtream.core.Configuration;
+import org.fluxtream.core.aspects.FlxLogger;
+import org.fluxtream.core.connectors.Connector;
+import org.fluxtream.core.domain.ApiKey;
+import org.fluxtream.core.services.RateLimiterService;
+import org.fluxtream.core.utils.JPAUtils;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * In-memory {@link TokenBucket}s, one per connector-wide limit and one per api key for per-user limits.
+ *
+ * Every server keeps its own buckets, so each of them is periodically (every <code>rateLimiter.syncInterval</code>
+ * seconds) reset from the number of api calls logged in the <code>ApiUpdates</code> table over the last period, which
+ * accounts for the calls made by all the servers.
+ */
+@Service
+@Transactional(readOnly=true)
+public class RateLimiterServiceImpl implements RateLimiterService, InitializingBean {
+
+    private static final FlxLogger logger = FlxLogger.getLogger(RateLimiterServiceImpl.class);
+
+    @Autowired
+    Configuration env;
+
+    @PersistenceContext
+    EntityManager em;
+
+    private long syncInterval;
+
+    private final ConcurrentMap<String, List<RateLimit>> rateLimits = new ConcurrentHashMap<String, List<RateLimit>>();
+    private final ConcurrentMap<String, SyncedBucket> buckets = new ConcurrentHashMap<String, SyncedBucket>();
+    private final ConcurrentMap<String, Long> blockedUntil = new ConcurrentHashMap<String, Long>();
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        syncInterval = env.targetEnvironmentProps.getLong("rateLimiter.syncInterval", 60L) * 1000L;
+    }
+
+    @Override
+    public boolean tryAcquire(final ApiKey apiKey) {
+        final long now = System.currentTimeMillis();
+        final Connector connector = apiKey.getConnector();
+        if (getBlockedUntil(connector.getName(), now) > now || getBlockedUntil(apiKeyBucketName(apiKey), now) > now)
+            return false;
+        // a token taken from a bucket is lost if a later one refuses, which errs on the safe side
+        for (RateLimit rateLimit : getRateLimits(connector)) {
+            if (!getBucket(apiKey, rateLimit, now).tryAcquire(now)) {
+                if (logger.isDebugEnabled())
+                    logger.debug("module=updateQueue component=rateLimiterService action=tryAcquire connector=" +
+                                 connector.getName() + " apiKeyId=" + apiKey.getId() + " rateLimit=" + rateLimit + " message=\"rate limit reached\"");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long getNextPermitTime(final ApiKey apiKey) {
+        final long now = System.currentTimeMillis();
+        final Connector connector = apiKey.getConnector();
+        long nextPermitTime = Math.max(getBlockedUntil(connector.getName(), now),
+                                       getBlockedUntil(apiKeyBucketName(apiKey), now));
+        for (RateLimit rateLimit : getRateLimits(connector))
+            nextPermitTime = Math.max(nextPermitTime, getBucket(apiKey, rateLimit, now).getNextTokenTime(now));
+        return nextPermitTime;
+    }
+
+    @Override
+    public void setRateLimitedUntil(final ApiKey apiKey, final long resetTime) {
+        block(apiKeyBucketName(apiKey), resetTime);
+    }
+
+    @Override
+    public void setRateLimitedUntil(final Connector connector, final long resetTime) {
+        block(connector.getName(), resetTime);
+    }
+
+    private static String apiKeyBucketName(final ApiKey apiKey) {
+        return apiKey.getConnector().getName() + "/" + apiKey.getId();
+    }
+
+    private void block(final String name, final long resetTime) {
+        while (true) {
+            final Long current = blockedUntil.putIfAbsent(name, resetTime);
+            if (current==null || current>=resetTime || blockedUntil.replace(name, current, resetTime))
+                break;
+        }
+        logger.info("module=updateQueue component=rateLimiterService action=setRateLimitedUntil bucket=" + name +
+                    " resetTime=" + resetTime);
+    }
+
+    private long getBlockedUntil(final String name, final long now) {
+        final Long time = blockedUntil.get(name);
+        return time!=null ? Math.max(time, now) : now;
+    }
+
+    private List<RateLimit> getRateLimits(final Connector connector) {
+        List<RateLimit> connectorRateLimits = rateLimits.get(connector.getName());
+        if (connectorRateLimits==null) {
+            String[] specs = env.connectors.getStringArray(connector.getName() + ".rateLimit");
+            if (specs.length==0)
+                specs = env.connectors.getStringArray("rateLimit");
+            connectorRateLimits = new ArrayList<RateLimit>();
+            for (String spec : specs) {
+                try {
+                    connectorRateLimits.add(RateLimit.parse(spec));
+                } catch (IllegalArgumentException e) {
+                    logger.warn("module=updateQueue component=rateLimiterService action=getRateLimits connector=" +
+                                connector.getName() + " message=\"ignoring invalid rate limit: " + spec + "\"");
+                }
+            }
+            rateLimits.putIfAbsent(connector.getName(), connectorRateLimits);
+        }
+        return connectorRateLimits;
+    }
+
+    private TokenBucket getBucket(final ApiKey apiKey, final RateLimit rateLimit, final long now) {
+        final Connector connector = apiKey.getConnector();
+        final String name = (rateLimit.perUser ? apiKeyBucketName(apiKey) : connector.getName()) + "@" + rateLimit;
+        SyncedBucket bucket = buckets.get(name);
+        if (bucket==null) {
+            final SyncedBucket newBucket = new SyncedBucket(new TokenBucket(rateLimit.count, rateLimit.period));
+            bucket = buckets.putIfAbsent(name, newBucket);
+            if (bucket==null)
+                bucket = newBucket;
+        }
+        final long lastSync = bucket.lastSync.get();
+        if (now-lastSync > syncInterval && bucket.lastSync.compareAndSet(lastSync, now)) {
+            final long then = now - rateLimit.period;
+            final long used = rateLimit.perUser
+                              ? JPAUtils.count(em, "apiUpdates.count.byGuest.since", apiKey.getGuestId(), connector.value(), then)
+                              : JPAUtils.count(em, "apiUpdates.count.all.since", connector.value(), then);
+            bucket.tokens.setUsed(used, now);
+        }
+        return bucket.tokens;
+    }
+
+    private static final class SyncedBucket {
+        private final TokenBucket tokens;
+        private final AtomicLong lastSync = new AtomicLong(Long.MIN_VALUE / 2);
+
+        private SyncedBucket(final TokenBucket tokens) {
+            this.tokens = tokens;
+        }
+    }
+
+    /**
+     * A <code>count/period[/user]</code> rate limit specification
+     */
+    static final class RateLimit {
+        final int count;
+        final long period;
+        final boolean perUser;
+
+        private RateLimit(final int count, final long period, final boolean perUser) {
+            this.count = count;
+            this.period = period;
+            this.perUser = perUser;
+        }
+
+        static RateLimit parse(final String spec) throws IllegalArgumentException {
+            final String[] parts = spec.trim().split("/");
+            if (parts.length<2 || parts.length>3 || (parts.length==3 && !"user".equals(parts[2])))
+                throw new IllegalArgumentException("Invalid rate limit: " + spec);
+            final int count = Integer.valueOf(parts[0]);
+            final long period = Long.valueOf(parts[1]);
+            if (count<=0 || period<=0)
+                throw new IllegalArgumentException("Invalid rate limit: " + spec);
+            return new RateLimit(count, period, parts.length==3);
+        }
+
+        @Override
+        public String toString() {
+            return count + "/" + period + (perUser ? "/user" : "");
+        }
+    }
+}
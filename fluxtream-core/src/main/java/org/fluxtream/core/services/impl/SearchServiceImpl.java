@@ -0,0 +1,706 @@
+package org.fluxtream.core.services.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.fluxtream.core.Configuration;
+import org.fluxtream.core.aspects.FlxLogger;
+import org.fluxtream.core.connectors.Connector;
+import org.fluxtream.core.connectors.ObjectType;
+import org.fluxtream.core.domain.AbstractFacet;
+import org.fluxtream.core.domain.ApiKey;
+import org.fluxtream.core.domain.TagFilter;
+import org.fluxtream.core.events.DataReceivedEvent;
+import org.fluxtream.core.events.EventListener;
+import org.fluxtream.core.services.EventListenerService;
+import org.fluxtream.core.services.GuestService;
+import org.fluxtream.core.services.SearchService;
+import org.joda.time.DateTimeConstants;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * One embedded Lucene index per guest, stored on local disk in <code>searchIndex.location</code>/&lt;guestId&gt;.
+ * Search is disabled if <code>searchIndex.location</code> isn't set.
+ *
+ * Facets are indexed as soon as the transaction that stores them commits, and become searchable once the update that
+ * received them completes ({@link DataReceivedEvent}) or on the next search. Since a server only sees the facets that
+ * it stores itself, indexes are also caught up with the facets updated since their last synchronization (according to
+ * {@link AbstractFacet#timeUpdated}) when they are searched, at most every <code>searchIndex.syncInterval</code>
+ * seconds. Indexes that were never synchronized are rebuilt in the background, in parallel on the
+ * <code>SearchIndexWorker</code> executor.
+ *
+ * Indexes are rebuilt into a separate directory, whose documents then replace those of the index in a single commit, so
+ * that searches never see a partially rebuilt index.
+ */
+@Service
+@Transactional(readOnly=true)
+public class SearchServiceImpl implements SearchService, EventListener<DataReceivedEvent>, InitializingBean, DisposableBean {
+
+    private static final FlxLogger logger = FlxLogger.getLogger(SearchServiceImpl.class);
+
+    private static final Version LUCENE_VERSION = Version.LUCENE_36;
+
+    private static final String KEY = "key";
+    private static final String API = "api";
+    private static final String OBJECT_TYPE = "objectType";
+    private static final String FACET_ID = "facetId";
+    private static final String API_KEY_ID = "apiKeyId";
+    private static final String START = "start";
+    private static final String END = "end";
+    private static final String TEXT = "text";
+    private static final String TAG = "tag";
+    private static final String TAGGED = "tagged";
+
+    private static final String SYNCED_UNTIL = "syncedUntil";
+
+    // facets stored by another server may be committed a little while after their timeUpdated
+    private static final long SYNC_MARGIN = 5 * DateTimeConstants.MILLIS_PER_MINUTE;
+
+    private static final long COMMIT_INTERVAL = 10 * DateTimeConstants.MILLIS_PER_SECOND;
+
+    /**
+     * Number of facets that are loaded at once when synchronizing an index with the database
+     */
+    private static final int SYNC_PAGE_SIZE = 500;
+
+    @Autowired
+    Configuration env;
+
+    @PersistenceContext
+    EntityManager em;
+
+    @Autowired
+    GuestService guestService;
+
+    @Autowired
+    @Qualifier("jpaTxTemplate")
+    TransactionTemplate transactionTemplate;
+
+    @Autowired
+    @Qualifier("SearchIndexWorker")
+    ThreadPoolTaskExecutor executor;
+
+    private File location;
+    private int maxOpenIndexes;
+    private long syncInterval;
+
+    private final Analyzer analyzer = new StandardAnalyzer(LUCENE_VERSION);
+
+    // least recently used first
+    private final LinkedHashMap<Long, GuestIndex> openIndexes = new LinkedHashMap<Long, GuestIndex>(16, 0.75f, true);
+
+    private final ConcurrentMap<Long, Boolean> rebuilding = new ConcurrentHashMap<Long, Boolean>();
+
+    @Autowired
+    final protected void setEventService(@Qualifier("eventListenerServiceImpl") EventListenerService evl) {
+        evl.addEventListener(DataReceivedEvent.class, this, EventListenerService.Delivery.AFTER_COMMIT);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        final String searchIndexLocation = env.get("searchIndex.location");
+        location = searchIndexLocation!=null ? new File(searchIndexLocation) : null;
+        maxOpenIndexes = env.targetEnvironmentProps.getInt("searchIndex.maxOpenIndexes", 100);
+        syncInterval = env.targetEnvironmentProps.getLong("searchIndex.syncInterval", 60L) * 1000L;
+        if (location==null)
+            logger.info("module=search component=searchService action=afterPropertiesSet message=\"searchIndex.location is not set, search is disabled\"");
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        synchronized (openIndexes) {
+            for (GuestIndex index : openIndexes.values())
+                index.close();
+            openIndexes.clear();
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return location!=null;
+    }
+
+    @Override
+    public void handleEvent(final DataReceivedEvent event) {
+        if (!isEnabled())
+            return;
+        // make the facets of this update searchable once they have been indexed
+        afterCommit(event.updateInfo.getGuestId(), new IndexUpdate() {
+            @Override
+            public void apply(final GuestIndex index) throws IOException {
+                index.maybeCommit();
+                index.refresh();
+            }
+        });
+    }
+
+    @Override
+    public SearchResults search(final long guestId, final String query, final long start, final long end,
+                                final Collection<Connector> connectors, final TagFilter tagFilter,
+                                final String cursor, final int pageSize) throws IllegalArgumentException {
+        if (!isEnabled())
+            return new SearchResults(0, Collections.<SearchHit>emptyList(), null);
+        final ScoreDoc after = parseCursor(cursor);
+        final org.apache.lucene.search.Query luceneQuery = parseQuery(query);
+        final Filter filter = getFilter(start, end, connectors, tagFilter);
+        GuestIndex index = null;
+        try {
+            index = acquire(guestId);
+            if (index.syncedUntil==0)
+                scheduleRebuild(guestId);
+            else if (System.currentTimeMillis()-index.lastSync > syncInterval)
+                sync(index);
+            index.refresh();
+            final IndexSearcher searcher = index.searcherManager.acquire();
+            try {
+                final TopDocs topDocs = after==null
+                                        ? searcher.search(luceneQuery, filter, pageSize)
+                                        : searcher.searchAfter(after, luceneQuery, filter, pageSize);
+                final List<SearchHit> hits = new ArrayList<SearchHit>(topDocs.scoreDocs.length);
+                for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                    final Document document = searcher.doc(scoreDoc.doc);
+                    hits.add(new SearchHit(Integer.valueOf(document.get(API)), Integer.valueOf(document.get(OBJECT_TYPE)),
+                                           Long.valueOf(document.get(FACET_ID)), Long.valueOf(document.get(START)),
+                                           Long.valueOf(document.get(END)), scoreDoc.score));
+                }
+                final String nextCursor = topDocs.scoreDocs.length==pageSize
+                                          ? toCursor(topDocs.scoreDocs[pageSize-1])
+                                          : null;
+                return new SearchResults(topDocs.totalHits, hits, nextCursor);
+            } finally {
+                index.searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not search the index of guest " + guestId, e);
+        } finally {
+            if (index!=null)
+                release(index);
+        }
+    }
+
+    @Override
+    public void index(final Collection<? extends AbstractFacet> facets) {
+        if (!isEnabled())
+            return;
+        for (final Map.Entry<Long, List<AbstractFacet>> guestFacets : byGuest(facets).entrySet()) {
+            afterCommit(guestFacets.getKey(), new IndexUpdate() {
+                @Override
+                public void apply(final GuestIndex index) throws IOException {
+                    for (AbstractFacet facet : guestFacets.getValue())
+                        indexFacet(index.writer, facet);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void delete(final Collection<? extends AbstractFacet> facets) {
+        if (!isEnabled())
+            return;
+        for (final Map.Entry<Long, List<AbstractFacet>> guestFacets : byGuest(facets).entrySet()) {
+            final List<Term> keys = new ArrayList<Term>();
+            for (AbstractFacet facet : guestFacets.getValue())
+                keys.add(key(facet));
+            afterCommit(guestFacets.getKey(), new IndexUpdate() {
+                @Override
+                public void apply(final GuestIndex index) throws IOException {
+                    index.writer.deleteDocuments(keys.toArray(new Term[keys.size()]));
+                }
+            });
+        }
+    }
+
+    @Override
+    public void deleteAll(final ApiKey apiKey) {
+        if (!isEnabled())
+            return;
+        afterCommit(apiKey.getGuestId(), new IndexUpdate() {
+            @Override
+            public void apply(final GuestIndex index) throws IOException {
+                index.writer.deleteDocuments(new Term(API_KEY_ID, String.valueOf(apiKey.getId())));
+            }
+        });
+    }
+
+    @Override
+    public void deleteAll(final ApiKey apiKey, final ObjectType objectType) {
+        if (!isEnabled())
+            return;
+        final BooleanQuery query = new BooleanQuery();
+        query.add(new TermQuery(new Term(API_KEY_ID, String.valueOf(apiKey.getId()))), BooleanClause.Occur.MUST);
+        query.add(new TermQuery(new Term(OBJECT_TYPE, String.valueOf(objectType.value()))), BooleanClause.Occur.MUST);
+        afterCommit(apiKey.getGuestId(), new IndexUpdate() {
+            @Override
+            public void apply(final GuestIndex index) throws IOException {
+                index.writer.deleteDocuments(query);
+            }
+        });
+    }
+
+    @Override
+    public void deleteIndex(final long guestId) {
+        if (!isEnabled())
+            return;
+        synchronized (openIndexes) {
+            final GuestIndex index = openIndexes.get(guestId);
+            if (index!=null) {
+                if (index.users>0) {
+                    // can't be closed yet, empty it instead
+                    try {
+                        index.writer.deleteAll();
+                        index.commit();
+                    } catch (IOException e) {
+                        logger.warn("module=search component=searchService action=deleteIndex guestId=" + guestId +
+                                    " message=\"" + e.getMessage() + "\"");
+                    }
+                    return;
+                }
+                openIndexes.remove(guestId);
+                index.close();
+            }
+            try {
+                FileUtils.deleteDirectory(getIndexLocation(guestId, false));
+            } catch (IOException e) {
+                logger.warn("module=search component=searchService action=deleteIndex guestId=" + guestId +
+                            " message=\"" + e.getMessage() + "\"");
+            }
+        }
+    }
+
+    @Override
+    public int rebuild(final long guestId) {
+        if (!isEnabled())
+            return 0;
+        final long then = System.currentTimeMillis();
+        GuestIndex index = null;
+        try {
+            index = acquire(guestId);
+            final int indexed;
+            synchronized (index.rebuildLock) {
+                final Directory rebuilt = openDirectory(guestId, true);
+                try {
+                    final IndexWriter writer = new IndexWriter(rebuilt, new IndexWriterConfig(LUCENE_VERSION, analyzer)
+                            .setOpenMode(IndexWriterConfig.OpenMode.CREATE));
+                    try {
+                        indexed = indexUpdatedFacets(writer, guestId, Long.MIN_VALUE);
+                        writer.commit();
+                    } finally {
+                        writer.close();
+                    }
+                    // facets indexed in the meantime are caught up with on the next synchronization
+                    index.replaceWith(rebuilt, then);
+                } finally {
+                    rebuilt.close();
+                    FileUtils.deleteQuietly(getIndexLocation(guestId, true));
+                }
+            }
+            logger.info("module=search component=searchService action=rebuild guestId=" + guestId +
+                        " indexed=" + indexed + " timeTaken=" + (System.currentTimeMillis()-then));
+            return indexed;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not rebuild the index of guest " + guestId, e);
+        } finally {
+            if (index!=null)
+                release(index);
+        }
+    }
+
+    @Override
+    public void scheduleRebuild(final long guestId) {
+        if (!isEnabled() || rebuilding.putIfAbsent(guestId, Boolean.TRUE)!=null)
+            return;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        transactionTemplate.execute(new TransactionCallback<Integer>() {
+                            @Override
+                            public Integer doInTransaction(final TransactionStatus status) {
+                                return rebuild(guestId);
+                            }
+                        });
+                    } catch (RuntimeException e) {
+                        logger.warn("module=search component=searchService action=scheduleRebuild guestId=" + guestId +
+                                    " message=\"" + e.getMessage() + "\"");
+                    } finally {
+                        rebuilding.remove(guestId);
+                    }
+                }
+            });
+        } catch (TaskRejectedException e) {
+            rebuilding.remove(guestId);
+            logger.warn("module=search component=searchService action=scheduleRebuild guestId=" + guestId +
+                        " message=\"" + e.getMessage() + "\"");
+        }
+    }
+
+    /**
+     * Indexes the facets updated since the last synchronization of an index, unless it is being synchronized already
+     */
+    private void sync(final GuestIndex index) throws IOException {
+        if (!index.syncing.compareAndSet(false, true))
+            return;
+        try {
+            final long then = System.currentTimeMillis();
+            final int indexed = indexUpdatedFacets(index.writer, index.guestId, index.syncedUntil - SYNC_MARGIN);
+            index.syncedUntil = index.lastSync = then;
+            if (indexed>0)
+                index.maybeCommit();
+            if (logger.isDebugEnabled())
+                logger.debug("module=search component=searchService action=sync guestId=" + index.guestId +
+                             " indexed=" + indexed + " timeTaken=" + (System.currentTimeMillis()-then));
+        } finally {
+            index.syncing.set(false);
+        }
+    }
+
+    private int indexUpdatedFacets(final IndexWriter writer, final long guestId, final long since) throws IOException {
+        int indexed = 0;
+        for (ApiKey apiKey : guestService.getApiKeys(guestId)) {
+            final Connector connector = apiKey.getConnector();
+            if (connector==null || !connector.hasFacets() || connector.objectTypes()==null)
+                continue;
+            for (ObjectType objectType : connector.objectTypes()) {
+                final Class<? extends AbstractFacet> facetClass = objectType.facetClass();
+                if (facetClass==null || facetClass.getAnnotation(Entity.class)==null)
+                    continue;
+                final Query query = em.createQuery("SELECT e FROM " + facetClass.getAnnotation(Entity.class).name() +
+                                                   " e WHERE e.apiKeyId=? AND e.timeUpdated>? " +
+                                                   "AND e.fullTextDescription IS NOT NULL ORDER BY e.id");
+                query.setParameter(1, apiKey.getId());
+                query.setParameter(2, since);
+                query.setMaxResults(SYNC_PAGE_SIZE);
+                for (int firstResult=0;; firstResult+=SYNC_PAGE_SIZE) {
+                    query.setFirstResult(firstResult);
+                    @SuppressWarnings("unchecked")
+                    final List<AbstractFacet> facets = query.getResultList();
+                    for (AbstractFacet facet : facets)
+                        indexFacet(writer, facet);
+                    indexed += facets.size();
+                    // don't keep the facets of the previous pages in the persistence context
+                    em.clear();
+                    if (facets.size()<SYNC_PAGE_SIZE)
+                        break;
+                }
+            }
+        }
+        return indexed;
+    }
+
+    private static void indexFacet(final IndexWriter writer, final AbstractFacet facet) throws IOException {
+        if (facet.fullTextDescription==null || facet.fullTextDescription.trim().length()==0) {
+            writer.deleteDocuments(key(facet));
+            return;
+        }
+        final Document document = new Document();
+        document.add(new Field(KEY, key(facet).text(), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+        document.add(new Field(API, String.valueOf(facet.api), Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+        document.add(new Field(OBJECT_TYPE, String.valueOf(facet.objectType), Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+        document.add(new Field(FACET_ID, String.valueOf(facet.getId()), Field.Store.YES, Field.Index.NO));
+        document.add(new Field(API_KEY_ID, String.valueOf(facet.apiKeyId), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+        document.add(new NumericField(START, Field.Store.YES, true).setLongValue(facet.start));
+        document.add(new NumericField(END, Field.Store.YES, true).setLongValue(facet.end));
+        document.add(new Field(TEXT, facet.fullTextDescription, Field.Store.NO, Field.Index.ANALYZED));
+        if (facet.hasTags()) {
+            document.add(new Field(TAGGED, Boolean.TRUE.toString(), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+            for (String tag : facet.getTagsAsStrings())
+                document.add(new Field(TAG, tag.toLowerCase(), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+        }
+        writer.updateDocument(key(facet), document);
+    }
+
+    private static Term key(final AbstractFacet facet) {
+        return new Term(KEY, facet.api + "/" + facet.objectType + "/" + facet.getId());
+    }
+
+    private static Map<Long, List<AbstractFacet>> byGuest(final Collection<? extends AbstractFacet> facets) {
+        final Map<Long, List<AbstractFacet>> byGuest = new LinkedHashMap<Long, List<AbstractFacet>>();
+        for (AbstractFacet facet : facets) {
+            if (facet==null || facet.getId()==null)
+                continue;
+            List<AbstractFacet> guestFacets = byGuest.get(facet.guestId);
+            if (guestFacets==null) {
+                guestFacets = new ArrayList<AbstractFacet>();
+                byGuest.put(facet.guestId, guestFacets);
+            }
+            guestFacets.add(facet);
+        }
+        return byGuest;
+    }
+
+    private org.apache.lucene.search.Query parseQuery(final String query) throws IllegalArgumentException {
+        // QueryParser isn't thread-safe
+        final QueryParser parser = new QueryParser(LUCENE_VERSION, TEXT, analyzer);
+        parser.setDefaultOperator(QueryParser.AND_OPERATOR);
+        try {
+            return parser.parse(query);
+        } catch (ParseException e) {
+            // not valid Lucene query syntax, search for the words themselves
+            try {
+                return parser.parse(QueryParser.escape(query));
+            } catch (ParseException e1) {
+                throw new IllegalArgumentException("Invalid query: " + query);
+            }
+        }
+    }
+
+    private static Filter getFilter(final long start, final long end, final Collection<Connector> connectors,
+                                    final TagFilter tagFilter) {
+        final BooleanQuery filter = new BooleanQuery();
+        if (start>0)
+            filter.add(NumericRangeQuery.newLongRange(END, start, null, true, true), BooleanClause.Occur.MUST);
+        if (end>0)
+            filter.add(NumericRangeQuery.newLongRange(START, null, end, true, true), BooleanClause.Occur.MUST);
+        if (connectors!=null && !connectors.isEmpty()) {
+            final BooleanQuery apis = new BooleanQuery();
+            for (Connector connector : connectors)
+                apis.add(new TermQuery(new Term(API, String.valueOf(connector.value()))), BooleanClause.Occur.SHOULD);
+            filter.add(apis, BooleanClause.Occur.MUST);
+        }
+        if (tagFilter!=null)
+            filter.add(getTagQuery(tagFilter), BooleanClause.Occur.MUST);
+        return filter.clauses().isEmpty() ? null : new QueryWrapperFilter(filter);
+    }
+
+    /**
+     * Evaluates the filtering strategy of a {@link TagFilter} the way {@link TagFilter#getWhereClause()} does
+     */
+    private static org.apache.lucene.search.Query getTagQuery(final TagFilter tagFilter) {
+        final BooleanQuery query = new BooleanQuery();
+        switch (tagFilter.getFilteringStrategy()) {
+            case ANY:
+                for (String tag : tagFilter.getTags())
+                    query.add(new TermQuery(new Term(TAG, tag)), BooleanClause.Occur.SHOULD);
+                break;
+            case ALL:
+                for (String tag : tagFilter.getTags())
+                    query.add(new TermQuery(new Term(TAG, tag)), BooleanClause.Occur.MUST);
+                break;
+            case NONE:
+                // a query can't only have prohibited clauses
+                query.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+                for (String tag : tagFilter.getTags())
+                    query.add(new TermQuery(new Term(TAG, tag)), BooleanClause.Occur.MUST_NOT);
+                break;
+            case UNTAGGED:
+                query.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+                query.add(new TermQuery(new Term(TAGGED, Boolean.TRUE.toString())), BooleanClause.Occur.MUST_NOT);
+                break;
+        }
+        return query;
+    }
+
+    /**
+     * Cursors are the position (document number and score) of the last hit of a page. Document numbers may change as
+     * the index gets updated, which may make pages overlap slightly.
+     */
+    private static String toCursor(final ScoreDoc scoreDoc) {
+        return scoreDoc.doc + "_" + Integer.toHexString(Float.floatToIntBits(scoreDoc.score));
+    }
+
+    private static ScoreDoc parseCursor(final String cursor) throws IllegalArgumentException {
+        if (cursor==null || cursor.length()==0)
+            return null;
+        final String[] parts = cursor.split("_");
+        if (parts.length!=2)
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        // NumberFormatException is an IllegalArgumentException
+        return new ScoreDoc(Integer.parseInt(parts[0]), Float.intBitsToFloat((int)Long.parseLong(parts[1], 16)));
+    }
+
+    private interface IndexUpdate {
+        void apply(GuestIndex index) throws IOException;
+    }
+
+    /**
+     * Applies an index update once the current transaction, if any, has committed
+     */
+    private void afterCommit(final long guestId, final IndexUpdate update) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    apply(guestId, update);
+                }
+            });
+        }
+        else
+            apply(guestId, update);
+    }
+
+    private void apply(final long guestId, final IndexUpdate update) {
+        GuestIndex index = null;
+        try {
+            index = acquire(guestId);
+            update.apply(index);
+        } catch (IOException e) {
+            // the index will catch up on its next synchronization
+            logger.warn("module=search component=searchService action=apply guestId=" + guestId +
+                        " message=\"" + e.getMessage() + "\"");
+        } finally {
+            if (index!=null)
+                release(index);
+        }
+    }
+
+    /**
+     * Opens a guest's index if it isn't open yet, closing the least recently used indexes that aren't in use if there
+     * are too many open; every call must be followed by a call to {@link #release(GuestIndex)}
+     */
+    private GuestIndex acquire(final long guestId) throws IOException {
+        synchronized (openIndexes) {
+            GuestIndex index = openIndexes.get(guestId);
+            if (index==null) {
+                index = new GuestIndex(guestId);
+                openIndexes.put(guestId, index);
+                final Iterator<GuestIndex> eldest = openIndexes.values().iterator();
+                while (openIndexes.size()>maxOpenIndexes && eldest.hasNext()) {
+                    final GuestIndex candidate = eldest.next();
+                    if (candidate.users==0 && candidate!=index) {
+                        eldest.remove();
+                        candidate.close();
+                    }
+                }
+            }
+            index.users++;
+            return index;
+        }
+    }
+
+    private void release(final GuestIndex index) {
+        synchronized (openIndexes) {
+            index.users--;
+        }
+    }
+
+    /**
+     * Opens the directory of a guest's index, or the one it is rebuilt into
+     */
+    Directory openDirectory(final long guestId, final boolean rebuild) throws IOException {
+        return FSDirectory.open(getIndexLocation(guestId, rebuild));
+    }
+
+    private File getIndexLocation(final long guestId, final boolean rebuild) {
+        return new File(location, rebuild ? guestId + ".rebuild" : String.valueOf(guestId));
+    }
+
+    private final class GuestIndex {
+        private final long guestId;
+        private final Directory directory;
+        private final IndexWriter writer;
+        private final SearcherManager searcherManager;
+        private final AtomicBoolean syncing = new AtomicBoolean(false);
+        private final Object rebuildLock = new Object();
+
+        // time up to which the facets of the database are known to be indexed (0 if never synchronized)
+        private volatile long syncedUntil;
+        private volatile long lastSync;
+        private long lastCommit;
+
+        // guarded by openIndexes
+        private int users;
+
+        private GuestIndex(final long guestId) throws IOException {
+            this.guestId = guestId;
+            this.directory = openDirectory(guestId, false);
+            if (IndexReader.indexExists(directory)) {
+                final String syncedUntilData = IndexReader.getCommitUserData(directory).get(SYNCED_UNTIL);
+                syncedUntil = syncedUntilData!=null ? Long.valueOf(syncedUntilData) : 0L;
+            }
+            this.writer = new IndexWriter(directory, new IndexWriterConfig(LUCENE_VERSION, analyzer));
+            this.searcherManager = new SearcherManager(writer, true, null);
+        }
+
+        private synchronized void commit() throws IOException {
+            writer.commit(Collections.singletonMap(SYNCED_UNTIL, String.valueOf(syncedUntil)));
+            lastCommit = System.currentTimeMillis();
+        }
+
+        private synchronized void maybeCommit() throws IOException {
+            if (System.currentTimeMillis()-lastCommit > COMMIT_INTERVAL)
+                commit();
+        }
+
+        /**
+         * Makes the changes to the index searchable; never while its documents are being replaced
+         */
+        private synchronized void refresh() throws IOException {
+            searcherManager.maybeRefresh();
+        }
+
+        /**
+         * Replaces the documents of the index with those of a rebuilt one, in a single commit
+         */
+        private synchronized void replaceWith(final Directory rebuilt, final long syncedUntil) throws IOException {
+            writer.deleteAll();
+            writer.addIndexes(rebuilt);
+            this.syncedUntil = lastSync = syncedUntil;
+            commit();
+            refresh();
+        }
+
+        private void close() {
+            try {
+                commit();
+                searcherManager.close();
+                writer.close();
+                directory.close();
+            } catch (IOException e) {
+                logger.warn("module=search component=searchService action=close guestId=" + guestId +
+                            " message=\"" + e.getMessage() + "\"");
+            }
+        }
+    }
+}
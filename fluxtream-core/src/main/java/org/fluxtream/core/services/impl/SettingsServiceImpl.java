@@ -17,6 +17,7 @@ import org.fluxtream.core.domain.GuestSettings.WeightMeasureUnit;
 import org.fluxtream.core.services.GuestService;
 import org.fluxtream.core.services.SettingsService;
 import org.fluxtream.core.utils.JPAUtils;
+import org.fluxtream.core.utils.RequestMemo;
 import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -52,22 +53,23 @@ public class SettingsServiceImpl implements SettingsService {
 	@Override
 	@Transactional(readOnly = false)
 	public GuestSettings getSettings(long guestId) {
-		GuestSettings settings = JPAUtils.findUnique(em, GuestSettings.class,
-				"settings.byGuestId", guestId);
-        if (settings != null) {
-            settings.config = env;
-            settings.topics = getTopics(guestId);
+        // the settings returned here are only read: the setters below load the settings they modify themselves
+        final String memoKey = "settings/" + guestId;
+        GuestSettings settings = RequestMemo.get(memoKey);
+        if (settings != null)
             return settings;
-        }
-        else {
+		settings = JPAUtils.findUnique(em, GuestSettings.class,
+				"settings.byGuestId", guestId);
+        if (settings == null) {
             settings = new GuestSettings();
             settings.guestId = guestId;
             settings.createMessageDisplayCounters();
             em.persist(settings);
-            settings.config = env;
-            settings.topics = getTopics(guestId);
-            return settings;
         }
+        settings.config = env;
+        settings.topics = getTopics(guestId);
+        RequestMemo.put(memoKey, settings);
+        return settings;
 	}
 
     private HashMap<String, String> getTopics(long guestId) {
@@ -89,6 +91,7 @@ public class SettingsServiceImpl implements SettingsService {
     @Override
     @Transactional(readOnly=false)
     public int incrementDisplayCounter(final long guestId, final String messageName) {
+        RequestMemo.clear();
         GuestSettings settings = JPAUtils.findUnique(em, GuestSettings.class,
                                                      "settings.byGuestId", guestId);
         final Integer count = settings.getMessageDisplayCounter(messageName);
@@ -116,6 +119,7 @@ public class SettingsServiceImpl implements SettingsService {
 	@Override
 	@Transactional(readOnly = false)
 	public void setWeightMeasureUnit(long guestId, WeightMeasureUnit unit) {
+		RequestMemo.clear();
 		GuestSettings settings = JPAUtils.findUnique(em, GuestSettings.class,
 				"settings.byGuestId", guestId);
 		settings.weightMeasureUnit = unit;
@@ -124,6 +128,7 @@ public class SettingsServiceImpl implements SettingsService {
 	@Override
     @Transactional(readOnly = false)
 	public void setTemperatureUnit(long guestId, TemperatureUnit unit) {
+		RequestMemo.clear();
 		GuestSettings settings = JPAUtils.findUnique(em, GuestSettings.class,
 				"settings.byGuestId", guestId);
 		settings.temperatureUnit = unit;
@@ -163,27 +168,32 @@ public class SettingsServiceImpl implements SettingsService {
     @Override
     @Transactional(readOnly = false)
     public Object getConnectorSettings(final long apiKeyId) {
+        final String memoKey = "connectorSettings/" + apiKeyId;
+        Object settings = RequestMemo.get(memoKey);
+        if (settings!=null)
+            return settings;
         ApiKey apiKey = guestService.getApiKey(apiKeyId);
-        Object settings = apiKey.getSettings();
-        final Class<? extends AbstractUpdater> updaterClass = apiKey.getConnector().getUpdaterClass();
-        final Class<?> settingsClass = updaterClass.getAnnotation(Updater.class).settings();
+        settings = apiKey.getSettings();
+        final Class<?> settingsClass = apiKey.getConnector().settingsClass();
         if (settings==null&& settingsClass != Updater.EmptySettings.class){
             try {
                 settings = settingsClass.newInstance();
                 apiKey.setSettings(settings);
                 em.persist(apiKey);
-                return settings;
             }
             catch (Exception e) {
                 throw new RuntimeException("Could not instantiate default settings for connector " + apiKey.getConnector().getName());
             }
         }
+        if (settings!=null)
+            RequestMemo.put(memoKey, settings);
         return settings;
     }
 
     @Override
     @Transactional(readOnly=false)
     public void persistConnectorSettings(final long apiKeyId, final Object settings, final Object defaultSettings) {
+        RequestMemo.clear();
         ApiKey apiKey = guestService.getApiKey(apiKeyId);
         apiKey.setSettings(settings);
         apiKey.setDefaultSettings(defaultSettings);
@@ -227,13 +237,14 @@ public class SettingsServiceImpl implements SettingsService {
     @Override
     @Transactional(readOnly=false)
     public void resetConnectorSettings(final long apiKeyId) {
+        RequestMemo.clear();
         ApiKey apiKey = guestService.getApiKey(apiKeyId);
         final Class<? extends AbstractUpdater> updaterClass = apiKey.getConnector().getUpdaterClass();
         Object defaultSettings = apiKey.getDefaultSettings();
         if (defaultSettings!=null)
             apiKey.setSettings(defaultSettings);
         else {
-            final Class<?> settingsClass = updaterClass.getAnnotation(Updater.class).settings();
+            final Class<?> settingsClass = apiKey.getConnector().settingsClass();
             if (settingsClass != Updater.EmptySettings.class){
                 try {
                     defaultSettings = settingsClass.newInstance();
@@ -254,6 +265,7 @@ public class SettingsServiceImpl implements SettingsService {
     @Override
     @Transactional(readOnly=false)
     public void setPreferences(long guestId, String preferences) {
+        RequestMemo.clear();
         GuestSettings settings = JPAUtils.findUnique(em, GuestSettings.class,
                 "settings.byGuestId", guestId);
         settings.preferences = preferences;
@@ -269,6 +281,7 @@ public class SettingsServiceImpl implements SettingsService {
     @Override
 	@Transactional(readOnly = false)
 	public void setLengthMeasureUnit(long guestId, LengthMeasureUnit unit) {
+		RequestMemo.clear();
 		GuestSettings settings = JPAUtils.findUnique(em, GuestSettings.class,
 				"settings.byGuestId", guestId);
 		settings.lengthMeasureUnit = unit;
@@ -277,6 +290,7 @@ public class SettingsServiceImpl implements SettingsService {
 	@Override
 	@Transactional(readOnly = false)
 	public void setDistanceMeasureUnit(long guestId, DistanceMeasureUnit unit) {
+		RequestMemo.clear();
 		GuestSettings settings = JPAUtils.findUnique(em, GuestSettings.class,
 				"settings.byGuestId", guestId);
 		settings.distanceMeasureUnit = unit;
@@ -6,10 +6,12 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import org.fluxtream.core.Configuration;
 import org.fluxtream.core.connectors.Connector;
+import org.fluxtream.core.connectors.fluxtream_capture.FluxtreamCapturePhotoStore;
 import org.fluxtream.core.domain.ApiKey;
 import org.fluxtream.core.domain.ConnectorInfo;
 import org.fluxtream.core.domain.Gestalt;
@@ -22,6 +24,7 @@ import org.fluxtream.core.updaters.quartz.Producer;
 import org.fluxtream.core.utils.JPAUtils;
 import net.sf.json.JSONArray;
 import org.apache.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.annotation.Scope;
@@ -32,7 +35,7 @@ import org.springframework.transaction.annotation.Transactional;
 @Service
 @Scope("singleton")
 @Transactional(readOnly=true)
-public class SystemServiceImpl implements SystemService, ApplicationListener<ContextRefreshedEvent> {
+public class SystemServiceImpl implements SystemService, ApplicationListener<ContextRefreshedEvent>, InitializingBean {
 
     static final Logger logger = Logger.getLogger(SystemServiceImpl.class);
 
@@ -57,8 +60,20 @@ public class SystemServiceImpl implements SystemService, ApplicationListener<Con
     @Autowired
     JPADaoService jpaDaoService;
 
+    @Autowired
+    ApiDataCleanupService apiDataCleanupService;
+
+    @Autowired
+    FluxtreamCapturePhotoStore fluxtreamCapturePhotoStore;
+
 	static Map<String, Connector> scopedApis = new Hashtable<String, Connector>();
 
+    // the Connector table is only rewritten when a server starts up, servers reload it every
+    // connectorRegistry.refreshInterval seconds to pick up the changes made by the others
+    private volatile ConnectorRegistry connectorRegistry;
+    private final AtomicLong connectorRegistryVersion = new AtomicLong();
+    private long connectorRegistryRefreshInterval;
+
     static {
         if (Connector.getConnector("google_latitude")!=null)
             scopedApis.put("https://www.googleapis.com/auth/latitude.all.best",
@@ -74,8 +89,27 @@ public class SystemServiceImpl implements SystemService, ApplicationListener<Con
                     Connector.getConnector("sleep_as_android"));
     }
 
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        connectorRegistryRefreshInterval = env.targetEnvironmentProps.getLong("connectorRegistry.refreshInterval", 300L) * 1000L;
+    }
+
     @Override
     public List<ConnectorInfo> getConnectors() throws Exception {
+        return getConnectorRegistry().copyConnectors();
+    }
+
+    private ConnectorRegistry getConnectorRegistry() {
+        final ConnectorRegistry registry = connectorRegistry;
+        if (registry!=null && System.currentTimeMillis()-registry.loaded <= connectorRegistryRefreshInterval)
+            return registry;
+        return refreshConnectorRegistry();
+    }
+
+    /**
+     * Reloads the Connector table; an empty table, as found while a server is starting up, isn't kept
+     */
+    private ConnectorRegistry refreshConnectorRegistry() {
 		List<ConnectorInfo> all = JPAUtils.find(em, ConnectorInfo.class, "connectors.all", (Object[])null);
         // Removed check for initializing the Connector table since this was causing
         // duplication of the entries in the Connector table.  This means that we may
@@ -86,20 +120,21 @@ public class SystemServiceImpl implements SystemService, ApplicationListener<Con
 		//	all = JPAUtils.find(em, ConnectorInfo.class, "connectors.all",
 		//			(Object[]) null);
 		//}
-		return all;
+        final ConnectorRegistry registry = new ConnectorRegistry(connectorRegistryVersion.incrementAndGet(), all);
+        if (registry.size()>0) {
+            connectorRegistry = registry;
+            logger.info("module=SystemServiceImpl component=connectorRegistry action=refresh version=" + registry.version +
+                        " connectors=" + registry.size());
+        }
+		return registry;
 	}
 
+    /**
+     * The returned ConnectorInfo is shared and must not be modified
+     */
     @Override
     public ConnectorInfo getConnectorInfo(final String connectorName)  throws Exception  {
-        //List<ConnectorInfo> all = JPAUtils.find(em, ConnectorInfo.class, "connectors.all", (Object[])null);
-        // Removed check for initializing the Connector table since this was causing
-        // duplication of the entries in the Connector table.  This means that we may
-        // end up returning an incomplete list of connectors if this is
-        // called during a thread other than the one in onApplicationEvent during startup
-        //if (all.size() == 0) {
-        //    resetConnectorList();
-        //}
-        final ConnectorInfo connectorInfo = JPAUtils.findUnique(em, ConnectorInfo.class, "connector.byName", connectorName);
+        final ConnectorInfo connectorInfo = getConnectorRegistry().getConnectorInfo(connectorName);
         return connectorInfo;
     }
 
@@ -375,6 +410,7 @@ public class SystemServiceImpl implements SystemService, ApplicationListener<Con
         // The following call will initialize the Connector table by calling
         // the initializeConnectorList function and return the result
         initializeConnectorList();
+        refreshConnectorRegistry();
     }
 
     @Transactional(readOnly = false)
@@ -474,6 +510,8 @@ public class SystemServiceImpl implements SystemService, ApplicationListener<Con
                 }
                 consumer.setContextStarted();
                 producer.setContextStarted();
+                apiDataCleanupService.resumeErasures();
+                fluxtreamCapturePhotoStore.resumePendingThumbnails();
             }
             catch (Exception e) {
                 e.printStackTrace();
@@ -0,0 +1,67 @@
+package org.fluxtream.core.services.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket of <code>capacity</code> tokens refilled at a rate of <code>capacity</code> tokens per
+ * <code>period</code> milliseconds.
+ *
+ * The bucket is kept in its "generic cell rate algorithm" form: rather than a token count and a refill time, it only
+ * stores the time at which it will be full again (the theoretical arrival time, in microseconds), which a single
+ * compare-and-set can update. Each token taken pushes that time one emission interval
+ * (<code>period/capacity</code>) further; a token can be taken as long as that time stays within one period from now.
+ */
+final class TokenBucket {
+
+    private final int capacity;
+    private final long emissionInterval;
+    private final long tolerance;
+
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @throws IllegalArgumentException If either <code>capacity</code> or <code>period</code> isn't positive
+     */
+    TokenBucket(final int capacity, final long period) throws IllegalArgumentException {
+        if (capacity<=0 || period<=0)
+            throw new IllegalArgumentException("Expected a positive capacity and period");
+        this.capacity = capacity;
+        this.emissionInterval = Math.max(1L, period * 1000L / capacity);
+        this.tolerance = emissionInterval * capacity;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Takes a token if one is available at time <code>now</code> (in milliseconds)
+     */
+    boolean tryAcquire(final long now) {
+        final long nowMicros = now * 1000L;
+        while (true) {
+            final long current = fullAt.get();
+            final long next = Math.max(current, nowMicros) + emissionInterval;
+            if (next - nowMicros > tolerance)
+                return false;
+            if (fullAt.compareAndSet(current, next))
+                return true;
+        }
+    }
+
+    /**
+     * Returns the time, in milliseconds, at which a token should next be available
+     */
+    long getNextTokenTime(final long now) {
+        final long nowMicros = now * 1000L;
+        final long wait = Math.max(fullAt.get(), nowMicros) + emissionInterval - nowMicros - tolerance;
+        return now + (Math.max(0L, wait) + 999L) / 1000L;
+    }
+
+    /**
+     * Resets the bucket as if <code>used</code> tokens had just been taken from a full bucket
+     */
+    void setUsed(final long used, final long now) {
+        fullAt.set(now * 1000L + Math.min(Math.max(0L, used), capacity) * emissionInterval);
+    }
+}
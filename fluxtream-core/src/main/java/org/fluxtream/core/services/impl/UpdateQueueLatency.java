@@ -0,0 +1,55 @@
+package org.fluxtream.core.services.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.fluxtream.core.metrics.Histogram;
+import org.fluxtream.core.metrics.MetricsRegistry;
+import org.springframework.stereotype.Component;
+
+/**
+ * Time spent by update worker tasks in the queue, from the time they were scheduled for to the time a worker started
+ * executing them.
+ */
+@Component
+public class UpdateQueueLatency {
+
+    private static final Histogram QUEUE_LATENCY = MetricsRegistry.getDefault().histogram("flx_update_queue_latency_ms",
+            "Time spent by update tasks in the queue past their scheduled time, in milliseconds");
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(final long latency) {
+        // tasks may be started a little ahead of time
+        final long millis = Math.max(0, latency);
+        count.incrementAndGet();
+        total.addAndGet(millis);
+        updateMax(max, millis);
+        QUEUE_LATENCY.observe(millis);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        final long n = count.get();
+        return n==0 ? 0 : (double) total.get() / n;
+    }
+
+    private static void updateMax(final AtomicLong max, final long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value))
+                return;
+        }
+    }
+}
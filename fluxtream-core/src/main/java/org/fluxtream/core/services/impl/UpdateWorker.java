@@ -9,6 +9,9 @@ import org.fluxtream.core.connectors.Connector;
 import org.fluxtream.core.connectors.updaters.*;
 import org.fluxtream.core.domain.*;
 import org.fluxtream.core.domain.UpdateWorkerTask.Status;
+import org.fluxtream.core.metrics.Counter;
+import org.fluxtream.core.metrics.Histogram;
+import org.fluxtream.core.metrics.MetricsRegistry;
 import org.fluxtream.core.services.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Scope;
@@ -23,6 +26,11 @@ class UpdateWorker implements Runnable {
 
 	FlxLogger logger = FlxLogger.getLogger(UpdateWorker.class);
 
+    private static final Histogram UPDATE_DURATION = MetricsRegistry.getDefault().histogram("flx_update_duration_ms",
+            "Time spent running update tasks, in milliseconds", "connector");
+    private static final Counter UPDATE_RESULTS = MetricsRegistry.getDefault().counter("flx_update_results_total",
+            "Outcomes of update tasks (success, abort or retry)", "connector", "result");
+
     @Autowired
 	ConnectorUpdateService connectorUpdateService;
 
@@ -52,12 +60,36 @@ class UpdateWorker implements Runnable {
 
 	UpdateWorkerTask task;
 
+    @Autowired
+    ConnectorConcurrencyLimiter concurrencyLimiter;
+
+    // the connector whose concurrency permit this worker holds, if any
+    String connectorPermit;
+
+    private boolean claimed = false;
+    private boolean rateLimited = false;
+
 	public UpdateWorker() {
 	}
 
     @Trace(dispatcher=true)
 	@Override
 	public void run() {
+        final long started = System.currentTimeMillis();
+        try {
+            runTask();
+        }
+        finally {
+            if (claimed)
+                UPDATE_DURATION.labels(String.valueOf(task.connectorName)).observeSince(started);
+            if (connectorPermit!=null && claimed)
+                concurrencyLimiter.release(connectorPermit, System.currentTimeMillis()-started, rateLimited);
+            else if (connectorPermit!=null)
+                concurrencyLimiter.cancel(connectorPermit);
+        }
+    }
+
+    private void runTask() {
         ApiKey apiKey = null;
         try {
             final UpdateWorkerTask claimed = connectorUpdateService.claimForExecution(task.getId(), Thread.currentThread().getName());
@@ -66,6 +98,7 @@ class UpdateWorker implements Runnable {
             }
             else {
                 this.task = claimed;
+                this.claimed = true;
             }
             logNR();
             StringBuilder sb = new StringBuilder("module=updateQueue component=worker action=start").append(" guestId=").append(task.getGuestId()).append(" connector=").append(task.connectorName).append(" objectType=").append(task.objectTypes).append(" apiKeyId=").append(task.apiKeyId);
@@ -307,6 +340,7 @@ class UpdateWorker implements Runnable {
             abort(updateInfo.apiKey, failed, updateResult.reason);
             break;
 		case HAS_REACHED_RATE_LIMIT:
+            rateLimited = true;
             final UpdateWorkerTask.AuditTrailEntry rateLimit = new UpdateWorkerTask.AuditTrailEntry(new Date(), updateResult.getType().toString(), "long reschedule");
             rateLimit.stackTrace = updateResult.stackTrace;
             // do this only if a notification is visible for that connector at this time
@@ -379,6 +413,7 @@ class UpdateWorker implements Runnable {
                 .append(" guestId=").append(task.getGuestId())
                 .append(" connector=").append(task.objectTypes);
 		logger.info(stringBuilder.toString());
+        UPDATE_RESULTS.labels(String.valueOf(task.connectorName), "success").inc();
         guestService.setApiKeyStatus(apiKey.getId(), ApiKey.Status.STATUS_UP, null, null);
         this.task = connectorUpdateService.setUpdateWorkerTaskStatus(task.getId(), Status.DONE);
 	}
@@ -389,6 +424,7 @@ class UpdateWorker implements Runnable {
                 .append(" connector=").append(task.connectorName)
                 .append(" objectType=").append(task.objectTypes);
 		logger.info(stringBuilder.toString());
+        UPDATE_RESULTS.labels(String.valueOf(task.connectorName), "abort").inc();
         guestService.setApiKeyStatus(apiKey.getId(), ApiKey.Status.STATUS_PERMANENT_FAILURE, auditTrailEntry.stackTrace, reason);
 		this.task = connectorUpdateService.setUpdateWorkerTaskStatus(task.getId(), Status.FAILED);
 	}
@@ -404,6 +440,7 @@ class UpdateWorker implements Runnable {
                     .append("]]>");
         }
 		logger.info(stringBuilder.toString());
+        UPDATE_RESULTS.labels(String.valueOf(task.connectorName), "retry").inc();
 		int maxRetries = 0;
 		try {
 			maxRetries = getMaxRetries(updateInfo.apiKey.getConnector());
@@ -0,0 +1,184 @@
+package org.fluxtream.core.services.impl;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import org.fluxtream.core.Configuration;
+import org.fluxtream.core.metadata.VisitedCityTimeline;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Bounded, least-recently-used cache of the guests' {@link VisitedCityTimeline}s.
+ *
+ * Writes to the visited cities of a guest don't evict its timeline: they mark the dates they touched as stale, and
+ * the next reader only reloads these dates. Dates are marked both immediately and after the surrounding transaction
+ * completes, and timelines built concurrently with a write are not cached. Entries also expire after
+ * <code>metadataTimeline.ttl</code> seconds to catch the writes of other servers.
+ */
+@Component
+public class VisitedCityTimelineCache implements InitializingBean {
+
+    @Autowired
+    Configuration env;
+
+    private int maxGuests;
+    private long maxCities;
+    private long ttl;
+
+    private final LinkedHashMap<Long, Entry> timelines = new LinkedHashMap<Long, Entry>(256, 0.75f, true);
+    private long cityCount = 0;
+    private long version = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * What a reader needs to bring the timeline of a guest up to date: the cached timeline, or <code>null</code> if it
+     * has to be loaded entirely, the dates that have to be reloaded otherwise, and the version to pass back to
+     * {@link VisitedCityTimelineCache#put(long, VisitedCityTimeline, long)}
+     */
+    public static final class CachedTimeline {
+        public final VisitedCityTimeline timeline;
+        public final Set<String> staleDates;
+        public final long version;
+
+        private CachedTimeline(final VisitedCityTimeline timeline, final Set<String> staleDates, final long version) {
+            this.timeline = timeline;
+            this.staleDates = staleDates;
+            this.version = version;
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        maxGuests = env.targetEnvironmentProps.getInt("metadataTimeline.maxGuests", 2000);
+        maxCities = env.targetEnvironmentProps.getLong("metadataTimeline.maxCities", 1000000L);
+        ttl = env.targetEnvironmentProps.getLong("metadataTimeline.ttl", 3600L) * 1000L;
+    }
+
+    public synchronized CachedTimeline get(final long guestId) {
+        final Entry entry = timelines.get(guestId);
+        if (entry==null) {
+            misses++;
+            return new CachedTimeline(null, new HashSet<String>(), 0);
+        }
+        if (entry.timeline!=null && System.currentTimeMillis()-entry.created > ttl) {
+            cityCount -= entry.timeline.getCityCount();
+            entry.timeline = null;
+        }
+        if (entry.timeline==null || !entry.staleDates.isEmpty())
+            misses++;
+        else
+            hits++;
+        return new CachedTimeline(entry.timeline, new HashSet<String>(entry.staleDates), entry.version);
+    }
+
+    /**
+     * Caches the up-to-date timeline of a guest, unless its visited cities were written to since <code>version</code>
+     * was obtained
+     */
+    public synchronized boolean put(final long guestId, final VisitedCityTimeline timeline, final long version) {
+        Entry entry = timelines.get(guestId);
+        if (entry!=null && entry.version!=version || entry==null && version!=0 || timeline.getCityCount()>maxCities)
+            return false;
+        if (entry==null) {
+            entry = new Entry();
+            timelines.put(guestId, entry);
+        }
+        // timelines that were only brought up to date keep the expiry time of the one they were derived from
+        if (entry.timeline==null)
+            entry.created = System.currentTimeMillis();
+        else
+            cityCount -= entry.timeline.getCityCount();
+        entry.timeline = timeline;
+        entry.staleDates.clear();
+        cityCount += timeline.getCityCount();
+        evictEldest();
+        return true;
+    }
+
+    /**
+     * Marks the given dates of the timeline of a guest as stale
+     */
+    public void invalidate(final long guestId, final Collection<String> dates) {
+        markStale(guestId, dates);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(final int status) {
+                    markStale(guestId, dates);
+                }
+            });
+        }
+    }
+
+    /**
+     * Marks the whole timeline of a guest as stale
+     */
+    public void invalidate(final long guestId) {
+        invalidate(guestId, null);
+    }
+
+    public synchronized void clear() {
+        version++;
+        for (Entry entry : timelines.values()) {
+            entry.timeline = null;
+            entry.version = version;
+        }
+        cityCount = 0;
+    }
+
+    public synchronized int size() {
+        return timelines.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private synchronized void markStale(final long guestId, final Collection<String> dates) {
+        Entry entry = timelines.get(guestId);
+        if (entry==null) {
+            // remember the write so that a timeline being loaded concurrently isn't cached
+            entry = new Entry();
+            timelines.put(guestId, entry);
+            evictEldest();
+        }
+        entry.version = ++version;
+        if (dates==null) {
+            if (entry.timeline!=null)
+                cityCount -= entry.timeline.getCityCount();
+            entry.timeline = null;
+            entry.staleDates.clear();
+        }
+        else if (entry.timeline!=null)
+            entry.staleDates.addAll(dates);
+    }
+
+    private void evictEldest() {
+        final Iterator<Entry> eldest = timelines.values().iterator();
+        while ((timelines.size()>maxGuests || cityCount>maxCities) && eldest.hasNext()) {
+            final Entry evicted = eldest.next();
+            if (evicted.timeline!=null)
+                cityCount -= evicted.timeline.getCityCount();
+            eldest.remove();
+        }
+    }
+
+    private static final class Entry {
+        private VisitedCityTimeline timeline;
+        private final Set<String> staleDates = new HashSet<String>();
+        private long version;
+        private long created;
+    }
+}
@@ -12,6 +12,21 @@ interface WorkerDispatchService {
 
     public List<UpdateWorkerTask> claimTasksForDispatch(int availableThreads, String serverUUID);
 
+    /**
+     * Same as {@link #claimTasksForDispatch(int, String)}, but only claims tasks of the given connector
+     */
+    public List<UpdateWorkerTask> claimTasksForDispatch(int availableThreads, String serverUUID, String connectorName);
+
+    /**
+     * Returns the names of the connectors that have scheduled tasks that are due, the most overdue first
+     */
+    public List<String> getConnectorsWithDueTasks();
+
+    /**
+     * Returns the number of scheduled tasks that are due, i.e. the depth of the update queue
+     */
+    public long countDueTasks();
+
     public void unclaimTask(long taskId);
 
 }
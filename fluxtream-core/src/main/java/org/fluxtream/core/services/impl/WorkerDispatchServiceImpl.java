@@ -1,11 +1,16 @@
 package org.fluxtream.core.services.impl;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import org.fluxtream.core.Configuration;
 import org.fluxtream.core.aspects.FlxLogger;
 import org.fluxtream.core.domain.UpdateWorkerTask;
 import org.fluxtream.core.utils.JPAUtils;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
@@ -22,7 +27,7 @@ import org.springframework.transaction.annotation.Transactional;
  */
 @Service
 @Transactional(readOnly=true)
-public class WorkerDispatchServiceImpl implements WorkerDispatchService {
+public class WorkerDispatchServiceImpl implements WorkerDispatchService, InitializingBean {
 
     static FlxLogger logger = FlxLogger.getLogger(WorkerDispatchServiceImpl.class);
 
@@ -33,14 +38,67 @@ public class WorkerDispatchServiceImpl implements WorkerDispatchService {
     @Qualifier("updateWorkersExecutor")
     ThreadPoolTaskExecutor executor;
 
+    @Autowired
+    Configuration env;
+
+    /**
+     * How scheduled tasks are claimed, set with the <code>updateQueue.claimMode</code> property:
+     * <ul>
+     * <li><code>select</code>: select due tasks, then flip them to IN_PROGRESS; several servers may claim the same
+     * tasks</li>
+     * <li><code>claimToken</code> (default): a single UPDATE tags due tasks with a claim token, which are then read
+     * back by that token</li>
+     * <li><code>skipLocked</code>: <code>SELECT ... FOR UPDATE SKIP LOCKED</code>, for databases that support it
+     * (MySQL 8+)</li>
+     * </ul>
+     */
+    enum ClaimMode { SELECT, CLAIM_TOKEN, SKIP_LOCKED }
+
+    private final AtomicLong claimCounter = new AtomicLong();
+
+    private ClaimMode claimMode;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        final String mode = env.get("updateQueue.claimMode");
+        if ("select".equals(mode))
+            claimMode = ClaimMode.SELECT;
+        else if ("skipLocked".equals(mode))
+            claimMode = ClaimMode.SKIP_LOCKED;
+        else
+            claimMode = ClaimMode.CLAIM_TOKEN;
+        logger.info("module=updateQueue component=workerDispatchService action=afterPropertiesSet claimMode=" + claimMode);
+    }
+
     @Override
     @Transactional(readOnly=false, propagation = Propagation.REQUIRES_NEW)
     public List<UpdateWorkerTask> claimTasksForDispatch(int availableThreads, String serverUUID) {
-        List<UpdateWorkerTask> updateWorkerTasks = JPAUtils.findWithLimit(em, UpdateWorkerTask.class, "updateWorkerTasks.byStatus", 0, availableThreads, UpdateWorkerTask.Status.SCHEDULED, System.currentTimeMillis());
+        return claimTasksForDispatch(availableThreads, serverUUID, null);
+    }
+
+    @Override
+    @Transactional(readOnly=false, propagation = Propagation.REQUIRES_NEW)
+    public List<UpdateWorkerTask> claimTasksForDispatch(int availableThreads, String serverUUID, String connectorName) {
+        if (availableThreads<=0)
+            return new ArrayList<UpdateWorkerTask>();
+        final long now = System.currentTimeMillis();
+        List<UpdateWorkerTask> updateWorkerTasks;
+        switch (claimMode) {
+            case SELECT:
+                updateWorkerTasks = connectorName==null
+                                    ? JPAUtils.findWithLimit(em, UpdateWorkerTask.class, "updateWorkerTasks.byStatus", 0, availableThreads, UpdateWorkerTask.Status.SCHEDULED, now)
+                                    : JPAUtils.findWithLimit(em, UpdateWorkerTask.class, "updateWorkerTasks.byStatus.andName", 0, availableThreads, UpdateWorkerTask.Status.SCHEDULED, connectorName, now);
+                break;
+            case SKIP_LOCKED:
+                updateWorkerTasks = claimSkippingLockedTasks(availableThreads, now, connectorName);
+                break;
+            default:
+                updateWorkerTasks = claimWithToken(availableThreads, now, serverUUID, connectorName);
+        }
         if (updateWorkerTasks.size() == 0) {
             logger.debug("Nothing to do");
         } else {
-            StringBuilder sb = new StringBuilder("claiming tasks for dispatch, ").append(" availableThreads=" + availableThreads).append(" message=\"adding " + updateWorkerTasks.size() + " update worker tasks\"").append(" activeCount=" + executor.getActiveCount() + " maxPoolSize=" + executor.getMaxPoolSize());
+            StringBuilder sb = new StringBuilder("claiming tasks for dispatch, ").append(" availableThreads=" + availableThreads).append(" connector=" + connectorName).append(" message=\"adding " + updateWorkerTasks.size() + " update worker tasks\"").append(" activeCount=" + executor.getActiveCount() + " maxPoolSize=" + executor.getMaxPoolSize());
             logger.info(sb);
 
             for (int i = 0; i < updateWorkerTasks.size(); i++) {
@@ -48,6 +106,7 @@ public class WorkerDispatchServiceImpl implements WorkerDispatchService {
                 task.startTime = null;
                 task.endTime = null;
                 task.workerThreadName = null;
+                task.claimToken = null;
                 task.serverUUID = serverUUID;
                 task.status = UpdateWorkerTask.Status.IN_PROGRESS;
                 task.addAuditTrailEntry(new UpdateWorkerTask.AuditTrailEntry(new java.util.Date(), serverUUID));
@@ -56,6 +115,74 @@ public class WorkerDispatchServiceImpl implements WorkerDispatchService {
         return updateWorkerTasks;
     }
 
+    /**
+     * Atomically flips up to <code>max</code> due tasks to IN_PROGRESS, tagging them with a claim token, then reads
+     * them back by that (indexed) token.
+     */
+    private List<UpdateWorkerTask> claimWithToken(final int max, final long now, final String serverUUID, final String connectorName) {
+        final String claimToken = serverUUID + "/" + claimCounter.incrementAndGet();
+        final Query claim = em.createNativeQuery("UPDATE UpdateWorkerTask SET status=?, serverUUID=?, claimToken=? " +
+                                                 "WHERE status=? AND timeScheduled<? " +
+                                                 (connectorName!=null ? "AND connectorName=? " : "") +
+                                                 "ORDER BY timeScheduled LIMIT ?");
+        int position = 1;
+        claim.setParameter(position++, UpdateWorkerTask.Status.IN_PROGRESS.ordinal());
+        claim.setParameter(position++, serverUUID);
+        claim.setParameter(position++, claimToken);
+        claim.setParameter(position++, UpdateWorkerTask.Status.SCHEDULED.ordinal());
+        claim.setParameter(position++, now);
+        if (connectorName!=null)
+            claim.setParameter(position++, connectorName);
+        claim.setParameter(position, max);
+        if (claim.executeUpdate()==0)
+            return new ArrayList<UpdateWorkerTask>();
+        return JPAUtils.find(em, UpdateWorkerTask.class, "updateWorkerTasks.byClaimToken", claimToken);
+    }
+
+    /**
+     * Locks up to <code>max</code> due tasks, skipping those that are being claimed by other servers
+     */
+    private List<UpdateWorkerTask> claimSkippingLockedTasks(final int max, final long now, final String connectorName) {
+        final Query select = em.createNativeQuery("SELECT id FROM UpdateWorkerTask WHERE status=? AND timeScheduled<? " +
+                                                  (connectorName!=null ? "AND connectorName=? " : "") +
+                                                  "ORDER BY timeScheduled LIMIT ? FOR UPDATE SKIP LOCKED");
+        int position = 1;
+        select.setParameter(position++, UpdateWorkerTask.Status.SCHEDULED.ordinal());
+        select.setParameter(position++, now);
+        if (connectorName!=null)
+            select.setParameter(position++, connectorName);
+        select.setParameter(position, max);
+        final List<UpdateWorkerTask> updateWorkerTasks = new ArrayList<UpdateWorkerTask>();
+        for (Object id : select.getResultList()) {
+            final UpdateWorkerTask task = em.find(UpdateWorkerTask.class, ((Number)id).longValue());
+            if (task!=null)
+                updateWorkerTasks.add(task);
+        }
+        return updateWorkerTasks;
+    }
+
+    @Override
+    public List<String> getConnectorsWithDueTasks() {
+        final Query query = em.createNativeQuery("SELECT connectorName FROM UpdateWorkerTask WHERE status=? AND timeScheduled<? " +
+                                                 "GROUP BY connectorName ORDER BY MIN(timeScheduled)");
+        query.setParameter(1, UpdateWorkerTask.Status.SCHEDULED.ordinal());
+        query.setParameter(2, System.currentTimeMillis());
+        final List<String> connectorNames = new ArrayList<String>();
+        for (Object connectorName : query.getResultList()) {
+            if (connectorName!=null)
+                connectorNames.add(connectorName.toString());
+        }
+        return connectorNames;
+    }
+
+    @Override
+    public long countDueTasks() {
+        final Query query = em.createNativeQuery("SELECT COUNT(*) FROM UpdateWorkerTask WHERE status=? AND timeScheduled<?");
+        query.setParameter(1, UpdateWorkerTask.Status.SCHEDULED.ordinal());
+        query.setParameter(2, System.currentTimeMillis());
+        return ((Number) query.getSingleResult()).longValue();
+    }
+
     @Override
     @Transactional(readOnly=false, propagation = Propagation.REQUIRES_NEW)
     public void unclaimTask(final long taskId) {
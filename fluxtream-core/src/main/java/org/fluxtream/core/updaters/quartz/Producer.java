@@ -8,7 +8,6 @@ import org.fluxtream.core.aspects.FlxLogger;
 import org.fluxtream.core.auth.FlxUserDetails;
 import org.fluxtream.core.domain.Guest;
 import org.fluxtream.core.services.ConnectorUpdateService;
-import org.fluxtream.core.services.GuestService;
 import org.fluxtream.core.utils.Utils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.Authentication;
@@ -27,9 +26,6 @@ public class Producer {
     @Autowired
     private ConnectorUpdateService connectorUpdateService;
 
-    @Autowired
-    private GuestService guestService;
-
     @Autowired
     private Configuration env;
 
@@ -40,7 +36,7 @@ public class Producer {
     }
 
     /**
-     * bluntly go through the list of all guests and attempt to update all of their connectors
+     * schedule the updates of all the connectors of this server's shard of guests that aren't already scheduled,
      * spacing them evenly around 3/4 of producer.trigger.repeatInterval so they don't all happen at once.
      * The reason to use only 3/4 of the producer.trigger.repeatInterval is to allow the later users' connectors
      * some time to complete before the next time scheduleIncrementalUpdates is called.
@@ -57,21 +53,13 @@ public class Producer {
         roles.add("ROLE_ROOT");
         as(roles);
         try {
-            List<Guest> guests = guestService.getAllGuests();
-            // Prepare to calculate when to start the connector updates for each guest.
-            // updateTimespan is the span of time over which to space the guests' updates
-            // guestUpdateSpacing is updateTimespan/# guests, for how much to increment the
-            //    time for each guest
-            // nextUpdateTime is the time to update the next guest.  It starts at now,
-            // and is incremented for each guest
+            // updateTimespan is the span of time over which to space the guests' updates;
+            // with several servers, each one only schedules the guests of its own shard
             String producerRepeatInterval = env.get("producer.trigger.repeatInterval");
             long updateTimespan = (producerRepeatInterval!=null)?((long)(Double.valueOf(producerRepeatInterval)*0.75)):0;
-            long guestUpdateSpacing = (guests.size()>0)?(updateTimespan/guests.size()):0;
-            long nextUpdateTime = System.currentTimeMillis();
-            for (Guest g : guests) {
-                connectorUpdateService.updateAllConnectors(g.getId(), false, nextUpdateTime);
-                nextUpdateTime += guestUpdateSpacing;
-            }
+            final int shardCount = env.targetEnvironmentProps.getInt("producer.shardCount", 1);
+            final int shardIndex = env.targetEnvironmentProps.getInt("producer.shardIndex", 0);
+            connectorUpdateService.scheduleIncrementalUpdates(shardIndex, shardCount, System.currentTimeMillis(), updateTimespan);
         }
         catch (Exception e) {
             String stackTrace = Utils.stackTrace(e);
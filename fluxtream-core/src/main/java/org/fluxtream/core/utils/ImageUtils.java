@@ -200,6 +200,64 @@ public final class ImageUtils {
         return null;
     }
 
+    /**
+     * Creates JPEG thumbnails of the given image for each of the given desired dimensions, which must be in decreasing
+     * order.  The image is only decoded once: the largest thumbnail is scaled from it, and each of the others from the
+     * previous, larger one.  The thumbnails are rotated/flipped according to the EXIF orientation, as with
+     * {@link #createJpegThumbnail(byte[], int)}.  Returns <code>null</code> if the given byte array is <code>null</code>
+     * or empty, if no dimensions are given, if any of them is zero or negative, or if the bytes cannot be read as an
+     * image.
+     *
+     * @throws IllegalArgumentException if the dimensions are not in decreasing order
+     * @throws IOException if a problem occurs while reading the image or generating the thumbnails
+     */
+    @Nullable
+    public static Image[] createJpegThumbnails(@Nullable final byte[] imageBytes, final int... lengthsOfLongestSideInPixels) throws IOException {
+        if (imageBytes == null || imageBytes.length <= 0 || lengthsOfLongestSideInPixels.length <= 0) {
+            return null;
+        }
+        for (int i = 0; i < lengthsOfLongestSideInPixels.length; i++) {
+            if (lengthsOfLongestSideInPixels[i] <= 0) {
+                return null;
+            }
+            if (i > 0 && lengthsOfLongestSideInPixels[i] > lengthsOfLongestSideInPixels[i - 1]) {
+                throw new IllegalArgumentException("The thumbnail dimensions must be in decreasing order");
+            }
+        }
+
+        ImageOrientation orientation = ImageOrientation.getOrientation(new ByteArrayInputStream(imageBytes));
+        if (orientation == null) {
+            orientation = ImageOrientation.ORIENTATION_1;
+        }
+
+        try {
+            BufferedImage image = convertToBufferedImage(imageBytes);
+            if (image == null) {
+                return null;
+            }
+            // drop the alpha channel, if one exists
+            if (image.getColorModel().hasAlpha()) {
+                image = dropAlphaChannel(image);
+            }
+
+            final Image[] thumbnails = new Image[lengthsOfLongestSideInPixels.length];
+            for (int i = 0; i < lengthsOfLongestSideInPixels.length; i++) {
+                // scale the previous (unrotated) thumbnail, so that each step works on the smallest image possible
+                image = Scalr.resize(image, Scalr.Method.AUTOMATIC, Scalr.Mode.AUTOMATIC, lengthsOfLongestSideInPixels[i]);
+                thumbnails[i] = JpegImage.create(orientation.transform(image));
+                if (thumbnails[i] == null) {
+                    return null;
+                }
+            }
+            return thumbnails;
+        }
+        catch (Exception e) {
+            final String message = "Exception while trying to create thumbnails";
+            LOG.error(message, e);
+            throw new IOException(e);
+        }
+    }
+
     // I stole this from: https://github.com/thebuzzmedia/imgscalr/issues/82#issuecomment-11776976
     @NotNull
     private static BufferedImage dropAlphaChannel(@NotNull final BufferedImage srcImage) {
@@ -0,0 +1,59 @@
+package org.fluxtream.core.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Memo of the lookups made while serving an HTTP request, so that services answer repeated lookups of the same
+ * guest's api keys or settings (e.g. from the several steps of a calendar request) without querying the database
+ * again.
+ *
+ * The memo is bound to the request's thread by the {@link RequestMemoFilter} and is inactive elsewhere (updaters,
+ * scheduled jobs), where {@link #get(String)} always returns <code>null</code> and {@link #put(String, Object)} does
+ * nothing.  The memoized values are detached entities shared by the whole request: services must not memoize what
+ * they are about to modify, and must {@link #clear()} the memo whenever they write to memoized entities.
+ */
+public class RequestMemo {
+
+    private static final ThreadLocal<Map<String, Object>> memo = new ThreadLocal<Map<String, Object>>();
+
+    /**
+     * Activates the memo for the current thread
+     * @return <code>false</code> if it was already active, in which case the caller must not end it
+     */
+    public static boolean begin() {
+        if (memo.get()!=null)
+            return false;
+        memo.set(new HashMap<String, Object>());
+        return true;
+    }
+
+    public static void end() {
+        memo.remove();
+    }
+
+    public static boolean isActive() {
+        return memo.get()!=null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T get(final String key) {
+        final Map<String, Object> values = memo.get();
+        return values==null ? null : (T) values.get(key);
+    }
+
+    public static void put(final String key, final Object value) {
+        final Map<String, Object> values = memo.get();
+        if (values!=null)
+            values.put(key, value);
+    }
+
+    /**
+     * Forgets everything that was memoized by the current thread
+     */
+    public static void clear() {
+        final Map<String, Object> values = memo.get();
+        if (values!=null)
+            values.clear();
+    }
+}
@@ -0,0 +1,30 @@
+package org.fluxtream.core.utils;
+
+import java.io.IOException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Activates the {@link RequestMemo} for the duration of each request
+ */
+public class RequestMemoFilter implements Filter {
+
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+        final boolean started = RequestMemo.begin();
+        try {
+            chain.doFilter(req, res);
+        }
+        finally {
+            if (started)
+                RequestMemo.end();
+        }
+    }
+
+    public void init(FilterConfig filterConfig) {}
+
+    public void destroy() {}
+}
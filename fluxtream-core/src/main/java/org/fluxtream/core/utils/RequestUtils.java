@@ -25,4 +25,13 @@ public class RequestUtils {
     public static boolean isDev(HttpServletRequest request) {
         return isLocal(request);
     }
+
+    /**
+     * @param request  the incoming HTTP request
+     * @return         whether the client accepts gzip-encoded responses
+     */
+    public static boolean acceptsGzip(HttpServletRequest request) {
+        final String acceptEncoding = request.getHeader("Accept-Encoding");
+        return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+    }
 }
@@ -0,0 +1,193 @@
+package org.bodytrack.datastore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * <p>
+ * <code>ColumnarDataReaderTest</code> tests the {@link ColumnarDataReader} class.
+ * </p>
+ */
+@RunWith(JUnit4.class)
+public class ColumnarDataReaderTest {
+
+    @Test
+    public void testWriteImportJson() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        writeHeader(out, "heart_rate", "temperature");
+
+        // two blocks, the second one starting at the time the first one ends
+        writeVarint(out, 2);
+        out.writeLong(1400000000000000L);
+        writeVarint(out, 1500000);
+        out.writeDouble(61);
+        out.writeDouble(62.5);
+        out.writeFloat(36.5f);
+        out.writeFloat(Float.NaN);
+
+        writeVarint(out, 1);
+        out.writeLong(1400000001500000L);
+        out.writeDouble(Double.NaN);
+        out.writeFloat(37f);
+
+        writeVarint(out, 0);
+
+        final ColumnarDataReader reader = new ColumnarDataReader(new ByteArrayInputStream(bytes.toByteArray()));
+        Assert.assertEquals(Arrays.asList("heart_rate", "temperature"), reader.getChannelNames());
+
+        final ByteArrayOutputStream json = new ByteArrayOutputStream();
+        Assert.assertEquals(3, reader.writeImportJson(json));
+        Assert.assertEquals("{\"channel_names\":[\"heart_rate\",\"temperature\"],\"data\":[" +
+                            "[1.4E9,61.0,36.5]," +
+                            "[1.4000000015E9,62.5,null]," +
+                            "[1.4000000015E9,null,37.0]]}",
+                            json.toString("UTF-8"));
+    }
+
+    @Test
+    public void testInvalidHeaders() throws IOException {
+        assertInvalidHeader("BTC0".getBytes());
+        assertInvalidHeader("BT".getBytes());
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        writeHeader(out, "temperature", "temperature");
+        assertInvalidHeader(bytes.toByteArray());
+
+        bytes.reset();
+        out.write("BTC1".getBytes());
+        out.writeShort(1);
+        out.writeUTF("temperature");
+        out.writeByte(3);
+        assertInvalidHeader(bytes.toByteArray());
+
+        bytes.reset();
+        writeHeader(out, channelNames(ColumnarDataReader.MAX_CHANNELS + 1));
+        assertInvalidHeader(bytes.toByteArray());
+    }
+
+    @Test
+    public void testInvalidData() throws IOException {
+        // decreasing timestamps across blocks
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeHeader(out, "temperature");
+        writeVarint(out, 1);
+        out.writeLong(1000000L);
+        out.writeFloat(36.5f);
+        writeVarint(out, 1);
+        out.writeLong(999999L);
+        out.writeFloat(36.5f);
+        writeVarint(out, 0);
+        assertInvalidData(bytes.toByteArray());
+
+        // infinite values
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        writeHeader(out, "temperature");
+        writeVarint(out, 1);
+        out.writeLong(1000000L);
+        out.writeFloat(Float.POSITIVE_INFINITY);
+        writeVarint(out, 0);
+        assertInvalidData(bytes.toByteArray());
+
+        // truncated block
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        writeHeader(out, "temperature");
+        writeVarint(out, 2);
+        out.writeLong(1000000L);
+        writeVarint(out, 1000000);
+        out.writeFloat(36.5f);
+        assertInvalidData(bytes.toByteArray());
+
+        // oversized block
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        writeHeader(out, "temperature");
+        writeVarint(out, ColumnarDataReader.MAX_BLOCK_ROWS + 1);
+        assertInvalidData(bytes.toByteArray());
+
+        // block with more values than the budget allows, although each dimension is within its bounds
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        writeHeader(out, channelNames(ColumnarDataReader.MAX_BLOCK_CELLS / ColumnarDataReader.MAX_BLOCK_ROWS + 1));
+        writeVarint(out, ColumnarDataReader.MAX_BLOCK_ROWS);
+        // rejected before anything is allocated for the block, rather than for being truncated
+        Assert.assertTrue(assertInvalidData(bytes.toByteArray()).getMessage().contains(ColumnarDataReader.MAX_BLOCK_CELLS + " values"));
+
+        // timestamp difference overflowing past the largest timestamp
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        writeHeader(out, "temperature");
+        writeVarint(out, 2);
+        out.writeLong(Long.MAX_VALUE - 10);
+        writeVarint(out, 11);
+        out.writeFloat(36.5f);
+        out.writeFloat(36.5f);
+        writeVarint(out, 0);
+        assertInvalidData(bytes.toByteArray());
+
+        // no data
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        writeHeader(out, "temperature");
+        writeVarint(out, 0);
+        assertInvalidData(bytes.toByteArray());
+    }
+
+    private static void writeHeader(final DataOutputStream out, final String... channelNames) throws IOException {
+        out.write("BTC1".getBytes());
+        out.writeShort(channelNames.length);
+        for (int i = 0; i < channelNames.length; i++) {
+            out.writeUTF(channelNames[i]);
+            out.writeByte(i == 0 && channelNames.length > 1 ? ColumnarDataReader.TYPE_FLOAT64 : ColumnarDataReader.TYPE_FLOAT32);
+        }
+    }
+
+    private static String[] channelNames(final int count) {
+        final String[] channelNames = new String[count];
+        for (int i = 0; i < count; i++) {
+            channelNames[i] = "channel" + i;
+        }
+        return channelNames;
+    }
+
+    private static void writeVarint(final DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    private static void assertInvalidHeader(final byte[] bytes) throws IOException {
+        try {
+            new ColumnarDataReader(new ByteArrayInputStream(bytes));
+            Assert.fail("Header should have been rejected");
+        }
+        catch (ColumnarDataReader.InvalidDataException e) {
+            // expected
+        }
+    }
+
+    private static ColumnarDataReader.InvalidDataException assertInvalidData(final byte[] bytes) throws IOException {
+        final ColumnarDataReader reader = new ColumnarDataReader(new ByteArrayInputStream(bytes));
+        try {
+            reader.writeImportJson(new ByteArrayOutputStream());
+        }
+        catch (ColumnarDataReader.InvalidDataException e) {
+            return e;
+        }
+        Assert.fail("Data should have been rejected");
+        return null;
+    }
+}
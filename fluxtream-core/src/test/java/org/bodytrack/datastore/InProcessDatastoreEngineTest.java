@@ -0,0 +1,215 @@
+package org.bodytrack.datastore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * <p>
+ * <code>InProcessDatastoreEngineTest</code> tests the {@link InProcessDatastoreEngine} and {@link TileStore} classes.
+ * </p>
+ */
+@RunWith(JUnit4.class)
+public class InProcessDatastoreEngineTest {
+
+    private static final long UID = 42;
+
+    private File directory;
+    private FakeDatastore datastore;
+    private InProcessDatastoreEngine engine;
+
+    @Before
+    public void setUp() {
+        directory = new File(System.getProperty("java.io.tmpdir"), InProcessDatastoreEngineTest.class.getSimpleName() + System.nanoTime());
+        datastore = new FakeDatastore(new File(directory, "db"));
+        engine = new InProcessDatastoreEngine(datastore, datastore.dbLocation.getPath(), new File(directory, "tiles"));
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void testTilesOfNewChannelsAreReadInProcess() throws IOException {
+        Assert.assertEquals(0, importJson("{\"channel_names\":[\"steps\"],\"data\":[[10,1],[11,3],[20,5]]}"));
+
+        Assert.assertEquals("{\"level\":0,\"offset\":0,\"fields\":[\"time\",\"mean\",\"stddev\",\"count\"]," +
+                            "\"data\":[[10.0,1.0,0.0,1],[11.0,3.0,0.0,1],[20.0,5.0,0.0,1]],\"type\":\"value\"}",
+                            getTile("Fitbit.steps", 0, 0));
+        // 16 second bins
+        Assert.assertEquals("[[10.5,2.0,1.0,2],[20.0,5.0,0.0,1]]", getTileData("Fitbit.steps", 4, 0));
+        Assert.assertEquals("[]", getTileData("Fitbit.steps", 0, 1));
+        Assert.assertEquals(0, datastore.tileRequests);
+    }
+
+    @Test
+    public void testCoarseTilesAggregateTheirChildren() throws IOException {
+        // one sample before the epoch, and two in different sample files
+        importJson("{\"channel_names\":[\"steps\"],\"data\":[[-100,2],[100,4],[1048581,9]]}");
+
+        Assert.assertEquals("[[-100.0,2.0,0.0,1]]", getTileData("Fitbit.steps", 0, -1));
+        Assert.assertEquals("[[-100.0,2.0,0.0,1]]", getTileData("Fitbit.steps", 15, -1));
+        Assert.assertEquals("[[100.0,4.0,0.0,1],[1048581.0,9.0,0.0,1]]", getTileData("Fitbit.steps", 12, 0));
+        // 2097152 second bins
+        Assert.assertEquals("[[524340.5,6.5,2.5,2]]", getTileData("Fitbit.steps", 21, 0));
+        Assert.assertEquals(0, datastore.tileRequests);
+    }
+
+    @Test
+    public void testImportsReplaceTheSamplesInTheirTimeRange() throws IOException {
+        importJson("{\"channel_names\":[\"steps\",\"floors\"],\"data\":[[10,1,null],[11,3,1],[20,5,2]]}");
+        importJson("{\"channel_names\":[\"steps\"],\"data\":[[12,9],[11,7]]}");
+
+        Assert.assertEquals("[[10.0,1.0,0.0,1],[11.0,7.0,0.0,1],[12.0,9.0,0.0,1],[20.0,5.0,0.0,1]]", getTileData("Fitbit.steps", 0, 0));
+        Assert.assertEquals("[[11.0,1.0,0.0,1],[20.0,2.0,0.0,1]]", getTileData("Fitbit.floors", 0, 0));
+        Assert.assertEquals("[[13.25,5.5,2.958039891549808,4]]", getTileData("Fitbit.steps", 14, 0));
+        Assert.assertEquals(0, datastore.tileRequests);
+    }
+
+    @Test
+    public void testChannelsImportedBeforeAreReadThroughTheDatastore() throws IOException {
+        Assert.assertTrue(new File(datastore.dbLocation, UID + "/Fitbit/steps").mkdirs());
+        importJson("{\"channel_names\":[\"steps\"],\"data\":[[10,1]]}");
+
+        Assert.assertEquals("delegate", getTile("Fitbit.steps", 0, 0));
+        Assert.assertEquals(1, datastore.tileRequests);
+    }
+
+    @Test
+    public void testNonNumericChannelsAreReadThroughTheDatastore() throws IOException {
+        importJson("{\"channel_names\":[\"steps\",\"comment\"],\"data\":[[10,1,\"walk\"]]}");
+
+        Assert.assertEquals("[[10.0,1.0,0.0,1]]", getTileData("Fitbit.steps", 0, 0));
+        Assert.assertEquals("delegate", getTile("Fitbit.comment", 0, 0));
+        Assert.assertEquals(1, datastore.tileRequests);
+    }
+
+    @Test
+    public void testFailedImportsAreNotRead() throws IOException {
+        datastore.importStatus = 1;
+        Assert.assertEquals(1, importJson("{\"channel_names\":[\"steps\"],\"data\":[[10,1]]}"));
+
+        Assert.assertEquals("delegate", getTile("Fitbit.steps", 0, 0));
+    }
+
+    @Test
+    public void testDeletedChannelsStartOver() throws IOException {
+        importJson("{\"channel_names\":[\"steps\"],\"data\":[[10,1]]}");
+        FileUtils.deleteDirectory(new File(datastore.dbLocation, UID + "/Fitbit"));
+        Assert.assertEquals("delegate", getTile("Fitbit.steps", 0, 0));
+
+        importJson("{\"channel_names\":[\"steps\"],\"data\":[[30,2]]}");
+        Assert.assertEquals("[[30.0,2.0,0.0,1]]", getTileData("Fitbit.steps", 0, 0));
+    }
+
+    @Test
+    public void testDeletedDevicesAreRemovedFromTheStore() throws IOException {
+        importJson("{\"channel_names\":[\"steps\"],\"data\":[[10,1]]}");
+        final File deviceDirectory = new File(directory, "tiles/" + UID + "/Fitbit");
+        Assert.assertTrue(deviceDirectory.isDirectory());
+
+        engine.deleteDevice(UID, "Fitbit");
+        Assert.assertFalse(deviceDirectory.exists());
+        Assert.assertEquals("delegate", getTile("Fitbit.steps", 0, 0));
+        // names the store cannot hold are ignored
+        engine.deleteDevice(UID, "Fitbit device");
+    }
+
+    @Test
+    public void testUnservedLevelsAreReadThroughTheDatastore() throws IOException {
+        importJson("{\"channel_names\":[\"steps\"],\"data\":[[10,1]]}");
+
+        Assert.assertEquals("delegate", getTile("Fitbit.steps", TileStore.MAX_LEVEL + 1, 0));
+        Assert.assertEquals("delegate", getTile("Fitbit.steps", TileStore.MIN_LEVEL - 1, 0));
+        Assert.assertEquals(2, datastore.tileRequests);
+    }
+
+    private int importJson(final String json) throws IOException {
+        final File jsonFile = new File(directory, "import.json");
+        FileUtils.writeStringToFile(jsonFile, json, "UTF-8");
+        try {
+            return engine.importJson(UID, "Fitbit", jsonFile, new ByteArrayOutputStream());
+        }
+        finally {
+            Assert.assertTrue(jsonFile.delete());
+        }
+    }
+
+    private String getTile(final String channelFullName, final int level, final long offset) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(0, engine.getTile(UID, channelFullName, level, offset, out));
+        return out.toString("UTF-8");
+    }
+
+    private String getTileData(final String channelFullName, final int level, final long offset) throws IOException {
+        final String tile = getTile(channelFullName, level, offset);
+        Assert.assertTrue(tile, tile.startsWith("{\"level\":" + level + ",\"offset\":" + offset + ","));
+        return tile.substring(tile.indexOf("\"data\":") + 7, tile.indexOf(",\"type\""));
+    }
+
+    /**
+     * Creates the channel directories of what it imports, as the datastore does
+     */
+    private static final class FakeDatastore implements DatastoreEngine {
+        final File dbLocation;
+        int importStatus = 0;
+        int tileRequests = 0;
+
+        FakeDatastore(final File dbLocation) {
+            this.dbLocation = dbLocation;
+        }
+
+        @Override
+        public boolean hasDevice(final long uid, final String deviceName) {
+            return new File(dbLocation, uid + File.separator + deviceName).isDirectory();
+        }
+
+        @Override
+        public int getTile(final long uid, final String channelFullName, final int level, final long offset, final OutputStream out) throws IOException {
+            tileRequests++;
+            out.write("delegate".getBytes("UTF-8"));
+            return 0;
+        }
+
+        @Override
+        public int importJson(final long uid, final String deviceName, final File jsonFile, final OutputStream out) throws IOException {
+            if (importStatus != 0) {
+                return importStatus;
+            }
+            final FileReader reader = new FileReader(jsonFile);
+            try {
+                for (final JsonElement channelName : new JsonParser().parse(reader).getAsJsonObject().getAsJsonArray("channel_names")) {
+                    Assert.assertTrue(new File(dbLocation, uid + File.separator + deviceName + File.separator + channelName.getAsString()).mkdirs()
+                                      || new File(dbLocation, uid + File.separator + deviceName + File.separator + channelName.getAsString()).isDirectory());
+                }
+            }
+            finally {
+                reader.close();
+            }
+            return 0;
+        }
+
+        @Override
+        public int exportCSV(final long uid, final Collection<String> channelFullNames, final Long start, final Long end, final OutputStream out) {
+            return 0;
+        }
+
+        @Override
+        public int info(final long uid, final OutputStream out) {
+            return 0;
+        }
+    }
+}
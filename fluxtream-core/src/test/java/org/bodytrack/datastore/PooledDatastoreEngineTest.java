@@ -0,0 +1,190 @@
+package org.bodytrack.datastore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * <p>
+ * <code>PooledDatastoreEngineTest</code> tests the {@link PooledDatastoreEngine} class against a stub worker which
+ * answers each request with its arguments, one per line, in chunks of three bytes.  The stub exits when an argument is
+ * "crash", sleeps when one is "hang", and returns 5 instead of 0 when one is "fail".
+ * </p>
+ */
+@RunWith(JUnit4.class)
+public class PooledDatastoreEngineTest {
+
+    private static final long UID = 42;
+
+    private static final String STUB_WORKER =
+            "#!/usr/bin/env perl\n" +
+            "use strict;\n" +
+            "binmode STDIN;\n" +
+            "binmode STDOUT;\n" +
+            "$| = 1;\n" +
+            "sub readBytes {\n" +
+            "    my ($n) = @_;\n" +
+            "    my $data = '';\n" +
+            "    while (length($data) < $n) {\n" +
+            "        sysread(STDIN, $data, $n - length($data), length($data)) or exit 0;\n" +
+            "    }\n" +
+            "    return $data;\n" +
+            "}\n" +
+            "while (1) {\n" +
+            "    my $argc = unpack('N', readBytes(4));\n" +
+            "    my @args = map { readBytes(unpack('N', readBytes(4))) } 1..$argc;\n" +
+            "    exit 3 if grep { $_ eq 'crash' } @args;\n" +
+            "    sleep 60 if grep { $_ eq 'hang' } @args;\n" +
+            "    my $output = join(\"\\n\", @args) . \"\\n\";\n" +
+            "    for (my $i = 0; $i < length($output); $i += 3) {\n" +
+            "        my $chunk = substr($output, $i, 3);\n" +
+            "        print pack('N', length($chunk)) . $chunk;\n" +
+            "    }\n" +
+            "    print pack('NN', 0, (grep { $_ eq 'fail' } @args) ? 5 : 0);\n" +
+            "}\n";
+
+    private File directory;
+    private PooledDatastoreEngine engine;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = new File(System.getProperty("java.io.tmpdir"), PooledDatastoreEngineTest.class.getSimpleName() + System.nanoTime());
+        final File worker = new File(directory, PooledDatastoreEngine.WORKER_COMMAND);
+        FileUtils.writeStringToFile(worker, STUB_WORKER, "UTF-8");
+        Assert.assertTrue(worker.setExecutable(true));
+    }
+
+    @After
+    public void tearDown() {
+        if (engine != null) {
+            engine.shutdown();
+        }
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void testFraming() throws IOException {
+        engine = createEngine(1, 1000, 10000);
+
+        // the chunks split the lines and the multi-byte characters, only the trailing newline is dropped
+        Assert.assertEquals("gettile\n42\nFitbit.steps\n4\n-3", getTile("Fitbit.steps", 4, -3));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(0, engine.exportCSV(UID, Arrays.asList("Zeo.Sleep_Graph", "Fitbit.pas_\u00e9l\u00e9ment"), 10L, null, out));
+        Assert.assertEquals("export\n--csv\n42\nZeo.Sleep_Graph\nFitbit.pas_\u00e9l\u00e9ment\n--start\n10", out.toString("UTF-8"));
+        Assert.assertEquals(5, engine.getTile(UID, "fail", 0, 0, new ByteArrayOutputStream()));
+
+        // all the operations went through the same worker
+        final PooledDatastoreEngine.WorkerStats stats = engine.getWorkerStats().get(0);
+        Assert.assertTrue(stats.running);
+        Assert.assertFalse(stats.busy);
+        Assert.assertEquals(3, stats.requests);
+        Assert.assertEquals(0, stats.failures);
+        Assert.assertEquals(0, stats.restarts);
+    }
+
+    @Test
+    public void testWorkerIsRestartedAfterACrash() throws IOException {
+        engine = createEngine(1, 1000, 10000);
+        Assert.assertEquals("gettile\n42\na\n0\n0", getTile("a", 0, 0));
+
+        try {
+            getTile("crash", 0, 0);
+            Assert.fail("the worker exited without answering");
+        }
+        catch (IOException expected) {
+        }
+        Assert.assertFalse(engine.getWorkerStats().get(0).running);
+
+        Assert.assertEquals("gettile\n42\nb\n0\n0", getTile("b", 0, 0));
+        final PooledDatastoreEngine.WorkerStats stats = engine.getWorkerStats().get(0);
+        Assert.assertEquals(2, stats.requests);
+        Assert.assertEquals(1, stats.failures);
+        Assert.assertEquals(1, stats.restarts);
+    }
+
+    @Test
+    public void testHungWorkerIsKilledAndReplaced() throws IOException {
+        engine = createEngine(1, 1000, 500);
+
+        final long start = System.currentTimeMillis();
+        try {
+            getTile("hang", 0, 0);
+            Assert.fail("the worker didn't answer within the operation timeout");
+        }
+        catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("within 500 ms"));
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+
+        Assert.assertEquals("gettile\n42\na\n0\n0", getTile("a", 0, 0));
+        final PooledDatastoreEngine.WorkerStats stats = engine.getWorkerStats().get(0);
+        Assert.assertEquals(1, stats.requests);
+        Assert.assertEquals(1, stats.failures);
+        Assert.assertEquals(1, stats.restarts);
+    }
+
+    @Test
+    public void testPoolExhaustion() throws Exception {
+        engine = createEngine(2, 100, 2000);
+        final Thread[] hungOperations = new Thread[2];
+        for (int i = 0; i < hungOperations.length; i++) {
+            hungOperations[i] = new Thread() {
+                public void run() {
+                    try {
+                        getTile("hang", 0, 0);
+                    }
+                    catch (IOException ignored) {
+                    }
+                }
+            };
+            hungOperations[i].start();
+        }
+        while (!areAllBusy(engine.getWorkerStats())) {
+            Thread.sleep(10);
+        }
+
+        try {
+            getTile("a", 0, 0);
+            Assert.fail("all the workers were busy");
+        }
+        catch (IOException e) {
+            Assert.assertEquals("All datastore workers are busy", e.getMessage());
+        }
+
+        // the workers are available again once the hung operations time out
+        for (final Thread hungOperation : hungOperations) {
+            hungOperation.join();
+        }
+        Assert.assertEquals("gettile\n42\na\n0\n0", getTile("a", 0, 0));
+        Assert.assertEquals("gettile\n42\nb\n0\n0", getTile("b", 0, 0));
+    }
+
+    private PooledDatastoreEngine createEngine(final int poolSize, final long acquireTimeoutMillis, final long operationTimeoutMillis) {
+        return new PooledDatastoreEngine(directory.getPath(), new File(directory, "db").getPath(), poolSize,
+                                         acquireTimeoutMillis, 60000, operationTimeoutMillis);
+    }
+
+    private String getTile(final String channelFullName, final int level, final long offset) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(0, engine.getTile(UID, channelFullName, level, offset, out));
+        return out.toString("UTF-8");
+    }
+
+    private static boolean areAllBusy(final List<PooledDatastoreEngine.WorkerStats> stats) {
+        for (final PooledDatastoreEngine.WorkerStats workerStats : stats) {
+            if (!workerStats.busy) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
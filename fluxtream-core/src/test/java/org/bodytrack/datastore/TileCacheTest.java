@@ -0,0 +1,77 @@
+package org.bodytrack.datastore;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * <p>
+ * <code>TileCacheTest</code> tests the {@link TileCache} class.
+ * </p>
+ */
+@RunWith(JUnit4.class)
+public class TileCacheTest {
+
+    @Test
+    public void testGetAndPut() {
+        final TileCache cache = new TileCache(10, 1000);
+        Assert.assertNull(cache.get(1, "Zeo", "Sleep_Graph", 4, 100));
+        Assert.assertTrue(cache.put(1, "Zeo", "Sleep_Graph", 4, 100, "Zeo", "{\"level\":4}", cache.getGeneration()));
+        Assert.assertEquals("{\"level\":4}", cache.get(1, "Zeo", "Sleep_Graph", 4, 100));
+        Assert.assertNull(cache.get(2, "Zeo", "Sleep_Graph", 4, 100));
+        Assert.assertNull(cache.get(1, "Zeo", "Sleep_Graph", 5, 100));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        final TileCache cache = new TileCache(2, 1000);
+        cache.put(1, "Zeo", "a", 0, 0, "Zeo", "a", cache.getGeneration());
+        cache.put(1, "Zeo", "b", 0, 0, "Zeo", "b", cache.getGeneration());
+        cache.get(1, "Zeo", "a", 0, 0);
+        cache.put(1, "Zeo", "c", 0, 0, "Zeo", "c", cache.getGeneration());
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNotNull(cache.get(1, "Zeo", "a", 0, 0));
+        Assert.assertNull(cache.get(1, "Zeo", "b", 0, 0));
+        Assert.assertNotNull(cache.get(1, "Zeo", "c", 0, 0));
+    }
+
+    @Test
+    public void testSizeEviction() {
+        final TileCache cache = new TileCache(100, 10);
+        cache.put(1, "Zeo", "a", 0, 0, "Zeo", "123456", cache.getGeneration());
+        cache.put(1, "Zeo", "b", 0, 0, "Zeo", "123456", cache.getGeneration());
+        Assert.assertEquals(1, cache.size());
+        Assert.assertFalse(cache.put(1, "Zeo", "c", 0, 0, "Zeo", "12345678901", cache.getGeneration()));
+    }
+
+    @Test
+    public void testInvalidateTimeRange() {
+        final TileCache cache = new TileCache(100, 1000);
+        // level 0 tiles span 512 seconds: offset 1 is [512, 1024)
+        cache.put(1, "Zeo", "a", 0, 1, "Zeo", "x", cache.getGeneration());
+        cache.put(1, "Zeo", "a", 0, 3, "Zeo", "x", cache.getGeneration());
+        cache.put(1, "Other", "a", 0, 1, "Other", "x", cache.getGeneration());
+        cache.put(2, "Zeo", "a", 0, 1, "Zeo", "x", cache.getGeneration());
+
+        Assert.assertEquals(1, cache.invalidate(1, "zeo", 600, 700));
+        Assert.assertNull(cache.get(1, "Zeo", "a", 0, 1));
+        Assert.assertNotNull(cache.get(1, "Zeo", "a", 0, 3));
+        Assert.assertNotNull(cache.get(1, "Other", "a", 0, 1));
+        Assert.assertNotNull(cache.get(2, "Zeo", "a", 0, 1));
+
+        Assert.assertEquals(2, cache.invalidate(1));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testStalePutIsDropped() {
+        final TileCache cache = new TileCache(100, 1000);
+        final long generation = cache.getGeneration();
+        cache.invalidate(1, "Zeo", 0, 10);
+        Assert.assertFalse(cache.put(1, "Zeo", "a", 0, 0, "Zeo", "x", generation));
+        Assert.assertNull(cache.get(1, "Zeo", "a", 0, 0));
+    }
+}
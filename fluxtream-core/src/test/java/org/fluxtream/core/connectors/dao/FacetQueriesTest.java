@@ -0,0 +1,106 @@
+package org.fluxtream.core.connectors.dao;
+
+import java.util.Arrays;
+import java.util.List;
+import javax.persistence.CollectionTable;
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.JoinColumn;
+import javax.persistence.OneToOne;
+import junit.framework.Assert;
+import org.fluxtream.core.domain.AbstractFacet;
+import org.fluxtream.core.domain.TagFilter;
+import org.junit.Test;
+
+/**
+ * <p>
+ * <code>FacetQueriesTest</code> tests the {@link FacetQueries} class.
+ * </p>
+ */
+public final class FacetQueriesTest {
+
+    @Entity(name="Facet_Test")
+    static class TestFacet extends AbstractFacet {
+        @Override
+        protected void makeFullTextIndexable() {}
+    }
+
+    @Entity(name="Facet_Location")
+    static class TestLocationFacet extends AbstractFacet {
+        @Override
+        protected void makeFullTextIndexable() {}
+    }
+
+    @Entity(name="Facet_TestWithActivities")
+    static class TestFacetWithActivities extends AbstractFacet {
+        @ElementCollection
+        @CollectionTable(name = "TestActivity", joinColumns = @JoinColumn(name="ActivityID"))
+        public List<String> activities;
+
+        @Override
+        protected void makeFullTextIndexable() {}
+    }
+
+    @Entity(name="Facet_TestWithResource")
+    static class TestFacetWithResource extends AbstractFacet {
+        @OneToOne
+        public TestFacet resource;
+
+        @Override
+        protected void makeFullTextIndexable() {}
+    }
+
+    @Test
+    public void testQueriesAreBuiltOncePerFacetClass() {
+        final FacetQueries facetQueries = FacetQueries.get(TestFacet.class);
+        Assert.assertSame(facetQueries, FacetQueries.get(TestFacet.class));
+        Assert.assertNotSame(facetQueries, FacetQueries.get(TestLocationFacet.class));
+        Assert.assertEquals(TestFacet.class, facetQueries.getFacetClass());
+        Assert.assertEquals("Facet_Test", facetQueries.getEntityName());
+    }
+
+    @Test
+    public void testOldestAndLatestFacetQueries() {
+        final FacetQueries facetQueries = FacetQueries.get(TestFacet.class);
+        Assert.assertEquals("SELECT * FROM Facet_Test USE INDEX (apiKey) WHERE apiKeyId=? ORDER BY end ASC",
+                            facetQueries.getOldestFacetQuery());
+        Assert.assertEquals("SELECT * FROM Facet_Test USE INDEX (apiKey) WHERE apiKeyId=? ORDER BY end DESC",
+                            facetQueries.getLatestFacetQuery());
+
+        final FacetQueries locationQueries = FacetQueries.get(TestLocationFacet.class);
+        Assert.assertEquals("SELECT * FROM Facet_Location USE INDEX (apiKeyIdEnd) WHERE apiKeyId=? ORDER BY end ASC",
+                            locationQueries.getOldestFacetQuery());
+        Assert.assertEquals("SELECT * FROM Facet_Location USE INDEX (apiKeyIdEnd) WHERE apiKeyId=? ORDER BY end DESC",
+                            locationQueries.getLatestFacetQuery());
+    }
+
+    @Test
+    public void testFacetsBeforeAndAfterQueries() {
+        final FacetQueries facetQueries = FacetQueries.get(TestFacet.class);
+        Assert.assertEquals("SELECT * FROM Facet_Test facet USE INDEX (apiKey) WHERE apiKeyId=? AND start <=?  ORDER BY start DESC",
+                            facetQueries.getFacetsBeforeQuery(null));
+        Assert.assertEquals("SELECT * FROM Facet_Test facet USE INDEX (apiKey) WHERE apiKeyId=? AND start >=?  ORDER BY start ASC",
+                            facetQueries.getFacetsAfterQuery(null));
+
+        final TagFilter tagFilter = TagFilter.create(Arrays.asList("foo"), TagFilter.FilteringStrategy.ANY);
+        Assert.assertEquals("SELECT * FROM Facet_Test facet USE INDEX (apiKey) WHERE apiKeyId=? AND start <=?  AND (" +
+                            tagFilter.getWhereClause() + ") ORDER BY start DESC",
+                            facetQueries.getFacetsBeforeQuery(tagFilter));
+        Assert.assertEquals("SELECT * FROM Facet_Test facet USE INDEX (apiKey) WHERE apiKeyId=? AND start >=?  AND (" +
+                            tagFilter.getWhereClause() + ") ORDER BY start ASC",
+                            facetQueries.getFacetsAfterQuery(tagFilter));
+    }
+
+    @Test
+    public void testDeleteChunkRelationsStatements() {
+        Assert.assertTrue(FacetQueries.get(TestFacet.class).getDeleteChunkRelationsStatements().isEmpty());
+        Assert.assertEquals(Arrays.asList("DELETE FROM TestActivity WHERE ActivityID IN " +
+                                          "(SELECT id FROM Facet_TestWithActivities WHERE apiKeyId=? AND id<=?)"),
+                            FacetQueries.get(TestFacetWithActivities.class).getDeleteChunkRelationsStatements());
+        Assert.assertEquals(Arrays.asList("DELETE FROM TestActivity WHERE ActivityID IN " +
+                                          "(SELECT id FROM Facet_TestWithActivities WHERE guestId=? AND id<=?)"),
+                            FacetQueries.get(TestFacetWithActivities.class).getDeleteGuestChunkRelationsStatements());
+        // relations that can't be deleted in bulk make the facets get removed one by one
+        Assert.assertNull(FacetQueries.get(TestFacetWithResource.class).getDeleteChunkRelationsStatements());
+    }
+}
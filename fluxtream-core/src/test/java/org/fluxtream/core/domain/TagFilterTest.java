@@ -59,6 +59,40 @@ public final class TagFilterTest {
         testTagFilter(TagFilter.create(tagsWithOneEmptyItem, TagFilter.FilteringStrategy.NONE), TagFilter.FilteringStrategy.NONE, 1, new String[]{"facet.tags is NULL OR (facet.tags NOT like '%,foo,%')"});
     }
 
+    @Test
+    public void testIndexedWhereClause() {
+        final String facetTags = "SELECT ft.facetId FROM FacetTags ft WHERE ft.guestId=facet.guestId AND ft.api=facet.api AND ft.objectType=facet.objectType";
+
+        final TagFilter any = TagFilter.create(Arrays.asList("foo", "bar"), TagFilter.FilteringStrategy.ANY);
+        assertContains(any.getIndexedWhereClause(), "facet.id IN (" + facetTags + " AND ft.name IN ('", "'foo'", "'bar'");
+        Assert.assertFalse(any.getIndexedWhereClause().contains("HAVING"));
+
+        final TagFilter all = TagFilter.create(Arrays.asList("foo", "bar"), TagFilter.FilteringStrategy.ALL);
+        assertContains(all.getIndexedWhereClause(), "facet.id IN (" + facetTags + " AND ft.name IN ('", "'foo'", "'bar'",
+                       "GROUP BY ft.facetId HAVING COUNT(DISTINCT ft.name)=2)");
+
+        final TagFilter none = TagFilter.create(Arrays.asList("foo"), TagFilter.FilteringStrategy.NONE);
+        Assert.assertEquals("facet.id NOT IN (" + facetTags + " AND ft.name IN ('foo'))", none.getIndexedWhereClause());
+
+        final TagFilter untagged = TagFilter.create(null, TagFilter.FilteringStrategy.UNTAGGED);
+        Assert.assertEquals("facet.id NOT IN (" + facetTags + ")", untagged.getIndexedWhereClause());
+
+        TagFilter.setTagIndexEnabled(true);
+        try {
+            Assert.assertEquals(none.getIndexedWhereClause(), none.getWhereClause());
+        } finally {
+            TagFilter.setTagIndexEnabled(false);
+        }
+        Assert.assertEquals("facet.tags is NULL OR (facet.tags NOT like '%,foo,%')", none.getWhereClause());
+    }
+
+    private void assertContains(final String whereClause, final String... expectedWhereClauseParts) {
+        for (String expectedWhereClausePart : expectedWhereClauseParts) {
+            String message = "Validation of where clause failed. Could not find ["+expectedWhereClausePart+"] in ["+whereClause+"]";
+            Assert.assertTrue(message, whereClause.contains(expectedWhereClausePart));
+        }
+    }
+
     private void testUntagged(final TagFilter tagFilter) {
         testTagFilter(tagFilter, TagFilter.FilteringStrategy.UNTAGGED, 0, new String[]{"facet.tags is NULL"});
     }
@@ -0,0 +1,92 @@
+package org.fluxtream.core.metadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.fluxtream.core.domain.metadata.City;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * <p>
+ * <code>CityIndexTest</code> tests the {@link CityIndex} class against a brute-force scan.
+ * </p>
+ */
+@RunWith(JUnit4.class)
+public class CityIndexTest {
+
+    @Test
+    public void testEmptyIndex() {
+        final CityIndex index = new CityIndex(new ArrayList<City>());
+        Assert.assertNull(index.getClosestCity(40.44, -79.99));
+        Assert.assertTrue(index.getClosestCities(40.44, -79.99, 100, 5).isEmpty());
+    }
+
+    @Test
+    public void testClosestCity() {
+        final List<City> cities = new ArrayList<City>();
+        cities.add(city(1, "Pittsburgh", 40.4406, -79.9959));
+        cities.add(city(2, "Brussels", 50.8503, 4.3517));
+        cities.add(city(3, "Auckland", -36.8485, 174.7633));
+        cities.add(city(4, "Suva", -18.1416, 178.4419));
+        final CityIndex index = new CityIndex(cities);
+
+        Assert.assertEquals("Pittsburgh", index.getClosestCity(40.4, -80.1).geo_name);
+        Assert.assertEquals("Brussels", index.getClosestCity(50.9, 4.5).geo_name);
+        // across the antimeridian
+        Assert.assertEquals("Suva", index.getClosestCity(-17.5, -179.9).geo_name);
+        Assert.assertTrue(index.getClosestCities(0, 0, 100, 1).isEmpty());
+    }
+
+    @Test
+    public void testMatchesBruteForce() {
+        final Random random = new Random(42);
+        final List<City> cities = new ArrayList<City>();
+        for (int i=0; i<5000; i++)
+            cities.add(city(i, "city" + i, random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180));
+        final CityIndex index = new CityIndex(cities);
+        Assert.assertEquals(5000, index.size());
+
+        for (int i=0; i<200; i++) {
+            final double latitude = random.nextDouble() * 180 - 90;
+            final double longitude = random.nextDouble() * 360 - 180;
+            final List<City> expected = bruteForce(cities, latitude, longitude, 500, 5);
+            final List<City> actual = index.getClosestCities(latitude, longitude, 500, 5);
+            Assert.assertEquals(expected.size(), actual.size());
+            for (int j=0; j<expected.size(); j++)
+                Assert.assertEquals(expected.get(j).geo_id, actual.get(j).geo_id);
+            Assert.assertEquals(bruteForce(cities, latitude, longitude, Double.MAX_VALUE, 1).get(0).geo_id,
+                                index.getClosestCity(latitude, longitude).geo_id);
+        }
+    }
+
+    private static List<City> bruteForce(final List<City> cities, final double latitude, final double longitude,
+                                         final double dist, final int count) {
+        final List<City> inRange = new ArrayList<City>();
+        for (City city : cities) {
+            if (CityIndex.distance(latitude, longitude, city.geo_latitude, city.geo_longitude) < dist)
+                inRange.add(city);
+        }
+        Collections.sort(inRange, new Comparator<City>() {
+            @Override
+            public int compare(final City a, final City b) {
+                return Double.compare(CityIndex.distance(latitude, longitude, a.geo_latitude, a.geo_longitude),
+                                      CityIndex.distance(latitude, longitude, b.geo_latitude, b.geo_longitude));
+            }
+        });
+        return inRange.subList(0, Math.min(count, inRange.size()));
+    }
+
+    private static City city(final long id, final String name, final double latitude, final double longitude) {
+        final City city = new City();
+        city.geo_id = id;
+        city.geo_name = name;
+        city.geo_latitude = latitude;
+        city.geo_longitude = longitude;
+        return city;
+    }
+}
@@ -0,0 +1,104 @@
+package org.fluxtream.core.metadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import org.fluxtream.core.connectors.location.LocationFacet;
+import org.fluxtream.core.domain.metadata.City;
+import org.fluxtream.core.domain.metadata.VisitedCity;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * <p>
+ * <code>VisitedCityTimelineTest</code> tests the {@link VisitedCityTimeline} class.
+ * </p>
+ */
+@RunWith(JUnit4.class)
+public class VisitedCityTimelineTest {
+
+    private static final long HOUR = 3600000L;
+    private static final long DAY_1 = 1400000000000L;
+    private static final long DAY_5 = DAY_1 + 96 * HOUR;
+
+    private final City pittsburgh = city(1, "Pittsburgh");
+    private final City brussels = city(2, "Brussels");
+
+    @Test
+    public void testEmptyTimeline() {
+        final VisitedCityTimeline timeline = new VisitedCityTimeline(new ArrayList<VisitedCity>());
+        Assert.assertTrue(timeline.getCities("2014-05-13").isEmpty());
+        Assert.assertNull(timeline.getConsensusCityBefore("2014-05-13"));
+        Assert.assertNull(timeline.getConsensusCityAfter("2014-05-13"));
+        Assert.assertNull(timeline.getClosestDate(DAY_1));
+    }
+
+    @Test
+    public void testLookups() {
+        final VisitedCityTimeline timeline = new VisitedCityTimeline(Arrays.asList(
+                visitedCity("2014-05-17", brussels, DAY_5, DAY_5 + HOUR, LocationFacet.Source.OTHER),
+                visitedCity("2014-05-13", brussels, DAY_1 + 2 * HOUR, DAY_1 + 3 * HOUR, LocationFacet.Source.OTHER),
+                visitedCity("2014-05-13", pittsburgh, DAY_1, DAY_1 + HOUR, LocationFacet.Source.USER)));
+
+        Assert.assertEquals(2, timeline.getDateCount());
+        Assert.assertEquals(3, timeline.getCityCount());
+
+        final List<VisitedCity> cities = timeline.getCities("2014-05-13");
+        Assert.assertEquals(2, cities.size());
+        Assert.assertEquals("Pittsburgh", cities.get(0).city.geo_name);
+        Assert.assertTrue(timeline.getCities("2014-05-14").isEmpty());
+        Assert.assertEquals(3, timeline.getCities(new TreeSet<String>(Arrays.asList("2014-05-13", "2014-05-17"))).size());
+        Assert.assertEquals(1, timeline.getCities(new TreeSet<String>(Arrays.asList("2014-05-15", "2014-05-17"))).size());
+
+        // the city chosen by the user wins over the one where the most time was spent
+        Assert.assertEquals("Pittsburgh", timeline.getConsensusCityBefore("2014-05-15").city.geo_name);
+        Assert.assertEquals("Brussels", timeline.getConsensusCityAfter("2014-05-15").city.geo_name);
+        Assert.assertEquals("Brussels", timeline.getConsensusCityAfter("2014-05-13").city.geo_name);
+        Assert.assertNull(timeline.getConsensusCityBefore("2014-05-13"));
+        Assert.assertNull(timeline.getConsensusCityAfter("2014-05-17"));
+
+        Assert.assertEquals("2014-05-13", timeline.getClosestDate(DAY_1 - HOUR));
+        Assert.assertEquals("2014-05-13", timeline.getClosestDate(DAY_1 + HOUR));
+        Assert.assertEquals("2014-05-13", timeline.getClosestDate(DAY_5));
+        Assert.assertEquals("2014-05-17", timeline.getClosestDate(DAY_5 + 1));
+    }
+
+    @Test
+    public void testWithDates() {
+        final VisitedCityTimeline timeline = new VisitedCityTimeline(Arrays.asList(
+                visitedCity("2014-05-13", pittsburgh, DAY_1, DAY_1 + HOUR, LocationFacet.Source.OTHER),
+                visitedCity("2014-05-17", brussels, DAY_5, DAY_5 + HOUR, LocationFacet.Source.OTHER)));
+
+        final VisitedCityTimeline updated = timeline.withDates(Arrays.asList("2014-05-13", "2014-05-15"), Arrays.asList(
+                visitedCity("2014-05-15", brussels, DAY_1 + 48 * HOUR, DAY_1 + 49 * HOUR, LocationFacet.Source.OTHER)));
+        Assert.assertEquals(2, updated.getDateCount());
+        Assert.assertTrue(updated.getCities("2014-05-13").isEmpty());
+        Assert.assertEquals("Brussels", updated.getCities("2014-05-15").get(0).city.geo_name);
+        Assert.assertEquals("Brussels", updated.getCities("2014-05-17").get(0).city.geo_name);
+
+        // timelines are immutable
+        Assert.assertEquals("Pittsburgh", timeline.getCities("2014-05-13").get(0).city.geo_name);
+    }
+
+    private static City city(final long id, final String name) {
+        final City city = new City();
+        city.geo_id = id;
+        city.geo_name = name;
+        city.geo_timezone = "UTC";
+        return city;
+    }
+
+    private static VisitedCity visitedCity(final String date, final City city, final long start, final long end,
+                                           final LocationFacet.Source source) {
+        final VisitedCity visitedCity = new VisitedCity();
+        visitedCity.date = date;
+        visitedCity.city = city;
+        visitedCity.start = start;
+        visitedCity.end = end;
+        visitedCity.locationSource = source;
+        return visitedCity;
+    }
+}
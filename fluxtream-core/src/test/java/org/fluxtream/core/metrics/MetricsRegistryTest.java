@@ -0,0 +1,91 @@
+package org.fluxtream.core.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>
+ * <code>MetricsRegistryTest</code> tests the {@link MetricsRegistry} class.
+ * </p>
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void testCounter() {
+        final MetricsRegistry registry = new MetricsRegistry();
+        final Counter counter = registry.counter("test_total", "Test counter", "connector");
+        counter.labels("fitbit").inc();
+        counter.labels("fitbit").inc(2);
+        counter.labels("with \"quotes\"").inc();
+        Assert.assertSame(counter, registry.counter("test_total", "Test counter", "connector"));
+
+        final String scrape = registry.scrape();
+        Assert.assertTrue(scrape.startsWith("# HELP test_total Test counter\n# TYPE test_total counter\n"));
+        Assert.assertTrue(scrape.contains("test_total{connector=\"fitbit\"} 3\n"));
+        Assert.assertTrue(scrape.contains("test_total{connector=\"with \\\"quotes\\\"\"} 1\n"));
+    }
+
+    @Test
+    public void testHistogram() {
+        final MetricsRegistry registry = new MetricsRegistry();
+        final Histogram histogram = registry.histogram("test_ms", "Test histogram", new long[]{10, 100});
+        histogram.observe(5);
+        histogram.observe(10);
+        histogram.observe(50);
+        histogram.observe(500);
+
+        Assert.assertEquals("# HELP test_ms Test histogram\n" +
+                            "# TYPE test_ms histogram\n" +
+                            "test_ms_bucket{le=\"10\"} 2\n" +
+                            "test_ms_bucket{le=\"100\"} 3\n" +
+                            "test_ms_bucket{le=\"+Inf\"} 4\n" +
+                            "test_ms_sum 565\n" +
+                            "test_ms_count 4\n",
+                            registry.scrape());
+    }
+
+    @Test
+    public void testValues() {
+        final MetricsRegistry registry = new MetricsRegistry();
+        registry.gauge("test_queue", "Test gauge", new MetricsRegistry.Value() {
+            @Override
+            public double get() {
+                return 1.5;
+            }
+        });
+        registry.gauge("test_failing", "Failing gauge", new MetricsRegistry.Value() {
+            @Override
+            public double get() {
+                throw new IllegalStateException("unavailable");
+            }
+        });
+        Assert.assertEquals("# HELP test_queue Test gauge\n# TYPE test_queue gauge\ntest_queue 1.5\n", registry.scrape());
+    }
+
+    @Test
+    public void testInvalidRegistrations() {
+        final MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_total", "Test counter");
+        try {
+            registry.histogram("test_total", "Test histogram");
+            Assert.fail("a metric name can only be registered once");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            registry.counter("test-total", "Test counter");
+            Assert.fail("invalid metric names should be rejected");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            registry.counter("other_total", "Test counter", "connector").inc();
+            Assert.fail("labeled metrics need label values");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
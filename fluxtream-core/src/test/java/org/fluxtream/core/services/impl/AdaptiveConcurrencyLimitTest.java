@@ -0,0 +1,76 @@
+package org.fluxtream.core.services.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * <p>
+ * <code>AdaptiveConcurrencyLimitTest</code> tests the {@link AdaptiveConcurrencyLimit} class.
+ * </p>
+ */
+@RunWith(JUnit4.class)
+public class AdaptiveConcurrencyLimitTest {
+
+    @Test
+    public void testPermits() {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 1, 10, 1000);
+        Assert.assertEquals(2, limit.getAvailablePermits());
+        limit.acquire();
+        limit.acquire();
+        Assert.assertEquals(0, limit.getAvailablePermits());
+        limit.cancel();
+        Assert.assertEquals(1, limit.getAvailablePermits());
+        Assert.assertEquals(0, limit.getCompleted());
+    }
+
+    @Test
+    public void testAdditiveIncrease() {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 1, 4, 1000);
+        // 2 -> 2.5 -> 2.9 -> 3.24
+        complete(limit, 3, 100, false, 0);
+        Assert.assertEquals(3, limit.getLimit());
+        complete(limit, 100, 100, false, 0);
+        Assert.assertEquals(4, limit.getLimit());
+    }
+
+    @Test
+    public void testThrottledDecrease() {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8, 1, 10, 1000);
+        complete(limit, 1, 100, true, 0);
+        Assert.assertEquals(4, limit.getLimit());
+        Assert.assertEquals(1, limit.getThrottled());
+        // within the cooldown
+        complete(limit, 3, 100, true, 500);
+        Assert.assertEquals(4, limit.getLimit());
+        complete(limit, 1, 100, true, 1000);
+        Assert.assertEquals(2, limit.getLimit());
+        complete(limit, 1, 100, true, 2000);
+        complete(limit, 1, 100, true, 3000);
+        Assert.assertEquals(1, limit.getLimit());
+    }
+
+    @Test
+    public void testLatencyDecrease() {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10, 1, 10, 1000);
+        complete(limit, AdaptiveConcurrencyLimit.LATENCY_WARMUP_SAMPLES, 100, false, 0);
+        Assert.assertEquals(100, limit.getAverageLatency());
+        Assert.assertEquals(10, limit.getLimit());
+        complete(limit, 1, 1000, false, 0);
+        Assert.assertEquals(9, limit.getLimit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBounds() {
+        new AdaptiveConcurrencyLimit(1, 2, 10, 1000);
+    }
+
+    private static void complete(final AdaptiveConcurrencyLimit limit, final int count, final long latency,
+                                 final boolean throttled, final long now) {
+        for (int i=0; i<count; i++) {
+            limit.acquire();
+            limit.release(latency, throttled, now);
+        }
+    }
+}
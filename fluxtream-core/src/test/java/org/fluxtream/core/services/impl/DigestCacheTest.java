@@ -0,0 +1,134 @@
+package org.fluxtream.core.services.impl;
+
+import java.util.Collection;
+import java.util.Collections;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.fluxtream.core.Configuration;
+import org.fluxtream.core.connectors.vos.AbstractFacetVO;
+import org.fluxtream.core.domain.AbstractFacet;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * <p>
+ * <code>DigestCacheTest</code> tests the {@link DigestCache} class.
+ * </p>
+ */
+@RunWith(JUnit4.class)
+public class DigestCacheTest {
+
+    private static final int API = 1;
+    private static final long DAY = 86400000L;
+
+    private DigestCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new DigestCache();
+        cache.env = new Configuration();
+        cache.env.targetEnvironmentProps = new PropertiesConfiguration();
+        cache.env.targetEnvironmentProps.setProperty("digestCache.maxEntries", 3);
+        cache.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive())
+            TransactionSynchronizationManager.clearSynchronization();
+    }
+
+    @Test
+    public void testGenerationsArePerGuest() {
+        final long generation = cache.getGeneration(1);
+        cache.invalidate(2, API, 0, DAY);
+        Assert.assertTrue(put(1, "2014-01-01", 0, generation));
+
+        cache.invalidate(1, API, 100 * DAY, 101 * DAY);
+        Assert.assertFalse("the guest's data was written while the digest was built", put(1, "2014-01-02", DAY, generation));
+        Assert.assertTrue(put(1, "2014-01-02", DAY, cache.getGeneration(1)));
+    }
+
+    @Test
+    public void testInvalidationOnlyEvictsTheGuestsOverlappingDigests() {
+        put(1, "2014-01-01", 0, cache.getGeneration(1));
+        put(1, "2014-03-01", 60 * DAY, cache.getGeneration(1));
+        put(2, "2014-01-01", 0, cache.getGeneration(2));
+
+        cache.invalidate(1, API, 0, DAY / 2);
+        Assert.assertNull(get(1, "2014-01-01"));
+        Assert.assertNotNull(get(1, "2014-03-01"));
+        Assert.assertNotNull(get(2, "2014-01-01"));
+
+        // other connectors of the same guest aren't evicted
+        cache.invalidate(1, API + 1, 0, 100 * DAY);
+        Assert.assertNotNull(get(1, "2014-03-01"));
+        cache.invalidate(1);
+        Assert.assertNull(get(1, "2014-03-01"));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testWritesOfATransactionAreInvalidatedWhenItCompletes() {
+        put(1, "2014-01-01", 0, cache.getGeneration(1));
+        put(1, "2014-03-01", 60 * DAY, cache.getGeneration(1));
+        put(1, "2014-06-01", 150 * DAY, cache.getGeneration(1));
+
+        TransactionSynchronizationManager.initSynchronization();
+        cache.invalidate(1, API, 0, DAY / 2);
+        cache.invalidate(1, API, 60 * DAY, 60 * DAY + 1);
+        final long generation = cache.getGeneration(1);
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(1, TransactionSynchronizationManager.getSynchronizations().size());
+
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations())
+            synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+        TransactionSynchronizationManager.clearSynchronization();
+        Assert.assertNull(get(1, "2014-01-01"));
+        Assert.assertNull(get(1, "2014-03-01"));
+        Assert.assertNotNull(get(1, "2014-06-01"));
+        Assert.assertFalse(put(1, "2014-01-01", 0, generation));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        for (int guestId = 1; guestId <= 4; guestId++)
+            put(guestId, "2014-01-01", 0, cache.getGeneration(guestId));
+        Assert.assertEquals(3, cache.size());
+        Assert.assertNull(get(1, "2014-01-01"));
+
+        // more guests than digests: guests without digests are forgotten, and their digests being built are dropped
+        final long generation = cache.getGeneration(2);
+        for (int guestId = 5; guestId <= 10; guestId++)
+            cache.invalidate(guestId);
+        Assert.assertNotNull(get(4, "2014-01-01"));
+        Assert.assertTrue(put(2, "2014-01-02", DAY, generation));
+        final long forgottenGeneration = cache.getGeneration(11);
+        for (int guestId = 12; guestId <= 20; guestId++)
+            cache.invalidate(guestId);
+        Assert.assertFalse(put(11, "2014-01-01", 0, forgottenGeneration));
+    }
+
+    @Test
+    public void testClear() {
+        final long generation = cache.getGeneration(1);
+        put(2, "2014-01-01", 0, cache.getGeneration(2));
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertFalse(put(1, "2014-01-01", 0, generation));
+    }
+
+    private boolean put(final long guestId, final String period, final long start, final long generation) {
+        final Collection<AbstractFacetVO<AbstractFacet>> facets = Collections.emptyList();
+        return cache.put(guestId, period, API, null, "metric", start, start + DAY, facets, generation);
+    }
+
+    private Collection<AbstractFacetVO<AbstractFacet>> get(final long guestId, final String period) {
+        return cache.get(guestId, period, API, null, "metric");
+    }
+}
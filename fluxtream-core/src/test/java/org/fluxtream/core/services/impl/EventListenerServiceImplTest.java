@@ -0,0 +1,110 @@
+package org.fluxtream.core.services.impl;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.fluxtream.core.domain.Event;
+import org.fluxtream.core.events.EventListener;
+import org.fluxtream.core.services.EventListenerService;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * <p>
+ * <code>EventListenerServiceImplTest</code> tests the asynchronous dispatch of the {@link EventListenerServiceImpl}.
+ * </p>
+ */
+@RunWith(JUnit4.class)
+public class EventListenerServiceImplTest {
+
+    static class TestEvent extends Event {}
+
+    @Test
+    public void testSlowAndFailingListenersDontDelayOthers() throws Exception {
+        final EventListenerServiceImpl eventListenerService = new EventListenerServiceImpl();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch handled = new CountDownLatch(3);
+        try {
+            eventListenerService.addEventListener(TestEvent.class, new EventListener<TestEvent>() {
+                @Override
+                public void handleEvent(final TestEvent event) {
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            eventListenerService.addEventListener(TestEvent.class, new EventListener<TestEvent>() {
+                @Override
+                public void handleEvent(final TestEvent event) {
+                    throw new RuntimeException("failing listener");
+                }
+            });
+            eventListenerService.addEventListener(TestEvent.class, new EventListener<TestEvent>() {
+                @Override
+                public void handleEvent(final TestEvent event) {
+                    handled.countDown();
+                }
+            }, EventListenerService.Delivery.AFTER_COMMIT);
+
+            // the slow listener is blocked, yet firing returns and the other listeners get all the events
+            for (int i=0; i<3; i++)
+                eventListenerService.fireEvent(new TestEvent());
+            Assert.assertTrue(handled.await(5, TimeUnit.SECONDS));
+
+            release.countDown();
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline && countHandled(eventListenerService.getListenerStats()) < 9)
+                Thread.sleep(10);
+
+            final List<EventListenerService.ListenerStats> stats = eventListenerService.getListenerStats();
+            Assert.assertEquals(3, stats.size());
+            Assert.assertEquals(9, countHandled(stats));
+            long failed = 0;
+            for (EventListenerService.ListenerStats listenerStats : stats) {
+                failed += listenerStats.failed;
+                Assert.assertEquals(0, listenerStats.dropped);
+                Assert.assertEquals(0, listenerStats.queueDepth);
+            }
+            Assert.assertEquals(3, failed);
+        }
+        finally {
+            release.countDown();
+            eventListenerService.destroy();
+        }
+    }
+
+    @Test
+    public void testDuplicateRegistrationsAreIgnored() throws Exception {
+        final EventListenerServiceImpl eventListenerService = new EventListenerServiceImpl();
+        final CountDownLatch handled = new CountDownLatch(2);
+        final EventListener<TestEvent> listener = new EventListener<TestEvent>() {
+            @Override
+            public void handleEvent(final TestEvent event) {
+                handled.countDown();
+            }
+        };
+        try {
+            eventListenerService.addEventListener(TestEvent.class, listener);
+            eventListenerService.addEventListener(TestEvent.class, listener);
+            eventListenerService.fireEvent(new TestEvent());
+            Assert.assertFalse(handled.await(200, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(1, handled.getCount());
+            Assert.assertEquals(1, eventListenerService.getListenerStats().size());
+        }
+        finally {
+            eventListenerService.destroy();
+        }
+    }
+
+    private static long countHandled(final List<EventListenerService.ListenerStats> stats) {
+        long handled = 0;
+        for (EventListenerService.ListenerStats listenerStats : stats)
+            handled += listenerStats.delivered + listenerStats.failed;
+        return handled;
+    }
+}
@@ -0,0 +1,68 @@
+package org.fluxtream.core.services.impl;
+
+import java.util.Arrays;
+import java.util.Date;
+import org.fluxtream.core.domain.AbstractFacet;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * <p>
+ * <code>FacetChannelExtractorTest</code> tests the {@link FacetChannelExtractor} class.
+ * </p>
+ */
+@RunWith(JUnit4.class)
+public class FacetChannelExtractorTest {
+
+    public static class TestFacet extends AbstractFacet {
+        public int steps;
+        public float weight;
+        public Double bmi;
+        public boolean synced;
+        public Date measured;
+        public String note;
+
+        @Override
+        protected void makeFullTextIndexable() {}
+    }
+
+    @Test
+    public void testExtract() {
+        final FacetChannelExtractor extractor = new FacetChannelExtractor(TestFacet.class,
+                                                                          Arrays.asList("steps", "weight", "bmi", "synced", "measured"));
+        final TestFacet facet = new TestFacet();
+        facet.steps = 1234;
+        facet.weight = 70.5f;
+        facet.synced = true;
+        facet.measured = new Date(1400000000000L);
+
+        final double[][] columns = new double[5][2];
+        extractor.extract(facet, columns, 1);
+        Assert.assertEquals(1234, columns[0][1], 0);
+        Assert.assertEquals(70.5, columns[1][1], 0);
+        Assert.assertTrue(Double.isNaN(columns[2][1]));
+        Assert.assertEquals(1, columns[3][1], 0);
+        Assert.assertEquals(1400000000000L, columns[4][1], 0);
+
+        facet.bmi = 22.5;
+        facet.measured = null;
+        extractor.extract(facet, columns, 0);
+        Assert.assertEquals(22.5, columns[2][0], 0);
+        Assert.assertTrue(Double.isNaN(columns[4][0]));
+    }
+
+    @Test
+    public void testInvalidFields() {
+        for (String fieldName : new String[]{"note", "noSuchField"}) {
+            try {
+                new FacetChannelExtractor(TestFacet.class, Arrays.asList(fieldName));
+                Assert.fail(fieldName + " should have been rejected");
+            }
+            catch (RuntimeException e) {
+                // expected
+            }
+        }
+    }
+}
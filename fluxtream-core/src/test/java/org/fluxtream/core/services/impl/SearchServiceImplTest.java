@@ -0,0 +1,219 @@
+package org.fluxtream.core.services.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.easymock.EasyMock;
+import org.fluxtream.core.Configuration;
+import org.fluxtream.core.connectors.Connector;
+import org.fluxtream.core.domain.AbstractFacet;
+import org.fluxtream.core.domain.ApiKey;
+import org.fluxtream.core.domain.Tag;
+import org.fluxtream.core.domain.TagFilter;
+import org.fluxtream.core.services.GuestService;
+import org.fluxtream.core.services.SearchService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * <p>
+ * <code>SearchServiceImplTest</code> tests the {@link SearchServiceImpl} class on in-memory indexes.
+ * </p>
+ */
+@RunWith(JUnit4.class)
+public class SearchServiceImplTest {
+
+    private static final long GUEST_ID = 7;
+    private static final long API_KEY_ID = 3;
+
+    private SearchServiceImpl searchService;
+    private long nextFacetId = 1;
+
+    static class TestFacet extends AbstractFacet {
+        @Override
+        protected void makeFullTextIndexable() {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        searchService = new SearchServiceImpl() {
+            @Override
+            Directory openDirectory(final long guestId, final boolean rebuild) {
+                return new RAMDirectory();
+            }
+        };
+        final File location = new File(System.getProperty("java.io.tmpdir"), SearchServiceImplTest.class.getSimpleName());
+        searchService.env = new Configuration() {
+            @Override
+            public String get(final String key) {
+                return "searchIndex.location".equals(key) ? location.getPath() : null;
+            }
+        };
+        searchService.env.targetEnvironmentProps = new PropertiesConfiguration();
+        final GuestService guestService = EasyMock.createMock(GuestService.class);
+        EasyMock.expect(guestService.getApiKeys(GUEST_ID)).andStubReturn(Collections.<ApiKey>emptyList());
+        EasyMock.replay(guestService);
+        searchService.guestService = guestService;
+        searchService.afterPropertiesSet();
+        // the guest has no facets in the database, this marks the index as synchronized
+        Assert.assertEquals(0, searchService.rebuild(GUEST_ID));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        searchService.destroy();
+    }
+
+    @Test
+    public void testSearch() {
+        final TestFacet run = facet(0, "Morning run in the park", 1000, 2000);
+        final TestFacet lunch = facet(0, "Lunch in the park", 5000, 6000);
+        searchService.index(Arrays.asList(run, lunch, facet(0, "Evening run", 9000, 9500)));
+
+        Assert.assertEquals(2, search("run").totalHits);
+        Assert.assertEquals(Collections.singleton(lunch.getId()), ids(search("lunch")));
+        Assert.assertEquals(Collections.singleton(run.getId()),
+                            ids(searchService.search(GUEST_ID, "park", 0, 3000, null, null, null, 10)));
+        Assert.assertEquals(Collections.singleton(lunch.getId()),
+                            ids(searchService.search(GUEST_ID, "park", 3000, 0, null, null, null, 10)));
+        Assert.assertEquals(0, search("swim").totalHits);
+
+        // re-indexing a facet replaces its document
+        lunch.fullTextDescription = "Dinner in the park";
+        searchService.index(Collections.singletonList(lunch));
+        Assert.assertEquals(0, search("lunch").totalHits);
+        Assert.assertEquals(Collections.singleton(lunch.getId()), ids(search("dinner")));
+    }
+
+    @Test
+    public void testConnectorFilter() {
+        final Connector connector = Connector.getConnector("fluxtream");
+        final TestFacet walk = facet(connector.value(), "Walk", 0, 0);
+        searchService.index(Arrays.asList(walk, facet(connector.value() + 1, "Walk", 0, 0)));
+
+        Assert.assertEquals(2, search("walk").totalHits);
+        final SearchService.SearchResults results = searchService.search(GUEST_ID, "walk", 0, 0, Collections.singletonList(connector),
+                                                                         null, null, 10);
+        Assert.assertEquals(Collections.singleton(walk.getId()), ids(results));
+        Assert.assertEquals(connector.value(), results.hits.get(0).api);
+    }
+
+    @Test
+    public void testTagFilters() {
+        final TestFacet untagged = facet(0, "Walk", 0, 0);
+        final TestFacet work = facet(0, "Walk", 0, 0);
+        work.addTags("Work", Tag.COMMA_DELIMITER);
+        final TestFacet workAndDog = facet(0, "Walk", 0, 0);
+        workAndDog.addTags("work,dog", Tag.COMMA_DELIMITER);
+        searchService.index(Arrays.asList(untagged, work, workAndDog));
+
+        Assert.assertEquals(ids(work, workAndDog), ids(searchByTags("work,cat", TagFilter.FilteringStrategy.ANY)));
+        Assert.assertEquals(ids(workAndDog), ids(searchByTags("dog,work", TagFilter.FilteringStrategy.ALL)));
+        Assert.assertEquals(ids(untagged, work), ids(searchByTags("dog", TagFilter.FilteringStrategy.NONE)));
+        Assert.assertEquals(ids(untagged), ids(searchByTags(null, TagFilter.FilteringStrategy.UNTAGGED)));
+    }
+
+    @Test
+    public void testCursorPaging() {
+        final List<AbstractFacet> facets = new ArrayList<AbstractFacet>();
+        for (int i=0; i<5; i++)
+            facets.add(facet(0, "Run " + i, 0, 0));
+        searchService.index(facets);
+
+        final Set<Long> found = new HashSet<Long>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            final SearchService.SearchResults results = searchService.search(GUEST_ID, "run", 0, 0, null, null, cursor, 2);
+            if (pages==0)
+                Assert.assertEquals(5, results.totalHits);
+            for (SearchService.SearchHit hit : results.hits)
+                Assert.assertTrue("hit " + hit.facetId + " is on two pages", found.add(hit.facetId));
+            cursor = results.cursor;
+            pages++;
+        } while (cursor!=null);
+
+        Assert.assertEquals(3, pages);
+        Assert.assertEquals(ids(facets.toArray(new AbstractFacet[facets.size()])), found);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidCursor() {
+        searchService.search(GUEST_ID, "run", 0, 0, null, null, "cursor", 2);
+    }
+
+    @Test
+    public void testDelete() {
+        final TestFacet run = facet(0, "Run", 0, 0);
+        final TestFacet walk = facet(0, "Walk", 0, 0);
+        final TestFacet otherApiKeyWalk = facet(0, "Walk", 0, 0);
+        otherApiKeyWalk.apiKeyId = API_KEY_ID + 1;
+        searchService.index(Arrays.asList(run, walk, otherApiKeyWalk));
+
+        searchService.delete(Collections.singletonList(run));
+        Assert.assertEquals(0, search("run").totalHits);
+        Assert.assertEquals(2, search("walk").totalHits);
+
+        final ApiKey apiKey = new ApiKey();
+        apiKey.setId(API_KEY_ID);
+        apiKey.setGuestId(GUEST_ID);
+        searchService.deleteAll(apiKey);
+        Assert.assertEquals(ids(otherApiKeyWalk), ids(search("walk")));
+    }
+
+    @Test
+    public void testRebuildReplacesTheIndex() {
+        searchService.index(Collections.singletonList(facet(0, "Run", 0, 0)));
+        Assert.assertEquals(1, search("run").totalHits);
+
+        Assert.assertEquals(0, searchService.rebuild(GUEST_ID));
+        Assert.assertEquals(0, search("run").totalHits);
+    }
+
+    private TestFacet facet(final int api, final String description, final long start, final long end) {
+        final TestFacet facet = new TestFacet();
+        facet.setId(nextFacetId++);
+        facet.guestId = GUEST_ID;
+        facet.apiKeyId = API_KEY_ID;
+        facet.api = api;
+        facet.fullTextDescription = description;
+        facet.start = start;
+        facet.end = end;
+        return facet;
+    }
+
+    private SearchService.SearchResults search(final String query) {
+        return searchService.search(GUEST_ID, query, 0, 0, null, null, null, 10);
+    }
+
+    private SearchService.SearchResults searchByTags(final String tags, final TagFilter.FilteringStrategy filteringStrategy) {
+        final TagFilter tagFilter = TagFilter.create(Tag.parseTagsIntoStrings(tags, Tag.COMMA_DELIMITER), filteringStrategy);
+        return searchService.search(GUEST_ID, "walk", 0, 0, null, tagFilter, null, 10);
+    }
+
+    private static Set<Long> ids(final SearchService.SearchResults results) {
+        final Set<Long> ids = new HashSet<Long>();
+        for (SearchService.SearchHit hit : results.hits)
+            ids.add(hit.facetId);
+        return ids;
+    }
+
+    private static Set<Long> ids(final AbstractFacet... facets) {
+        final Set<Long> ids = new HashSet<Long>();
+        for (AbstractFacet facet : facets)
+            ids.add(facet.getId());
+        return ids;
+    }
+}
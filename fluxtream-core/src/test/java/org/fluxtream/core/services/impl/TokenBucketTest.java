@@ -0,0 +1,68 @@
+package org.fluxtream.core.services.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * <p>
+ * <code>TokenBucketTest</code> tests the {@link TokenBucket} class and the parsing of rate limit specifications.
+ * </p>
+ */
+@RunWith(JUnit4.class)
+public class TokenBucketTest {
+
+    @Test
+    public void testBurstAndRefill() {
+        // 10 calls per second
+        final TokenBucket bucket = new TokenBucket(10, 1000);
+        final long now = 1000000L;
+        for (int i=0; i<10; i++)
+            Assert.assertTrue(bucket.tryAcquire(now));
+        Assert.assertFalse(bucket.tryAcquire(now));
+        Assert.assertEquals(now + 100, bucket.getNextTokenTime(now));
+        Assert.assertFalse(bucket.tryAcquire(now + 99));
+        Assert.assertTrue(bucket.tryAcquire(now + 100));
+        Assert.assertFalse(bucket.tryAcquire(now + 100));
+        // a full period later, the bucket is full again
+        for (int i=0; i<10; i++)
+            Assert.assertTrue(bucket.tryAcquire(now + 1100));
+        Assert.assertFalse(bucket.tryAcquire(now + 1100));
+    }
+
+    @Test
+    public void testSetUsed() {
+        final TokenBucket bucket = new TokenBucket(10, 1000);
+        final long now = 1000000L;
+        bucket.setUsed(8, now);
+        Assert.assertTrue(bucket.tryAcquire(now));
+        Assert.assertTrue(bucket.tryAcquire(now));
+        Assert.assertFalse(bucket.tryAcquire(now));
+        bucket.setUsed(0, now);
+        Assert.assertEquals(now, bucket.getNextTokenTime(now));
+        bucket.setUsed(1000, now);
+        Assert.assertEquals(now + 100, bucket.getNextTokenTime(now));
+    }
+
+    @Test
+    public void testRateLimitSpecifications() {
+        final RateLimiterServiceImpl.RateLimit perUser = RateLimiterServiceImpl.RateLimit.parse("150/3600000/user");
+        Assert.assertEquals(150, perUser.count);
+        Assert.assertEquals(3600000L, perUser.period);
+        Assert.assertTrue(perUser.perUser);
+        Assert.assertEquals("150/3600000/user", perUser.toString());
+
+        final RateLimiterServiceImpl.RateLimit global = RateLimiterServiceImpl.RateLimit.parse(" 1000000/86400000 ");
+        Assert.assertFalse(global.perUser);
+
+        for (String invalid : new String[]{"150", "150/3600000/guest", "0/1000", "a/1000"}) {
+            try {
+                RateLimiterServiceImpl.RateLimit.parse(invalid);
+                Assert.fail("Expected " + invalid + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
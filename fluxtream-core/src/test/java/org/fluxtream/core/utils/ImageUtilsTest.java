@@ -91,6 +91,39 @@ public class ImageUtilsTest {
         testCreateThumbnailHelper(IMAGE_6, (int)Math.max(IMAGE_6_EXPECTED_SIZE.getHeight(), IMAGE_6_EXPECTED_SIZE.getWidth()), IMAGE_6_EXPECTED_SIZE);
     }
 
+    @Test
+    public void testCreateThumbnails() throws Exception {
+        Assert.assertNull(ImageUtils.createJpegThumbnails(null, 100));
+        Assert.assertNull(ImageUtils.createJpegThumbnails(new byte[]{}, 100));
+        Assert.assertNull(ImageUtils.createJpegThumbnails(IMAGE_1));
+        Assert.assertNull(ImageUtils.createJpegThumbnails(IMAGE_1, 100, 0));
+        Assert.assertNull(ImageUtils.createJpegThumbnails(NOT_AN_IMAGE, 100));
+        try {
+            ImageUtils.createJpegThumbnails(IMAGE_1, 50, 100);
+            Assert.fail("Thumbnail dimensions in increasing order should be rejected");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // the thumbnails should have the same dimensions as those created one by one from the original image
+        testCreateThumbnailsHelper(IMAGE_2, 500, 300, 150);
+        testCreateThumbnailsHelper(IMAGE_3, 500, 300, 150);
+        testCreateThumbnailsHelper(IMAGE_4, 100, 50);
+        testCreateThumbnailsHelper(IMAGE_6, 500, 300, 150);
+    }
+
+    private void testCreateThumbnailsHelper(@NotNull final byte[] imageBytes, final int... lengthsOfLongestSideInPixels) throws IOException {
+        final Image[] thumbnails = ImageUtils.createJpegThumbnails(imageBytes, lengthsOfLongestSideInPixels);
+        Assert.assertNotNull(thumbnails);
+        Assert.assertEquals(lengthsOfLongestSideInPixels.length, thumbnails.length);
+        for (int i = 0; i < thumbnails.length; i++) {
+            final Image expected = ImageUtils.createJpegThumbnail(imageBytes, lengthsOfLongestSideInPixels[i]);
+            Assert.assertNotNull(expected);
+            Assert.assertEquals(new Dimension(expected.getWidth(), expected.getHeight()), new Dimension(thumbnails[i].getWidth(), thumbnails[i].getHeight()));
+        }
+    }
+
     private void testCreateThumbnailHelper(@NotNull final byte[] imageBytes, final int lengthOfLongestSideInPixels, @NotNull final Dimension expectedDimension) throws IOException {
         final Image thumbnail = ImageUtils.createJpegThumbnail(imageBytes, lengthOfLongestSideInPixels);
         Assert.assertNotNull(thumbnail);
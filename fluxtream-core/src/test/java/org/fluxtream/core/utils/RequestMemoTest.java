@@ -0,0 +1,44 @@
+package org.fluxtream.core.utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>
+ * <code>RequestMemoTest</code> tests the {@link RequestMemo} class.
+ * </p>
+ */
+public class RequestMemoTest {
+
+    @After
+    public void tearDown() {
+        RequestMemo.end();
+    }
+
+    @Test
+    public void testInactive() {
+        Assert.assertFalse(RequestMemo.isActive());
+        RequestMemo.put("settings/1", "value");
+        Assert.assertNull(RequestMemo.get("settings/1"));
+    }
+
+    @Test
+    public void testMemoize() {
+        Assert.assertTrue(RequestMemo.begin());
+        Assert.assertFalse(RequestMemo.begin());
+        RequestMemo.put("settings/1", "value");
+        Assert.assertEquals("value", RequestMemo.<String>get("settings/1"));
+        Assert.assertNull(RequestMemo.get("settings/2"));
+
+        RequestMemo.clear();
+        Assert.assertTrue(RequestMemo.isActive());
+        Assert.assertNull(RequestMemo.get("settings/1"));
+
+        RequestMemo.put("settings/1", "value");
+        RequestMemo.end();
+        Assert.assertFalse(RequestMemo.isActive());
+        Assert.assertTrue(RequestMemo.begin());
+        Assert.assertNull(RequestMemo.get("settings/1"));
+    }
+}
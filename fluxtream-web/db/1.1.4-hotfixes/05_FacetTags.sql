@@ -0,0 +1,13 @@
+CREATE TABLE `FacetTags` (
+  `id` bigint(20) NOT NULL AUTO_INCREMENT,
+  `guestId` bigint(20) NOT NULL,
+  `name` varchar(255) DEFAULT NULL,
+  `apiKeyId` bigint(20) DEFAULT NULL,
+  `api` int(11) NOT NULL,
+  `objectType` int(11) NOT NULL,
+  `facetId` bigint(20) NOT NULL,
+  PRIMARY KEY (`id`),
+  KEY `guestId_name` (`guestId`,`name`,`api`,`objectType`,`facetId`),
+  KEY `facet` (`api`,`objectType`,`facetId`),
+  KEY `apiKeyId` (`apiKeyId`,`objectType`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -0,0 +1 @@
+ALTER TABLE ApiKey ADD COLUMN `erasing` char(1) NOT NULL DEFAULT 'N';
@@ -0,0 +1,3 @@
+ALTER TABLE `Facet_FluxtreamCapturePhoto` ADD COLUMN `thumbnail0Hash` varchar(255) DEFAULT NULL;
+ALTER TABLE `Facet_FluxtreamCapturePhoto` ADD COLUMN `thumbnail1Hash` varchar(255) DEFAULT NULL;
+ALTER TABLE `Facet_FluxtreamCapturePhoto` ADD COLUMN `thumbnail2Hash` varchar(255) DEFAULT NULL;
@@ -0,0 +1,3 @@
+ALTER TABLE `Facet_FluxtreamCapturePhoto` ADD COLUMN `thumbnailsPending` char(1) NOT NULL DEFAULT 'N';
+ALTER TABLE `Facet_FluxtreamCapturePhoto` MODIFY `thumbnail0` blob NULL;
+ALTER TABLE `Facet_FluxtreamCapturePhoto` MODIFY `thumbnail1` blob NULL;
@@ -0,0 +1 @@
+ALTER TABLE `UpdateWorkerTask` ADD COLUMN `claimToken` varchar(255) DEFAULT NULL, ADD KEY `claimToken_index` (`claimToken`);